@@ -1,5 +1,7 @@
 package com.openxc.enabler.preferences;
 
+import java.util.concurrent.TimeUnit;
+
 import android.content.Context;
 import android.util.Log;
 
@@ -14,6 +16,8 @@ import com.openxc.util.AndroidFileOpener;
  */
 public class FileRecordingPreferenceManager extends VehiclePreferenceManager {
     private final static String TAG = "FileRecordingPreferenceManager";
+    private final static long MAX_TRACE_FILE_BYTES = 32 * 1024 * 1024;
+    private final static long MAX_TRACE_FILE_HOURS = 1;
     private VehicleDataSink mFileRecorder;
     private String mCurrentDirectory;
 
@@ -53,8 +57,12 @@ public class FileRecordingPreferenceManager extends VehiclePreferenceManager {
                     stopRecording();
 
                     try {
-                        mFileRecorder = new FileRecorderSink(
+                        FileRecorderSink recorder = new FileRecorderSink(
                                 new AndroidFileOpener(directory));
+                        recorder.setCompressed(true);
+                        recorder.setRotation(MAX_TRACE_FILE_BYTES,
+                                MAX_TRACE_FILE_HOURS, TimeUnit.HOURS);
+                        mFileRecorder = recorder;
                     } catch(DataSinkException e) {
                         Log.w(TAG, "Unable to start trace recording", e);
                     }
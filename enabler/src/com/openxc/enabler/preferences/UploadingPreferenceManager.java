@@ -71,7 +71,7 @@ public class UploadingPreferenceManager extends VehiclePreferenceManager {
                     Log.w(TAG, "Unable to add uploader sink", e);
                     return;
                 }
-                getVehicleManager().addSink(mUploader);
+                getVehicleManager().addSink(mUploader, false);
             }
         } else {
             stopUploading();
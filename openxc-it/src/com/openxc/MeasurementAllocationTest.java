@@ -0,0 +1,48 @@
+package com.openxc;
+
+import junit.framework.TestCase;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.openxc.measurements.BaseMeasurement;
+import com.openxc.measurements.Measurement;
+import com.openxc.measurements.VehicleSpeed;
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * Count the objects allocated when building a measurement from a raw value.
+ *
+ * This uses the Dalvik allocation counters, so it must run on a device.
+ */
+public class MeasurementAllocationTest extends TestCase {
+    RawMeasurement raw;
+
+    @Override
+    public void setUp() throws Exception {
+        raw = new RawMeasurement(VehicleSpeed.ID, 42.0, null,
+                1351176963.426318);
+        // load and initialize everything on the path first
+        for(int i = 0; i < 100; i++) {
+            build();
+        }
+    }
+
+    @SmallTest
+    public void testVehicleSpeedAllocatesMeasurementAndUnit()
+            throws Exception {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        Measurement measurement = build();
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+
+        assertNotNull(measurement);
+        assertEquals("Expected only the VehicleSpeed and its unit",
+                2, allocations);
+    }
+
+    private Measurement build() throws Exception {
+        return BaseMeasurement.getMeasurementFromRaw(VehicleSpeed.class, raw);
+    }
+}
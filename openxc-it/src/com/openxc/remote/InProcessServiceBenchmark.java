@@ -0,0 +1,109 @@
+package com.openxc.remote;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Intent;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.test.ServiceTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.openxc.sources.RemoteListenerSource;
+import com.openxc.sources.SourceCallback;
+
+/**
+ * Compare the per-message cost of receiving measurements from a VehicleService
+ * in the same process through the local sink fast path, against the
+ * VehicleServiceListener path used by remote clients.
+ *
+ * Binder calls within a process don't parcel their arguments, so the listener
+ * in the second case writes and reads each measurement from a Parcel to
+ * account for the work a cross-process client has to do.
+ *
+ * Results are written to the log - run this on a device with "adb shell am
+ * instrument -e size large".
+ */
+public class InProcessServiceBenchmark
+        extends ServiceTestCase<VehicleService> {
+    private final static String TAG = "InProcessServiceBenchmark";
+    private final static String DONE = "benchmark_done";
+    private final static int WARMUP_MESSAGES = 10000;
+    private final static int MESSAGES = 100000;
+
+    VehicleServiceInterface service;
+
+    public InProcessServiceBenchmark() {
+        super(VehicleService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Intent startIntent = new Intent();
+        startIntent.setClass(getContext(), VehicleService.class);
+        service = VehicleServiceInterface.Stub.asInterface(
+                bindService(startIntent));
+    }
+
+    @LargeTest
+    public void testLocalSink() throws RemoteException, InterruptedException {
+        final CountDownLatch[] done = new CountDownLatch[1];
+        RemoteListenerSource source = new RemoteListenerSource(service);
+        assertTrue(source.isLocal());
+        source.setCallback(new SourceCallback() {
+            public void receive(RawMeasurement measurement) {
+                if(DONE.equals(measurement.getName())) {
+                    done[0].countDown();
+                }
+            }
+        });
+
+        run("local sink", done);
+        source.stop();
+    }
+
+    @LargeTest
+    public void testRemoteListener() throws RemoteException,
+            InterruptedException {
+        final CountDownLatch[] done = new CountDownLatch[1];
+        VehicleServiceListener listener = new VehicleServiceListener.Stub() {
+            public void receive(RawMeasurement measurement) {
+                Parcel parcel = Parcel.obtain();
+                measurement.writeToParcel(parcel, 0);
+                parcel.setDataPosition(0);
+                measurement = RawMeasurement.CREATOR.createFromParcel(parcel);
+                parcel.recycle();
+
+                if(DONE.equals(measurement.getName())) {
+                    done[0].countDown();
+                }
+            }
+        };
+        service.register(listener);
+
+        run("remote listener", done);
+        service.unregister(listener);
+    }
+
+    private void run(String path, CountDownLatch[] done)
+            throws RemoteException, InterruptedException {
+        send(WARMUP_MESSAGES, done);
+        long start = System.nanoTime();
+        send(MESSAGES, done);
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, path + ": " + (elapsed / MESSAGES) + " ns/message over " +
+                MESSAGES + " messages");
+    }
+
+    private void send(int count, CountDownLatch[] done)
+            throws RemoteException, InterruptedException {
+        done[0] = new CountDownLatch(1);
+        for(int i = 0; i < count; i++) {
+            service.receive(new RawMeasurement("engine_speed", i));
+        }
+        service.receive(new RawMeasurement(DONE, true));
+        assertTrue(done[0].await(60, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,105 @@
+package com.openxc.remote;
+
+import junit.framework.TestCase;
+
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compare the size and cost of the compact RawMeasurement Parcel encoding
+ * against the original format, which wrote the full name and used
+ * Parcel#writeValue for the value and event.
+ *
+ * Results are written to the log - run this on a device with "adb shell am
+ * instrument -e size large".
+ */
+public class RawMeasurementParcelBenchmark extends TestCase {
+    private final static String TAG = "RawMeasurementParcelBenchmark";
+    private final static int WARMUP_ITERATIONS = 10000;
+    private final static int ITERATIONS = 100000;
+
+    RawMeasurement[] measurements = {
+        new RawMeasurement("vehicle_speed", 42.0),
+        new RawMeasurement("engine_speed", 1200),
+        new RawMeasurement("brake_pedal_status", true),
+        new RawMeasurement("transmission_gear_position", "second"),
+        new RawMeasurement("button_event", "left", "pressed")
+    };
+
+    @Override
+    public void tearDown() {
+        RawMeasurement.useSignalIdTable(null);
+    }
+
+    @LargeTest
+    public void testLegacyFormat() {
+        run("legacy", true);
+    }
+
+    @LargeTest
+    public void testCompactFormatFullNames() {
+        RawMeasurement.useSignalIdTable(SignalIdTable.EMPTY);
+        run("compact, full names", false);
+    }
+
+    @LargeTest
+    public void testCompactFormatSignalIds() {
+        RawMeasurement.useSignalIdTable(SignalIdTable.DEFAULT);
+        run("compact, signal IDs", false);
+    }
+
+    private void run(String format, boolean legacy) {
+        Parcel parcel = Parcel.obtain();
+        loop(parcel, WARMUP_ITERATIONS, legacy);
+
+        parcel.setDataPosition(0);
+        parcel.setDataSize(0);
+        for(RawMeasurement measurement : measurements) {
+            write(parcel, measurement, legacy);
+        }
+        int bytesPerMeasurement = parcel.dataSize() / measurements.length;
+
+        long start = System.nanoTime();
+        loop(parcel, ITERATIONS, legacy);
+        long elapsed = System.nanoTime() - start;
+        parcel.recycle();
+
+        Log.i(TAG, format + ": " + bytesPerMeasurement +
+                " bytes/measurement, " + (elapsed / ITERATIONS) +
+                " ns per write and read");
+    }
+
+    private void loop(Parcel parcel, int iterations, boolean legacy) {
+        for(int i = 0; i < iterations; i++) {
+            RawMeasurement measurement = measurements[i % measurements.length];
+            parcel.setDataPosition(0);
+            write(parcel, measurement, legacy);
+            parcel.setDataPosition(0);
+            assertNotNull(read(parcel, legacy).getName());
+        }
+    }
+
+    private static void write(Parcel out, RawMeasurement measurement,
+            boolean legacy) {
+        if(legacy) {
+            out.writeString(measurement.getName());
+            out.writeDouble(measurement.getTimestamp());
+            out.writeValue(measurement.getValue());
+            out.writeValue(measurement.getEvent());
+        } else {
+            measurement.writeToParcel(out, 0);
+        }
+    }
+
+    private static RawMeasurement read(Parcel in, boolean legacy) {
+        if(legacy) {
+            String name = in.readString();
+            double timestamp = in.readDouble();
+            Object value = in.readValue(null);
+            Object event = in.readValue(null);
+            return new RawMeasurement(name, value, event, timestamp);
+        }
+        return RawMeasurement.CREATOR.createFromParcel(in);
+    }
+}
@@ -1,8 +1,13 @@
 package com.openxc.remote;
 
+import java.util.Arrays;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
+import android.os.BadParcelableException;
+import android.os.Parcel;
+
 import com.openxc.TestUtils;
 import com.openxc.measurements.UnrecognizedMeasurementTypeException;
 
@@ -11,6 +16,22 @@ public class RawMeasurementTest extends TestCase {
     final static String measurementName = "measurement_type";
     final static Double measurementValue = Double.valueOf(42.0);
 
+    @Override
+    public void tearDown() {
+        RawMeasurement.useSignalIdTable(null);
+    }
+
+    private static RawMeasurement parcelRoundTrip(RawMeasurement measurement) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            measurement.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return RawMeasurement.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     public void testValue() {
         measurement = new RawMeasurement(measurementName, measurementValue);
     }
@@ -68,4 +89,83 @@ public class RawMeasurementTest extends TestCase {
         }
         Assert.fail();
     }
+
+    public void testParcelNumber() {
+        measurement = new RawMeasurement(measurementName, measurementValue,
+                null, 1351176963.426318);
+        RawMeasurement copy = parcelRoundTrip(measurement);
+        assertEquals(measurementName, copy.getName());
+        assertEquals(measurementValue, copy.getValue());
+        assertFalse(copy.hasEvent());
+        assertEquals(1351176963.426318, copy.getTimestamp(), 0);
+    }
+
+    public void testParcelIntegerStaysInteger() {
+        measurement = new RawMeasurement(measurementName, 42);
+        assertEquals(Integer.valueOf(42),
+                parcelRoundTrip(measurement).getValue());
+    }
+
+    public void testParcelLongStaysLong() {
+        measurement = new RawMeasurement(measurementName, (1L << 53) + 1);
+        assertEquals(Long.valueOf((1L << 53) + 1),
+                parcelRoundTrip(measurement).getValue());
+    }
+
+    public void testParcelBooleanAndString() {
+        measurement = new RawMeasurement(measurementName, false, "pressed");
+        RawMeasurement copy = parcelRoundTrip(measurement);
+        assertEquals(Boolean.FALSE, copy.getValue());
+        assertEquals("pressed", copy.getEvent());
+    }
+
+    public void testParcelNullValue() {
+        measurement = new RawMeasurement(measurementName, null);
+        assertNull(parcelRoundTrip(measurement).getValue());
+    }
+
+    public void testParcelWithSignalId() {
+        RawMeasurement.useSignalIdTable(new SignalIdTable(
+                    Arrays.asList("other", measurementName)));
+        measurement = new RawMeasurement(measurementName, measurementValue);
+        assertEquals(measurementName,
+                parcelRoundTrip(measurement).getName());
+    }
+
+    public void testSignalIdShrinksParcel() {
+        measurement = new RawMeasurement(measurementName, measurementValue);
+        Parcel parcel = Parcel.obtain();
+        measurement.writeToParcel(parcel, 0);
+        int fullNameSize = parcel.dataSize();
+        parcel.recycle();
+
+        RawMeasurement.useSignalIdTable(new SignalIdTable(
+                    Arrays.asList(measurementName)));
+        parcel = Parcel.obtain();
+        measurement.writeToParcel(parcel, 0);
+        assertTrue(parcel.dataSize() < fullNameSize);
+        parcel.recycle();
+    }
+
+    public void testParcelUnknownNameWithTable() {
+        RawMeasurement.useSignalIdTable(SignalIdTable.DEFAULT);
+        measurement = new RawMeasurement("not_in_the_table", measurementValue);
+        assertEquals("not_in_the_table",
+                parcelRoundTrip(measurement).getName());
+    }
+
+    public void testParcelUnknownTableFails() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            // name ID 0 from a table this process has never seen
+            parcel.writeInt(1 << 8);
+            parcel.writeLong(0x5eed5eed5eed5eedL);
+            parcel.setDataPosition(0);
+            RawMeasurement.CREATOR.createFromParcel(parcel);
+            fail("Expected a BadParcelableException");
+        } catch(BadParcelableException e) {
+        } finally {
+            parcel.recycle();
+        }
+    }
 }
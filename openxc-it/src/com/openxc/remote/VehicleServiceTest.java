@@ -1,11 +1,17 @@
 package com.openxc.remote;
 
+import com.openxc.measurements.EngineSpeed;
 import com.openxc.remote.VehicleService;
+import com.openxc.sinks.BaseVehicleDataSink;
+import com.openxc.sinks.DataSinkException;
+import com.openxc.sources.RemoteListenerSource;
+import com.openxc.sources.SourceCallback;
 
 import android.content.Intent;
 
 import android.test.ServiceTestCase;
 
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
@@ -37,4 +43,64 @@ public class VehicleServiceTest
     public void testUsingUsbSource() {
         assertNotNull(bindService(startIntent));
     }
+
+    @MediumTest
+    public void testInProcessClientUsesLocalSink() {
+        VehicleServiceInterface service =
+            VehicleServiceInterface.Stub.asInterface(bindService(startIntent));
+        assertTrue(service instanceof VehicleService.VehicleServiceBinder);
+        RemoteListenerSource source = new RemoteListenerSource(service);
+        assertTrue(source.isLocal());
+        source.stop();
+    }
+
+    @LargeTest
+    public void testSlowClientIsShed() {
+        VehicleService.VehicleServiceBinder service =
+            (VehicleService.VehicleServiceBinder)
+            VehicleServiceInterface.Stub.asInterface(bindService(startIntent));
+        CountingSink essential = new CountingSink();
+        service.addLocalSink(essential, true);
+
+        // an in-process client that takes a millisecond with each
+        // measurement, so the service falls behind
+        RemoteListenerSource client = new RemoteListenerSource(service);
+        client.setCallback(new SourceCallback() {
+            public void receive(RawMeasurement measurement) {
+                try {
+                    Thread.sleep(1);
+                } catch(InterruptedException e) {
+                }
+            }
+        });
+
+        try {
+            int sent = 0;
+            long end = System.currentTimeMillis() + 10000;
+            while(client.getReceivedCount() == sent &&
+                    System.currentTimeMillis() < end) {
+                service.receive(new RawMeasurement(EngineSpeed.ID, sent++));
+            }
+
+            assertTrue("Client got all " + sent + " measurements",
+                    client.getReceivedCount() < sent);
+            assertEquals(sent, essential.mCount);
+            assertFalse(service.getSinkSummaries().toString().contains(
+                        "tier=NONE"));
+        } finally {
+            client.stop();
+            service.removeLocalSink(essential);
+        }
+    }
+
+    private static class CountingSink extends BaseVehicleDataSink {
+        volatile int mCount;
+
+        @Override
+        public boolean receive(RawMeasurement measurement)
+                throws DataSinkException {
+            mCount++;
+            return true;
+        }
+    }
 }
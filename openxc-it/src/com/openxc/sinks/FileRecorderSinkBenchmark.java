@@ -0,0 +1,131 @@
+package com.openxc.sinks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.openxc.remote.RawMeasurement;
+import com.openxc.util.FileOpener;
+import com.openxc.util.JavaFileOpener;
+
+/**
+ * Compare the sustained throughput of the FileRecorderSink with a recorder
+ * that writes each measurement with a synchronous BufferedWriter on the
+ * sender's thread, like it used to.
+ *
+ * Results are written to the log - run this on a device with "adb shell am
+ * instrument -e size large".
+ */
+public class FileRecorderSinkBenchmark extends TestCase {
+    private final static String TAG = "FileRecorderSinkBenchmark";
+    private final static int MEASUREMENTS = 200000;
+    private final static String[] NAMES = {
+        "vehicle_speed", "engine_speed", "accelerator_pedal_position",
+        "steering_wheel_angle"
+    };
+
+    File directory;
+
+    @Override
+    public void setUp() throws IOException {
+        directory = File.createTempFile("traces", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @LargeTest
+    public void testSynchronousWriter() throws DataSinkException {
+        measure("synchronous BufferedWriter",
+                new SynchronousRecorderSink(new JavaFileOpener(directory)));
+    }
+
+    @LargeTest
+    public void testWriteBehind() throws DataSinkException {
+        FileRecorderSink sink = new FileRecorderSink(
+                new JavaFileOpener(directory));
+        measure("write-behind FileChannel", sink);
+        Log.i(TAG, "Write-behind recorder waited for a buffer " +
+                sink.getBufferWaitCount() + " times");
+    }
+
+    private void measure(String name, VehicleDataSink sink)
+            throws DataSinkException {
+        RawMeasurement[] measurements = new RawMeasurement[NAMES.length];
+        for(int i = 0; i < measurements.length; i++) {
+            measurements[i] = new RawMeasurement(NAMES[i], i * 10.5);
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < MEASUREMENTS; i++) {
+            sink.receive(measurements[i % measurements.length]);
+        }
+        long received = System.nanoTime() - start;
+        // include the time to get everything onto the disk
+        sink.stop();
+        long elapsed = System.nanoTime() - start;
+
+        Log.i(TAG, name + ": " + (MEASUREMENTS * 1000000000L / elapsed) +
+                " measurements per second sustained, " +
+                (received / MEASUREMENTS) + " ns per receive()");
+    }
+
+    /**
+     * The recorder as it was before writes were moved off the sender's thread.
+     */
+    private static class SynchronousRecorderSink extends BaseVehicleDataSink {
+        private final static int INTER_TRIP_THRESHOLD_MINUTES = 5;
+
+        private FileOpener mFileOpener;
+        private BufferedWriter mWriter;
+        private Calendar mLastMessageReceived;
+
+        public SynchronousRecorderSink(FileOpener fileOpener) {
+            mFileOpener = fileOpener;
+        }
+
+        public synchronized boolean receive(RawMeasurement measurement)
+                throws DataSinkException {
+            if(mLastMessageReceived == null ||
+                        GregorianCalendar.getInstance().getTimeInMillis()
+                        - mLastMessageReceived.getTimeInMillis()
+                    > INTER_TRIP_THRESHOLD_MINUTES * 60 * 1000) {
+                try {
+                    mWriter = mFileOpener.openForWriting("baseline.json");
+                } catch(IOException e) {
+                    throw new DataSinkException(
+                            "Unable to open file for recording", e);
+                }
+            }
+
+            mLastMessageReceived = GregorianCalendar.getInstance();
+            try {
+                mWriter.write(measurement.serialize());
+                mWriter.newLine();
+            } catch(IOException e) {
+                return false;
+            }
+            return true;
+        }
+
+        public synchronized void stop() {
+            try {
+                mWriter.close();
+            } catch(IOException e) {
+            }
+        }
+    }
+}
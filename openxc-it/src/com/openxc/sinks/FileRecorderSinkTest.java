@@ -1,19 +1,29 @@
 package com.openxc.sinks;
 
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import junit.framework.Assert;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.openxc.measurements.UnrecognizedMeasurementTypeException;
 import com.openxc.remote.RawMeasurement;
 import com.openxc.util.FileOpener;
+import com.openxc.util.JavaFileOpener;
 
 public class FileRecorderSinkTest extends AndroidTestCase {
     FileRecorderSink sink;
@@ -107,6 +117,181 @@ public class FileRecorderSinkTest extends AndroidTestCase {
         assertTrue(records[1].indexOf("second") != -1);
     }
 
+    private File createTraceDirectory() throws IOException {
+        File directory = File.createTempFile("traces", "");
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    private String readTrace(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".json"));
+        return FileUtils.readFileToString(files[0]);
+    }
+
+    @SmallTest
+    public void testWritesThroughFileChannel() throws IOException,
+            DataSinkException {
+        File directory = createTraceDirectory();
+        sink = new FileRecorderSink(new JavaFileOpener(directory));
+        sink.receive(new RawMeasurement(measurementId, value));
+        sink.flush();
+        String trace = readTrace(directory);
+        assertTrue(trace.indexOf(measurementId) != -1);
+        assertTrue(trace.endsWith("\n"));
+        sink.stop();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @MediumTest
+    public void testWrittenAfterFlushInterval() throws IOException,
+            DataSinkException, InterruptedException {
+        File directory = createTraceDirectory();
+        sink = new FileRecorderSink(new JavaFileOpener(directory), 20, 0);
+        sink.receive(new RawMeasurement(measurementId, value));
+        Thread.sleep(500);
+        assertTrue(readTrace(directory).indexOf(measurementId) != -1);
+        sink.stop();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @MediumTest
+    public void testManyBuffers() throws IOException, DataSinkException {
+        File directory = createTraceDirectory();
+        sink = new FileRecorderSink(new JavaFileOpener(directory));
+        int count = 50000;
+        for(int i = 0; i < count; i++) {
+            sink.receive(new RawMeasurement(measurementId, i));
+        }
+        sink.stop();
+
+        String[] records = readTrace(directory).split("\n");
+        assertEquals(count, records.length);
+        assertTrue(records[count - 1].indexOf("" + (count - 1)) != -1);
+        assertTrue(sink.getBytesWritten() > 64 * 1024 * 4);
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @SmallTest
+    public void testCompressedOutput() throws IOException,
+            DataSinkException {
+        File directory = createTraceDirectory();
+        sink = new FileRecorderSink(new JavaFileOpener(directory));
+        sink.setCompressed(true);
+        assertTrue(sink.isCompressed());
+        sink.receive(new RawMeasurement(measurementId, value));
+        sink.stop();
+
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".json.gz"));
+        GZIPInputStream stream = new GZIPInputStream(
+                new FileInputStream(files[0]));
+        String trace = IOUtils.toString(stream, "UTF-8");
+        stream.close();
+        assertTrue(trace.indexOf(measurementId) != -1);
+        assertTrue(trace.endsWith("\n"));
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @SmallTest
+    public void testCompressionNeedsChannel() throws DataSinkException {
+        sink.setCompressed(true);
+        assertFalse(sink.isCompressed());
+        sink.receive(new RawMeasurement(measurementId, value));
+        sink.flush();
+        assertTrue(outputString.toString().indexOf(measurementId) != -1);
+    }
+
+    @MediumTest
+    public void testRotatesBySize() throws IOException, DataSinkException,
+            InterruptedException {
+        File directory = createTraceDirectory();
+        sink = new FileRecorderSink(new JavaFileOpener(directory));
+        sink.setRotation(1, 0, TimeUnit.SECONDS);
+        sink.receive(new RawMeasurement("first", value));
+        sink.flush();
+        // files are named by the second, so wait for a new name
+        Thread.sleep(1100);
+        sink.receive(new RawMeasurement("second", value));
+        sink.stop();
+
+        File[] files = directory.listFiles();
+        assertEquals(2, files.length);
+        String first = FileUtils.readFileToString(files[0]);
+        String second = FileUtils.readFileToString(files[1]);
+        assertTrue((first + second).indexOf("first") != -1);
+        assertTrue((first + second).indexOf("second") != -1);
+        assertFalse(first.indexOf("first") != -1 &&
+                first.indexOf("second") != -1);
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @MediumTest
+    public void testRotatesOnlyBetweenLines() throws IOException,
+            DataSinkException, InterruptedException,
+            UnrecognizedMeasurementTypeException {
+        File directory = createTraceDirectory();
+        sink = new FileRecorderSink(new JavaFileOpener(directory));
+        sink.setRotation(1, 0, TimeUnit.SECONDS);
+        StringBuilder longValue = new StringBuilder();
+        while(longValue.length() < 100 * 1024) {
+            longValue.append("long value ");
+        }
+
+        // lines of varying length, recorded over a few seconds so buffers
+        // end part way through lines and files are started while recording
+        int count = 0;
+        long end = System.currentTimeMillis() + 2500;
+        StringBuilder padding = new StringBuilder();
+        while(System.currentTimeMillis() < end) {
+            padding.setLength(count % 37);
+            sink.receive(new RawMeasurement(measurementId,
+                        padding.toString().replace('\0', 'x') + count));
+            count++;
+            if(count % 5000 == 0) {
+                sink.receive(new RawMeasurement(measurementId,
+                            longValue.toString()));
+                count++;
+                Thread.sleep(100);
+            }
+        }
+        sink.stop();
+
+        File[] files = directory.listFiles();
+        assertTrue(files.length > 1);
+        assertTrue(sink.getBytesWritten() > 64 * 1024);
+        int lines = 0;
+        for(File file : files) {
+            String trace = FileUtils.readFileToString(file);
+            assertTrue(trace.endsWith("\n"));
+            for(String line : trace.split("\n")) {
+                assertEquals(measurementId,
+                        new RawMeasurement(line).getName());
+                lines++;
+            }
+        }
+        assertEquals(count, lines);
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @MediumTest
+    public void testRotatesByDuration() throws IOException,
+            DataSinkException, InterruptedException {
+        File directory = createTraceDirectory();
+        sink = new FileRecorderSink(new JavaFileOpener(directory));
+        sink.setRotation(0, 1, TimeUnit.SECONDS);
+        sink.receive(new RawMeasurement("first", value));
+        sink.flush();
+        Thread.sleep(1100);
+        sink.receive(new RawMeasurement("second", value));
+        sink.stop();
+        assertEquals(2, directory.listFiles().length);
+        FileUtils.deleteDirectory(directory);
+    }
+
     private class MockFileOpener implements FileOpener {
         public BufferedWriter openForWriting(String path) throws IOException {
             return new BufferedWriter(outputString);
@@ -0,0 +1,170 @@
+package com.openxc.sinks;
+
+import com.openxc.measurements.IgnitionStatus;
+import com.openxc.measurements.Measurement;
+import com.openxc.measurements.UnrecognizedMeasurementTypeException;
+import com.openxc.measurements.VehicleSpeed;
+import com.openxc.remote.RawMeasurement;
+
+import android.test.AndroidTestCase;
+
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class MeasurementListenerSinkTest extends AndroidTestCase {
+    MeasurementListenerSink notifier;
+    Measurement receivedMeasurement;
+    double receivedValue;
+    long receivedTimestamp;
+    int numericCount;
+
+    Measurement.Listener listener = new Measurement.Listener() {
+        public void receive(Measurement measurement) {
+            receivedMeasurement = measurement;
+        }
+    };
+
+    Measurement.NumericListener numericListener =
+            new Measurement.NumericListener() {
+        public void receive(double value, long timestampNanos) {
+            receivedValue = value;
+            receivedTimestamp = timestampNanos;
+            numericCount++;
+        }
+    };
+
+    @Override
+    public void setUp() {
+        notifier = new MeasurementListenerSink();
+    }
+
+    @Override
+    public void tearDown() {
+        notifier.stop();
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(50);
+        } catch(InterruptedException e) {}
+    }
+
+    @SmallTest
+    public void testNumericListenerReceivesValue()
+            throws DataSinkException, UnrecognizedMeasurementTypeException {
+        notifier.register(VehicleSpeed.class, numericListener);
+        notifier.receive(new RawMeasurement(VehicleSpeed.ID, 42.5,
+                    null, 1351176963.426));
+        pause();
+        assertEquals(1, numericCount);
+        assertEquals(42.5, receivedValue, 0.0001);
+        assertEquals(1351176963426000000L, receivedTimestamp, 1000);
+    }
+
+    @SmallTest
+    public void testNumericAndObjectListeners()
+            throws DataSinkException, UnrecognizedMeasurementTypeException {
+        notifier.register(VehicleSpeed.class, numericListener);
+        notifier.register(VehicleSpeed.class, listener);
+        notifier.receive(new RawMeasurement(VehicleSpeed.ID, 42.5));
+        pause();
+        assertEquals(1, numericCount);
+        assertNotNull(receivedMeasurement);
+        assertEquals(42.5,
+                ((VehicleSpeed) receivedMeasurement).getValue().doubleValue(),
+                0.0001);
+    }
+
+    @SmallTest
+    public void testReceivesLastValueOnRegister()
+            throws DataSinkException, UnrecognizedMeasurementTypeException {
+        notifier.receive(new RawMeasurement(VehicleSpeed.ID, 42.5));
+        notifier.register(VehicleSpeed.class, numericListener);
+        assertEquals(1, numericCount);
+        assertEquals(42.5, receivedValue, 0.0001);
+    }
+
+    @SmallTest
+    public void testUnregister()
+            throws DataSinkException, UnrecognizedMeasurementTypeException {
+        notifier.register(VehicleSpeed.class, numericListener);
+        notifier.unregister(VehicleSpeed.class, numericListener);
+        notifier.receive(new RawMeasurement(VehicleSpeed.ID, 42.5));
+        pause();
+        assertEquals(0, numericCount);
+    }
+
+    @SmallTest
+    public void testNonNumericMeasurementRejected() {
+        try {
+            notifier.register(IgnitionStatus.class, numericListener);
+            fail("Expected an UnrecognizedMeasurementTypeException");
+        } catch(UnrecognizedMeasurementTypeException e) {
+        }
+    }
+
+    @MediumTest
+    public void testRegisterChurnWhileDispatching()
+            throws DataSinkException, InterruptedException,
+            UnrecognizedMeasurementTypeException {
+        notifier.register(VehicleSpeed.class, numericListener);
+
+        Thread churn = new Thread() {
+            public void run() {
+                Measurement.NumericListener other =
+                        new Measurement.NumericListener() {
+                    public void receive(double value, long timestampNanos) {}
+                };
+                try {
+                    for(int i = 0; i < 2000; i++) {
+                        notifier.register(VehicleSpeed.class, other);
+                        notifier.register(VehicleSpeed.class, listener);
+                        notifier.unregister(VehicleSpeed.class, other);
+                        notifier.unregister(VehicleSpeed.class, listener);
+                    }
+                } catch(UnrecognizedMeasurementTypeException e) {
+                    fail("VehicleSpeed should be recognized");
+                }
+            }
+        };
+        churn.start();
+
+        for(int i = 1; i <= 2000; i++) {
+            notifier.receive(new RawMeasurement(VehicleSpeed.ID, i));
+        }
+        churn.join();
+        pause();
+
+        assertEquals(2000, receivedValue, 0.0001);
+        assertEquals("MeasurementListenerSink{numListeners=0, " +
+                "numNumericListeners=1}", notifier.toString());
+    }
+
+    @MediumTest
+    public void testLosslessModeDeliversEveryValue()
+            throws DataSinkException, UnrecognizedMeasurementTypeException {
+        notifier.stop();
+        notifier = new MeasurementListenerSink(
+                AbstractQueuedCallbackSink.DeliveryMode.LOSSLESS);
+        final double[] values = new double[5000];
+        notifier.register(VehicleSpeed.class,
+                new Measurement.NumericListener() {
+            public void receive(double value, long timestampNanos) {
+                values[numericCount++] = value;
+            }
+        });
+
+        for(int i = 0; i < values.length; i++) {
+            notifier.receive(new RawMeasurement(VehicleSpeed.ID, i));
+        }
+        for(int i = 0; i < 100 && numericCount < values.length; i++) {
+            pause();
+        }
+
+        assertEquals(values.length, numericCount);
+        for(int i = 0; i < values.length; i++) {
+            assertEquals(i, values[i], 0.0001);
+        }
+        assertEquals(0, notifier.getCoalescedCount());
+    }
+}
@@ -0,0 +1,159 @@
+package com.openxc.sinks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * Compare the throughput and loss of the AbstractQueuedCallbackSink delivery
+ * modes, with several threads sending a mix of measurements as fast as they
+ * can, and measure the cost of a single receive() call and how long an idle
+ * sink takes to start propagating.
+ *
+ * Results are written to the log - run this on a device with "adb shell am
+ * instrument -e size large".
+ */
+public class QueuedCallbackSinkBenchmark extends TestCase {
+    private final static String TAG = "QueuedCallbackSinkBenchmark";
+    private final static int PRODUCERS = 4;
+    private final static int MEASUREMENTS_PER_PRODUCER = 100000;
+    private final static int WAKEUPS = 1000;
+    private final static int SPIN_COUNT = 100;
+    private final static String[] NAMES = {
+        "vehicle_speed", "engine_speed", "button_event", "door_status"
+    };
+
+    @LargeTest
+    public void testCoalescing() throws InterruptedException {
+        run(AbstractQueuedCallbackSink.DeliveryMode.COALESCING);
+    }
+
+    @LargeTest
+    public void testLossless() throws InterruptedException {
+        run(AbstractQueuedCallbackSink.DeliveryMode.LOSSLESS);
+    }
+
+    @LargeTest
+    public void testReceiveOverhead() throws DataSinkException {
+        for(AbstractQueuedCallbackSink.DeliveryMode mode :
+                AbstractQueuedCallbackSink.DeliveryMode.values()) {
+            CountingSink sink = new CountingSink(mode, 0);
+            RawMeasurement measurement = new RawMeasurement(NAMES[0], 1);
+            int count = MEASUREMENTS_PER_PRODUCER;
+            long start = System.nanoTime();
+            for(int i = 0; i < count; i++) {
+                sink.receive(measurement);
+            }
+            long elapsed = System.nanoTime() - start;
+            sink.stop();
+
+            Log.i(TAG, mode + ": " + (elapsed / count) + " ns per receive(), "
+                    + sink.getWakeupCount() + " wakeups for " + count +
+                    " measurements");
+        }
+    }
+
+    @LargeTest
+    public void testWakeLatencyParking() throws InterruptedException,
+            DataSinkException {
+        measureWakeLatency(0);
+    }
+
+    @LargeTest
+    public void testWakeLatencySpinning() throws InterruptedException,
+            DataSinkException {
+        measureWakeLatency(SPIN_COUNT);
+    }
+
+    private void measureWakeLatency(int spinCount)
+            throws InterruptedException, DataSinkException {
+        CountingSink sink = new CountingSink(
+                AbstractQueuedCallbackSink.DeliveryMode.LOSSLESS, spinCount);
+        long total = 0;
+        for(int i = 0; i < WAKEUPS; i++) {
+            // let the notification task finish
+            Thread.sleep(1);
+            long sent = System.nanoTime();
+            sink.receive(new RawMeasurement(NAMES[0], i));
+            while(sink.mPropagated.get() <= i) {
+                Thread.yield();
+            }
+            total += sink.mLastPropagatedNanos - sent;
+        }
+        sink.stop();
+
+        Log.i(TAG, "Spin count " + spinCount + ": " + (total / WAKEUPS) +
+                " ns from receive() to propagation of an idle sink, " +
+                sink.getWakeupCount() + " wakeups");
+    }
+
+    private void run(AbstractQueuedCallbackSink.DeliveryMode mode)
+            throws InterruptedException {
+        final CountingSink sink = new CountingSink(mode);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(PRODUCERS);
+
+        for(int p = 0; p < PRODUCERS; p++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for(int i = 0; i < MEASUREMENTS_PER_PRODUCER; i++) {
+                            sink.receive(new RawMeasurement(
+                                        NAMES[i % NAMES.length], i));
+                        }
+                    } catch(InterruptedException e) {
+                    } catch(DataSinkException e) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long sendElapsed = System.nanoTime() - begin;
+        // give the notification task time to finish draining
+        long previous = -1;
+        while(sink.mPropagated.get() != previous) {
+            previous = sink.mPropagated.get();
+            Thread.sleep(100);
+        }
+        sink.stop();
+
+        long sent = PRODUCERS * MEASUREMENTS_PER_PRODUCER;
+        long propagated = sink.mPropagated.get();
+        Log.i(TAG, mode + ": " + (sent * 1000000000L / sendElapsed) +
+                " measurements/s sent, " + propagated + " of " + sent +
+                " propagated (" + (100 * (sent - propagated) / sent) +
+                "% lost), " + sink.getCoalescedCount() + " coalesced, " +
+                sink.getBackpressureCount() + " sender waits");
+    }
+
+    private static class CountingSink extends AbstractQueuedCallbackSink {
+        AtomicLong mPropagated = new AtomicLong();
+        volatile long mLastPropagatedNanos;
+
+        public CountingSink(DeliveryMode mode) {
+            super(mode);
+        }
+
+        public CountingSink(DeliveryMode mode, int spinCount) {
+            super(mode, DEFAULT_QUEUE_CAPACITY, spinCount);
+        }
+
+        protected void propagateMeasurement(String measurementId,
+                RawMeasurement measurement) {
+            mLastPropagatedNanos = System.nanoTime();
+            mPropagated.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.openxc.sinks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.openxc.measurements.EngineSpeed;
+import com.openxc.measurements.VehicleButtonEvent;
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * Check that high priority events are propagated promptly while a queued sink
+ * is saturated with bulk telemetry.
+ */
+public class QueuedCallbackSinkPriorityTest extends AndroidTestCase {
+    private final static int EVENTS = 20;
+    // a full lossless queue of slow measurements takes about 100ms to drain
+    private final static long SLOW_PROPAGATE_NANOS =
+            TimeUnit.MICROSECONDS.toNanos(100);
+    private final static long MAX_EVENT_LATENCY_MS = 20;
+
+    SlowSink sink;
+    volatile boolean flooding = true;
+
+    @Override
+    public void tearDown() {
+        flooding = false;
+        if(sink != null) {
+            sink.stop();
+        }
+    }
+
+    private void startFlooding(final int producers) {
+        for(int p = 0; p < producers; p++) {
+            new Thread() {
+                public void run() {
+                    int i = 0;
+                    while(flooding) {
+                        try {
+                            sink.receive(new RawMeasurement(EngineSpeed.ID,
+                                        i++));
+                        } catch(DataSinkException e) {
+                            return;
+                        }
+                    }
+                }
+            }.start();
+        }
+    }
+
+    private long sendEvents() throws DataSinkException, InterruptedException {
+        long maxLatency = 0;
+        for(int i = 0; i < EVENTS; i++) {
+            Thread.sleep(5);
+            long sent = System.nanoTime();
+            sink.receive(new RawMeasurement(VehicleButtonEvent.ID, "ok",
+                        "pressed_" + i));
+            assertTrue(sink.mEvents.await(1, TimeUnit.SECONDS, i));
+            maxLatency = Math.max(maxLatency,
+                    sink.mEventTimes.get(i) - sent);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(maxLatency);
+    }
+
+    @MediumTest
+    public void testEventLatencyBoundedWhileSaturatedLossless()
+            throws DataSinkException, InterruptedException {
+        sink = new SlowSink(AbstractQueuedCallbackSink.DeliveryMode.LOSSLESS);
+        startFlooding(2);
+        // wait for the normal lane to fill up
+        while(sink.getBackpressureCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        long maxLatency = sendEvents();
+        assertTrue("Worst event latency was " + maxLatency + "ms",
+                maxLatency < MAX_EVENT_LATENCY_MS);
+        assertEquals(EVENTS, sink.getPriorityCount());
+    }
+
+    @MediumTest
+    public void testEventsNotCoalescedWhileSaturated()
+            throws DataSinkException, InterruptedException {
+        sink = new SlowSink(
+                AbstractQueuedCallbackSink.DeliveryMode.COALESCING);
+        startFlooding(2);
+
+        long maxLatency = sendEvents();
+        assertTrue("Worst event latency was " + maxLatency + "ms",
+                maxLatency < MAX_EVENT_LATENCY_MS);
+
+        // a burst of events is delivered in full, not just the last one
+        for(int i = EVENTS; i < EVENTS * 2; i++) {
+            sink.receive(new RawMeasurement(VehicleButtonEvent.ID, "ok",
+                        "pressed_" + i));
+        }
+        assertTrue(sink.mEvents.await(1, TimeUnit.SECONDS, EVENTS * 2 - 1));
+        assertEquals(EVENTS * 2, sink.mEventTimes.size());
+    }
+
+    @MediumTest
+    public void testFullPriorityLaneDoesNotBlockWhenCoalescing()
+            throws DataSinkException, InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ConcurrentHashMap<String, Object> latest =
+                new ConcurrentHashMap<String, Object>();
+        AbstractQueuedCallbackSink blocked = new AbstractQueuedCallbackSink() {
+            protected void propagateMeasurement(String measurementId,
+                    RawMeasurement measurement) {
+                try {
+                    release.await();
+                } catch(InterruptedException e) {
+                }
+                latest.put(measurementId, measurement.getEvent());
+            }
+        };
+
+        try {
+            // far more than the lane holds, with the listener stuck - each
+            // receive returns instead of waiting for room
+            for(int i = 0; i < 1000; i++) {
+                blocked.receive(new RawMeasurement(VehicleButtonEvent.ID,
+                            "ok", "pressed_" + i));
+            }
+            assertTrue(blocked.getPriorityOverflowCount() > 0);
+            assertEquals(0, blocked.getBackpressureCount());
+
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 1000;
+            while(!"pressed_999".equals(latest.get(VehicleButtonEvent.ID)) &&
+                    System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals("pressed_999", latest.get(VehicleButtonEvent.ID));
+        } finally {
+            release.countDown();
+            blocked.stop();
+        }
+    }
+
+    private static class SlowSink extends AbstractQueuedCallbackSink {
+        ConcurrentHashMap<Integer, Long> mEventTimes =
+                new ConcurrentHashMap<Integer, Long>();
+        EventLatch mEvents = new EventLatch();
+
+        public SlowSink(DeliveryMode mode) {
+            super(mode);
+        }
+
+        protected void propagateMeasurement(String measurementId,
+                RawMeasurement measurement) {
+            if(measurementId.equals(VehicleButtonEvent.ID)) {
+                String event = (String) measurement.getEvent();
+                int index = Integer.parseInt(event.substring(
+                            event.indexOf('_') + 1));
+                mEventTimes.put(index, System.nanoTime());
+                mEvents.arrived(index);
+            } else {
+                long end = System.nanoTime() + SLOW_PROPAGATE_NANOS;
+                while(System.nanoTime() < end);
+            }
+        }
+    }
+
+    private static class EventLatch {
+        private final ConcurrentHashMap<Integer, CountDownLatch> mLatches =
+                new ConcurrentHashMap<Integer, CountDownLatch>();
+
+        private CountDownLatch latch(int index) {
+            mLatches.putIfAbsent(index, new CountDownLatch(1));
+            return mLatches.get(index);
+        }
+
+        public void arrived(int index) {
+            latch(index).countDown();
+        }
+
+        public boolean await(long timeout, TimeUnit unit, int index)
+                throws InterruptedException {
+            return latch(index).await(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.openxc.sources;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.openxc.remote.RawMeasurement;
+import com.openxc.remote.VehicleServiceInterface;
+import com.openxc.remote.VehicleServiceListener;
+import com.openxc.sinks.AbstractQueuedCallbackSink.DeliveryMode;
+
+public class RemoteListenerSourceTest extends TestCase {
+    FakeService service;
+    RemoteListenerSource source;
+
+    @Override
+    public void setUp() {
+        service = new FakeService();
+        source = new RemoteListenerSource(service);
+    }
+
+    @Override
+    public void tearDown() {
+        source.stop();
+    }
+
+    @SmallTest
+    public void testRegisters() {
+        assertNotNull(service.listener);
+    }
+
+    @SmallTest
+    public void testDispatchesOffBinderThread() throws RemoteException,
+            InterruptedException {
+        final CountDownLatch received = new CountDownLatch(1);
+        final Thread[] dispatchThread = new Thread[1];
+        source.setCallback(new SourceCallback() {
+            public void receive(RawMeasurement measurement) {
+                dispatchThread[0] = Thread.currentThread();
+                received.countDown();
+            }
+        });
+
+        service.listener.receive(new RawMeasurement("vehicle_speed", 42.0));
+        assertTrue(received.await(1, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), dispatchThread[0]);
+        assertEquals(1, source.getReceivedCount());
+    }
+
+    @SmallTest
+    public void testQueueDrains() throws RemoteException,
+            InterruptedException {
+        final int count = 1000;
+        final CountDownLatch received = new CountDownLatch(count);
+        source.setCallback(new SourceCallback() {
+            public void receive(RawMeasurement measurement) {
+                received.countDown();
+            }
+        });
+
+        for(int i = 0; i < count; i++) {
+            service.listener.receive(new RawMeasurement("signal_" + i, i));
+        }
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(0, source.getQueueDepth());
+        assertTrue(source.getMaxQueueDepth() >= 1);
+    }
+
+    @SmallTest
+    public void testLosslessByDefault() throws RemoteException,
+            InterruptedException {
+        assertEquals(DeliveryMode.LOSSLESS, source.getDeliveryMode());
+        final int count = 1000;
+        final CountDownLatch received = new CountDownLatch(count);
+        final List<Object> values = new CopyOnWriteArrayList<Object>();
+        source.setCallback(new SourceCallback() {
+            public void receive(RawMeasurement measurement) {
+                values.add(measurement.getValue());
+                received.countDown();
+            }
+        });
+
+        // every value of the same measurement is delivered, in order
+        for(int i = 0; i < count; i++) {
+            service.listener.receive(new RawMeasurement("engine_speed", i));
+        }
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        for(int i = 0; i < count; i++) {
+            assertEquals(i, ((Number) values.get(i)).intValue());
+        }
+        assertEquals(0, source.getCoalescedCount());
+    }
+
+    @SmallTest
+    public void testQueueCoalescesWhileBehind() throws RemoteException,
+            InterruptedException {
+        source.stop();
+        source = new RemoteListenerSource(service, DeliveryMode.COALESCING);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch last = new CountDownLatch(1);
+        source.setCallback(new SourceCallback() {
+            public void receive(RawMeasurement measurement) {
+                try {
+                    release.await();
+                } catch(InterruptedException e) {
+                }
+                if(((Number) measurement.getValue()).intValue() == 999) {
+                    last.countDown();
+                }
+            }
+        });
+
+        for(int i = 0; i < 1000; i++) {
+            service.listener.receive(new RawMeasurement("engine_speed", i));
+        }
+        // only the value being dispatched and the latest one are held
+        assertTrue(source.getQueueDepth() <= 2);
+        assertTrue(source.getCoalescedCount() > 0);
+        release.countDown();
+        assertTrue(last.await(1, TimeUnit.SECONDS));
+    }
+
+    @SmallTest
+    public void testStopUnregisters() {
+        source.stop();
+        assertNull(service.listener);
+    }
+
+    private static class FakeService extends VehicleServiceInterface.Stub {
+        VehicleServiceListener listener;
+
+        public void register(VehicleServiceListener listener) {
+            this.listener = listener;
+        }
+
+        public void unregister(VehicleServiceListener listener) {
+            if(this.listener == listener) {
+                this.listener = null;
+            }
+        }
+
+        public void subscribe(String measurementId) { }
+
+        public void unsubscribe(String measurementId) { }
+
+        public RawMeasurement get(String measurementType) {
+            return null;
+        }
+
+        public ParcelFileDescriptor getMeasurementTable() {
+            return null;
+        }
+
+        public List<String> getSignalIds() {
+            return null;
+        }
+
+        public boolean send(RawMeasurement measurement) {
+            return false;
+        }
+
+        public void receive(RawMeasurement measurement) { }
+
+        public void receiveBatch(List<RawMeasurement> measurements) { }
+
+        public int getMessageCount() {
+            return 0;
+        }
+
+        public void addVehicleInterface(String interfaceName,
+                String resource) { }
+
+        public void removeVehicleInterface(String interfaceName) { }
+
+        public void setStandbyVehicleInterface(String interfaceName,
+                String primaryInterfaceName) { }
+
+        public void setTimestampMerging(boolean enabled,
+                boolean dropLate) { }
+
+        public List<String> getSourceSummaries() {
+            return null;
+        }
+
+        public List<String> getSinkSummaries() {
+            return null;
+        }
+    }
+}
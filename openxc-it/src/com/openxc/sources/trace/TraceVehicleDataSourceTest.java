@@ -1,5 +1,9 @@
 package com.openxc.sources.trace;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.InterruptedException;
 
 import java.net.MalformedURLException;
@@ -7,6 +11,10 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
 import com.openxc.remote.RawMeasurement;
 
 import com.openxc.sources.SourceCallback;
@@ -78,6 +86,27 @@ public class TraceVehicleDataSourceTest extends AndroidTestCase {
         assertTrue(receivedBooleanCallback);
     }
 
+    @SmallTest
+    public void testPlaybackGzippedFile() throws InterruptedException,
+            DataSourceException, IOException {
+        File compressed = new File(new File(traceUri).getParentFile(),
+                "trace.json.gz");
+        FileInputStream input = new FileInputStream(new File(traceUri));
+        GZIPOutputStream output = new GZIPOutputStream(
+                new FileOutputStream(compressed));
+        IOUtils.copy(input, output);
+        input.close();
+        output.close();
+
+        receivedNumericalCallback = false;
+        receivedBooleanCallback = false;
+        source = new TraceVehicleDataSource(callback, getContext(),
+                compressed.toURI());
+        startTrace(source);
+        assertTrue(receivedNumericalCallback);
+        assertTrue(receivedBooleanCallback);
+    }
+
     @SmallTest
     public void testMalformedJson() throws InterruptedException ,
             DataSourceException {
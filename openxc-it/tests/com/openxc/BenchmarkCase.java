@@ -0,0 +1,64 @@
+package com.openxc;
+
+import java.lang.reflect.Method;
+
+import junit.framework.TestCase;
+
+/**
+ * A benchmark that only runs when it's asked for. Benchmarks take much longer
+ * than the tests around them and their results are only worth anything when
+ * someone is reading them, so by default each one passes without running -
+ * setUp() and tearDown() included.
+ *
+ * To run them, set the "debug.openxc.benchmark" property to true: with
+ * "-Ddebug.openxc.benchmark=true" on a JVM, or on a device with "adb shell
+ * setprop debug.openxc.benchmark true" before starting the instrumentation.
+ * Results are printed to standard output, which a device sends to the log.
+ */
+public abstract class BenchmarkCase extends TestCase {
+    public final static String ENABLED_PROPERTY = "debug.openxc.benchmark";
+
+    @Override
+    public void runBare() throws Throwable {
+        if(Boolean.parseBoolean(getProperty(ENABLED_PROPERTY))) {
+            super.runBare();
+        }
+    }
+
+    /**
+     * @return the value of a property set on the JVM command line or, on a
+     *      device, with "adb shell setprop", or null if it isn't set.
+     */
+    protected static String getProperty(String name) {
+        String value = System.getProperty(name);
+        if(value == null) {
+            value = getSystemProperty(name);
+        }
+        return value == null || value.length() == 0 ? null : value;
+    }
+
+    protected static long getLongProperty(String name, long defaultValue) {
+        String value = getProperty(name);
+        if(value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch(NumberFormatException e) {
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Read an Android system property - the class isn't part of the public
+     * API, and isn't there at all on a JVM.
+     */
+    private static String getSystemProperty(String name) {
+        try {
+            Method get = Class.forName("android.os.SystemProperties")
+                    .getMethod("get", String.class);
+            return (String) get.invoke(null, name);
+        } catch(Exception e) {
+            return null;
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package com.openxc;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
 import junit.framework.TestCase;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 
+import com.openxc.measurements.EngineSpeed;
 import com.openxc.remote.RawMeasurement;
 
 import com.openxc.sinks.BaseVehicleDataSink;
@@ -94,6 +102,123 @@ public class DataPipelineTest extends TestCase {
         assertFalse(sink.received);
     }
 
+    private void shedTo(LoadShedder shedder, LoadShedder.Tier tier) {
+        // the shedder moves one tier per evaluation
+        for(int i = 0; i < LoadShedder.Tier.values().length &&
+                shedder.getTier() != tier; i++) {
+            shedder.recordLag(10000);
+            shedder.evaluate();
+        }
+        assertThat(shedder.getTier(), equalTo(tier));
+    }
+
+    public void testShedMeasurementStillAvailable() {
+        LoadShedder shedder = new LoadShedder(100, 200, 300);
+        pipeline.setLoadShedder(shedder);
+        pipeline.addSink(sink, false);
+        shedTo(shedder, LoadShedder.Tier.DROP_UNSUBSCRIBED);
+
+        pipeline.receive(new RawMeasurement("foo", "value"));
+        assertFalse(sink.received);
+        assertThat((String) pipeline.get("foo").getValue(), equalTo("value"));
+        pipeline.stop();
+    }
+
+    public void testEssentialSinkNotShed() {
+        LoadShedder shedder = new LoadShedder(100, 200, 300);
+        pipeline.setLoadShedder(shedder);
+        TestSink nonEssentialSink = new TestSink();
+        pipeline.addSink(sink);
+        pipeline.addSink(nonEssentialSink, false);
+        shedTo(shedder, LoadShedder.Tier.DROP_UNSUBSCRIBED);
+
+        pipeline.receive(new RawMeasurement("foo", "value"));
+        assertTrue(sink.received);
+        assertFalse(nonEssentialSink.received);
+        assertThat(shedder.getDroppedCount(), equalTo(1L));
+        pipeline.stop();
+    }
+
+    public void testNonEssentialSinkSuspended() {
+        LoadShedder shedder = new LoadShedder(100, 200, 300);
+        pipeline.setLoadShedder(shedder);
+        TestSink essentialSink = new TestSink();
+        pipeline.addSink(essentialSink);
+        pipeline.addSink(sink, false);
+        shedTo(shedder, LoadShedder.Tier.SUSPEND_NONESSENTIAL);
+
+        pipeline.receive(new RawMeasurement(EngineSpeed.ID, 1));
+        assertTrue(essentialSink.received);
+        assertFalse(sink.received);
+        assertThat(shedder.getSuspendedCount(), equalTo(1L));
+        pipeline.stop();
+    }
+
+    public void testNonEssentialSinkReceivesWithoutShedding() {
+        pipeline.setLoadShedder(new LoadShedder());
+        pipeline.addSink(sink, false);
+        pipeline.receive(new RawMeasurement(EngineSpeed.ID, 1));
+        assertTrue(sink.received);
+        pipeline.stop();
+    }
+
+    public void testReorderingAcrossSources() {
+        final List<Object> values = new CopyOnWriteArrayList<Object>();
+        pipeline.addSink(new BaseVehicleDataSink() {
+            public boolean receive(RawMeasurement measurement) {
+                values.add(measurement.getValue());
+                return true;
+            }
+        });
+        TestSource anotherSource = new TestSource();
+        pipeline.addSource(source);
+        pipeline.enableReordering(1, TimeUnit.SECONDS,
+                TimestampMerger.LatePolicy.DROP);
+        pipeline.addSource(anotherSource);
+
+        source.callback.receive(new RawMeasurement("a", 1, null, 1.0));
+        anotherSource.callback.receive(new RawMeasurement("b", 3, null, 3.0));
+        source.callback.receive(new RawMeasurement("a", 2, null, 2.0));
+        source.callback.receive(new RawMeasurement("a", 4, null, 4.0));
+        assertThat(values, contains((Object) 1, 2, 3));
+
+        pipeline.disableReordering();
+        assertThat(values, contains((Object) 1, 2, 3, 4));
+        pipeline.stop();
+    }
+
+    public void testStandbySourceDropped() {
+        final List<Object> values = new CopyOnWriteArrayList<Object>();
+        pipeline.addSink(new BaseVehicleDataSink() {
+            public boolean receive(RawMeasurement measurement) {
+                values.add(measurement.getValue());
+                return true;
+            }
+        });
+        TestSource standby = new TestSource();
+        pipeline.addSource(source);
+        pipeline.addSource(standby);
+        SourceFailover failover = pipeline.setStandbySource(standby, source);
+
+        source.callback.receive(new RawMeasurement("a", 1, null, 1.0));
+        standby.callback.receive(new RawMeasurement("a", 1, null, 1.0));
+        source.callback.receive(new RawMeasurement("a", 2, null, 2.0));
+        // only copies between the pair are duplicates - the primary repeating
+        // a value is passed on
+        source.callback.receive(new RawMeasurement("a", 2, null, 2.0));
+        assertThat(values, contains((Object) 1, 2, 2));
+        assertThat(failover.getStandbyDroppedCount(), equalTo(1L));
+
+        // setting the same roles again keeps the failover and its state
+        assertThat(pipeline.setStandbySource(standby, source),
+                sameInstance(failover));
+
+        pipeline.clearStandbySource(standby);
+        standby.callback.receive(new RawMeasurement("a", 3, null, 3.0));
+        assertThat(values, contains((Object) 1, 2, 2, 3));
+        pipeline.stop();
+    }
+
     private class TestSource implements VehicleDataSource {
         private SourceCallback callback;
 
@@ -0,0 +1,195 @@
+package com.openxc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.measurements.EngineSpeed;
+import com.openxc.measurements.VehicleButtonEvent;
+import com.openxc.measurements.VehicleSpeed;
+import com.openxc.remote.RawMeasurement;
+
+public class LoadShedderTest extends TestCase {
+    LoadShedder shedder;
+
+    @Override
+    public void setUp() {
+        shedder = new LoadShedder(100, 500, 1000);
+    }
+
+    private RawMeasurement measurement(String name, long ageMs) {
+        return new RawMeasurement(name, 42, null,
+                (System.currentTimeMillis() - ageMs) / 1000.0);
+    }
+
+    private void evaluate(long lagMs) {
+        shedder.recordLag(lagMs);
+        shedder.evaluate();
+    }
+
+    public void testNoSheddingAtFirst() {
+        assertThat(shedder.getTier(), equalTo(LoadShedder.Tier.NONE));
+        for(int i = 0; i < 10; i++) {
+            assertTrue(shedder.shouldDispatch(
+                        measurement(EngineSpeed.ID, 0)));
+        }
+    }
+
+    public void testEscalatesOneTierAtATime() {
+        evaluate(5000);
+        assertThat(shedder.getTier(), equalTo(LoadShedder.Tier.DECIMATE));
+        evaluate(5000);
+        assertThat(shedder.getTier(),
+                equalTo(LoadShedder.Tier.DROP_UNSUBSCRIBED));
+        evaluate(5000);
+        assertThat(shedder.getTier(),
+                equalTo(LoadShedder.Tier.SUSPEND_NONESSENTIAL));
+        assertTrue(shedder.isSuspendingNonEssential());
+        evaluate(5000);
+        assertThat(shedder.getTier(),
+                equalTo(LoadShedder.Tier.SUSPEND_NONESSENTIAL));
+    }
+
+    public void testLagBelowThresholdDoesNotEscalate() {
+        evaluate(50);
+        assertThat(shedder.getTier(), equalTo(LoadShedder.Tier.NONE));
+        assertThat(shedder.getLag(), greaterThanOrEqualTo(50L));
+    }
+
+    public void testRecoversAfterSustainedLowLag() {
+        evaluate(200);
+        assertThat(shedder.getTier(), equalTo(LoadShedder.Tier.DECIMATE));
+        for(int i = 0; i < 3; i++) {
+            shedder.evaluate();
+            assertThat(shedder.getTier(),
+                    equalTo(LoadShedder.Tier.DECIMATE));
+        }
+        shedder.evaluate();
+        assertThat(shedder.getTier(), equalTo(LoadShedder.Tier.NONE));
+        assertThat(shedder.getHistory(), hasSize(2));
+        assertThat(shedder.toString(), containsString("DECIMATE->NONE"));
+    }
+
+    public void testHoldsTierWhileLagIsModerate() {
+        evaluate(200);
+        // above half of the decimation threshold, so no recovery
+        for(int i = 0; i < 10; i++) {
+            evaluate(80);
+        }
+        assertThat(shedder.getTier(), equalTo(LoadShedder.Tier.DECIMATE));
+    }
+
+    public void testIgnoresUnmarkedArrival() {
+        shedder.recordLag(measurement(EngineSpeed.ID, 5000));
+        shedder.evaluate();
+        assertThat(shedder.getTier(), equalTo(LoadShedder.Tier.NONE));
+    }
+
+    public void testLagIsFromArrivalNotTimestamp() throws InterruptedException {
+        // recorded by a source with a clock an hour behind ours
+        RawMeasurement measurement = measurement(EngineSpeed.ID, 3600 * 1000);
+        measurement.markArrival();
+        Thread.sleep(150);
+        shedder.recordLag(measurement);
+        shedder.evaluate();
+        assertThat(shedder.getLag(), allOf(greaterThanOrEqualTo(150L),
+                    lessThan(3600L * 1000)));
+        assertThat(shedder.getTier(), equalTo(LoadShedder.Tier.DECIMATE));
+    }
+
+    public void testDecimatesNumericSignals() {
+        evaluate(200);
+        int dispatched = 0;
+        for(int i = 0; i < LoadShedder.DECIMATION_FACTOR * 4; i++) {
+            if(shedder.shouldDispatch(measurement(EngineSpeed.ID, 0))) {
+                dispatched++;
+            }
+        }
+        assertThat(dispatched, equalTo(4));
+        assertThat(shedder.getDecimatedCount(),
+                equalTo((long) LoadShedder.DECIMATION_FACTOR * 3));
+    }
+
+    public void testHighPrioritySignalsNeverShed() {
+        evaluate(5000);
+        evaluate(5000);
+        for(int i = 0; i < 10; i++) {
+            assertTrue(shedder.shouldDispatch(new RawMeasurement(
+                            VehicleButtonEvent.ID, "ok", "pressed")));
+        }
+    }
+
+    public void testDropsUnknownSignalsWithoutSubscriptions() {
+        evaluate(5000);
+        evaluate(5000);
+        assertFalse(shedder.shouldDispatch(new RawMeasurement("foo", 1)));
+        assertTrue(shedder.shouldDispatch(new RawMeasurement(
+                        EngineSpeed.ID, 1)));
+        assertThat(shedder.getDroppedCount(), equalTo(1L));
+    }
+
+    public void testDropsUnsubscribedSignals() {
+        shedder.subscribe(VehicleSpeed.ID);
+        evaluate(5000);
+        evaluate(5000);
+        assertTrue(shedder.shouldDispatch(new RawMeasurement(
+                        VehicleSpeed.ID, 1)));
+        assertFalse(shedder.shouldDispatch(new RawMeasurement(
+                        EngineSpeed.ID, 1)));
+
+        shedder.unsubscribe(VehicleSpeed.ID);
+        assertTrue(shedder.isSubscribed(EngineSpeed.ID));
+    }
+
+    public void testSubscriptionsAreCounted() {
+        shedder.subscribe(VehicleSpeed.ID);
+        shedder.subscribe(VehicleSpeed.ID);
+        shedder.subscribe(EngineSpeed.ID);
+        shedder.unsubscribe(VehicleSpeed.ID);
+        assertTrue(shedder.isSubscribed(VehicleSpeed.ID));
+        shedder.unsubscribe(VehicleSpeed.ID);
+        assertFalse(shedder.isSubscribed(VehicleSpeed.ID));
+    }
+
+    public void testFirstAndLastSubscriptionsReported() {
+        assertTrue(shedder.subscribe(VehicleSpeed.ID));
+        assertFalse(shedder.subscribe(VehicleSpeed.ID));
+        assertThat(shedder.getSubscriptions(), contains(VehicleSpeed.ID));
+        assertFalse(shedder.unsubscribe(VehicleSpeed.ID));
+        assertTrue(shedder.unsubscribe(VehicleSpeed.ID));
+        assertFalse(shedder.unsubscribe(VehicleSpeed.ID));
+        assertThat(shedder.getSubscriptions(), empty());
+    }
+
+    public void testConcurrentSubscriptionsAreNotLost()
+            throws InterruptedException {
+        // keep the subscriptions from being empty, so isSubscribed() only
+        // looks at the counts
+        shedder.subscribe(VehicleSpeed.ID);
+        final AtomicInteger lost = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for(int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for(int j = 0; j < 20000; j++) {
+                        shedder.subscribe(EngineSpeed.ID);
+                        if(!shedder.isSubscribed(EngineSpeed.ID)) {
+                            lost.incrementAndGet();
+                        }
+                        shedder.unsubscribe(EngineSpeed.ID);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(lost.get(), equalTo(0));
+        assertThat(shedder.getSubscriptions(), contains(VehicleSpeed.ID));
+    }
+}
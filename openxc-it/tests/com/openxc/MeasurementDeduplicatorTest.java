@@ -0,0 +1,93 @@
+package com.openxc;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.remote.RawMeasurement;
+
+public class MeasurementDeduplicatorTest extends TestCase {
+    MeasurementDeduplicator deduplicator;
+
+    @Override
+    public void setUp() {
+        deduplicator = new MeasurementDeduplicator(4, 50,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private RawMeasurement measurement(Object value, double timestamp) {
+        return new RawMeasurement("measurement", value, null, timestamp);
+    }
+
+    public void testNothingRememberedIsNotDuplicate() {
+        assertFalse(deduplicator.isDuplicate(measurement(1.0, 1.0)));
+    }
+
+    public void testCheckingDoesNotRemember() {
+        deduplicator.isDuplicate(measurement(1.0, 1.0));
+        assertFalse(deduplicator.isDuplicate(measurement(1.0, 1.0)));
+    }
+
+    public void testSameMeasurementIsDuplicate() {
+        deduplicator.remember(measurement(1.0, 1.0));
+        assertTrue(deduplicator.isDuplicate(measurement(1.0, 1.0)));
+        assertThat(deduplicator.getDuplicateCount(), equalTo(1L));
+    }
+
+    public void testTimestampWithinToleranceIsDuplicate() {
+        // each connection's copy was stamped as it arrived
+        deduplicator.remember(measurement(1.0, 1.0));
+        assertTrue(deduplicator.isDuplicate(measurement(1.0, 1.03)));
+        assertTrue(deduplicator.isDuplicate(measurement(1.0, 0.98)));
+    }
+
+    public void testTimestampBeyondToleranceIsNotDuplicate() {
+        deduplicator.remember(measurement(1.0, 1.0));
+        assertFalse(deduplicator.isDuplicate(measurement(1.0, 1.1)));
+    }
+
+    public void testLatestTimestampIsCompared() {
+        deduplicator.remember(measurement(1.0, 1.0));
+        deduplicator.remember(measurement(1.0, 2.0));
+        assertFalse(deduplicator.isDuplicate(measurement(1.0, 1.0)));
+        assertTrue(deduplicator.isDuplicate(measurement(1.0, 2.0)));
+    }
+
+    public void testDifferentValueIsNotDuplicate() {
+        deduplicator.remember(measurement(1.0, 1.0));
+        assertFalse(deduplicator.isDuplicate(measurement(2.0, 1.0)));
+    }
+
+    public void testDifferentNameIsNotDuplicate() {
+        deduplicator.remember(measurement(1.0, 1.0));
+        assertFalse(deduplicator.isDuplicate(
+                    new RawMeasurement("other", 1.0, null, 1.0)));
+    }
+
+    public void testDifferentEventIsNotDuplicate() {
+        deduplicator.remember(new RawMeasurement("button", "ok", "pressed",
+                    1.0));
+        assertFalse(deduplicator.isDuplicate(new RawMeasurement("button", "ok",
+                        "released", 1.0)));
+    }
+
+    public void testUntimestampedNeverDuplicate() {
+        RawMeasurement measurement = measurement(1.0, 1.0);
+        measurement.untimestamp();
+        deduplicator.remember(measurement);
+        assertFalse(deduplicator.isDuplicate(measurement));
+    }
+
+    public void testWindowIsBounded() {
+        deduplicator.remember(measurement(1.0, 1.0));
+        for(int i = 2; i <= 5; i++) {
+            deduplicator.remember(measurement((double) i, i));
+        }
+        // the first one has been forgotten
+        assertFalse(deduplicator.isDuplicate(measurement(1.0, 1.0)));
+        assertTrue(deduplicator.isDuplicate(measurement(5.0, 5.0)));
+    }
+}
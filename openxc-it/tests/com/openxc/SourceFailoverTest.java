@@ -0,0 +1,133 @@
+package com.openxc;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.remote.RawMeasurement;
+import com.openxc.sources.BaseVehicleDataSource;
+import com.openxc.sources.SourceCallback;
+
+public class SourceFailoverTest extends TestCase {
+    final static long STALL_TIMEOUT_MS = 30;
+
+    SourceFailover failover;
+    List<Double> received = new CopyOnWriteArrayList<Double>();
+    SourceCallback primary;
+    SourceCallback standby;
+
+    @Override
+    public void setUp() {
+        failover = new SourceFailover(new BaseVehicleDataSource(),
+                new BaseVehicleDataSource(), STALL_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS, 8);
+        SourceCallback collector = new SourceCallback() {
+            public void receive(RawMeasurement measurement) {
+                received.add(measurement.getTimestamp());
+            }
+        };
+        primary = failover.wrapPrimary(collector);
+        standby = failover.wrapStandby(collector);
+    }
+
+    private void send(SourceCallback callback, double timestamp) {
+        callback.receive(new RawMeasurement("measurement", timestamp, null,
+                    timestamp));
+    }
+
+    private void send(SourceCallback callback, double value,
+            double timestamp) {
+        callback.receive(new RawMeasurement("measurement", value, null,
+                    timestamp));
+    }
+
+    private void stall() throws InterruptedException {
+        Thread.sleep(STALL_TIMEOUT_MS * 2);
+    }
+
+    public void testStandbyUsedWithoutPrimary() {
+        send(standby, 1.0);
+        assertThat(received, contains(1.0));
+        assertTrue(failover.isStandbyActive());
+    }
+
+    public void testStandbyDroppedWhilePrimaryHealthy() {
+        send(primary, 1.0);
+        send(standby, 1.0);
+        send(primary, 2.0);
+        send(standby, 2.0);
+        assertThat(received, contains(1.0, 2.0));
+        assertFalse(failover.isStandbyActive());
+        assertThat(failover.getStandbyDroppedCount(), equalTo(2L));
+    }
+
+    public void testStandbyTakesOverWithoutGap() throws InterruptedException {
+        send(primary, 1.0);
+        send(standby, 1.0);
+        // the primary stops, but the standby's copy of 2.0 arrives while it
+        // still looks healthy
+        send(standby, 2.0);
+        stall();
+        send(standby, 3.0);
+
+        assertThat(received, contains(1.0, 2.0, 3.0));
+        assertTrue(failover.isStandbyActive());
+        assertThat(failover.getFailoverCount(), equalTo(1));
+        assertThat(failover.getReplayedCount(), equalTo(1L));
+    }
+
+    public void testPrimaryTakesBack() throws InterruptedException {
+        send(primary, 1.0);
+        stall();
+        send(standby, 2.0);
+        send(primary, 3.0);
+        send(standby, 3.0);
+        assertThat(received, contains(1.0, 2.0, 3.0));
+        assertFalse(failover.isStandbyActive());
+        assertThat(failover.getFailbackCount(), equalTo(1));
+    }
+
+    public void testReplayedCopiesOfPrimaryDropped()
+            throws InterruptedException {
+        // the primary's last measurements were stamped a little before the
+        // standby's copies of them
+        send(primary, 1.0);
+        send(standby, 1.0, 1.01);
+        send(primary, 2.0);
+        send(standby, 2.0, 2.02);
+        stall();
+        send(standby, 3.0);
+        // the copy of 2.0 is newer than the primary's last, but is dropped
+        assertThat(received, contains(1.0, 2.0, 3.0));
+        assertThat(failover.getDuplicateCount(), equalTo(1L));
+    }
+
+    public void testPrimaryCopiesOfStandbyDroppedOnFailback()
+            throws InterruptedException {
+        send(primary, 1.0);
+        stall();
+        send(standby, 2.0);
+        // the primary comes back with its own copy of 2.0
+        send(primary, 2.0, 2.01);
+        send(primary, 3.0);
+        assertThat(received, contains(1.0, 2.0, 3.0));
+        assertThat(failover.getDuplicateCount(), equalTo(1L));
+    }
+
+    public void testReplayIsBounded() throws InterruptedException {
+        send(primary, 0.5);
+        for(int i = 1; i <= 20; i++) {
+            send(standby, i);
+        }
+        stall();
+        send(standby, 21.0);
+        // only the last 8 were kept
+        assertThat(received, hasSize(10));
+        assertThat(received.get(1), equalTo(13.0));
+    }
+}
@@ -0,0 +1,158 @@
+package com.openxc;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.remote.RawMeasurement;
+import com.openxc.sources.SourceCallback;
+
+public class TimestampMergerTest extends TestCase {
+    final static long MAX_DELAY_MS = 50;
+
+    TimestampMerger merger;
+    List<Double> received = new CopyOnWriteArrayList<Double>();
+    SourceCallback collector = new SourceCallback() {
+        public void receive(RawMeasurement measurement) {
+            received.add(measurement.getTimestamp());
+        }
+    };
+    SourceCallback first;
+    SourceCallback second;
+
+    private void createMerger(TimestampMerger.LatePolicy policy) {
+        merger = new TimestampMerger(collector, MAX_DELAY_MS,
+                TimeUnit.MILLISECONDS, policy);
+        first = merger.getLane("first");
+        second = merger.getLane("second");
+    }
+
+    @Override
+    public void setUp() {
+        createMerger(TimestampMerger.LatePolicy.DELIVER);
+    }
+
+    @Override
+    public void tearDown() {
+        merger.flush();
+    }
+
+    private void send(SourceCallback lane, double timestamp) {
+        lane.receive(new RawMeasurement("measurement", timestamp, null,
+                    timestamp));
+    }
+
+    private void waitForRelease() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while(merger.getBufferedCount() > 0 &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    public void testSingleLanePassesThrough() {
+        send(first, 1.0);
+        send(first, 2.0);
+        assertThat(received, contains(1.0, 2.0));
+        assertThat(merger.getBufferedCount(), equalTo(0));
+    }
+
+    public void testLaneReturnedForSameKey() {
+        assertThat(merger.getLane("first"), sameInstance(first));
+    }
+
+    public void testMergesInTimestampOrder() throws InterruptedException {
+        send(first, 1.0);
+        send(second, 3.0);
+        send(first, 2.0);
+        send(first, 4.0);
+        send(second, 5.0);
+        assertThat(received, contains(1.0, 2.0, 3.0, 4.0));
+
+        // nothing can get ahead of the newest, so it waits out the delay
+        waitForRelease();
+        assertThat(received, contains(1.0, 2.0, 3.0, 4.0, 5.0));
+        assertThat(merger.getLateCount(), equalTo(0L));
+    }
+
+    public void testQuietLaneDelayIsBounded() throws InterruptedException {
+        send(first, 1.0);
+        send(second, 2.0);
+        assertThat(received, contains(1.0));
+
+        waitForRelease();
+        assertThat(received, contains(1.0, 2.0));
+        assertThat(merger.getMaxDelayMicros(),
+                greaterThanOrEqualTo(MAX_DELAY_MS * 1000));
+        assertThat(merger.getMaxDelayMicros(), lessThan(1000L * 1000));
+    }
+
+    public void testReleasedOutsideLock() throws InterruptedException {
+        final List<Boolean> heldLock = new CopyOnWriteArrayList<Boolean>();
+        merger = new TimestampMerger(new SourceCallback() {
+            public void receive(RawMeasurement measurement) {
+                heldLock.add(Thread.holdsLock(merger));
+            }
+        }, MAX_DELAY_MS, TimeUnit.MILLISECONDS,
+                TimestampMerger.LatePolicy.DELIVER);
+        first = merger.getLane("first");
+        second = merger.getLane("second");
+
+        send(first, 1.0);
+        send(second, 2.0);
+        // the second waits out the delay and is released by the timer
+        waitForRelease();
+        assertThat(heldLock, contains(false, false));
+    }
+
+    public void testLateDelivered() throws InterruptedException {
+        send(first, 1.0);
+        send(second, 3.0);
+        waitForRelease();
+        send(first, 2.0);
+        assertThat(received, contains(1.0, 3.0, 2.0));
+        assertThat(merger.getLateCount(), equalTo(1L));
+        assertThat(merger.getDroppedCount(), equalTo(0L));
+    }
+
+    public void testLateDropped() throws InterruptedException {
+        createMerger(TimestampMerger.LatePolicy.DROP);
+        send(first, 1.0);
+        send(second, 3.0);
+        waitForRelease();
+        send(first, 2.0);
+        assertThat(received, contains(1.0, 3.0));
+        assertThat(merger.getLateCount(), equalTo(1L));
+        assertThat(merger.getDroppedCount(), equalTo(1L));
+    }
+
+    public void testUntimestampedPassesThrough() {
+        send(first, 1.0);
+        send(second, 3.0);
+        RawMeasurement untimestamped = new RawMeasurement("measurement", 1);
+        untimestamped.untimestamp();
+        first.receive(untimestamped);
+        assertThat(received, hasSize(2));
+        assertTrue(Double.isNaN(received.get(1)));
+    }
+
+    public void testRemoveLaneReleasesWaiting() {
+        send(first, 1.0);
+        send(second, 3.0);
+        merger.removeLane("first");
+        assertThat(received, contains(1.0, 3.0));
+    }
+
+    public void testFlush() {
+        send(first, 1.0);
+        send(second, 3.0);
+        merger.flush();
+        assertThat(received, contains(1.0, 3.0));
+        assertThat(merger.getReleasedCount(), equalTo(2L));
+    }
+}
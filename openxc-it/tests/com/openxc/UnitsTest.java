@@ -11,4 +11,10 @@ public class UnitsTest extends TestCase {
         Meter value = new Meter(10);
         assertThat(value.doubleValue(), equalTo(10.0));
     }
+
+    public void testConstructedFromAnyNumber() {
+        assertThat(new Meter(10), equalTo(new Meter(Integer.valueOf(10))));
+        assertThat(new Meter(10.5), equalTo(new Meter(Double.valueOf(10.5))));
+        assertThat(new Meter(10.5).intValue(), equalTo(10));
+    }
 }
@@ -0,0 +1,82 @@
+package com.openxc.measurements;
+
+import junit.framework.TestCase;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.units.KilometersPerHour;
+import com.openxc.units.Meter;
+import com.openxc.units.State;
+
+public class MeasurementCatalogTest extends TestCase {
+    public void testBuiltInKnownById() {
+        MeasurementCatalog.Entry entry =
+                MeasurementCatalog.get(VehicleSpeed.ID);
+        assertThat(entry, notNullValue());
+        assertEquals(VehicleSpeed.class, entry.getType());
+        assertEquals(KilometersPerHour.class, entry.getUnit());
+        assertTrue(entry.hasRange());
+        assertThat(entry.getRange().getMax(),
+                equalTo((Object) new KilometersPerHour(655.0)));
+    }
+
+    public void testBuiltInKnownByClass() {
+        MeasurementCatalog.Entry entry =
+                MeasurementCatalog.get(TransmissionGearPosition.class);
+        assertThat(entry.getId(), equalTo(TransmissionGearPosition.ID));
+        assertEquals(State.class, entry.getUnit());
+        assertFalse(entry.hasRange());
+    }
+
+    public void testGetClassForIdKnowsBuiltIns()
+            throws UnrecognizedMeasurementTypeException {
+        for(String id : MeasurementCatalog.getBuiltInIds()) {
+            assertEquals(MeasurementCatalog.get(id).getType(),
+                    BaseMeasurement.getClassForId(id));
+        }
+        assertThat(MeasurementCatalog.getBuiltInIds(), hasSize(20));
+    }
+
+    public void testIndexesAreDense() {
+        for(int i = 0; i < MeasurementCatalog.size(); i++) {
+            assertThat(MeasurementCatalog.get(i).getIndex(), equalTo(i));
+        }
+        assertThat(MeasurementCatalog.get(MeasurementCatalog.size()),
+                nullValue());
+        assertThat(MeasurementCatalog.get(-1), nullValue());
+    }
+
+    public void testUnknownReturnsNull() {
+        assertThat(MeasurementCatalog.get("not_a_measurement"), nullValue());
+        assertThat(MeasurementCatalog.get((String) null), nullValue());
+    }
+
+    public void testCustomAddedByGetIdForClass()
+            throws UnrecognizedMeasurementTypeException {
+        assertThat(MeasurementCatalog.get(CustomMeasurement.ID), nullValue());
+        assertThat(BaseMeasurement.getIdForClass(CustomMeasurement.class),
+                equalTo(CustomMeasurement.ID));
+
+        MeasurementCatalog.Entry entry =
+                MeasurementCatalog.get(CustomMeasurement.ID);
+        assertEquals(CustomMeasurement.class, entry.getType());
+        assertThat(entry.getUnit(), nullValue());
+        assertThat(MeasurementCatalog.get(entry.getIndex()),
+                sameInstance(entry));
+        assertFalse(MeasurementCatalog.getBuiltInIds().contains(
+                    CustomMeasurement.ID));
+    }
+
+    public static class CustomMeasurement extends BaseMeasurement<Meter> {
+        public final static String ID = "catalog_custom_measurement";
+
+        public CustomMeasurement(Number value) {
+            super(new Meter(value));
+        }
+
+        @Override
+        public String getGenericName() {
+            return ID;
+        }
+    }
+}
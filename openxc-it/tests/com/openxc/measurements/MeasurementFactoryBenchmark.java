@@ -0,0 +1,57 @@
+package com.openxc.measurements;
+
+import java.lang.reflect.Constructor;
+
+import com.openxc.BenchmarkCase;
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * Compare building a measurement with its registered factory against the
+ * reflective constructor lookup used for unregistered types. Only runs when
+ * benchmarks are turned on - see {@link BenchmarkCase}.
+ */
+public class MeasurementFactoryBenchmark extends BenchmarkCase {
+    private final static int WARMUP_ITERATIONS = 100000;
+    private final static int ITERATIONS = 1000000;
+
+    RawMeasurement raw = new RawMeasurement(VehicleSpeed.ID, 42.0);
+
+    public void testFactory() throws Exception {
+        factoryLoop(WARMUP_ITERATIONS);
+        long start = System.nanoTime();
+        factoryLoop(ITERATIONS);
+        report("factory", start);
+    }
+
+    public void testReflection() throws Exception {
+        reflectionLoop(WARMUP_ITERATIONS);
+        long start = System.nanoTime();
+        reflectionLoop(ITERATIONS);
+        report("reflection", start);
+    }
+
+    private void factoryLoop(int iterations) throws Exception {
+        for(int i = 0; i < iterations; i++) {
+            assertNotNull(BaseMeasurement.getMeasurementFromRaw(
+                        VehicleSpeed.class, raw));
+        }
+    }
+
+    // The same work the reflective fallback does for every measurement
+    private void reflectionLoop(int iterations) throws Exception {
+        for(int i = 0; i < iterations; i++) {
+            Constructor<VehicleSpeed> constructor =
+                    VehicleSpeed.class.getConstructor(Number.class);
+            Measurement measurement = constructor.newInstance(raw.getValue());
+            measurement.setTimestamp(raw.getTimestamp());
+            assertNotNull(measurement);
+        }
+    }
+
+    private static void report(String method, long start) {
+        long elapsed = System.nanoTime() - start;
+        System.out.println("VehicleSpeed from raw with " + method + ": " +
+                (elapsed / ITERATIONS) + " ns/op over " + ITERATIONS +
+                " iterations");
+    }
+}
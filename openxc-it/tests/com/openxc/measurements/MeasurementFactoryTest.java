@@ -0,0 +1,163 @@
+package com.openxc.measurements;
+
+import junit.framework.TestCase;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.NoValueException;
+import com.openxc.remote.RawMeasurement;
+import com.openxc.units.Meter;
+
+public class MeasurementFactoryTest extends TestCase {
+    public void testBuiltInNumeric() throws NoValueException,
+            UnrecognizedMeasurementTypeException {
+        RawMeasurement raw = new RawMeasurement(VehicleSpeed.ID, 42.0, null,
+                1351176963.426318);
+        VehicleSpeed speed = (VehicleSpeed) BaseMeasurement
+                .getMeasurementFromRaw(VehicleSpeed.class, raw);
+        assertThat(speed.getValue().doubleValue(), equalTo(42.0));
+        // the birthtime is in milliseconds
+        assertThat(speed.getBirthtime(), closeTo(1351176963426.0, 1));
+    }
+
+    public void testBuiltInIntegerValue() throws NoValueException,
+            UnrecognizedMeasurementTypeException {
+        EngineSpeed speed = (EngineSpeed) BaseMeasurement.getMeasurementFromRaw(
+                EngineSpeed.class, new RawMeasurement(EngineSpeed.ID, 1200));
+        assertThat(speed.getValue().doubleValue(), equalTo(1200.0));
+    }
+
+    public void testBuiltInBoolean() throws NoValueException,
+            UnrecognizedMeasurementTypeException {
+        BrakePedalStatus status = (BrakePedalStatus)
+                BaseMeasurement.getMeasurementFromRaw(BrakePedalStatus.class,
+                    new RawMeasurement(BrakePedalStatus.ID, true));
+        assertTrue(status.getValue().booleanValue());
+    }
+
+    public void testBuiltInState() throws NoValueException,
+            UnrecognizedMeasurementTypeException {
+        TransmissionGearPosition gear = (TransmissionGearPosition)
+                BaseMeasurement.getMeasurementFromRaw(
+                    TransmissionGearPosition.class,
+                    new RawMeasurement(TransmissionGearPosition.ID, "second"));
+        assertThat(gear.getValue().enumValue(),
+                equalTo(TransmissionGearPosition.GearPosition.SECOND));
+    }
+
+    public void testBuiltInWithEvent() throws NoValueException,
+            UnrecognizedMeasurementTypeException {
+        VehicleButtonEvent event = (VehicleButtonEvent)
+                BaseMeasurement.getMeasurementFromRaw(VehicleButtonEvent.class,
+                    new RawMeasurement(VehicleButtonEvent.ID, "left",
+                        "pressed"));
+        assertThat(event.getValue().enumValue(),
+                equalTo(VehicleButtonEvent.ButtonId.LEFT));
+        assertThat(event.getEvent().enumValue(),
+                equalTo(VehicleButtonEvent.ButtonAction.PRESSED));
+    }
+
+    public void testWrongValueType() throws NoValueException {
+        try {
+            BaseMeasurement.getMeasurementFromRaw(VehicleSpeed.class,
+                    new RawMeasurement(VehicleSpeed.ID, "fast"));
+        } catch(UnrecognizedMeasurementTypeException e) {
+            return;
+        }
+        fail("Expected an UnrecognizedMeasurementTypeException");
+    }
+
+    public void testUnknownState() throws NoValueException {
+        try {
+            BaseMeasurement.getMeasurementFromRaw(
+                    TransmissionGearPosition.class,
+                    new RawMeasurement(TransmissionGearPosition.ID,
+                        "fiftieth"));
+        } catch(UnrecognizedMeasurementTypeException e) {
+            return;
+        }
+        fail("Expected an UnrecognizedMeasurementTypeException");
+    }
+
+    public void testMissingEvent() throws NoValueException {
+        try {
+            BaseMeasurement.getMeasurementFromRaw(VehicleButtonEvent.class,
+                    new RawMeasurement(VehicleButtonEvent.ID, "left"));
+        } catch(UnrecognizedMeasurementTypeException e) {
+            return;
+        }
+        fail("Expected an UnrecognizedMeasurementTypeException");
+    }
+
+    public void testMissingBooleanEvent() throws NoValueException {
+        try {
+            BaseMeasurement.getMeasurementFromRaw(VehicleDoorStatus.class,
+                    new RawMeasurement(VehicleDoorStatus.ID, "driver"));
+        } catch(UnrecognizedMeasurementTypeException e) {
+            return;
+        }
+        fail("Expected an UnrecognizedMeasurementTypeException");
+    }
+
+    public void testNoValue() throws UnrecognizedMeasurementTypeException {
+        try {
+            BaseMeasurement.getMeasurementFromRaw(VehicleSpeed.class,
+                    new RawMeasurement(VehicleSpeed.ID, null));
+        } catch(NoValueException e) {
+            return;
+        }
+        fail("Expected a NoValueException");
+    }
+
+    public void testUnregisteredUsesReflection() throws NoValueException,
+            UnrecognizedMeasurementTypeException {
+        Measurement measurement = BaseMeasurement.getMeasurementFromRaw(
+                ReflectedMeasurement.class,
+                new RawMeasurement(ReflectedMeasurement.ID, 12.0));
+        assertThat(measurement, instanceOf(ReflectedMeasurement.class));
+    }
+
+    public void testRegisteredFactory() throws NoValueException,
+            UnrecognizedMeasurementTypeException {
+        final int[] calls = new int[1];
+        BaseMeasurement.registerFactory(FactoryMeasurement.class,
+                new MeasurementFactory<FactoryMeasurement>() {
+            public FactoryMeasurement create(RawMeasurement raw) {
+                calls[0]++;
+                return new FactoryMeasurement((Number) raw.getValue());
+            }
+        });
+
+        FactoryMeasurement measurement = (FactoryMeasurement)
+                BaseMeasurement.getMeasurementFromRaw(FactoryMeasurement.class,
+                    new RawMeasurement(FactoryMeasurement.ID, 3.0));
+        assertThat(measurement.getValue().doubleValue(), equalTo(3.0));
+        assertThat(calls[0], equalTo(1));
+    }
+
+    public static class ReflectedMeasurement extends BaseMeasurement<Meter> {
+        public final static String ID = "reflected_measurement";
+
+        public ReflectedMeasurement(Number value) {
+            super(new Meter(value));
+        }
+
+        @Override
+        public String getGenericName() {
+            return ID;
+        }
+    }
+
+    public static class FactoryMeasurement extends BaseMeasurement<Meter> {
+        public final static String ID = "factory_measurement";
+
+        public FactoryMeasurement(Number value) {
+            super(new Meter(value));
+        }
+
+        @Override
+        public String getGenericName() {
+            return ID;
+        }
+    }
+}
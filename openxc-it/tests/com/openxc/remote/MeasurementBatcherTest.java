@@ -0,0 +1,162 @@
+package com.openxc.remote;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class MeasurementBatcherTest extends TestCase {
+    RecordingService service;
+    MeasurementBatcher batcher;
+
+    @Override
+    public void setUp() {
+        service = new RecordingService();
+    }
+
+    @Override
+    public void tearDown() {
+        if(batcher != null) {
+            batcher.stop();
+        }
+    }
+
+    public void testFullBatchSentImmediately() {
+        batcher = new MeasurementBatcher(service, 60000, 3);
+        batcher.add(new RawMeasurement("engine_speed", 1));
+        batcher.add(new RawMeasurement("engine_speed", 2));
+        assertThat(service.batches(), empty());
+        batcher.add(new RawMeasurement("engine_speed", 3));
+        assertThat(service.batches(), hasSize(1));
+        assertThat(service.batches().get(0), hasSize(3));
+    }
+
+    public void testHighPrioritySentImmediately() {
+        batcher = new MeasurementBatcher(service, 60000, 100);
+        batcher.add(new RawMeasurement("engine_speed", 1));
+        assertThat(service.batches(), empty());
+        batcher.add(new RawMeasurement("button_event", "ok", "pressed"));
+        assertThat(service.batches(), hasSize(1));
+        // earlier measurements go with it, so the order is kept
+        assertThat(service.batches().get(0), hasSize(2));
+    }
+
+    public void testFlushedAfterInterval() throws InterruptedException {
+        batcher = new MeasurementBatcher(service, 10, 100);
+        batcher.add(new RawMeasurement("engine_speed", 1));
+        for(int i = 0; i < 100 && service.batches().isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(service.batches(), hasSize(1));
+    }
+
+    public void testExplicitFlush() {
+        batcher = new MeasurementBatcher(service, 60000, 100);
+        batcher.flush();
+        assertThat(service.batches(), empty());
+        batcher.add(new RawMeasurement("engine_speed", 1));
+        batcher.flush();
+        assertThat(service.batches(), hasSize(1));
+    }
+
+    public void testStopFlushesAndDropsLater() {
+        batcher = new MeasurementBatcher(service, 60000, 100);
+        batcher.add(new RawMeasurement("engine_speed", 1));
+        batcher.stop();
+        assertThat(service.batches(), hasSize(1));
+        batcher.add(new RawMeasurement("engine_speed", 2));
+        batcher.flush();
+        assertThat(service.batches(), hasSize(1));
+    }
+
+    public void testOrderPreserved() throws InterruptedException {
+        batcher = new MeasurementBatcher(service, 1, 7);
+        final int count = 10000;
+        for(int i = 0; i < count; i++) {
+            batcher.add(new RawMeasurement("engine_speed", i));
+        }
+        batcher.stop();
+
+        int expected = 0;
+        for(List<RawMeasurement> batch : service.batches()) {
+            for(RawMeasurement measurement : batch) {
+                assertThat((Integer) measurement.getValue(),
+                        equalTo(expected++));
+            }
+        }
+        assertThat(expected, equalTo(count));
+    }
+
+    private static class RecordingService implements VehicleServiceInterface {
+        private List<List<RawMeasurement>> mBatches =
+                new ArrayList<List<RawMeasurement>>();
+
+        public synchronized List<List<RawMeasurement>> batches() {
+            return new ArrayList<List<RawMeasurement>>(mBatches);
+        }
+
+        public synchronized void receiveBatch(
+                List<RawMeasurement> measurements) {
+            mBatches.add(new ArrayList<RawMeasurement>(measurements));
+        }
+
+        public void receive(RawMeasurement measurement) { }
+
+        public RawMeasurement get(String measurementType) {
+            return null;
+        }
+
+        public ParcelFileDescriptor getMeasurementTable() {
+            return null;
+        }
+
+        public List<String> getSignalIds() {
+            return null;
+        }
+
+        public boolean send(RawMeasurement measurement) {
+            return false;
+        }
+
+        public void register(VehicleServiceListener listener) { }
+
+        public void unregister(VehicleServiceListener listener) { }
+
+        public void subscribe(String measurementId) { }
+
+        public void unsubscribe(String measurementId) { }
+
+        public int getMessageCount() {
+            return 0;
+        }
+
+        public void addVehicleInterface(String interfaceName,
+                String resource) { }
+
+        public void removeVehicleInterface(String interfaceName) { }
+
+        public void setStandbyVehicleInterface(String interfaceName,
+                String primaryInterfaceName) { }
+
+        public void setTimestampMerging(boolean enabled,
+                boolean dropLate) { }
+
+        public List<String> getSourceSummaries() {
+            return null;
+        }
+
+        public List<String> getSinkSummaries() {
+            return null;
+        }
+
+        public IBinder asBinder() {
+            return null;
+        }
+    }
+}
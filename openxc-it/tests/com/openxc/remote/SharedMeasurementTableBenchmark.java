@@ -0,0 +1,102 @@
+package com.openxc.remote;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import com.openxc.BenchmarkCase;
+
+/**
+ * Measure the cost of reading and writing the shared measurement table, with
+ * and without a writer busy on another thread. Only runs when benchmarks are
+ * turned on - see {@link BenchmarkCase}.
+ */
+public class SharedMeasurementTableBenchmark extends BenchmarkCase {
+    private final static int WARMUP_ITERATIONS = 100000;
+    private final static int ITERATIONS = 1000000;
+    private final static String[] SIGNALS = {"vehicle_speed", "engine_speed",
+        "steering_wheel_angle", "brake_pedal_status",
+        "transmission_gear_position"};
+
+    File file;
+    SharedMeasurementTable writer;
+    SharedMeasurementTable reader;
+
+    @Override
+    public void setUp() throws IOException {
+        file = File.createTempFile("measurements", ".table");
+        writer = SharedMeasurementTable.create(file,
+                SharedMeasurementTable.DEFAULT_CAPACITY);
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            reader = SharedMeasurementTable.open(stream.getChannel());
+        } finally {
+            stream.close();
+        }
+
+        writer.write(new RawMeasurement(SIGNALS[0], 42.0));
+        writer.write(new RawMeasurement(SIGNALS[1], 1200.0));
+        writer.write(new RawMeasurement(SIGNALS[2], -12.5));
+        writer.write(new RawMeasurement(SIGNALS[3], true));
+        writer.write(new RawMeasurement(SIGNALS[4], "second"));
+    }
+
+    @Override
+    public void tearDown() {
+        file.delete();
+    }
+
+    public void testWrite() {
+        RawMeasurement measurement = new RawMeasurement(SIGNALS[0], 42.0);
+        for(int i = 0; i < WARMUP_ITERATIONS; i++) {
+            writer.write(measurement);
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            writer.write(measurement);
+        }
+        report("write", start);
+    }
+
+    public void testUncontendedRead() {
+        readLoop(WARMUP_ITERATIONS);
+        long start = System.nanoTime();
+        readLoop(ITERATIONS);
+        report("uncontended read", start);
+    }
+
+    public void testReadWhileWriting() throws InterruptedException {
+        Thread writerThread = new Thread() {
+            public void run() {
+                RawMeasurement measurement = new RawMeasurement(SIGNALS[0],
+                        42.0);
+                while(!isInterrupted()) {
+                    writer.write(measurement);
+                }
+            }
+        };
+        writerThread.start();
+
+        readLoop(WARMUP_ITERATIONS);
+        long start = System.nanoTime();
+        readLoop(ITERATIONS);
+        report("read with a busy writer", start);
+
+        writerThread.interrupt();
+        writerThread.join();
+    }
+
+    private void readLoop(int iterations) {
+        for(int i = 0; i < iterations; i++) {
+            assertNotNull(reader.read(SIGNALS[i % SIGNALS.length]));
+        }
+    }
+
+    private static void report(String operation, long start) {
+        long elapsed = System.nanoTime() - start;
+        System.out.println("SharedMeasurementTable " + operation + ": " +
+                (elapsed / ITERATIONS) + " ns/op over " + ITERATIONS +
+                " iterations");
+    }
+}
@@ -0,0 +1,209 @@
+package com.openxc.remote;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SharedMeasurementTableTest extends TestCase {
+    File file;
+    SharedMeasurementTable writer;
+    SharedMeasurementTable reader;
+
+    @Override
+    public void setUp() throws IOException {
+        file = File.createTempFile("measurements", ".table");
+        writer = SharedMeasurementTable.create(file, 4);
+        reader = openReader();
+    }
+
+    @Override
+    public void tearDown() {
+        file.delete();
+    }
+
+    private SharedMeasurementTable openReader() throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            return SharedMeasurementTable.open(stream.getChannel());
+        } finally {
+            stream.close();
+        }
+    }
+
+    public void testEmpty() {
+        assertThat(reader.read("vehicle_speed"), nullValue());
+        assertFalse(reader.contains("vehicle_speed"));
+        assertTrue(reader.isComplete());
+    }
+
+    public void testReadNumber() {
+        assertTrue(writer.write(new RawMeasurement("vehicle_speed", 42.0)));
+        RawMeasurement measurement = reader.read("vehicle_speed");
+        assertThat(measurement, notNullValue());
+        assertThat(measurement.getName(), equalTo("vehicle_speed"));
+        assertThat((Double) measurement.getValue(), equalTo(42.0));
+        assertFalse(measurement.hasEvent());
+    }
+
+    public void testReadBooleanAndString() {
+        writer.write(new RawMeasurement("brake_pedal_status", true));
+        writer.write(new RawMeasurement("button_event", "left", "pressed"));
+
+        assertThat((Boolean) reader.read("brake_pedal_status").getValue(),
+                equalTo(true));
+        RawMeasurement button = reader.read("button_event");
+        assertThat((String) button.getValue(), equalTo("left"));
+        assertThat((String) button.getEvent(), equalTo("pressed"));
+    }
+
+    public void testLatestValueWins() {
+        writer.write(new RawMeasurement("engine_speed", 1000));
+        assertThat((Double) reader.read("engine_speed").getValue(),
+                equalTo(1000.0));
+        writer.write(new RawMeasurement("engine_speed", 2000));
+        assertThat((Double) reader.read("engine_speed").getValue(),
+                equalTo(2000.0));
+    }
+
+    public void testKeepsTimestamp() {
+        writer.write(new RawMeasurement("engine_speed", 1000, null,
+                    1351176963.426318));
+        assertEquals(1351176963.426318,
+                reader.read("engine_speed").getTimestamp(), 0);
+    }
+
+    public void testUnstorableValue() {
+        writer.write(new RawMeasurement("long_value",
+                    "a string that is much too long to fit in a slot"));
+        assertTrue(reader.contains("long_value"));
+        assertThat(reader.read("long_value"), nullValue());
+        assertTrue(reader.isComplete());
+    }
+
+    public void testFindsSlotsAddedAfterAMiss() {
+        writer.write(new RawMeasurement("vehicle_speed", 1));
+        assertThat(reader.read("engine_speed"), nullValue());
+        assertThat(reader.read("vehicle_speed"), notNullValue());
+
+        writer.write(new RawMeasurement("engine_speed", 2));
+        assertThat((Double) reader.read("engine_speed").getValue(),
+                equalTo(2.0));
+        assertThat((Double) reader.read("vehicle_speed").getValue(),
+                equalTo(1.0));
+    }
+
+    public void testOverflow() {
+        for(int i = 0; i < 4; i++) {
+            assertTrue(writer.write(new RawMeasurement("signal" + i, i)));
+        }
+        assertTrue(reader.isComplete());
+        assertFalse(writer.write(new RawMeasurement("one_too_many", 1)));
+        assertFalse(reader.isComplete());
+        assertThat(reader.size(), equalTo(4));
+        assertThat((Double) reader.read("signal3").getValue(), equalTo(3.0));
+    }
+
+    public void testReaderIsReadOnly() {
+        try {
+            reader.write(new RawMeasurement("vehicle_speed", 42.0));
+        } catch(IllegalStateException e) {
+            return;
+        }
+        fail("Expected an IllegalStateException");
+    }
+
+    public void testOpenInvalidFile() throws IOException {
+        File other = File.createTempFile("not-a-table", ".table");
+        FileInputStream stream = new FileInputStream(other);
+        try {
+            SharedMeasurementTable.open(stream.getChannel());
+            fail("Expected an IOException");
+        } catch(IOException e) {
+        } finally {
+            stream.close();
+            other.delete();
+        }
+    }
+
+    public void testConsistentReadsWhileWriting() throws InterruptedException {
+        final int iterations = 200000;
+        Thread writerThread = new Thread() {
+            public void run() {
+                for(int i = 0; i < iterations; i++) {
+                    // the value and event always match, so a torn read is
+                    // detectable
+                    writer.write(new RawMeasurement("engine_speed", i, i));
+                }
+            }
+        };
+        writerThread.start();
+
+        double last = -1;
+        while(writerThread.isAlive()) {
+            RawMeasurement measurement = reader.read("engine_speed");
+            if(measurement != null) {
+                double value = (Double) measurement.getValue();
+                assertThat((Double) measurement.getEvent(), equalTo(value));
+                assertThat(value, greaterThanOrEqualTo(last));
+                last = value;
+            }
+        }
+        writerThread.join();
+        assertThat((Double) reader.read("engine_speed").getValue(),
+                equalTo(iterations - 1.0));
+    }
+
+    public void testNoTornReadsUnderContention() throws Exception {
+        final int iterations = 100000;
+        final String[] names = {"vehicle_speed", "engine_speed"};
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final List<String> torn = new CopyOnWriteArrayList<String>();
+
+        List<Thread> readers = new ArrayList<Thread>();
+        for(int r = 0; r < 4; r++) {
+            final SharedMeasurementTable table = openReader();
+            readers.add(new Thread() {
+                public void run() {
+                    while(writing.get()) {
+                        for(String name : names) {
+                            RawMeasurement measurement = table.read(name);
+                            if(measurement != null &&
+                                    !isConsistent(measurement)) {
+                                torn.add(measurement.toString());
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for(Thread thread : readers) {
+            thread.start();
+        }
+
+        // every field of a write is derived from the same number, with
+        // strings of changing length, so a mix of two writes shows up
+        for(int i = 1; i <= iterations; i++) {
+            writer.write(new RawMeasurement(names[i % names.length],
+                        Integer.toString(i), Integer.toString(i * 7), i));
+        }
+        writing.set(false);
+        for(Thread thread : readers) {
+            thread.join();
+        }
+        assertThat(torn, empty());
+    }
+
+    private static boolean isConsistent(RawMeasurement measurement) {
+        long i = (long) measurement.getTimestamp();
+        return measurement.getValue().equals(Long.toString(i)) &&
+            measurement.getEvent().equals(Long.toString(i * 7));
+    }
+}
@@ -0,0 +1,97 @@
+package com.openxc.remote;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SignalIdTableTest extends TestCase {
+    SignalIdTable table;
+
+    @Override
+    public void setUp() {
+        table = new SignalIdTable(Arrays.asList("vehicle_speed",
+                    "engine_speed"));
+    }
+
+    public void testIdsFollowOrder() {
+        assertThat(table.getId("vehicle_speed"), equalTo(0));
+        assertThat(table.getId("engine_speed"), equalTo(1));
+        assertThat(table.getName(1), equalTo("engine_speed"));
+    }
+
+    public void testUnknownName() {
+        assertThat(table.getId("fuel_level"),
+                equalTo(SignalIdTable.UNKNOWN_ID));
+    }
+
+    public void testUnknownId() {
+        assertThat(table.getName(2), nullValue());
+        assertThat(table.getName(-1), nullValue());
+    }
+
+    public void testNamesRoundTrip() {
+        SignalIdTable copy = new SignalIdTable(table.getNames());
+        assertThat(copy.size(), equalTo(table.size()));
+        assertThat(copy.getId("engine_speed"), equalTo(1));
+    }
+
+    public void testDefaultHasBuiltInMeasurements() {
+        assertThat(SignalIdTable.DEFAULT.getId("vehicle_speed"),
+                not(equalTo(SignalIdTable.UNKNOWN_ID)));
+        assertThat(SignalIdTable.DEFAULT.getId("button_event"),
+                not(equalTo(SignalIdTable.UNKNOWN_ID)));
+    }
+
+    public void testSameNamesSameFingerprint() {
+        SignalIdTable copy = new SignalIdTable(table.getNames());
+        assertThat(copy.getFingerprint(), equalTo(table.getFingerprint()));
+        SignalIdTable reordered = new SignalIdTable(Arrays.asList(
+                    "engine_speed", "vehicle_speed"));
+        assertThat(reordered.getFingerprint(),
+                not(equalTo(table.getFingerprint())));
+    }
+
+    public void testFoundByFingerprint() {
+        SignalIdTable other = new SignalIdTable(Arrays.asList("fuel_level"));
+        assertThat(SignalIdTable.forFingerprint(table.getFingerprint())
+                .getName(1), equalTo("engine_speed"));
+        assertThat(SignalIdTable.forFingerprint(other.getFingerprint())
+                .getName(0), equalTo("fuel_level"));
+        assertThat(SignalIdTable.forFingerprint(
+                    SignalIdTable.DEFAULT.getFingerprint()),
+                sameInstance(SignalIdTable.DEFAULT));
+    }
+
+    public void testCollidingFingerprintNotFound() {
+        SignalIdTable first = new SignalIdTable(Arrays.asList("fuel_level"),
+                0x5eedL);
+        assertThat(SignalIdTable.forFingerprint(0x5eedL), sameInstance(first));
+        SignalIdTable second = new SignalIdTable(Arrays.asList("odometer"),
+                0x5eedL);
+        assertThat(SignalIdTable.forFingerprint(0x5eedL), nullValue());
+        assertThat(second.getName(0), equalTo("odometer"));
+    }
+
+    public void testSameNamesShareFingerprint() {
+        SignalIdTable first = new SignalIdTable(Arrays.asList("latitude"),
+                0xfeedL);
+        SignalIdTable second = new SignalIdTable(Arrays.asList("latitude"),
+                0xfeedL);
+        assertThat(SignalIdTable.forFingerprint(0xfeedL), sameInstance(first));
+        assertThat(second.getName(0), equalTo("latitude"));
+    }
+
+    public void testUnusedTableForgotten() throws InterruptedException {
+        WeakReference<SignalIdTable> reference =
+                new WeakReference<SignalIdTable>(new SignalIdTable(
+                        Arrays.asList("longitude", "latitude")));
+        for(int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(reference.get(), nullValue());
+    }
+}
@@ -0,0 +1,56 @@
+package com.openxc.remote;
+
+import junit.framework.TestCase;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.measurements.EngineSpeed;
+import com.openxc.measurements.IgnitionStatus;
+import com.openxc.measurements.VehicleButtonEvent;
+import com.openxc.measurements.VehicleDoorStatus;
+import com.openxc.measurements.VehicleSpeed;
+
+public class SignalPrioritiesTest extends TestCase {
+    @Override
+    public void tearDown() {
+        SignalPriorities.clearPriority(VehicleSpeed.ID);
+        SignalPriorities.clearPriority(VehicleButtonEvent.ID);
+        SignalPriorities.clearPriority("command_response");
+    }
+
+    public void testDiscreteMeasurementsAreHigh() {
+        assertTrue(SignalPriorities.isHighPriority(VehicleButtonEvent.ID));
+        assertTrue(SignalPriorities.isHighPriority(IgnitionStatus.ID));
+        assertTrue(SignalPriorities.isHighPriority(VehicleDoorStatus.ID));
+    }
+
+    public void testNumericMeasurementsAreNormal() {
+        assertThat(SignalPriorities.getPriority(EngineSpeed.ID),
+                equalTo(SignalPriorities.Priority.NORMAL));
+        assertFalse(SignalPriorities.isHighPriority(VehicleSpeed.ID));
+    }
+
+    public void testUnknownSignalIsNormal() {
+        assertFalse(SignalPriorities.isHighPriority("command_response"));
+    }
+
+    public void testOverride() {
+        SignalPriorities.setPriority(VehicleSpeed.ID,
+                SignalPriorities.Priority.HIGH);
+        SignalPriorities.setPriority(VehicleButtonEvent.ID,
+                SignalPriorities.Priority.NORMAL);
+        SignalPriorities.setPriority("command_response",
+                SignalPriorities.Priority.HIGH);
+        assertTrue(SignalPriorities.isHighPriority(VehicleSpeed.ID));
+        assertFalse(SignalPriorities.isHighPriority(VehicleButtonEvent.ID));
+        assertTrue(SignalPriorities.isHighPriority("command_response"));
+    }
+
+    public void testClearOverride() {
+        SignalPriorities.setPriority(VehicleSpeed.ID,
+                SignalPriorities.Priority.HIGH);
+        SignalPriorities.clearPriority(VehicleSpeed.ID);
+        assertFalse(SignalPriorities.isHighPriority(VehicleSpeed.ID));
+    }
+}
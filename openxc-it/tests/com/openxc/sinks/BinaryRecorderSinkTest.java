@@ -0,0 +1,104 @@
+package com.openxc.sinks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.remote.RawMeasurement;
+import com.openxc.sources.trace.BinaryTraceReader;
+import com.openxc.sources.trace.BinaryTraceWriter;
+import com.openxc.util.JavaFileOpener;
+
+public class BinaryRecorderSinkTest extends TestCase {
+    File directory;
+    BinaryRecorderSink sink;
+
+    @Override
+    public void setUp() throws IOException {
+        directory = File.createTempFile("traces", "");
+        directory.delete();
+        directory.mkdirs();
+        sink = new BinaryRecorderSink(new JavaFileOpener(directory), 4);
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        sink.stop();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private BinaryTraceReader openTrace() throws IOException {
+        File[] files = directory.listFiles();
+        assertThat(files.length, equalTo(1));
+        assertTrue(files[0].getName().endsWith(BinaryTraceWriter.EXTENSION));
+        return new BinaryTraceReader(files[0]);
+    }
+
+    public void testRecordsMeasurements() throws DataSinkException,
+            IOException {
+        for(int i = 0; i < 10; i++) {
+            sink.receive(new RawMeasurement("vehicle_speed", i));
+        }
+        sink.stop();
+
+        BinaryTraceReader reader = openTrace();
+        assertTrue(reader.isIndexed());
+        assertThat(reader.getMeasurementCount(), equalTo(10L));
+        assertThat(reader.getBlockCount(), equalTo(3));
+        assertThat(reader.next().getValue(), equalTo((Object) 0));
+        reader.close();
+    }
+
+    public void testFlushWritesBlock() throws DataSinkException, IOException {
+        sink.receive(new RawMeasurement("vehicle_speed", 1));
+        sink.flush();
+
+        BinaryTraceReader reader = openTrace();
+        assertFalse(reader.isIndexed());
+        assertThat(reader.getMeasurementCount(), equalTo(1L));
+        reader.close();
+    }
+
+    public void testRotatesBySize() throws DataSinkException, IOException,
+            InterruptedException {
+        sink.setRotation(1, 0, TimeUnit.SECONDS);
+        for(int i = 0; i < 4; i++) {
+            sink.receive(new RawMeasurement("vehicle_speed", i));
+        }
+        sink.flush();
+        // files are named by the second, so wait for a new name
+        Thread.sleep(1100);
+        for(int i = 0; i < 6; i++) {
+            sink.receive(new RawMeasurement("vehicle_speed", i));
+        }
+        sink.stop();
+
+        File[] files = directory.listFiles();
+        assertThat(files.length, equalTo(2));
+        Arrays.sort(files);
+        long[] counts = new long[] {4, 6};
+        for(int i = 0; i < files.length; i++) {
+            BinaryTraceReader reader = new BinaryTraceReader(files[i]);
+            assertTrue(reader.isIndexed());
+            assertThat(reader.getMeasurementCount(), equalTo(counts[i]));
+            reader.close();
+        }
+    }
+
+    public void testReceiveAfterStop() {
+        sink.stop();
+        try {
+            sink.receive(new RawMeasurement("vehicle_speed", 1));
+            fail("Expected a DataSinkException");
+        } catch(DataSinkException e) {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.openxc.sinks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ListenerTableTest extends TestCase {
+    ListenerTable table;
+
+    @Override
+    public void setUp() {
+        table = new ListenerTable();
+    }
+
+    public void testEmpty() {
+        assertThat(table.get(0).length, equalTo(0));
+        assertThat(table.get(-1).length, equalTo(0));
+        assertThat(table.get(100).length, equalTo(0));
+        assertThat(table.size(), equalTo(0));
+    }
+
+    public void testAdd() {
+        assertTrue(table.add(3, "a"));
+        assertTrue(table.add(3, "b"));
+        assertThat(table.get(3), arrayContaining((Object) "a", "b"));
+        assertThat(table.get(2).length, equalTo(0));
+        assertThat(table.size(), equalTo(2));
+    }
+
+    public void testAddDuplicateIgnored() {
+        assertTrue(table.add(0, "a"));
+        assertFalse(table.add(0, "a"));
+        assertThat(table.get(0).length, equalTo(1));
+        assertThat(table.size(), equalTo(1));
+    }
+
+    public void testRemove() {
+        table.add(1, "a");
+        table.add(1, "b");
+        table.add(1, "c");
+        assertTrue(table.remove(1, "b"));
+        assertThat(table.get(1), arrayContaining((Object) "a", "c"));
+        assertFalse(table.remove(1, "b"));
+        assertFalse(table.remove(7, "a"));
+        assertThat(table.size(), equalTo(2));
+    }
+
+    public void testRemovingDoesNotChangeReturnedArray() {
+        table.add(0, "a");
+        Object[] listeners = table.get(0);
+        table.remove(0, "a");
+        assertThat(listeners, arrayContaining((Object) "a"));
+        assertThat(table.get(0).length, equalTo(0));
+    }
+
+    public void testConcurrentChurnWhileDispatching()
+            throws InterruptedException {
+        final int index = 5;
+        final Object stable = "stable";
+        table.add(index, stable);
+
+        final int churnThreads = 4;
+        final int iterations = 5000;
+        final CountDownLatch done = new CountDownLatch(churnThreads);
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+
+        for(int i = 0; i < churnThreads; i++) {
+            final int thread = i;
+            new Thread() {
+                public void run() {
+                    try {
+                        for(int j = 0; j < iterations; j++) {
+                            Object listener = thread + "-" + j;
+                            table.add(index, listener);
+                            table.add(thread, listener);
+                            table.remove(index, listener);
+                            table.remove(thread, listener);
+                        }
+                    } catch(Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        // Every snapshot seen while dispatching must be complete and still
+        // contain the listener that was never removed
+        while(done.getCount() > 0) {
+            Object[] listeners = table.get(index);
+            boolean foundStable = false;
+            for(int i = 0; i < listeners.length; i++) {
+                assertNotNull(listeners[i]);
+                foundStable |= listeners[i] == stable;
+            }
+            assertTrue(foundStable);
+        }
+
+        assertNull(failure.get());
+        assertThat(table.get(index), arrayContaining(stable));
+        assertThat(table.size(), equalTo(1));
+        for(int i = 0; i < churnThreads; i++) {
+            assertThat(table.get(i).length, equalTo(0));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.openxc.sources.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.remote.RawMeasurement;
+
+public class BinaryTraceTest extends TestCase {
+    final static double START = 1351176963.426318;
+    final static int BLOCK_SIZE = 10;
+
+    File file;
+    BinaryTraceWriter writer;
+    BinaryTraceReader reader;
+
+    @Override
+    public void setUp() throws IOException {
+        file = File.createTempFile("trace", BinaryTraceWriter.EXTENSION);
+        writer = new BinaryTraceWriter(
+                new FileOutputStream(file).getChannel(), BLOCK_SIZE);
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        writer.close();
+        if(reader != null) {
+            reader.close();
+        }
+        file.delete();
+    }
+
+    private void writeSpeeds(int count) throws IOException {
+        for(int i = 0; i < count; i++) {
+            writer.write(new RawMeasurement("vehicle_speed", i * 1.5, null,
+                        START + i * 0.1));
+        }
+    }
+
+    private BinaryTraceReader open() throws IOException {
+        reader = new BinaryTraceReader(file);
+        return reader;
+    }
+
+    public void testRoundTripTypes() throws IOException {
+        writer.write(new RawMeasurement("vehicle_speed", 42.5, null, START));
+        writer.write(new RawMeasurement("door_status", "driver", true,
+                    START + 0.01));
+        writer.write(new RawMeasurement("brake_pedal_status", false, null,
+                    START + 0.005));
+        writer.write(new RawMeasurement("odometer", 12, null, START + 1));
+        writer.write(new RawMeasurement("fine_odometer", 1L << 40, null,
+                    START + 2));
+        RawMeasurement untimestamped = new RawMeasurement("vehicle_speed", 1);
+        untimestamped.untimestamp();
+        writer.write(untimestamped);
+        writer.close();
+
+        open();
+        assertTrue(reader.isIndexed());
+        RawMeasurement measurement = reader.next();
+        assertThat(measurement.getName(), equalTo("vehicle_speed"));
+        assertThat(measurement.getValue(), equalTo((Object) 42.5));
+        assertThat(measurement.getEvent(), nullValue());
+        assertThat(measurement.getTimestamp(), closeTo(START, 0.000001));
+
+        measurement = reader.next();
+        assertThat(measurement.getValue(), equalTo((Object) "driver"));
+        assertThat(measurement.getEvent(), equalTo((Object) true));
+        assertThat(measurement.getTimestamp(),
+                closeTo(START + 0.01, 0.000001));
+
+        measurement = reader.next();
+        assertThat(measurement.getValue(), equalTo((Object) false));
+        assertThat(measurement.getTimestamp(),
+                closeTo(START + 0.005, 0.000001));
+
+        assertThat(reader.next().getValue(), equalTo((Object) 12));
+        assertThat(reader.next().getValue(), equalTo((Object) (1L << 40)));
+        measurement = reader.next();
+        assertFalse(measurement.isTimestamped());
+        assertThat(measurement.getValue(), equalTo((Object) 1));
+        assertThat(reader.next(), nullValue());
+    }
+
+    public void testBlocksAndIndex() throws IOException {
+        writeSpeeds(25);
+        writer.close();
+        assertThat(writer.getBlockCount(), equalTo(3));
+
+        open();
+        assertThat(reader.getBlockCount(), equalTo(3));
+        assertThat(reader.getMeasurementCount(), equalTo(25L));
+        assertThat(reader.getStartTimestamp(), closeTo(START, 0.000001));
+        assertThat(reader.getEndTimestamp(),
+                closeTo(START + 2.4, 0.000001));
+
+        List<RawMeasurement> block = reader.readBlock(2);
+        assertThat(block, hasSize(5));
+        assertThat(block.get(0).getValue(), equalTo((Object) 30.0));
+    }
+
+    public void testSequentialReadCrossesBlocks() throws IOException {
+        writeSpeeds(25);
+        writer.close();
+
+        open();
+        int count = 0;
+        RawMeasurement measurement;
+        while((measurement = reader.next()) != null) {
+            assertThat(measurement.getValue(), equalTo((Object) (count * 1.5)));
+            count++;
+        }
+        assertThat(count, equalTo(25));
+
+        reader.rewind();
+        assertThat(reader.next().getValue(), equalTo((Object) 0.0));
+    }
+
+    public void testSeek() throws IOException {
+        writeSpeeds(25);
+        writer.close();
+
+        open();
+        reader.seek(START + 1.25);
+        assertThat(reader.next().getValue(), equalTo((Object) (13 * 1.5)));
+        assertThat(reader.next().getValue(), equalTo((Object) (14 * 1.5)));
+
+        reader.seek(START - 10);
+        assertThat(reader.next().getValue(), equalTo((Object) 0.0));
+
+        reader.seek(START + 100);
+        assertThat(reader.next(), nullValue());
+    }
+
+    public void testDictionarySharedAcrossBlocks() throws IOException {
+        writeSpeeds(BLOCK_SIZE);
+        writer.write(new RawMeasurement("vehicle_speed", "unknown", null,
+                    START + 5));
+        writer.close();
+
+        open();
+        assertThat(reader.readBlock(1).get(0).getName(),
+                equalTo("vehicle_speed"));
+        assertThat(reader.readBlock(1).get(0).getValue(),
+                equalTo((Object) "unknown"));
+    }
+
+    public void testReadWithoutIndex() throws IOException {
+        writeSpeeds(25);
+        // the last 5 are still in memory and the index isn't written yet
+        writer.flush();
+        long written = file.length();
+
+        open();
+        assertFalse(reader.isIndexed());
+        assertThat(reader.getMeasurementCount(), equalTo(25L));
+        reader.seek(START + 2.0);
+        assertThat(reader.next().getValue(), equalTo((Object) (20 * 1.5)));
+        reader.close();
+
+        // a block that was only partly written is ignored
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(written - 3);
+        truncated.close();
+        open();
+        assertThat(reader.getMeasurementCount(), equalTo(20L));
+    }
+
+    public void testNotBinaryTrace() throws IOException {
+        File json = File.createTempFile("trace", ".json");
+        FileUtils.writeStringToFile(json,
+                "{\"name\": \"vehicle_speed\", \"value\": 42}\n");
+        assertFalse(BinaryTraceReader.isBinaryTrace(json));
+        try {
+            new BinaryTraceReader(json);
+            fail("Expected an IOException");
+        } catch(IOException e) {
+        } finally {
+            json.delete();
+        }
+
+        writer.close();
+        assertTrue(BinaryTraceReader.isBinaryTrace(file));
+    }
+
+    public void testSmallerThanJson() throws IOException {
+        StringBuilder json = new StringBuilder();
+        for(int i = 0; i < 1000; i++) {
+            RawMeasurement measurement = new RawMeasurement(
+                    i % 2 == 0 ? "vehicle_speed" : "transmission_gear_position",
+                    i % 2 == 0 ? (Object) (i * 0.25) : "second", null,
+                    START + i * 0.01);
+            writer.write(measurement);
+            json.append(measurement.serialize()).append('\n');
+        }
+        writer.close();
+        assertThat(file.length(), lessThan((long) json.length() / 4));
+    }
+}
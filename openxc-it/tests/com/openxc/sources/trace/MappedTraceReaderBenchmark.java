@@ -0,0 +1,111 @@
+package com.openxc.sources.trace;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.openxc.BenchmarkCase;
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * Compare the throughput of reading a large JSON trace line by line with a
+ * BufferedReader on one thread against the MappedTraceReader.
+ *
+ * The trace is generated in the temporary directory before each test. Its
+ * size defaults to 16MB and can be set with the
+ * "debug.openxc.benchmark.trace_mb" property, the same way as the property
+ * that turns benchmarks on (see {@link BenchmarkCase}) - traces of several GB
+ * show how both readers do once the file no longer fits in the page cache.
+ */
+public class MappedTraceReaderBenchmark extends BenchmarkCase {
+    private final static String SIZE_PROPERTY =
+            "debug.openxc.benchmark.trace_mb";
+    private final static long DEFAULT_MEGABYTES = 16;
+    private final static String[] NAMES = {
+        "vehicle_speed", "engine_speed", "accelerator_pedal_position",
+        "steering_wheel_angle", "transmission_gear_position"
+    };
+
+    File trace;
+    long traceBytes;
+
+    @Override
+    public void setUp() throws IOException {
+        long megabytes = getLongProperty(SIZE_PROPERTY, DEFAULT_MEGABYTES);
+        trace = File.createTempFile("benchmark", ".json");
+        BufferedWriter writer = new BufferedWriter(new FileWriter(trace),
+                1024 * 1024);
+        double timestamp = 1351176963.426318;
+        for(long i = 0; ; i++) {
+            String name = NAMES[(int) (i % NAMES.length)];
+            Object value = name.equals("transmission_gear_position") ?
+                    (Object) "second" : (Object) ((i % 1000) * 0.25);
+            writer.write(new RawMeasurement(name, value, null,
+                        timestamp + i * 0.001).serialize());
+            writer.newLine();
+            if(i % 10000 == 0) {
+                writer.flush();
+                if(trace.length() >= megabytes * 1024 * 1024) {
+                    break;
+                }
+            }
+        }
+        writer.close();
+        traceBytes = trace.length();
+    }
+
+    @Override
+    public void tearDown() {
+        trace.delete();
+    }
+
+    public void testBufferedReader() throws IOException {
+        long start = System.nanoTime();
+        JsonTraceCursor cursor = new JsonTraceCursor(new BufferedReader(
+                new InputStreamReader(new FileInputStream(trace), "UTF-8")));
+        long count = readAll(cursor);
+        report("BufferedReader", count, start);
+    }
+
+    public void testMappedTraceReader() throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            MappedTraceReader reader = new MappedTraceReader(trace, executor,
+                    threads, MappedTraceReader.DEFAULT_WINDOW_SIZE,
+                    MappedTraceReader.DEFAULT_CHUNK_SIZE);
+            long count = readAll(reader);
+            report("MappedTraceReader with " + threads + " threads", count,
+                    start);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long readAll(TraceCursor cursor) throws IOException {
+        long count = 0;
+        try {
+            while(cursor.next() != null) {
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+    private void report(String reader, long count, long start) {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(reader + ": read " + count + " measurements (" +
+                (traceBytes / (1024 * 1024)) + "MB) at " +
+                (count * 1000000000L / elapsed) + " measurements/s, " +
+                (traceBytes * 1000L / elapsed) + " MB/s");
+    }
+}
@@ -0,0 +1,212 @@
+package com.openxc.sources.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.remote.RawMeasurement;
+
+public class MappedTraceReaderTest extends TestCase {
+    final static int WINDOW_SIZE = 1024;
+    final static int CHUNK_SIZE = 100;
+
+    ExecutorService executor;
+    File file;
+    MappedTraceReader reader;
+
+    @Override
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(3);
+        file = File.createTempFile("trace", ".json");
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        if(reader != null) {
+            reader.close();
+        }
+        executor.shutdown();
+        file.delete();
+        new File(file.getPath() + TraceIndex.EXTENSION).delete();
+    }
+
+    private MappedTraceReader open() throws IOException {
+        reader = new MappedTraceReader(file, executor, 3, WINDOW_SIZE,
+                CHUNK_SIZE);
+        return reader;
+    }
+
+    private String line(int i) {
+        return new RawMeasurement("vehicle_speed", i, null,
+                timestamp(i)).serialize();
+    }
+
+    private double timestamp(int i) {
+        return 1351176963.426318 + i;
+    }
+
+    private void writeLines(int count) throws IOException {
+        StringBuilder trace = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            trace.append(line(i)).append('\n');
+        }
+        FileUtils.writeStringToFile(file, trace.toString());
+    }
+
+    private void useIndex(final long interval) {
+        FutureTask<TraceIndex> index = new FutureTask<TraceIndex>(
+                new Callable<TraceIndex>() {
+                    public TraceIndex call() throws IOException {
+                        return TraceIndex.build(file, interval);
+                    }
+                });
+        index.run();
+        reader.setIndex(index);
+    }
+
+    private List<Object> readValues() throws IOException {
+        List<Object> values = new ArrayList<Object>();
+        RawMeasurement measurement;
+        while((measurement = reader.next()) != null) {
+            values.add(measurement.getValue());
+        }
+        return values;
+    }
+
+    private void assertReadsInOrder(int count) throws IOException {
+        List<Object> values = readValues();
+        assertThat(values, hasSize(count));
+        for(int i = 0; i < count; i++) {
+            assertThat(values.get(i), equalTo((Object) i));
+        }
+    }
+
+    public void testReadsInOrderAcrossWindows() throws IOException {
+        StringBuilder trace = new StringBuilder();
+        for(int i = 0; i < 500; i++) {
+            trace.append(line(i)).append('\n');
+        }
+        FileUtils.writeStringToFile(file, trace.toString());
+        assertThat(file.length(), greaterThan(WINDOW_SIZE * 10L));
+
+        open();
+        assertReadsInOrder(500);
+        assertThat(reader.getChunkCount(), greaterThan(10L));
+        assertThat(reader.next(), nullValue());
+    }
+
+    public void testNoTrailingNewline() throws IOException {
+        FileUtils.writeStringToFile(file, line(0) + "\n" + line(1));
+        open();
+        assertReadsInOrder(2);
+    }
+
+    public void testCarriageReturnsAndBlankLines() throws IOException {
+        FileUtils.writeStringToFile(file,
+                line(0) + "\r\n\r\n" + line(1) + "\n\n" + line(2) + "\r\n");
+        open();
+        assertReadsInOrder(3);
+    }
+
+    public void testInvalidLinesSkipped() throws IOException {
+        FileUtils.writeStringToFile(file,
+                line(0) + "\nnot json\n" + line(1) + "\n");
+        open();
+        assertReadsInOrder(2);
+        assertThat(reader.getSkippedCount(), equalTo(1L));
+    }
+
+    public void testEmptyFile() throws IOException {
+        open();
+        assertThat(reader.next(), nullValue());
+    }
+
+    public void testLineLongerThanWindow() throws IOException {
+        StringBuilder name = new StringBuilder();
+        for(int i = 0; i < WINDOW_SIZE; i++) {
+            name.append('x');
+        }
+        FileUtils.writeStringToFile(file, line(0) + "\n" +
+                new RawMeasurement(name.toString(), 1).serialize() + "\n" +
+                line(1) + "\n");
+        open();
+        try {
+            // chunks are found ahead of reading, so this can fail early
+            readValues();
+            fail("Expected an IOException");
+        } catch(IOException e) {
+        }
+    }
+
+    public void testChunkLargerThanWindow() throws IOException {
+        try {
+            new MappedTraceReader(file, executor, 1, CHUNK_SIZE,
+                    WINDOW_SIZE);
+            fail("Expected an IllegalArgumentException");
+        } catch(IllegalArgumentException e) {
+        }
+    }
+
+    public void testSeekBackwardsAcrossWindows() throws IOException {
+        writeLines(500);
+        open();
+        useIndex(WINDOW_SIZE / 4);
+        for(int i = 0; i < 400; i++) {
+            reader.next();
+        }
+
+        assertTrue(reader.seek(timestamp(20)));
+        RawMeasurement measurement = reader.next();
+        // the index is sparse, so it may start a little early
+        assertThat((Integer) measurement.getValue(), lessThanOrEqualTo(20));
+        assertThat((Integer) measurement.getValue(), greaterThan(0));
+        while((Integer) measurement.getValue() < 20) {
+            measurement = reader.next();
+        }
+        assertThat(measurement.getTimestamp(), equalTo(timestamp(20)));
+        // and reads on to the end from there
+        assertThat(readValues(), hasSize(479));
+    }
+
+    public void testSeekForwards() throws IOException {
+        writeLines(500);
+        open();
+        useIndex(WINDOW_SIZE / 4);
+        reader.next();
+
+        assertTrue(reader.seek(timestamp(450)));
+        assertThat((Integer) reader.next().getValue(),
+                allOf(greaterThan(400), lessThanOrEqualTo(450)));
+    }
+
+    public void testSeekBeforeStart() throws IOException {
+        writeLines(50);
+        open();
+        useIndex(WINDOW_SIZE / 4);
+        readValues();
+
+        assertTrue(reader.seek(0));
+        assertReadsInOrder(50);
+    }
+
+    public void testSeekBuildsIndex() throws IOException {
+        writeLines(50);
+        open();
+        assertTrue(reader.seek(timestamp(10)));
+        assertTrue(new File(file.getPath() + TraceIndex.EXTENSION).exists());
+        // the default interval only indexes the first line of a small trace
+        assertReadsInOrder(50);
+    }
+}
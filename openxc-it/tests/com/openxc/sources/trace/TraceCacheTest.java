@@ -0,0 +1,168 @@
+package com.openxc.sources.trace;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.remote.RawMeasurement;
+
+public class TraceCacheTest extends TestCase {
+    final static double START = 1351176963.426318;
+
+    private TraceCursor cursorOf(RawMeasurement... measurements) {
+        final Iterator<RawMeasurement> iterator =
+                Arrays.asList(measurements).iterator();
+        return new TraceCursor() {
+            public RawMeasurement next() {
+                return iterator.hasNext() ? iterator.next() : null;
+            }
+
+            public boolean seek(double timestampSeconds) {
+                return false;
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    private TraceCursor counting(final int count) {
+        return new TraceCursor() {
+            int position = 0;
+
+            public RawMeasurement next() {
+                if(position >= count) {
+                    return null;
+                }
+                position++;
+                return new RawMeasurement("vehicle_speed", position - 1, null,
+                        START + position - 1);
+            }
+
+            public boolean seek(double timestampSeconds) {
+                return false;
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    private List<RawMeasurement> readAll(TraceCursor cursor)
+            throws IOException {
+        List<RawMeasurement> measurements = new ArrayList<RawMeasurement>();
+        RawMeasurement measurement;
+        while((measurement = cursor.next()) != null) {
+            measurements.add(measurement);
+        }
+        return measurements;
+    }
+
+    public void testValueTypes() throws IOException {
+        TraceCache cache = TraceCache.load(cursorOf(
+                new RawMeasurement("a", 42.5, null, START),
+                new RawMeasurement("b", 7, null, START + 1),
+                new RawMeasurement("c", 1L << 40, null, START + 2),
+                new RawMeasurement("d", true, null, START + 3),
+                new RawMeasurement("e", false, null, START + 4),
+                new RawMeasurement("f", "second", null, START + 5)),
+                1024 * 1024);
+        assertThat(cache.size(), equalTo(6));
+
+        List<RawMeasurement> measurements = readAll(cache.cursor());
+        assertThat(measurements, hasSize(6));
+        assertThat(measurements.get(0).getName(), equalTo("a"));
+        assertThat(measurements.get(0).getValue(), equalTo((Object) 42.5));
+        assertThat(measurements.get(1).getValue(), equalTo((Object) 7));
+        assertThat(measurements.get(2).getValue(),
+                equalTo((Object) (1L << 40)));
+        assertThat(measurements.get(3).getValue(),
+                equalTo((Object) Boolean.TRUE));
+        assertThat(measurements.get(4).getValue(),
+                equalTo((Object) Boolean.FALSE));
+        assertThat(measurements.get(5).getValue(),
+                equalTo((Object) "second"));
+        for(int i = 0; i < 6; i++) {
+            assertThat(measurements.get(i).getTimestamp(),
+                    equalTo(START + i));
+            assertFalse(measurements.get(i).hasEvent());
+        }
+    }
+
+    public void testEvents() throws IOException {
+        TraceCache cache = TraceCache.load(cursorOf(
+                new RawMeasurement("vehicle_speed", 1, null, START),
+                new RawMeasurement("door_status", "driver", true, START + 1),
+                new RawMeasurement("button_event", "left", "pressed",
+                    START + 2)),
+                1024 * 1024);
+
+        List<RawMeasurement> measurements = readAll(cache.cursor());
+        assertFalse(measurements.get(0).hasEvent());
+        assertThat(measurements.get(1).getEvent(),
+                equalTo((Object) Boolean.TRUE));
+        assertThat(measurements.get(2).getValue(), equalTo((Object) "left"));
+        assertThat(measurements.get(2).getEvent(),
+                equalTo((Object) "pressed"));
+    }
+
+    public void testCursorsAreIndependent() throws IOException {
+        TraceCache cache = TraceCache.load(counting(10), 1024 * 1024);
+        TraceCursor first = cache.cursor();
+        first.next();
+        RawMeasurement played = first.next();
+        played.untimestamp();
+
+        assertThat(readAll(first), hasSize(8));
+        List<RawMeasurement> again = readAll(cache.cursor());
+        assertThat(again, hasSize(10));
+        assertThat(again.get(1).getTimestamp(), equalTo(START + 1));
+    }
+
+    public void testSeek() throws IOException {
+        TraceCache cache = TraceCache.load(counting(100), 1024 * 1024);
+        TraceCursor cursor = cache.cursor();
+        readAll(cursor);
+
+        assertTrue(cursor.seek(START + 42.5));
+        assertThat(cursor.next().getValue(), equalTo((Object) 43));
+        assertTrue(cursor.seek(0));
+        assertThat(cursor.next().getValue(), equalTo((Object) 0));
+        assertTrue(cursor.seek(START + 1000));
+        assertThat(cursor.next(), nullValue());
+    }
+
+    public void testOverBudget() throws IOException {
+        assertThat(TraceCache.load(counting(10000), 10000), nullValue());
+    }
+
+    public void testWithinBudget() throws IOException {
+        TraceCache cache = TraceCache.load(counting(10000), 1024 * 1024);
+        assertThat(cache.size(), equalTo(10000));
+        assertThat(cache.getMemoryUsage(), lessThanOrEqualTo(1024L * 1024));
+        // far less than a RawMeasurement each
+        assertThat(cache.getMemoryUsage(), lessThan(10000L * 40));
+    }
+
+    public void testBudgetCapsGrowth() throws IOException {
+        // enough for 1000 measurements and some room for strings, but not
+        // for the arrays to double to 1024
+        long budget = 23000;
+        TraceCache cache = TraceCache.load(counting(1000), budget);
+        assertThat(cache.size(), equalTo(1000));
+        assertThat(cache.getMemoryUsage(), lessThanOrEqualTo(budget));
+    }
+
+    public void testEmpty() throws IOException {
+        TraceCache cache = TraceCache.load(counting(0), 1024);
+        assertThat(cache.size(), equalTo(0));
+        assertThat(cache.cursor().next(), nullValue());
+    }
+}
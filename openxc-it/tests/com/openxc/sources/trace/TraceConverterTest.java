@@ -0,0 +1,140 @@
+package com.openxc.sources.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.measurements.UnrecognizedMeasurementTypeException;
+import com.openxc.remote.RawMeasurement;
+
+public class TraceConverterTest extends TestCase {
+    final static int COUNT = 1000;
+
+    ExecutorService executor;
+    TraceConverter converter;
+    File json;
+    File binary;
+    File roundTrip;
+    List<String> lines = new ArrayList<String>();
+
+    @Override
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        converter = new TraceConverter(executor, 4, 64);
+        json = File.createTempFile("trace", ".json");
+        binary = File.createTempFile("trace", BinaryTraceWriter.EXTENSION);
+        roundTrip = File.createTempFile("trace", ".json");
+
+        for(int i = 0; i < COUNT; i++) {
+            lines.add(new RawMeasurement(i % 3 == 0 ? "door_status" :
+                        "vehicle_speed", i % 3 == 0 ? "driver" : i * 0.5,
+                        i % 3 == 0 ? (Object) (i % 2 == 0) : null,
+                        1351176963.426318 + i * 0.001).serialize());
+        }
+        FileUtils.writeLines(json, lines);
+    }
+
+    @Override
+    public void tearDown() {
+        executor.shutdown();
+        json.delete();
+        binary.delete();
+        roundTrip.delete();
+    }
+
+    private void assertSameMeasurements(List<String> expected,
+            List<String> actual) throws UnrecognizedMeasurementTypeException {
+        assertThat(actual, hasSize(expected.size()));
+        for(int i = 0; i < expected.size(); i++) {
+            RawMeasurement left = new RawMeasurement(expected.get(i));
+            RawMeasurement right = new RawMeasurement(actual.get(i));
+            assertThat(right.getName(), equalTo(left.getName()));
+            assertThat(right.getValue(), equalTo(left.getValue()));
+            assertThat(right.getEvent(), equalTo(left.getEvent()));
+            assertThat(right.getTimestamp(),
+                    closeTo(left.getTimestamp(), 0.000001));
+        }
+    }
+
+    public void testRoundTrip() throws IOException,
+            UnrecognizedMeasurementTypeException {
+        assertThat(converter.toBinary(json, binary), equalTo((long) COUNT));
+        assertThat(binary.length(), lessThan(json.length() / 2));
+
+        BinaryTraceReader reader = new BinaryTraceReader(binary);
+        assertThat(reader.getBlockCount(), equalTo((COUNT + 63) / 64));
+        reader.close();
+
+        assertThat(converter.toJson(binary, roundTrip),
+                equalTo((long) COUNT));
+        assertSameMeasurements(lines, FileUtils.readLines(roundTrip));
+    }
+
+    public void testInvalidLinesSkipped() throws IOException,
+            UnrecognizedMeasurementTypeException {
+        List<String> withInvalid = new ArrayList<String>(lines);
+        withInvalid.add(10, "not json");
+        withInvalid.add(500, "{\"value\": 42}");
+        FileUtils.writeLines(json, withInvalid);
+
+        assertThat(converter.toBinary(json, binary), equalTo((long) COUNT));
+        converter.toJson(binary, roundTrip);
+        assertSameMeasurements(lines, FileUtils.readLines(roundTrip));
+    }
+
+    public void testUntimestampedLinesStayUntimestamped()
+            throws IOException {
+        FileUtils.writeLines(json, lines.subList(0, 1));
+        FileUtils.write(json, "{\"name\": \"vehicle_speed\", \"value\": 42}\n",
+                true);
+
+        assertThat(converter.toBinary(json, binary), equalTo(2L));
+        BinaryTraceReader reader = new BinaryTraceReader(binary);
+        assertTrue(reader.next().isTimestamped());
+        assertFalse(reader.next().isTimestamped());
+        reader.close();
+    }
+
+    public void testFailedConversionDeletesOutput() throws IOException {
+        // a gzip header with nothing after it
+        FileUtils.writeByteArrayToFile(json, new byte[] {0x1f, (byte) 0x8b,
+                8, 0, 0, 0, 0, 0, 0, 0, 42});
+        try {
+            converter.toBinary(json, binary);
+            fail("Expected an IOException");
+        } catch(IOException e) {
+        }
+        assertFalse(binary.exists());
+    }
+
+    public void testCompressedJson() throws IOException,
+            UnrecognizedMeasurementTypeException {
+        File compressed = File.createTempFile("trace", ".json.gz");
+        GZIPOutputStream output = new GZIPOutputStream(
+                new FileOutputStream(compressed));
+        IOUtils.writeLines(lines, "\n", output, "UTF-8");
+        output.close();
+
+        try {
+            assertThat(converter.toBinary(compressed, binary),
+                    equalTo((long) COUNT));
+        } finally {
+            compressed.delete();
+        }
+        converter.toJson(binary, roundTrip);
+        assertSameMeasurements(lines, FileUtils.readLines(roundTrip));
+    }
+}
@@ -0,0 +1,144 @@
+package com.openxc.sources.trace;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.remote.RawMeasurement;
+
+public class TraceIndexTest extends TestCase {
+    final static double START = 1351176963.0;
+
+    File file;
+    File saved;
+    String[] lines;
+
+    @Override
+    public void setUp() throws IOException {
+        file = File.createTempFile("trace", ".json");
+        saved = new File(file.getPath() + TraceIndex.EXTENSION);
+    }
+
+    @Override
+    public void tearDown() {
+        file.delete();
+        saved.delete();
+    }
+
+    private void writeTrace(int count) throws IOException {
+        lines = new String[count];
+        StringBuilder trace = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            lines[i] = new RawMeasurement("vehicle_speed", i, null,
+                    START + i).serialize();
+            trace.append(lines[i]).append('\n');
+        }
+        FileUtils.writeStringToFile(file, trace.toString());
+    }
+
+    private long offsetOf(int line) {
+        long offset = 0;
+        for(int i = 0; i < line; i++) {
+            offset += lines[i].length() + 1;
+        }
+        return offset;
+    }
+
+    private boolean isLineStart(long offset) {
+        for(int i = 0; i < lines.length; i++) {
+            if(offsetOf(i) == offset) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void testBuild() throws IOException {
+        writeTrace(200);
+        TraceIndex index = TraceIndex.build(file, 1000);
+        assertThat(index.size(), greaterThan(1));
+        assertThat(index.size(), lessThan(200));
+        assertThat(index.getStartTimestamp(), equalTo(START));
+    }
+
+    public void testOffsetIsLineBeforeTarget() throws IOException {
+        writeTrace(200);
+        TraceIndex index = TraceIndex.build(file, 1000);
+        long offset = index.getOffset(START + 150);
+        assertTrue(isLineStart(offset));
+        assertThat(offset, lessThanOrEqualTo(offsetOf(150)));
+        // no further back than one interval and a line
+        assertThat(offset, greaterThan(offsetOf(150) - 2000));
+    }
+
+    public void testOffsetBeforeStart() throws IOException {
+        writeTrace(200);
+        TraceIndex index = TraceIndex.build(file, 1000);
+        assertThat(index.getOffset(0), equalTo(0L));
+        assertThat(index.getOffset(START), equalTo(0L));
+    }
+
+    public void testOffsetAfterEnd() throws IOException {
+        writeTrace(200);
+        TraceIndex index = TraceIndex.build(file, 1000);
+        long offset = index.getOffset(START + 1000);
+        assertTrue(isLineStart(offset));
+        assertThat(offset, lessThan(file.length()));
+        assertThat(offset, greaterThan(file.length() - 2000));
+    }
+
+    public void testUntimestampedLinesNotIndexed() throws IOException {
+        FileUtils.writeStringToFile(file,
+                "{\"name\": \"vehicle_speed\", \"value\": 1}\n" +
+                "not json\n" +
+                new RawMeasurement("vehicle_speed", 2, null,
+                    START).serialize() + "\n");
+        TraceIndex index = TraceIndex.build(file, 1);
+        assertThat(index.size(), equalTo(1));
+        assertThat(index.getStartTimestamp(), equalTo(START));
+        assertThat(index.getOffset(START), equalTo(0L));
+    }
+
+    public void testEmptyTrace() throws IOException {
+        TraceIndex index = TraceIndex.build(file, 1000);
+        assertThat(index.size(), equalTo(0));
+        assertTrue(Double.isNaN(index.getStartTimestamp()));
+        assertThat(index.getOffset(START), equalTo(0L));
+    }
+
+    public void testLoadSavesIndex() throws IOException {
+        writeTrace(10);
+        assertFalse(saved.exists());
+        TraceIndex index = TraceIndex.load(file);
+        assertTrue(saved.exists());
+        assertThat(index.size(), equalTo(1));
+
+        long modified = saved.lastModified();
+        TraceIndex loaded = TraceIndex.load(file);
+        assertThat(loaded.size(), equalTo(1));
+        assertThat(loaded.getStartTimestamp(), equalTo(START));
+        assertThat(saved.lastModified(), equalTo(modified));
+    }
+
+    public void testChangedTraceReindexed() throws IOException {
+        writeTrace(10);
+        TraceIndex.load(file);
+        FileUtils.writeStringToFile(file, new RawMeasurement("vehicle_speed",
+                    1, null, START + 5).serialize() + "\n");
+        TraceIndex index = TraceIndex.load(file);
+        assertThat(index.getStartTimestamp(), equalTo(START + 5));
+    }
+
+    public void testCorruptSavedIndexRebuilt() throws IOException {
+        writeTrace(10);
+        FileUtils.writeStringToFile(saved, "garbage");
+        TraceIndex index = TraceIndex.load(file);
+        assertThat(index.getStartTimestamp(), equalTo(START));
+    }
+}
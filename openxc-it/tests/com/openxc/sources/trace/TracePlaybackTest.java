@@ -0,0 +1,360 @@
+package com.openxc.sources.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.openxc.TimestampMerger;
+import com.openxc.remote.RawMeasurement;
+import com.openxc.sources.DataSourceException;
+import com.openxc.sources.SourceCallback;
+
+/**
+ * Playback timing of the TraceVehicleDataSource, using trace files in the
+ * temporary directory.
+ */
+public class TracePlaybackTest extends TestCase {
+    final static double START = 1351176963.0;
+
+    File file;
+    TraceVehicleDataSource source;
+    List<Long> arrivals = new CopyOnWriteArrayList<Long>();
+    List<Object> values = new CopyOnWriteArrayList<Object>();
+    List<Double> timestamps = new CopyOnWriteArrayList<Double>();
+    SourceCallback callback = new SourceCallback() {
+        public void receive(RawMeasurement measurement) {
+            arrivals.add(System.nanoTime());
+            values.add(measurement.getValue());
+            timestamps.add(measurement.getTimestamp());
+        }
+    };
+
+    @Override
+    public void setUp() throws IOException {
+        file = File.createTempFile("trace", ".json");
+    }
+
+    @Override
+    public void tearDown() {
+        if(source != null) {
+            source.stop();
+        }
+        file.delete();
+        new File(file.getPath() + TraceIndex.EXTENSION).delete();
+    }
+
+    /**
+     * Write a trace of count measurements, with values counting up from 0,
+     * the given number of seconds apart.
+     */
+    private void writeTrace(int count, double interval) throws IOException {
+        FileUtils.writeStringToFile(file, trace(count, interval));
+    }
+
+    private void writeCompressedTrace(int count, double interval)
+            throws IOException {
+        OutputStream output = new GZIPOutputStream(
+                new FileOutputStream(file));
+        try {
+            output.write(trace(count, interval).getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+    }
+
+    private String trace(int count, double interval) {
+        StringBuilder trace = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            trace.append(new RawMeasurement("vehicle_speed", i, null,
+                        START + i * interval).serialize()).append('\n');
+        }
+        return trace.toString();
+    }
+
+    private void startPlayback() throws DataSourceException {
+        source = new TraceVehicleDataSource(callback, null, file.toURI(),
+                false);
+    }
+
+    private void waitForCount(int count, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(values.size() < count &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private long elapsedMillis(int from, int to) {
+        return (arrivals.get(to) - arrivals.get(from)) / 1000000;
+    }
+
+    public void testRealTime() throws Exception {
+        writeTrace(3, 0.2);
+        startPlayback();
+        waitForCount(3, 2000);
+        assertThat(values, hasSize(3));
+        assertThat(elapsedMillis(0, 2), greaterThanOrEqualTo(380L));
+        assertThat(elapsedMillis(0, 2), lessThan(700L));
+    }
+
+    public void testFaster() throws Exception {
+        writeTrace(11, 0.5);
+        startPlayback();
+        source.setPlaybackRate(10);
+        waitForCount(11, 3000);
+        assertThat(values, hasSize(11));
+        // 5 seconds of trace in half a second
+        assertThat(elapsedMillis(1, 10), greaterThanOrEqualTo(400L));
+        assertThat(elapsedMillis(1, 10), lessThan(1000L));
+    }
+
+    public void testSlower() throws Exception {
+        writeTrace(3, 0.1);
+        startPlayback();
+        source.setPlaybackRate(0.5);
+        waitForCount(3, 2000);
+        assertThat(elapsedMillis(1, 2), greaterThanOrEqualTo(180L));
+    }
+
+    public void testUnpaced() throws Exception {
+        // more than an hour of trace
+        writeTrace(5000, 1.0);
+        startPlayback();
+        source.setPlaybackRate(TraceVehicleDataSource.UNPACED);
+        waitForCount(5000, 5000);
+        assertThat(values, hasSize(5000));
+        assertThat(values.get(4999), equalTo((Object) 4999));
+    }
+
+    public void testTimestampsShiftedToPlaybackTime() throws Exception {
+        writeTrace(3, 0.2);
+        double started = System.currentTimeMillis() / 1000.0;
+        startPlayback();
+        waitForCount(3, 2000);
+        assertThat(timestamps, hasSize(3));
+        assertThat(timestamps.get(0), greaterThanOrEqualTo(started));
+        assertThat(timestamps.get(2),
+                lessThanOrEqualTo(System.currentTimeMillis() / 1000.0));
+        // the gaps are the trace's, however late each one was played
+        assertThat(timestamps.get(1) - timestamps.get(0), closeTo(0.2, 1e-6));
+        assertThat(timestamps.get(2) - timestamps.get(1), closeTo(0.2, 1e-6));
+    }
+
+    public void testTimestampGapsFollowRate() throws Exception {
+        writeTrace(3, 0.5);
+        startPlayback();
+        source.setPlaybackRate(10);
+        waitForCount(3, 2000);
+        assertThat(timestamps, hasSize(3));
+        assertThat(timestamps.get(2) - timestamps.get(1), closeTo(0.05, 1e-6));
+    }
+
+    public void testMergedWithLiveData() throws Exception {
+        writeTrace(20, 0.02);
+        final List<RawMeasurement> merged =
+                new CopyOnWriteArrayList<RawMeasurement>();
+        TimestampMerger merger = new TimestampMerger(new SourceCallback() {
+            public void receive(RawMeasurement measurement) {
+                merged.add(measurement);
+            }
+        });
+        SourceCallback live = merger.getLane("live");
+        source = new TraceVehicleDataSource(merger.getLane("trace"), null,
+                file.toURI(), false);
+
+        // a live source sending in between the trace's measurements
+        long end = System.currentTimeMillis() + 600;
+        while(System.currentTimeMillis() < end) {
+            live.receive(new RawMeasurement("engine_speed", 1));
+            Thread.sleep(15);
+        }
+        merger.flush();
+
+        int traced = 0;
+        for(int i = 0; i < merged.size(); i++) {
+            RawMeasurement measurement = merged.get(i);
+            assertTrue(measurement.isTimestamped());
+            if(i > 0) {
+                assertThat(measurement.getTimestamp(), greaterThanOrEqualTo(
+                            merged.get(i - 1).getTimestamp()));
+            }
+            if(measurement.getName().equals("vehicle_speed")) {
+                traced++;
+            }
+        }
+        assertThat(traced, equalTo(20));
+        assertThat(merger.getLateCount(), equalTo(0L));
+    }
+
+    public void testRateChangeDuringWait() throws Exception {
+        writeTrace(2, 100.0);
+        startPlayback();
+        waitForCount(1, 1000);
+        assertThat(values, hasSize(1));
+        // the next one is 100 seconds away in real time
+        Thread.sleep(100);
+        source.setPlaybackRate(TraceVehicleDataSource.UNPACED);
+        waitForCount(2, 1000);
+        assertThat(values, hasSize(2));
+    }
+
+    public void testStopDuringWait() throws Exception {
+        writeTrace(2, 100.0);
+        startPlayback();
+        waitForCount(1, 1000);
+        source.stop();
+        Thread.sleep(100);
+        assertThat(values, hasSize(1));
+    }
+
+    public void testInvalidRate() throws Exception {
+        writeTrace(1, 1.0);
+        startPlayback();
+        try {
+            source.setPlaybackRate(0);
+            fail("Expected an IllegalArgumentException");
+        } catch(IllegalArgumentException e) {
+        }
+        assertThat(source.getPlaybackRate(), equalTo(1.0));
+    }
+
+    public void testSeekForward() throws Exception {
+        writeTrace(100, 1.0);
+        startPlayback();
+        waitForCount(1, 1000);
+        source.seek(90, TimeUnit.SECONDS);
+        waitForCount(2, 2000);
+        assertThat(values, hasSize(2));
+        assertThat(values.get(1), equalTo((Object) 90));
+        // and plays on in real time from there
+        Thread.sleep(200);
+        assertThat(values, hasSize(2));
+    }
+
+    public void testSeekBackward() throws Exception {
+        writeTrace(100, 0.05);
+        startPlayback();
+        waitForCount(10, 2000);
+        source.seek(0, TimeUnit.SECONDS);
+        waitForCount(20, 2000);
+        assertThat(values.lastIndexOf((Object) 0), greaterThan(0));
+    }
+
+    public void testSeekBackwardInCompressedTrace() throws Exception {
+        writeCompressedTrace(100, 0.05);
+        startPlayback();
+        waitForCount(10, 2000);
+        source.seek(100, TimeUnit.MILLISECONDS);
+        waitForCount(20, 2000);
+        int replayed = values.lastIndexOf((Object) 2);
+        assertThat(replayed, greaterThan(2));
+        assertThat(values.get(replayed + 1), equalTo((Object) 3));
+    }
+
+    public void testPlaybackWindow() throws Exception {
+        writeTrace(10, 100.0);
+        startPlayback();
+        waitForCount(1, 1000);
+        source.setPlaybackWindow(300, 500, TimeUnit.SECONDS);
+        waitForCount(2, 1000);
+        source.setPlaybackRate(TraceVehicleDataSource.UNPACED);
+        waitForCount(5, 1000);
+        Thread.sleep(100);
+        assertThat(values, contains((Object) 0, 3, 4, 5));
+    }
+
+    public void testInvalidPlaybackWindow() throws Exception {
+        writeTrace(1, 1.0);
+        startPlayback();
+        try {
+            source.setPlaybackWindow(5, 5, TimeUnit.SECONDS);
+            fail("Expected an IllegalArgumentException");
+        } catch(IllegalArgumentException e) {
+        }
+    }
+
+    public void testPauseAndResume() throws Exception {
+        writeTrace(3, 0.2);
+        startPlayback();
+        waitForCount(1, 1000);
+        source.pause();
+        assertTrue(source.isPaused());
+        Thread.sleep(500);
+        assertThat(values, hasSize(1));
+
+        source.resume();
+        waitForCount(3, 2000);
+        assertThat(values, hasSize(3));
+        assertThat(elapsedMillis(0, 1), greaterThanOrEqualTo(500L));
+        // the pause doesn't make playback catch up afterwards
+        assertThat(elapsedMillis(1, 2), greaterThanOrEqualTo(180L));
+    }
+
+    public void testSeekWhilePaused() throws Exception {
+        writeTrace(100, 1.0);
+        startPlayback();
+        waitForCount(1, 1000);
+        source.pause();
+        source.seek(50, TimeUnit.SECONDS);
+        Thread.sleep(200);
+        assertThat(values, hasSize(1));
+
+        source.resume();
+        waitForCount(2, 1000);
+        assertThat(values.get(1), equalTo((Object) 50));
+    }
+
+    public void testLoopsFromCache() throws Exception {
+        writeTrace(5, 0.01);
+        source = new TraceVehicleDataSource(callback, null, file.toURI(),
+                true);
+        source.setCacheBudget(1024 * 1024);
+        source.setPlaybackRate(TraceVehicleDataSource.UNPACED);
+        // the first loop may have started from the file before the budget
+        // was set
+        waitForCount(10, 3000);
+        assertThat(values, hasSize(greaterThanOrEqualTo(10)));
+
+        // no longer needed, and no pause between loops
+        file.delete();
+        int played = values.size();
+        waitForCount(played + 50, 500);
+        assertThat(values, hasSize(greaterThanOrEqualTo(played + 50)));
+        assertThat(values.get(played + 5), equalTo(values.get(played)));
+    }
+
+    public void testTraceLargerThanCache() throws Exception {
+        writeTrace(50, 0.001);
+        source = new TraceVehicleDataSource(callback, null, file.toURI(),
+                true);
+        source.setCacheBudget(100);
+        source.setPlaybackRate(TraceVehicleDataSource.UNPACED);
+        waitForCount(100, 3000);
+        assertThat(values, hasSize(greaterThanOrEqualTo(100)));
+        assertThat(values.get(50), equalTo((Object) 0));
+    }
+
+    public void testInvalidCacheBudget() throws Exception {
+        writeTrace(1, 1.0);
+        startPlayback();
+        try {
+            source.setCacheBudget(-1);
+            fail("Expected an IllegalArgumentException");
+        } catch(IllegalArgumentException e) {
+        }
+        assertThat(source.getCacheBudget(), equalTo(0L));
+    }
+}
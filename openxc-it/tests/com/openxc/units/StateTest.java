@@ -2,7 +2,7 @@ package com.openxc.units;
 
 import junit.framework.TestCase;
 import static org.hamcrest.MatcherAssert.assertThat;
-import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.*;
 
 public class StateTest extends TestCase {
     State<TestState> state;
@@ -21,4 +21,36 @@ public class StateTest extends TestCase {
     public void testSeralizedValue() {
         assertThat(state.getSerializedValue(), equalTo("peanut_butter"));
     }
+
+    public void testOfIsShared() {
+        assertThat(State.of(TestState.ON),
+                sameInstance(State.of(TestState.ON)));
+        assertThat(State.of(TestState.ON),
+                not(sameInstance(State.of(TestState.OFF))));
+    }
+
+    public void testEqualToConstructed() {
+        assertThat(State.of(TestState.PEANUT_BUTTER), equalTo(state));
+    }
+
+    public void testFromSerializedValue() {
+        assertThat(State.fromSerializedValue(TestState.class, "peanut_butter"),
+                sameInstance(State.of(TestState.PEANUT_BUTTER)));
+        assertThat(State.fromSerializedValue(TestState.class, "OFF")
+                .enumValue(), equalTo(TestState.OFF));
+    }
+
+    public void testFromUnknownSerializedValue() {
+        try {
+            State.fromSerializedValue(TestState.class, "jelly");
+        } catch(IllegalArgumentException e) {
+            return;
+        }
+        fail("Expected an IllegalArgumentException");
+    }
+
+    public void testSerializedValueIsCached() {
+        assertThat(state.getSerializedValue(),
+                sameInstance(state.getSerializedValue()));
+    }
 }
@@ -0,0 +1,132 @@
+package com.openxc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class BoundedMpscQueueTest extends TestCase {
+    BoundedMpscQueue<Integer> queue;
+
+    @Override
+    public void setUp() {
+        queue = new BoundedMpscQueue<Integer>(4);
+    }
+
+    public void testCapacityRoundedUp() {
+        assertThat(new BoundedMpscQueue<Integer>(5).capacity(), equalTo(8));
+        assertThat(new BoundedMpscQueue<Integer>(1).capacity(), equalTo(1));
+        assertThat(queue.capacity(), equalTo(4));
+    }
+
+    public void testInvalidCapacity() {
+        try {
+            new BoundedMpscQueue<Integer>(0);
+            fail("Expected an IllegalArgumentException");
+        } catch(IllegalArgumentException e) {
+        }
+    }
+
+    public void testEmpty() {
+        assertTrue(queue.isEmpty());
+        assertThat(queue.size(), equalTo(0));
+        assertThat(queue.poll(), nullValue());
+    }
+
+    public void testFifo() {
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(3);
+        assertThat(queue.size(), equalTo(3));
+        assertThat(queue.poll(), equalTo(1));
+        assertThat(queue.poll(), equalTo(2));
+        assertThat(queue.poll(), equalTo(3));
+        assertThat(queue.poll(), nullValue());
+    }
+
+    public void testOfferWhenFull() {
+        for(int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertThat(queue.poll(), equalTo(0));
+        assertTrue(queue.offer(4));
+        assertThat(queue.size(), equalTo(4));
+    }
+
+    public void testWrapsAround() {
+        for(int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(i));
+            assertThat(queue.poll(), equalTo(i));
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    public void testNullRejected() {
+        try {
+            queue.offer(null);
+            fail("Expected a NullPointerException");
+        } catch(NullPointerException e) {
+        }
+    }
+
+    public void testDrainTo() {
+        for(int i = 0; i < 4; i++) {
+            queue.offer(i);
+        }
+        List<Integer> batch = new ArrayList<Integer>();
+        assertThat(queue.drainTo(batch, 3), equalTo(3));
+        assertThat(batch, contains(0, 1, 2));
+        assertThat(queue.drainTo(batch, 3), equalTo(1));
+        assertThat(batch, contains(0, 1, 2, 3));
+        assertThat(queue.drainTo(batch, 3), equalTo(0));
+    }
+
+    public void testConcurrentProducers() throws InterruptedException {
+        final BoundedMpscQueue<Integer> sharedQueue =
+                new BoundedMpscQueue<Integer>(64);
+        final int producers = 4;
+        final int perProducer = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for(int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    for(int i = 0; i < perProducer; i++) {
+                        Integer value = producer * perProducer + i;
+                        while(!sharedQueue.offer(value)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+
+        // Nothing is lost, and each producer's values arrive in order
+        int[] next = new int[producers];
+        int received = 0;
+        while(received < producers * perProducer) {
+            Integer value = sharedQueue.poll();
+            if(value == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = value / perProducer;
+            assertThat(value % perProducer, equalTo(next[producer]));
+            next[producer]++;
+            received++;
+        }
+        assertTrue(sharedQueue.isEmpty());
+    }
+}
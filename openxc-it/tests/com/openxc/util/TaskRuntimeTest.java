@@ -0,0 +1,187 @@
+package com.openxc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.openxc.remote.RawMeasurement;
+import com.openxc.sinks.AbstractQueuedCallbackSink;
+import com.openxc.sinks.DataSinkException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TaskRuntimeTest extends TestCase {
+    public void testDefaultIsShared() {
+        assertThat(TaskRuntime.getDefault(),
+                sameInstance(TaskRuntime.getDefault()));
+    }
+
+    public void testComputeThreadsAreBounded() throws InterruptedException {
+        TaskRuntime runtime = new TaskRuntime(2);
+        final ConcurrentHashMap<String, Boolean> threads =
+                new ConcurrentHashMap<String, Boolean>();
+        final CountDownLatch latch = new CountDownLatch(50);
+        for(int i = 0; i < 50; i++) {
+            runtime.getComputeExecutor().execute(new Runnable() {
+                public void run() {
+                    threads.put(Thread.currentThread().getName(), true);
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertThat(threads.size(), lessThanOrEqualTo(2));
+        for(String name : threads.keySet()) {
+            assertThat(name, startsWith("openxc-compute-"));
+        }
+    }
+
+    public void testIoTasksCanBlockTogether() throws InterruptedException {
+        TaskRuntime runtime = new TaskRuntime(1);
+        final CountDownLatch started = new CountDownLatch(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        for(int i = 0; i < 4; i++) {
+            runtime.getIoExecutor().execute(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                    }
+                }
+            });
+        }
+        // all four are blocked at once, so none is waiting for a thread
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    public void testBlockedListenerDoesNotHoldComputeThreads()
+            throws InterruptedException {
+        TaskRuntime runtime = new TaskRuntime(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final String[] threadName = new String[1];
+        runtime.getListenerExecutor().execute(new Runnable() {
+            public void run() {
+                threadName[0] = Thread.currentThread().getName();
+                started.countDown();
+                try {
+                    release.await();
+                } catch(InterruptedException e) {
+                }
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        final CountDownLatch computed = new CountDownLatch(1);
+        runtime.getComputeExecutor().execute(new Runnable() {
+            public void run() {
+                computed.countDown();
+            }
+        });
+        assertTrue(computed.await(1, TimeUnit.SECONDS));
+        release.countDown();
+        assertThat(threadName[0], startsWith("openxc-listener-"));
+    }
+
+    public void testListenerThreadsAreBounded() throws InterruptedException {
+        TaskRuntime runtime = new TaskRuntime(1, 2);
+        final ConcurrentHashMap<String, Boolean> threads =
+                new ConcurrentHashMap<String, Boolean>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(20);
+        for(int i = 0; i < 20; i++) {
+            runtime.getListenerExecutor().execute(new Runnable() {
+                public void run() {
+                    threads.put(Thread.currentThread().getName(), true);
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                    }
+                    finished.countDown();
+                }
+            });
+        }
+        // the blocked tasks wait for a thread instead of adding one each
+        Thread.sleep(50);
+        assertThat(threads.size(), equalTo(2));
+        release.countDown();
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        assertThat(threads.size(), equalTo(2));
+    }
+
+    public void testBusySinksShareListenerThreads()
+            throws InterruptedException, DataSinkException {
+        int threadLimit = TaskRuntime.getDefault().getListenerThreadCount();
+        final ConcurrentHashMap<String, Boolean> threads =
+                new ConcurrentHashMap<String, Boolean>();
+        List<BusySink> sinks = new ArrayList<BusySink>();
+        for(int i = 0; i < threadLimit * 4; i++) {
+            sinks.add(new BusySink(threads));
+        }
+
+        // keep every sink's queue full, so none of them ever runs out of work
+        long end = System.currentTimeMillis() + 500;
+        int value = 0;
+        while(System.currentTimeMillis() < end) {
+            for(BusySink sink : sinks) {
+                sink.receive(new RawMeasurement("engine_speed", value));
+            }
+            value++;
+        }
+
+        try {
+            assertThat(threads.size(), lessThanOrEqualTo(threadLimit));
+            // busy sinks give up their threads, so none of them is starved
+            for(BusySink sink : sinks) {
+                assertThat(sink.mPropagated.get(), greaterThan(0));
+            }
+        } finally {
+            for(BusySink sink : sinks) {
+                sink.stop();
+            }
+        }
+    }
+
+    public void testTimerRunsOnIoExecutor()
+            throws InterruptedException {
+        TaskRuntime runtime = new TaskRuntime(1);
+        final String[] threadName = new String[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        runtime.getTimer().schedule(new Runnable() {
+            public void run() {
+                threadName[0] = Thread.currentThread().getName();
+                latch.countDown();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertThat(threadName[0], startsWith("openxc-io-"));
+    }
+
+    private static class BusySink extends AbstractQueuedCallbackSink {
+        private final ConcurrentHashMap<String, Boolean> mThreads;
+        AtomicInteger mPropagated = new AtomicInteger();
+
+        public BusySink(ConcurrentHashMap<String, Boolean> threads) {
+            super(DeliveryMode.COALESCING);
+            mThreads = threads;
+        }
+
+        @Override
+        protected void propagateMeasurement(String measurementId,
+                RawMeasurement measurement) {
+            mThreads.put(Thread.currentThread().getName(), true);
+            mPropagated.incrementAndGet();
+            try {
+                Thread.sleep(1);
+            } catch(InterruptedException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.openxc.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TimerWheelTest extends TestCase {
+    TimerWheel timer;
+    List<Integer> ran = new CopyOnWriteArrayList<Integer>();
+
+    Executor direct = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Override
+    public void setUp() {
+        // a small wheel, so longer delays need more than one turn
+        timer = new TimerWheel("test-timer", 5, TimeUnit.MILLISECONDS, 8,
+                direct);
+    }
+
+    @Override
+    public void tearDown() {
+        timer.stop();
+    }
+
+    private Runnable record(final int id, final CountDownLatch latch) {
+        return new Runnable() {
+            public void run() {
+                ran.add(id);
+                if(latch != null) {
+                    latch.countDown();
+                }
+            }
+        };
+    }
+
+    public void testRunsAfterDelay() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(record(1, latch), 30, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - start);
+        assertThat(elapsed, greaterThanOrEqualTo(30L));
+        assertThat(timer.getPendingCount(), equalTo(0));
+    }
+
+    public void testDelayLongerThanOneTurn() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        // 8 ticks of 5ms is one turn
+        timer.schedule(record(1, latch), 100, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                greaterThanOrEqualTo(100L));
+    }
+
+    public void testZeroDelay() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        timer.schedule(record(1, latch), 0, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    public void testRunsInDeadlineOrder() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(3);
+        timer.schedule(record(3, latch), 60, TimeUnit.MILLISECONDS);
+        timer.schedule(record(1, latch), 10, TimeUnit.MILLISECONDS);
+        timer.schedule(record(2, latch), 30, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertThat(ran, contains(1, 2, 3));
+    }
+
+    public void testCancel() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        TimerWheel.Timeout cancelled = timer.schedule(record(1, null), 10,
+                TimeUnit.MILLISECONDS);
+        timer.schedule(record(2, latch), 40, TimeUnit.MILLISECONDS);
+        cancelled.cancel();
+        assertTrue(cancelled.isCancelled());
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertThat(ran, contains(2));
+    }
+
+    public void testIdleThenScheduleAgain() throws InterruptedException {
+        CountDownLatch first = new CountDownLatch(1);
+        timer.schedule(record(1, first), 5, TimeUnit.MILLISECONDS);
+        assertTrue(first.await(1, TimeUnit.SECONDS));
+        // let the timer thread park with nothing pending
+        Thread.sleep(50);
+
+        CountDownLatch second = new CountDownLatch(1);
+        timer.schedule(record(2, second), 5, TimeUnit.MILLISECONDS);
+        assertTrue(second.await(1, TimeUnit.SECONDS));
+        assertThat(ran, contains(1, 2));
+    }
+}
@@ -6,9 +6,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Objects;
 import com.openxc.remote.RawMeasurement;
+import com.openxc.sinks.AbstractQueuedCallbackSink;
 import com.openxc.sinks.DataSinkException;
 import com.openxc.sinks.VehicleDataSink;
 import com.openxc.sources.SourceCallback;
@@ -22,6 +25,22 @@ import com.openxc.sources.VehicleDataSource;
  * {@link #receive(RawMeasurement)} method on the this class when new
  * values arrive. The DataPipeline then passes this value on to all currently
  * registered data sinks.
+ *
+ * Each measurement's arrival is marked as it's received. If a
+ * {@link LoadShedder} is set, it decides which measurements the sinks added
+ * as non-essential get while the pipeline is behind - essential sinks always
+ * get every measurement. The latest value of every measurement is kept for
+ * {@link #get(String)}.
+ *
+ * When more than one source is running, their measurements are interleaved in
+ * the order they arrive. With {@link #enableReordering(long, TimeUnit,
+ * TimestampMerger.LatePolicy)} each source instead sends to its own lane of a
+ * {@link TimestampMerger}, which passes them on in timestamp order.
+ *
+ * A source can also be the standby for another source carrying the same data
+ * (see {@link #setStandbySource(VehicleDataSource, VehicleDataSource)}), in
+ * which case copies of the same measurement from the two are dropped before
+ * they reach the sinks.
  */
 public class DataPipeline implements SourceCallback {
     private int mMessagesReceived = 0;
@@ -29,8 +48,14 @@ public class DataPipeline implements SourceCallback {
             new ConcurrentHashMap<String, RawMeasurement>();
     private CopyOnWriteArrayList<VehicleDataSink> mSinks =
             new CopyOnWriteArrayList<VehicleDataSink>();
+    private CopyOnWriteArraySet<VehicleDataSink> mNonEssentialSinks =
+            new CopyOnWriteArraySet<VehicleDataSink>();
     private CopyOnWriteArrayList<VehicleDataSource> mSources =
             new CopyOnWriteArrayList<VehicleDataSource>();
+    private volatile LoadShedder mLoadShedder;
+    private TimestampMerger mMerger;
+    private CopyOnWriteArrayList<SourceFailover> mFailovers =
+            new CopyOnWriteArrayList<SourceFailover>();
 
     /**
      * Accept new values from data sources and send it out to all registered
@@ -45,10 +70,32 @@ public class DataPipeline implements SourceCallback {
         if(measurement == null) {
             return;
         }
+
+        measurement.markArrival();
         mMeasurements.put(measurement.getName(), measurement);
+        mMessagesReceived++;
+
+        LoadShedder shedder = mLoadShedder;
+        boolean suspending = false;
+        boolean shed = false;
+        if(shedder != null) {
+            shedder.recordLag(measurement);
+            if(!mNonEssentialSinks.isEmpty()) {
+                suspending = shedder.isSuspendingNonEssential();
+                shed = suspending || !shedder.shouldDispatch(measurement);
+            }
+        }
+
         List<VehicleDataSink> deadSinks = new ArrayList<VehicleDataSink>();
         for(Iterator<VehicleDataSink> i = mSinks.iterator(); i.hasNext();) {
             VehicleDataSink sink = i.next();
+            if(shed && mNonEssentialSinks.contains(sink)) {
+                if(suspending) {
+                    shedder.recordSuspended();
+                }
+                continue;
+            }
+
             try {
                 sink.receive(measurement);
             } catch(DataSinkException e) {
@@ -60,7 +107,6 @@ public class DataPipeline implements SourceCallback {
                 deadSinks.add(sink);
             }
         }
-        mMessagesReceived++;
         for(VehicleDataSink sink : deadSinks) {
             removeSink(sink);
         }
@@ -70,6 +116,23 @@ public class DataPipeline implements SourceCallback {
      * Add a new sink to the pipeline.
      */
     public VehicleDataSink addSink(VehicleDataSink sink) {
+        return addSink(sink, true);
+    }
+
+    /**
+     * Add a new sink to the pipeline.
+     *
+     * @param essential if false, the pipeline's {@link LoadShedder} may
+     *      decimate, drop or suspend the measurements sent to the sink while
+     *      the pipeline is behind.
+     */
+    public VehicleDataSink addSink(VehicleDataSink sink, boolean essential) {
+        if(!essential) {
+            mNonEssentialSinks.add(sink);
+        }
+        if(sink instanceof AbstractQueuedCallbackSink) {
+            ((AbstractQueuedCallbackSink) sink).setLoadShedder(mLoadShedder);
+        }
         mSinks.add(sink);
         return sink;
     }
@@ -86,6 +149,7 @@ public class DataPipeline implements SourceCallback {
     public void removeSink(VehicleDataSink sink) {
         if(sink != null) {
             mSinks.remove(sink);
+            mNonEssentialSinks.remove(sink);
             sink.stop();
         }
     }
@@ -96,7 +160,7 @@ public class DataPipeline implements SourceCallback {
      * The source is given a reference to this DataPipeline as its callback.
      */
     public VehicleDataSource addSource(VehicleDataSource source) {
-        source.setCallback(this);
+        source.setCallback(getCallback(source));
         mSources.add(source);
         return source;
     }
@@ -113,9 +177,100 @@ public class DataPipeline implements SourceCallback {
         if(source != null) {
             mSources.remove(source);
             source.stop();
+            TimestampMerger merger = mMerger;
+            if(merger != null) {
+                merger.removeLane(source);
+            }
+        }
+    }
+
+    /**
+     * Merge the measurements from all sources into timestamp order before
+     * they're sent to the sinks.
+     *
+     * This adds up to maxDelay of latency to each measurement, so it's only
+     * worth it when more than one source is running at a time.
+     *
+     * @param maxDelay the longest a measurement is held waiting for older
+     *      measurements from other sources.
+     * @param unit the unit of maxDelay.
+     * @param latePolicy what to do with measurements that arrive after newer
+     *      ones were already sent on.
+     */
+    public synchronized void enableReordering(long maxDelay, TimeUnit unit,
+            TimestampMerger.LatePolicy latePolicy) {
+        disableReordering();
+        mMerger = new TimestampMerger(this, maxDelay, unit, latePolicy);
+        connectSources();
+    }
+
+    /**
+     * Stop merging measurements into timestamp order. Anything still waiting
+     * to be merged is sent on right away.
+     */
+    public synchronized void disableReordering() {
+        TimestampMerger merger = mMerger;
+        if(merger != null) {
+            mMerger = null;
+            connectSources();
+            merger.flush();
+        }
+    }
+
+    /**
+     * Make a source the standby for another, e.g. a Bluetooth connection to
+     * the same vehicle interface as a USB connection. The standby's
+     * measurements are dropped until the primary stalls - see
+     * {@link SourceFailover}. Either source can be added to the pipeline
+     * before or after this is called.
+     *
+     * If the standby already has this primary, the existing failover is kept
+     * along with what it knows about the primary's health.
+     */
+    public synchronized SourceFailover setStandbySource(
+            VehicleDataSource standby, VehicleDataSource primary) {
+        for(SourceFailover failover : mFailovers) {
+            if(failover.getStandby() == standby &&
+                    failover.getPrimary() == primary) {
+                return failover;
+            }
+        }
+
+        clearStandbySource(standby);
+        SourceFailover failover = new SourceFailover(primary, standby);
+        mFailovers.add(failover);
+        connectSources();
+        return failover;
+    }
+
+    /**
+     * Stop treating a source as a standby, so all of its measurements are
+     * passed on.
+     */
+    public synchronized void clearStandbySource(VehicleDataSource standby) {
+        boolean removed = false;
+        for(SourceFailover failover : mFailovers) {
+            if(failover.getStandby() == standby) {
+                removed |= mFailovers.remove(failover);
+            }
+        }
+        if(removed) {
+            connectSources();
         }
     }
 
+    public List<SourceFailover> getFailovers() {
+        return mFailovers;
+    }
+
+    /**
+     * @return the merger used to put measurements in timestamp order, or null
+     *      if reordering isn't enabled.
+     */
+    public TimestampMerger getMerger() {
+        return mMerger;
+    }
+
     public List<VehicleDataSource> getSources() {
         return mSources;
     }
@@ -125,11 +280,44 @@ public class DataPipeline implements SourceCallback {
     }
 
     /**
-     * Clear all sources and sinks from the pipeline and stop all of them.
+     * Set the load shedder that decides what to drop when the pipeline falls
+     * behind, and start it. The previous shedder, if any, is stopped.
+     *
+     * @param shedder if null, nothing is shed.
+     */
+    public void setLoadShedder(LoadShedder shedder) {
+        LoadShedder previous = mLoadShedder;
+        mLoadShedder = shedder;
+        if(previous != null) {
+            previous.stop();
+        }
+
+        for(VehicleDataSink sink : mSinks) {
+            if(sink instanceof AbstractQueuedCallbackSink) {
+                ((AbstractQueuedCallbackSink) sink).setLoadShedder(shedder);
+            }
+        }
+
+        if(shedder != null) {
+            shedder.start();
+        }
+    }
+
+    public LoadShedder getLoadShedder() {
+        return mLoadShedder;
+    }
+
+    /**
+     * Clear all sources and sinks from the pipeline and stop all of them, and
+     * the load shedder.
      */
     public void stop() {
         clearSources();
+        disableReordering();
         clearSinks();
+        if(mLoadShedder != null) {
+            mLoadShedder.stop();
+        }
     }
 
     /**
@@ -150,6 +338,7 @@ public class DataPipeline implements SourceCallback {
             (i.next()).stop();
         }
         mSinks.clear();
+        mNonEssentialSinks.clear();
     }
 
     /**
@@ -175,6 +364,32 @@ public class DataPipeline implements SourceCallback {
             .add("sources", mSources)
             .add("sinks", mSinks)
             .add("numMeasurementTypes", mMeasurements.size())
+            .add("loadShedder", mLoadShedder)
+            .add("merger", mMerger)
+            .add("failovers", mFailovers)
             .toString();
     }
+
+    private SourceCallback getCallback(VehicleDataSource source) {
+        SourceCallback callback = this;
+        TimestampMerger merger = mMerger;
+        if(merger != null) {
+            callback = merger.getLane(source);
+        }
+
+        for(SourceFailover failover : mFailovers) {
+            if(failover.getStandby() == source) {
+                callback = failover.wrapStandby(callback);
+            } else if(failover.getPrimary() == source) {
+                callback = failover.wrapPrimary(callback);
+            }
+        }
+        return callback;
+    }
+
+    private void connectSources() {
+        for(VehicleDataSource source : mSources) {
+            source.setCallback(getCallback(source));
+        }
+    }
 }
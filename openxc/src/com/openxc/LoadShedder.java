@@ -0,0 +1,369 @@
+package com.openxc;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Objects;
+import com.openxc.measurements.MeasurementCatalog;
+import com.openxc.remote.RawMeasurement;
+import com.openxc.remote.SignalPriorities;
+import com.openxc.util.TaskRuntime;
+import com.openxc.util.TimerWheel;
+
+/**
+ * Degrade a {@link DataPipeline} gracefully when it can't keep up with its
+ * sources.
+ *
+ * The pipeline and its queued sinks report the lag of each measurement they
+ * handle - the time between when it arrived in this process (see
+ * {@link RawMeasurement#markArrival()}) and when it was dispatched. That's
+ * only the time spent queued here, so a source's clock or a slow transport
+ * from the vehicle doesn't trigger shedding.
+ * Every evaluation interval the worst lag seen is compared against the
+ * threshold of each {@link Tier}. The shedder moves up one tier at a time while
+ * the lag is above the next tier's threshold, and back down one tier at a time
+ * once the lag has stayed below half of the current tier's threshold for a few
+ * intervals.
+ *
+ * Shedding only applies to the sinks added to the pipeline as non-essential -
+ * essential sinks always get every measurement. A tier can be turned off by
+ * giving it a threshold of Long.MAX_VALUE, e.g. the VehicleService never
+ * suspends its clients.
+ *
+ * Every tier change is kept in a short history that is included in
+ * {@link #toString()}, along with counts of what was shed.
+ */
+public class LoadShedder {
+    public final static long DEFAULT_DECIMATE_LAG_MS = 250;
+    public final static long DEFAULT_DROP_LAG_MS = 1000;
+    public final static long DEFAULT_SUSPEND_LAG_MS = 2000;
+    public final static int DECIMATION_FACTOR = 4;
+    private final static long EVALUATION_INTERVAL_MS = 500;
+    private final static int RECOVERY_INTERVALS = 4;
+    private final static int HISTORY_SIZE = 8;
+
+    /**
+     * The degradation tiers, from none to the most severe. Each tier also
+     * applies the shedding of the tiers before it.
+     */
+    public enum Tier {
+        NONE,
+
+        /**
+         * Only every {@link LoadShedder#DECIMATION_FACTOR}th value of each
+         * normal priority numeric signal is dispatched to non-essential
+         * sinks.
+         */
+        DECIMATE,
+
+        /**
+         * Signals that nobody has subscribed to are dropped before they reach
+         * any non-essential sinks.
+         */
+        DROP_UNSUBSCRIBED,
+
+        /**
+         * Sinks added as non-essential stop receiving measurements.
+         */
+        SUSPEND_NONESSENTIAL
+    }
+
+    private final long[] mThresholds;
+    private volatile Tier mTier = Tier.NONE;
+    private AtomicLong mWindowMaxLag = new AtomicLong();
+    private volatile long mLastLag;
+    private int mIntervalsBelowRecovery;
+
+    private ConcurrentHashMap<String, AtomicInteger> mDecimationCounters =
+            new ConcurrentHashMap<String, AtomicInteger>();
+    private ConcurrentHashMap<String, AtomicInteger> mSubscriptions =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    private AtomicLong mDecimatedCount = new AtomicLong();
+    private AtomicLong mDroppedCount = new AtomicLong();
+    private AtomicLong mSuspendedCount = new AtomicLong();
+    private final List<String> mHistory = new LinkedList<String>();
+
+    private TimerWheel.Timeout mEvaluation;
+    private boolean mRunning;
+
+    public LoadShedder() {
+        this(DEFAULT_DECIMATE_LAG_MS, DEFAULT_DROP_LAG_MS,
+                DEFAULT_SUSPEND_LAG_MS);
+    }
+
+    /**
+     * @param decimateLagMs the lag that moves the shedder to
+     *      {@link Tier#DECIMATE}.
+     * @param dropLagMs the lag that moves the shedder to
+     *      {@link Tier#DROP_UNSUBSCRIBED}.
+     * @param suspendLagMs the lag that moves the shedder to
+     *      {@link Tier#SUSPEND_NONESSENTIAL}.
+     */
+    public LoadShedder(long decimateLagMs, long dropLagMs, long suspendLagMs) {
+        mThresholds = new long[] {0, decimateLagMs, dropLagMs, suspendLagMs};
+    }
+
+    /**
+     * Start evaluating the lag periodically on the shared timer.
+     */
+    public synchronized void start() {
+        if(!mRunning) {
+            mRunning = true;
+            scheduleEvaluation();
+        }
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        if(mEvaluation != null) {
+            mEvaluation.cancel();
+            mEvaluation = null;
+        }
+    }
+
+    public Tier getTier() {
+        return mTier;
+    }
+
+    /**
+     * @return the worst lag seen in the last evaluation interval, in
+     *      milliseconds.
+     */
+    public long getLag() {
+        return mLastLag;
+    }
+
+    /**
+     * Record the lag of a measurement being dispatched.
+     *
+     * Measurements whose arrival wasn't marked are ignored.
+     */
+    public void recordLag(RawMeasurement measurement) {
+        long arrival = measurement.getArrivalNanos();
+        if(arrival != 0) {
+            recordLag(TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - arrival));
+        }
+    }
+
+    void recordLag(long lag) {
+        if(lag <= 0) {
+            return;
+        }
+
+        long max;
+        while(lag > (max = mWindowMaxLag.get())) {
+            if(mWindowMaxLag.compareAndSet(max, lag)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Mark a signal as wanted by an application, so it isn't dropped in
+     * {@link Tier#DROP_UNSUBSCRIBED}. Subscriptions are counted, so each call
+     * should be matched by a call to {@link #unsubscribe(String)}.
+     *
+     * @return true if this is the only subscription to the signal.
+     */
+    public boolean subscribe(String name) {
+        while(true) {
+            AtomicInteger count = mSubscriptions.get(name);
+            if(count == null) {
+                if(mSubscriptions.putIfAbsent(name,
+                            new AtomicInteger(1)) == null) {
+                    return true;
+                }
+            } else {
+                int current = count.get();
+                // A count that reached zero is never used again - it's being
+                // removed, and a new one takes its place
+                if(current == 0) {
+                    mSubscriptions.remove(name, count);
+                } else if(count.compareAndSet(current, current + 1)) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if that was the last subscription to the signal.
+     */
+    public boolean unsubscribe(String name) {
+        AtomicInteger count = mSubscriptions.get(name);
+        if(count == null) {
+            return false;
+        }
+
+        while(true) {
+            int current = count.get();
+            if(current == 0) {
+                return false;
+            } else if(count.compareAndSet(current, current - 1)) {
+                if(current == 1) {
+                    mSubscriptions.remove(name, count);
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return the signals that have at least one subscription.
+     */
+    public Set<String> getSubscriptions() {
+        return new HashSet<String>(mSubscriptions.keySet());
+    }
+
+    /**
+     * A signal is subscribed if it's high priority, or an application has
+     * subscribed to it. If there are no subscriptions at all, e.g. in a
+     * VehicleService none of whose clients have added a listener, every
+     * signal in the {@link MeasurementCatalog} is treated as subscribed.
+     */
+    public boolean isSubscribed(String name) {
+        if(SignalPriorities.isHighPriority(name)) {
+            return true;
+        } else if(mSubscriptions.isEmpty()) {
+            return MeasurementCatalog.get(name) != null;
+        }
+        return mSubscriptions.containsKey(name);
+    }
+
+    /**
+     * @return true if the measurement should be dispatched to non-essential
+     *      sinks at the current tier.
+     */
+    public boolean shouldDispatch(RawMeasurement measurement) {
+        Tier tier = mTier;
+        if(tier == Tier.NONE) {
+            return true;
+        }
+
+        String name = measurement.getName();
+        if(tier.compareTo(Tier.DROP_UNSUBSCRIBED) >= 0 &&
+                !isSubscribed(name)) {
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+
+        if(measurement.getValue() instanceof Number &&
+                !SignalPriorities.isHighPriority(name)) {
+            if(counter(mDecimationCounters, name).getAndIncrement()
+                    % DECIMATION_FACTOR != 0) {
+                mDecimatedCount.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if non-essential sinks should be skipped at the current
+     *      tier. Call {@link #recordSuspended()} for each measurement a sink
+     *      misses.
+     */
+    public boolean isSuspendingNonEssential() {
+        return mTier == Tier.SUSPEND_NONESSENTIAL;
+    }
+
+    public void recordSuspended() {
+        mSuspendedCount.incrementAndGet();
+    }
+
+    public long getDecimatedCount() {
+        return mDecimatedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getSuspendedCount() {
+        return mSuspendedCount.get();
+    }
+
+    /**
+     * @return the most recent tier changes, oldest first.
+     */
+    public synchronized List<String> getHistory() {
+        return new LinkedList<String>(mHistory);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this)
+            .add("tier", mTier)
+            .add("lagMs", mLastLag)
+            .add("decimated", getDecimatedCount())
+            .add("dropped", getDroppedCount())
+            .add("suspended", getSuspendedCount())
+            .add("history", mHistory)
+            .toString();
+    }
+
+    /**
+     * Compare the worst lag since the last evaluation with the thresholds and
+     * change tier if needed.
+     */
+    synchronized void evaluate() {
+        long lag = mWindowMaxLag.getAndSet(0);
+        mLastLag = lag;
+
+        int current = mTier.ordinal();
+        if(current + 1 < mThresholds.length &&
+                lag >= mThresholds[current + 1]) {
+            mIntervalsBelowRecovery = 0;
+            changeTier(Tier.values()[current + 1], lag);
+        } else if(current > 0 && lag < mThresholds[current] / 2) {
+            if(++mIntervalsBelowRecovery >= RECOVERY_INTERVALS) {
+                mIntervalsBelowRecovery = 0;
+                changeTier(Tier.values()[current - 1], lag);
+            }
+        } else {
+            mIntervalsBelowRecovery = 0;
+        }
+    }
+
+    private void changeTier(Tier tier, long lag) {
+        mHistory.add(mTier + "->" + tier + " at " + lag + "ms lag");
+        if(mHistory.size() > HISTORY_SIZE) {
+            mHistory.remove(0);
+        }
+        mTier = tier;
+    }
+
+    private static AtomicInteger counter(
+            ConcurrentHashMap<String, AtomicInteger> counters, String name) {
+        AtomicInteger counter = counters.get(name);
+        if(counter == null) {
+            counters.putIfAbsent(name, new AtomicInteger());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    private void scheduleEvaluation() {
+        mEvaluation = TaskRuntime.getDefault().getTimer().schedule(
+                new Runnable() {
+                    public void run() {
+                        synchronized(LoadShedder.this) {
+                            if(!mRunning) {
+                                return;
+                            }
+                            evaluate();
+                            scheduleEvaluation();
+                        }
+                    }
+                }, EVALUATION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+}
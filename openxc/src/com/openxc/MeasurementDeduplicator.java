@@ -0,0 +1,126 @@
+package com.openxc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * Recognize measurements that one source already sent, e.g. the same message
+ * read from a vehicle interface over both USB and Bluetooth.
+ *
+ * The measurements sent by one source are remembered, and a measurement from
+ * the other is a duplicate if one with the same name, value and event was
+ * remembered with a timestamp within the tolerance of its own. Timestamps
+ * aren't compared exactly since a vehicle interface usually doesn't send
+ * them - each connection's copy is stamped by the phone when it arrives, a
+ * little apart. Only the most recent measurements are remembered, so a
+ * duplicate is only caught if it arrives within that window. Measurements
+ * without a timestamp are never duplicates, since two readings of the same
+ * value can't be told apart from one reading delivered twice.
+ */
+public class MeasurementDeduplicator {
+    public final static int DEFAULT_WINDOW_SIZE = 512;
+    public final static long DEFAULT_TOLERANCE_MS = 50;
+
+    // The timestamp each measurement was last remembered with
+    private final Map<Key, Double> mRecent;
+    private final int mWindowSize;
+    private final double mToleranceSeconds;
+    private long mDuplicateCount;
+
+    public MeasurementDeduplicator() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_TOLERANCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param windowSize the number of recent measurements to remember.
+     * @param tolerance how far apart the timestamps of two copies of a
+     *      measurement can be.
+     * @param unit the unit of tolerance.
+     */
+    public MeasurementDeduplicator(final int windowSize, long tolerance,
+            TimeUnit unit) {
+        mWindowSize = windowSize;
+        mToleranceSeconds = unit.toMicros(tolerance) / 1000000.0;
+        mRecent = new LinkedHashMap<Key, Double>(windowSize * 4 / 3 + 1,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Key, Double> eldest) {
+                return size() > windowSize;
+            }
+        };
+    }
+
+    /**
+     * Remember a measurement sent by the source being checked against.
+     */
+    public synchronized void remember(RawMeasurement measurement) {
+        if(measurement.isTimestamped()) {
+            mRecent.put(new Key(measurement), measurement.getTimestamp());
+        }
+    }
+
+    /**
+     * @return true if a copy of the measurement was remembered recently.
+     */
+    public synchronized boolean isDuplicate(RawMeasurement measurement) {
+        if(!measurement.isTimestamped()) {
+            return false;
+        }
+
+        Double seen = mRecent.get(new Key(measurement));
+        if(seen != null && Math.abs(measurement.getTimestamp() - seen) <=
+                mToleranceSeconds) {
+            mDuplicateCount++;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this)
+            .add("windowSize", mWindowSize)
+            .add("toleranceSeconds", mToleranceSeconds)
+            .add("duplicates", mDuplicateCount)
+            .toString();
+    }
+
+    private static class Key {
+        private final String mName;
+        private final Object mValue;
+        private final Object mEvent;
+
+        public Key(RawMeasurement measurement) {
+            mName = measurement.getName();
+            mValue = measurement.getValue();
+            mEvent = measurement.getEvent();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Objects.equal(mName, other.mName) &&
+                Objects.equal(mValue, other.mValue) &&
+                Objects.equal(mEvent, other.mEvent);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(mName, mValue, mEvent);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.openxc;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.openxc.remote.RawMeasurement;
+import com.openxc.sources.SourceCallback;
+import com.openxc.sources.VehicleDataSource;
+
+/**
+ * Pair a standby source with a primary source carrying the same data, e.g.
+ * Bluetooth and USB connections to one vehicle interface.
+ *
+ * While the primary is healthy the standby's measurements are dropped, after
+ * being kept in a small ring of recent measurements. The primary is stalled if
+ * it hasn't sent anything for the stall timeout. The next measurement from the
+ * standby then takes over: first the recent measurements newer than the last
+ * one from the primary are replayed, so nothing is missed in between, and from
+ * then on the standby's measurements are passed on. As soon as the primary
+ * sends again it takes back over.
+ *
+ * Replayed measurements can overlap with what the primary sent, and the two
+ * can overlap again when the primary takes back over, so each source's
+ * measurements are checked against what the other recently passed on with a
+ * {@link MeasurementDeduplicator}, and copies are dropped. Only this pair of
+ * sources is deduplicated - other sources in the pipeline aren't affected.
+ */
+public class SourceFailover {
+    public final static long DEFAULT_STALL_TIMEOUT_MS = 250;
+    public final static int DEFAULT_REPLAY_CAPACITY = 256;
+
+    private final VehicleDataSource mPrimary;
+    private final VehicleDataSource mStandby;
+    private final long mStallTimeoutNanos;
+
+    private volatile long mPrimaryLastArrival;
+    private volatile double mPrimaryLastTimestamp = Double.NEGATIVE_INFINITY;
+    private volatile boolean mPrimarySeen;
+    private volatile boolean mStandbyActive;
+
+    private final RawMeasurement[] mRecent;
+    private int mNextRecent;
+    private final MeasurementDeduplicator mFromPrimary =
+            new MeasurementDeduplicator();
+    private final MeasurementDeduplicator mFromStandby =
+            new MeasurementDeduplicator();
+
+    private long mStandbyDroppedCount;
+    private long mReplayedCount;
+    private int mFailoverCount;
+    private int mFailbackCount;
+
+    public SourceFailover(VehicleDataSource primary,
+            VehicleDataSource standby) {
+        this(primary, standby, DEFAULT_STALL_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+                DEFAULT_REPLAY_CAPACITY);
+    }
+
+    /**
+     * @param primary the source to use while it's healthy.
+     * @param standby the source to use while the primary is stalled.
+     * @param stallTimeout how long the primary can go without sending
+     *      anything before it's considered stalled.
+     * @param unit the unit of stallTimeout.
+     * @param replayCapacity the number of recent standby measurements to keep
+     *      for replay when it takes over.
+     */
+    public SourceFailover(VehicleDataSource primary, VehicleDataSource standby,
+            long stallTimeout, TimeUnit unit, int replayCapacity) {
+        mPrimary = primary;
+        mStandby = standby;
+        mStallTimeoutNanos = unit.toNanos(stallTimeout);
+        mRecent = new RawMeasurement[replayCapacity];
+    }
+
+    public VehicleDataSource getPrimary() {
+        return mPrimary;
+    }
+
+    public VehicleDataSource getStandby() {
+        return mStandby;
+    }
+
+    /**
+     * @return true if the standby's measurements are being passed on.
+     */
+    public boolean isStandbyActive() {
+        return mStandbyActive;
+    }
+
+    /**
+     * @return the callback the primary source should use, which passes every
+     *      measurement on to the next callback, except copies of what the
+     *      standby just passed on.
+     */
+    public SourceCallback wrapPrimary(final SourceCallback next) {
+        return new SourceCallback() {
+            public void receive(RawMeasurement measurement) {
+                if(primaryReceived(measurement)) {
+                    next.receive(measurement);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the callback the standby source should use, which only passes
+     *      measurements on to the next callback while the primary is stalled.
+     */
+    public SourceCallback wrapStandby(final SourceCallback next) {
+        return new SourceCallback() {
+            public void receive(RawMeasurement measurement) {
+                standbyReceived(measurement, next);
+            }
+        };
+    }
+
+    public synchronized long getStandbyDroppedCount() {
+        return mStandbyDroppedCount;
+    }
+
+    public synchronized long getReplayedCount() {
+        return mReplayedCount;
+    }
+
+    public synchronized int getFailoverCount() {
+        return mFailoverCount;
+    }
+
+    public synchronized int getFailbackCount() {
+        return mFailbackCount;
+    }
+
+    /**
+     * @return the number of measurements dropped because the other source
+     *      had already passed them on.
+     */
+    public long getDuplicateCount() {
+        return mFromPrimary.getDuplicateCount() +
+                mFromStandby.getDuplicateCount();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this)
+            .add("primary", mPrimary)
+            .add("standby", mStandby)
+            .add("standbyActive", mStandbyActive)
+            .add("standbyDropped", mStandbyDroppedCount)
+            .add("failovers", mFailoverCount)
+            .add("failbacks", mFailbackCount)
+            .add("replayed", mReplayedCount)
+            .add("duplicates", getDuplicateCount())
+            .toString();
+    }
+
+    /**
+     * @return true if the measurement should be passed on.
+     */
+    private boolean primaryReceived(RawMeasurement measurement) {
+        mPrimaryLastArrival = System.nanoTime();
+        mPrimarySeen = true;
+        if(measurement != null && measurement.isTimestamped()) {
+            mPrimaryLastTimestamp = measurement.getTimestamp();
+        }
+
+        if(mStandbyActive) {
+            synchronized(this) {
+                if(mStandbyActive) {
+                    mStandbyActive = false;
+                    mFailbackCount++;
+                }
+            }
+        }
+
+        if(measurement == null) {
+            return true;
+        } else if(mFromStandby.isDuplicate(measurement)) {
+            return false;
+        }
+        mFromPrimary.remember(measurement);
+        return true;
+    }
+
+    private synchronized void standbyReceived(RawMeasurement measurement,
+            SourceCallback next) {
+        if(measurement == null) {
+            return;
+        }
+
+        boolean primaryHealthy = mPrimarySeen &&
+                System.nanoTime() - mPrimaryLastArrival < mStallTimeoutNanos;
+        if(primaryHealthy) {
+            mRecent[mNextRecent] = measurement;
+            mNextRecent = (mNextRecent + 1) % mRecent.length;
+            mStandbyDroppedCount++;
+            return;
+        }
+
+        if(!mStandbyActive) {
+            mStandbyActive = true;
+            mFailoverCount++;
+            replay(next);
+        }
+        passOn(measurement, next);
+    }
+
+    private void passOn(RawMeasurement measurement, SourceCallback next) {
+        if(!mFromPrimary.isDuplicate(measurement)) {
+            mFromStandby.remember(measurement);
+            next.receive(measurement);
+        }
+    }
+
+    /**
+     * Send on the recent standby measurements the primary didn't get to, oldest
+     * first, and forget them.
+     */
+    private void replay(SourceCallback next) {
+        double since = mPrimaryLastTimestamp;
+        for(int i = 0; i < mRecent.length; i++) {
+            int index = (mNextRecent + i) % mRecent.length;
+            RawMeasurement recent = mRecent[index];
+            mRecent[index] = null;
+            if(recent != null && recent.isTimestamped() &&
+                    recent.getTimestamp() > since) {
+                mReplayedCount++;
+                passOn(recent, next);
+            }
+        }
+        mNextRecent = 0;
+    }
+}
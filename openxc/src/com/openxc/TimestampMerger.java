@@ -0,0 +1,426 @@
+package com.openxc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.openxc.remote.RawMeasurement;
+import com.openxc.sources.SourceCallback;
+import com.openxc.util.TaskRuntime;
+import com.openxc.util.TimerWheel;
+
+/**
+ * Merge the measurements from multiple sources into timestamp order.
+ *
+ * Each source sends to its own lane, from {@link #getLane(Object)}. A lane's
+ * watermark is the newest timestamp it has sent. A buffered measurement is
+ * released once every active lane's watermark has passed it, so nothing older
+ * can still arrive - or once it, or a newer measurement, has been held for the
+ * maximum delay, so a slow or quiet source can't hold up the others for longer
+ * than that. A lane that hasn't sent anything within the maximum delay isn't
+ * active.
+ *
+ * A measurement older than one that was already released is late, and is
+ * handled according to the {@link LatePolicy}. Measurements without a
+ * timestamp can't be ordered and are passed through right away.
+ *
+ * Released measurements are passed to the callback outside of the merger's
+ * lock, in the order they were released, so a slow pipeline doesn't hold up
+ * sources sending to other lanes. Usually the thread of the source that
+ * released them passes them on - measurements released when their maximum
+ * delay is up are passed on from the shared I/O executor instead of the
+ * timer.
+ *
+ * The time measurements spend in the buffer is tracked, so the cost of the
+ * merge can be weighed against the disorder it removes.
+ */
+public class TimestampMerger {
+    public final static long DEFAULT_MAX_DELAY_MS = 100;
+
+    /**
+     * What to do with a measurement older than one already released.
+     */
+    public enum LatePolicy {
+        /**
+         * Pass it on right away, out of order.
+         */
+        DELIVER,
+
+        /**
+         * Drop it, so per-signal values never go backwards in time.
+         */
+        DROP
+    }
+
+    private final SourceCallback mCallback;
+    private final long mMaxDelayNanos;
+    private final LatePolicy mLatePolicy;
+    private final Map<Object, Lane> mLanes = new HashMap<Object, Lane>();
+    private final PriorityQueue<Pending> mBuffer = new PriorityQueue<Pending>();
+    // The same measurements as mBuffer, in the order they arrived
+    private final LinkedList<Pending> mArrivals = new LinkedList<Pending>();
+    private long mSequence;
+    private double mReleasedWatermark = Double.NEGATIVE_INFINITY;
+    private TimerWheel.Timeout mFlush;
+    // Released measurements waiting to be passed to the callback
+    private List<RawMeasurement> mOutbox = new ArrayList<RawMeasurement>();
+    // Set while a thread is passing the outbox to the callback
+    private boolean mDraining;
+    // Measurements in the outbox or being passed to the callback
+    private int mUndelivered;
+
+    private long mReleasedCount;
+    private long mLateCount;
+    private long mDroppedCount;
+    private long mTotalDelayNanos;
+    private long mMaxDelayNanosSeen;
+
+    public TimestampMerger(SourceCallback callback) {
+        this(callback, DEFAULT_MAX_DELAY_MS, TimeUnit.MILLISECONDS,
+                LatePolicy.DELIVER);
+    }
+
+    /**
+     * @param callback receives the merged measurements.
+     * @param maxDelay the longest a measurement is held waiting for older
+     *      measurements from other lanes.
+     * @param unit the unit of maxDelay.
+     * @param latePolicy what to do with measurements that arrive too late.
+     */
+    public TimestampMerger(SourceCallback callback, long maxDelay,
+            TimeUnit unit, LatePolicy latePolicy) {
+        mCallback = callback;
+        mMaxDelayNanos = unit.toNanos(maxDelay);
+        mLatePolicy = latePolicy;
+    }
+
+    /**
+     * @return the callback a source should use to send its measurements to
+     *      this merger, created the first time it's requested for the key.
+     */
+    public synchronized SourceCallback getLane(Object key) {
+        Lane lane = mLanes.get(key);
+        if(lane == null) {
+            lane = new Lane(key);
+            mLanes.put(key, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Stop waiting for a lane, e.g. when its source is removed. Measurements
+     * it already sent are still released in order.
+     */
+    public void removeLane(Object key) {
+        boolean drain;
+        synchronized(this) {
+            mLanes.remove(key);
+            release(System.nanoTime());
+            drain = claimOutbox();
+        }
+        if(drain) {
+            drainOutbox();
+        }
+    }
+
+    /**
+     * Release everything in the buffer and stop the flush timer.
+     */
+    public void flush() {
+        boolean drain;
+        synchronized(this) {
+            if(mFlush != null) {
+                mFlush.cancel();
+                mFlush = null;
+            }
+            Pending pending;
+            while((pending = mBuffer.poll()) != null) {
+                deliver(pending, System.nanoTime());
+            }
+            mArrivals.clear();
+            drain = claimOutbox();
+        }
+        if(drain) {
+            drainOutbox();
+        }
+    }
+
+    public LatePolicy getLatePolicy() {
+        return mLatePolicy;
+    }
+
+    /**
+     * @return the number of measurements held in the buffer or released but
+     *      not yet passed to the callback.
+     */
+    public synchronized int getBufferedCount() {
+        return mBuffer.size() + mUndelivered;
+    }
+
+    public synchronized long getReleasedCount() {
+        return mReleasedCount;
+    }
+
+    /**
+     * @return the number of measurements that arrived after a newer one was
+     *      released, whether or not they were dropped.
+     */
+    public synchronized long getLateCount() {
+        return mLateCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return the average time a timestamped measurement was held in the
+     *      buffer, in microseconds.
+     */
+    public synchronized long getAverageDelayMicros() {
+        if(mReleasedCount == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMicros(mTotalDelayNanos / mReleasedCount);
+    }
+
+    /**
+     * @return the longest time a measurement was held in the buffer, in
+     *      microseconds.
+     */
+    public synchronized long getMaxDelayMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(mMaxDelayNanosSeen);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this)
+            .add("lanes", mLanes.size())
+            .add("buffered", mBuffer.size())
+            .add("released", mReleasedCount)
+            .add("late", mLateCount)
+            .add("dropped", mDroppedCount)
+            .add("avgDelayUs", getAverageDelayMicros())
+            .add("maxDelayUs", getMaxDelayMicros())
+            .toString();
+    }
+
+    /**
+     * @return true if the caller should drain the outbox.
+     */
+    private synchronized boolean receive(Lane lane,
+            RawMeasurement measurement) {
+        long now = System.nanoTime();
+        if(!measurement.isTimestamped()) {
+            addToOutbox(measurement);
+            return claimOutbox();
+        }
+
+        double timestamp = measurement.getTimestamp();
+        lane.mLastArrival = now;
+        lane.mWatermark = Math.max(lane.mWatermark, timestamp);
+
+        if(timestamp < mReleasedWatermark) {
+            mLateCount++;
+            if(mLatePolicy == LatePolicy.DROP) {
+                mDroppedCount++;
+            } else {
+                addToOutbox(measurement);
+            }
+        } else {
+            Pending pending = new Pending(measurement, now, mSequence++);
+            mBuffer.add(pending);
+            mArrivals.add(pending);
+        }
+
+        release(now);
+        return claimOutbox();
+    }
+
+    private void addToOutbox(RawMeasurement measurement) {
+        mOutbox.add(measurement);
+        mUndelivered++;
+    }
+
+    /**
+     * Take on draining the outbox if it has anything in it and no other
+     * thread is draining it already - that thread will pass on anything added
+     * while it's busy.
+     *
+     * @return true if the caller must call {@link #drainOutbox()} once it has
+     *      released the lock.
+     */
+    private boolean claimOutbox() {
+        if(mDraining || mOutbox.isEmpty()) {
+            return false;
+        }
+        mDraining = true;
+        return true;
+    }
+
+    /**
+     * Pass released measurements to the callback until the outbox is empty.
+     * Must be called without holding the lock.
+     */
+    private void drainOutbox() {
+        List<RawMeasurement> batch = null;
+        try {
+            while(true) {
+                synchronized(this) {
+                    if(batch != null) {
+                        mUndelivered -= batch.size();
+                    }
+                    if(mOutbox.isEmpty()) {
+                        mDraining = false;
+                        return;
+                    }
+                    batch = mOutbox;
+                    mOutbox = new ArrayList<RawMeasurement>();
+                }
+                for(RawMeasurement measurement : batch) {
+                    mCallback.receive(measurement);
+                }
+            }
+        } catch(RuntimeException e) {
+            synchronized(this) {
+                mUndelivered -= batch.size();
+                mDraining = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Release every buffered measurement that's older than all active lanes'
+     * watermarks, or than a measurement that has waited the maximum delay.
+     */
+    private void release(long now) {
+        double watermark = Double.POSITIVE_INFINITY;
+        for(Lane lane : mLanes.values()) {
+            if(lane.isActive(now)) {
+                watermark = Math.min(watermark, lane.mWatermark);
+            }
+        }
+
+        for(Pending pending : mArrivals) {
+            if(now - pending.mArrival < mMaxDelayNanos) {
+                break;
+            }
+            watermark = Math.max(watermark, pending.mTimestamp);
+        }
+
+        Pending head;
+        while((head = mBuffer.peek()) != null &&
+                head.mTimestamp <= watermark) {
+            deliver(mBuffer.poll(), now);
+        }
+
+        while(!mArrivals.isEmpty() && mArrivals.getFirst().mReleased) {
+            mArrivals.removeFirst();
+        }
+        scheduleFlush(now);
+    }
+
+    private void deliver(Pending pending, long now) {
+        long delay = now - pending.mArrival;
+        mTotalDelayNanos += delay;
+        mMaxDelayNanosSeen = Math.max(mMaxDelayNanosSeen, delay);
+        pending.mReleased = true;
+        mReleasedCount++;
+        mReleasedWatermark = Math.max(mReleasedWatermark, pending.mTimestamp);
+        addToOutbox(pending.mMeasurement);
+    }
+
+    /**
+     * Make sure the oldest buffered measurement is released when its maximum
+     * delay is up, even if no more measurements arrive.
+     */
+    private void scheduleFlush(long now) {
+        Pending head = mArrivals.peek();
+        if(head == null || mFlush != null) {
+            return;
+        }
+
+        long delay = Math.max(0, head.mArrival + mMaxDelayNanos - now);
+        mFlush = TaskRuntime.getDefault().getTimer().schedule(new Runnable() {
+            public void run() {
+                synchronized(TimestampMerger.this) {
+                    mFlush = null;
+                    release(System.nanoTime());
+                    if(!claimOutbox()) {
+                        return;
+                    }
+                }
+                TaskRuntime.getDefault().getIoExecutor().execute(
+                        new Runnable() {
+                            public void run() {
+                                drainOutbox();
+                            }
+                        });
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private class Lane implements SourceCallback {
+        private final Object mKey;
+        private double mWatermark = Double.NEGATIVE_INFINITY;
+        private long mLastArrival;
+
+        public Lane(Object key) {
+            mKey = key;
+        }
+
+        /**
+         * @return true if this lane has sent a measurement within the maximum
+         *      delay.
+         */
+        public boolean isActive(long now) {
+            return mWatermark != Double.NEGATIVE_INFINITY &&
+                    now - mLastArrival < mMaxDelayNanos;
+        }
+
+        public void receive(RawMeasurement measurement) {
+            if(measurement != null &&
+                    TimestampMerger.this.receive(this, measurement)) {
+                drainOutbox();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                .add("source", mKey)
+                .add("watermark", mWatermark)
+                .toString();
+        }
+    }
+
+    private static class Pending implements Comparable<Pending> {
+        private final RawMeasurement mMeasurement;
+        private final double mTimestamp;
+        private final long mArrival;
+        private final long mSequence;
+        private boolean mReleased;
+
+        public Pending(RawMeasurement measurement, long arrival,
+                long sequence) {
+            mMeasurement = measurement;
+            mTimestamp = measurement.getTimestamp();
+            mArrival = arrival;
+            mSequence = sequence;
+        }
+
+        public int compareTo(Pending other) {
+            if(mTimestamp != other.mTimestamp) {
+                return mTimestamp < other.mTimestamp ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 :
+                    (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
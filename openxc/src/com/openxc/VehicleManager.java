@@ -1,5 +1,7 @@
 package com.openxc;
 
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -14,6 +16,7 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 import android.widget.Toast;
@@ -22,9 +25,13 @@ import com.google.common.base.Objects;
 import com.openxc.interfaces.VehicleInterface;
 import com.openxc.measurements.BaseMeasurement;
 import com.openxc.measurements.Measurement;
+import com.openxc.measurements.MeasurementCatalog;
 import com.openxc.measurements.UnrecognizedMeasurementTypeException;
+import com.openxc.remote.MeasurementBatcher;
 import com.openxc.remote.RawMeasurement;
 import com.openxc.remote.RemoteServiceVehicleInterface;
+import com.openxc.remote.SharedMeasurementTable;
+import com.openxc.remote.SignalIdTable;
 import com.openxc.remote.VehicleService;
 import com.openxc.remote.VehicleServiceException;
 import com.openxc.remote.VehicleServiceInterface;
@@ -99,6 +106,7 @@ public class VehicleManager extends Service implements SourceCallback {
     private Condition mRemoteBoundCondition = mRemoteBoundLock.newCondition();
     private IBinder mBinder = new VehicleBinder();
     private DataPipeline mPipeline = new DataPipeline();
+    private LoadShedder mLoadShedder = new LoadShedder();
     private CopyOnWriteArrayList<VehicleInterface> mInterfaces =
             new CopyOnWriteArrayList<VehicleInterface>();
 
@@ -117,9 +125,13 @@ public class VehicleManager extends Service implements SourceCallback {
 
     private boolean mIsBound;
     private VehicleServiceInterface mRemoteService;
+    // the table published by the connected service
+    private volatile SignalIdTable mSignalIds = SignalIdTable.DEFAULT;
     private RemoteListenerSource mRemoteSource;
     private VehicleInterface mRemoteController;
     private MeasurementListenerSink mNotifier;
+    private SharedMeasurementTable mMeasurementTable;
+    private MeasurementBatcher mBatcher;
 
     /**
      * Binder to connect IBinder in a ServiceConnection with the VehicleManager.
@@ -146,6 +158,7 @@ public class VehicleManager extends Service implements SourceCallback {
         Log.i(TAG, "Service starting");
 
         initializeDefaultSinks(mPipeline);
+        mPipeline.setLoadShedder(mLoadShedder);
         bindRemote();
     }
 
@@ -190,6 +203,10 @@ public class VehicleManager extends Service implements SourceCallback {
      * Measurement instance of the specified type. The measurement can be
      * checked to see if it has a value.
      *
+     * The value is read from the VehicleService's shared memory table when it
+     * is available, which avoids an IPC call - otherwise it's requested
+     * through the AIDL interface.
+     *
      * @param measurementType The class of the requested Measurement
      *      (e.g. VehicleSpeed.class)
      * @return An instance of the requested Measurement which may or may
@@ -210,9 +227,21 @@ public class VehicleManager extends Service implements SourceCallback {
             throw new NoValueException();
         }
 
+        String measurementId = BaseMeasurement.getIdForClass(measurementType);
+        SharedMeasurementTable table = mMeasurementTable;
+        RawMeasurement rawMeasurement = null;
+        if(table != null) {
+            rawMeasurement = table.read(measurementId);
+        }
+
         try {
-            RawMeasurement rawMeasurement = mRemoteService.get(
-                    BaseMeasurement.getIdForClass(measurementType));
+            // A complete table has a slot for everything the service has
+            // received, so a measurement without a slot has no value yet
+            if(rawMeasurement == null && (table == null
+                        || !table.isComplete()
+                        || table.contains(measurementId))) {
+                rawMeasurement = mRemoteService.get(measurementId);
+            }
             return BaseMeasurement.getMeasurementFromRaw(measurementType,
                     rawMeasurement);
         } catch(RemoteException e) {
@@ -273,7 +302,9 @@ public class VehicleManager extends Service implements SourceCallback {
             Measurement.Listener listener) throws VehicleServiceException,
                 UnrecognizedMeasurementTypeException {
         Log.i(TAG, "Adding listener " + listener + " to " + measurementType);
-        mNotifier.register(measurementType, listener);
+        if(mNotifier.register(measurementType, listener)) {
+            subscribe(measurementType);
+        }
     }
 
     /**
@@ -298,7 +329,53 @@ public class VehicleManager extends Service implements SourceCallback {
             throws VehicleServiceException {
         Log.i(TAG, "Removing listener " + listener + " from " +
                 measurementType);
-        mNotifier.unregister(measurementType, listener);
+        if(mNotifier.unregister(measurementType, listener)) {
+            unsubscribe(measurementType);
+        }
+    }
+
+    /**
+     * Register to receive the numeric value of a measurement as it changes,
+     * without a Measurement object being built for each update.
+     *
+     * This is a lighter-weight alternative to
+     * {@link #addListener(Class, Measurement.Listener)} for measurements that
+     * update frequently, e.g. to drive a speedometer. The listener receives
+     * the value in the measurement's standard unit and the time it was
+     * recorded, and is called from the same thread as other listeners.
+     *
+     * @param measurementType The class of the requested Measurement
+     *      (e.g. VehicleSpeed.class)
+     * @param listener An object implementing the Measurement.NumericListener
+     *      interface that should be called with any new values.
+     * @throws UnrecognizedMeasurementTypeException if passed a measurementType
+     *      that doesn't have a numeric value (e.g. IgnitionStatus.class)
+     */
+    public void addListener(Class<? extends Measurement> measurementType,
+            Measurement.NumericListener listener)
+            throws UnrecognizedMeasurementTypeException {
+        Log.i(TAG, "Adding numeric listener " + listener + " to " +
+                measurementType);
+        if(mNotifier.register(measurementType, listener)) {
+            subscribe(measurementType);
+        }
+    }
+
+    /**
+     * Unregister a previously registered Measurement.NumericListener.
+     *
+     * @param measurementType The class of the Measurement the listener was
+     *      registered for.
+     * @param listener The listener previously passed to
+     *      {@link #addListener(Class, Measurement.NumericListener)}.
+     */
+    public void removeListener(Class<? extends Measurement> measurementType,
+            Measurement.NumericListener listener) {
+        Log.i(TAG, "Removing numeric listener " + listener + " from " +
+                measurementType);
+        if(mNotifier.unregister(measurementType, listener)) {
+            unsubscribe(measurementType);
+        }
     }
 
     /**
@@ -342,8 +419,22 @@ public class VehicleManager extends Service implements SourceCallback {
      * @param sink an instance of a VehicleDataSink
      */
     public void addSink(VehicleDataSink sink) {
-        Log.i(TAG, "Adding data sink " + sink);
-        mPipeline.addSink(sink);
+        addSink(sink, true);
+    }
+
+    /**
+     * Add a new data sink to the vehicle service.
+     *
+     * @param sink an instance of a VehicleDataSink
+     * @param essential if false, the sink gets fewer measurements, or none,
+     *      while they're arriving faster than they can be handled, e.g. an
+     *      uploader that can catch up later. Essential sinks always get every
+     *      measurement.
+     */
+    public void addSink(VehicleDataSink sink, boolean essential) {
+        Log.i(TAG, "Adding " + (essential ? "" : "non-essential ") +
+                "data sink " + sink);
+        mPipeline.addSink(sink, essential);
     }
 
     /**
@@ -405,6 +496,65 @@ public class VehicleManager extends Service implements SourceCallback {
         }
     }
 
+    /**
+     * Use one vehicle interface as a standby for another that's connected to
+     * the same vehicle, e.g. Bluetooth as a backup for USB.
+     *
+     * While both are running, data from the standby is dropped as long as the
+     * primary is sending. If the primary stalls the standby takes over without
+     * a gap, and duplicate measurements from the two are dropped.
+     *
+     * @param standbyType the interface to keep as a standby.
+     * @param primaryType the interface to prefer, or null to stop using
+     *      standbyType as a standby.
+     */
+    public void setStandbyVehicleInterface(
+            Class<? extends VehicleInterface> standbyType,
+            Class<? extends VehicleInterface> primaryType) {
+        Log.i(TAG, "Setting " + standbyType + " as standby for " +
+                primaryType);
+
+        if(mRemoteService != null) {
+            try {
+                mRemoteService.setStandbyVehicleInterface(
+                        standbyType.getName(),
+                        primaryType == null ? null : primaryType.getName());
+            } catch(RemoteException e) {
+                Log.w(TAG, "Unable to set standby vehicle interface", e);
+            }
+        } else {
+            Log.w(TAG, "Can't set standby vehicle interface, not connected " +
+                    "to the VehicleService");
+        }
+    }
+
+    /**
+     * Have the VehicleService merge the measurements of its vehicle
+     * interfaces into timestamp order while more than one is running.
+     *
+     * Merging is off by default. It holds each measurement for up to 100ms
+     * waiting for older ones from the other interfaces.
+     *
+     * @param dropLate if true, measurements that arrive after a newer one was
+     *      passed on are dropped, so a signal's value never goes back in
+     *      time. Otherwise they're passed on out of order.
+     */
+    public void setTimestampMerging(boolean enabled, boolean dropLate) {
+        Log.i(TAG, (enabled ? "Enabling" : "Disabling") +
+                " timestamp merging");
+
+        if(mRemoteService != null) {
+            try {
+                mRemoteService.setTimestampMerging(enabled, dropLate);
+            } catch(RemoteException e) {
+                Log.w(TAG, "Unable to set timestamp merging", e);
+            }
+        } else {
+            Log.w(TAG, "Can't set timestamp merging, not connected " +
+                    "to the VehicleService");
+        }
+    }
+
     /**
      * Disable a vehicle interface, stopping data flow in both directions.
      *
@@ -473,6 +623,7 @@ public class VehicleManager extends Service implements SourceCallback {
         for(VehicleDataSink sink : mPipeline.getSinks()) {
             sinks.add(sink.toString());
         }
+        sinks.add(mLoadShedder.toString());
 
         if(mRemoteService != null) {
             try {
@@ -562,15 +713,74 @@ public class VehicleManager extends Service implements SourceCallback {
      * interface, but it should not be used by applications.
      */
     public void receive(RawMeasurement measurement) {
-        if(mRemoteService != null) {
+        // Copy the reference - the service can be disconnected at any time
+        MeasurementBatcher batcher = mBatcher;
+        if(batcher != null) {
+            batcher.add(measurement);
+        } else if(mRemoteService != null) {
+            SignalIdTable previous =
+                    RawMeasurement.useSignalIdTable(mSignalIds);
             try {
                 mRemoteService.receive(measurement);
             } catch(RemoteException e) {
                 Log.d(TAG, "Unable to send message to remote service", e);
+            } finally {
+                RawMeasurement.useSignalIdTable(previous);
             }
         }
     }
 
+    /**
+     * Let the load shedders here and in the VehicleService know an application
+     * is listening for this type, so it's kept if unsubscribed signals are
+     * being dropped. The service is only told about the first listener for
+     * each type.
+     */
+    private void subscribe(Class<? extends Measurement> measurementType) {
+        MeasurementCatalog.Entry entry =
+                MeasurementCatalog.get(measurementType);
+        if(entry != null && mLoadShedder.subscribe(entry.getId())) {
+            sendSubscription(mRemoteService, entry.getId(), true);
+        }
+    }
+
+    private void unsubscribe(Class<? extends Measurement> measurementType) {
+        MeasurementCatalog.Entry entry =
+                MeasurementCatalog.get(measurementType);
+        if(entry != null && mLoadShedder.unsubscribe(entry.getId())) {
+            sendSubscription(mRemoteService, entry.getId(), false);
+        }
+    }
+
+    /**
+     * Add or remove all of this manager's subscriptions in the service, when
+     * binding to it or before unbinding.
+     */
+    private void sendSubscriptions(VehicleServiceInterface service,
+            boolean subscribe) {
+        for(String measurementId : mLoadShedder.getSubscriptions()) {
+            sendSubscription(service, measurementId, subscribe);
+        }
+    }
+
+    private static void sendSubscription(VehicleServiceInterface service,
+            String measurementId, boolean subscribe) {
+        if(service == null) {
+            return;
+        }
+
+        try {
+            if(subscribe) {
+                service.subscribe(measurementId);
+            } else {
+                service.unsubscribe(measurementId);
+            }
+        } catch(RemoteException e) {
+            Log.w(TAG, "Unable to update subscription to " + measurementId +
+                    " in the remote service", e);
+        }
+    }
+
     private void initializeDefaultSinks(DataPipeline pipeline) {
         mNotifier = new MeasurementListenerSink();
         pipeline.addSink(mNotifier);
@@ -581,12 +791,22 @@ public class VehicleManager extends Service implements SourceCallback {
                 IBinder service) {
             Log.i(TAG, "Bound to VehicleService");
             mRemoteService = VehicleServiceInterface.Stub.asInterface(service);
+            mSignalIds = negotiateSignalIds(mRemoteService);
             mRemoteController = new RemoteServiceVehicleInterface(
-                    mRemoteService);
+                    mRemoteService, mSignalIds);
             mInterfaces.add(mRemoteController);
 
             mRemoteSource = new RemoteListenerSource(mRemoteService);
             mPipeline.addSource(mRemoteSource);
+            sendSubscriptions(mRemoteService, true);
+            mMeasurementTable = openMeasurementTable(mRemoteService);
+
+            // Calls to a service in this process don't cross a process
+            // boundary, so there's nothing to gain from batching them
+            if(!mRemoteSource.isLocal()) {
+                mBatcher = new MeasurementBatcher(mRemoteService,
+                        mSignalIds);
+            }
 
             mRemoteBoundLock.lock();
             mRemoteBoundCondition.signalAll();
@@ -596,11 +816,74 @@ public class VehicleManager extends Service implements SourceCallback {
         public void onServiceDisconnected(ComponentName className) {
             Log.w(TAG, "VehicleService disconnected unexpectedly");
             mInterfaces.remove(mRemoteController);
+            mMeasurementTable = null;
+            stopBatcher();
             mRemoteService = null;
             mPipeline.removeSource(mRemoteSource);
         }
     };
 
+    /**
+     * Copy the VehicleService's signal ID table, so measurements sent in
+     * either direction can use the compact name encoding. This must happen
+     * before the remote listener is registered, so IDs from the service can be
+     * read.
+     *
+     * @return the table to write measurements sent to the service with.
+     */
+    private static SignalIdTable negotiateSignalIds(
+            VehicleServiceInterface service) {
+        try {
+            return new SignalIdTable(service.getSignalIds());
+        } catch(RemoteException e) {
+            Log.w(TAG, "Unable to retrieve signal IDs, sending full names", e);
+            return SignalIdTable.EMPTY;
+        }
+    }
+
+    private static SharedMeasurementTable openMeasurementTable(
+            VehicleServiceInterface service) {
+        if(!SharedMeasurementTable.isSupported()) {
+            return null;
+        }
+
+        ParcelFileDescriptor descriptor;
+        try {
+            descriptor = service.getMeasurementTable();
+        } catch(RemoteException e) {
+            Log.w(TAG, "Unable to retrieve shared measurement table", e);
+            return null;
+        }
+
+        if(descriptor == null) {
+            Log.i(TAG, "VehicleService has no shared measurement table, " +
+                    "reading values through the AIDL interface");
+            return null;
+        }
+
+        FileInputStream stream =
+                new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+        try {
+            return SharedMeasurementTable.open(stream.getChannel());
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to map shared measurement table", e);
+            return null;
+        } finally {
+            try {
+                stream.close();
+            } catch(IOException e) {
+                Log.w(TAG, "Unable to close shared measurement table", e);
+            }
+        }
+    }
+
+    private void stopBatcher() {
+        if(mBatcher != null) {
+            mBatcher.stop();
+            mBatcher = null;
+        }
+    }
+
     private void bindRemote() {
         Log.i(TAG, "Binding to VehicleService");
         Intent intent = new Intent(VehicleServiceInterface.class.getName());
@@ -623,7 +906,10 @@ public class VehicleManager extends Service implements SourceCallback {
 
         if(mIsBound) {
             Log.i(TAG, "Unbinding from VehicleService");
+            stopBatcher();
+            sendSubscriptions(mRemoteService, false);
             unbindService(mConnection);
+            mMeasurementTable = null;
             mRemoteService = null;
             mIsBound = false;
         }
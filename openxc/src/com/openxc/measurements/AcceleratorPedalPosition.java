@@ -10,7 +10,7 @@ import com.openxc.util.Range;
  * pressed at all, the position is 0%.
  */
 public class AcceleratorPedalPosition extends BaseMeasurement<Percentage> {
-    private final static Range<Percentage> RANGE =
+    final static Range<Percentage> RANGE =
         new Range<Percentage>(new Percentage(0), new Percentage(100));
     public final static String ID = "accelerator_pedal_position";
 
@@ -2,12 +2,12 @@ package com.openxc.measurements;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.base.Objects;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-
 import com.openxc.NoValueException;
 import com.openxc.remote.RawMeasurement;
 
@@ -33,14 +33,21 @@ import com.openxc.util.Range;
  * Measurement. If you know of a better way, please say so.
  */
 public class BaseMeasurement<TheUnit extends Unit> implements Measurement {
-    private AgingData<TheUnit> mValue;
-    private AgingData<Unit> mEvent;
+    // The value and its birth time are kept directly in the measurement,
+    // rather than in an AgingData, so building a measurement allocates only
+    // the measurement and its unit.
+    private TheUnit mValue;
+    private Unit mEvent;
+    private long mBirthtime;
+    private long mBirthNanos;
     private Range<TheUnit> mRange;
-    private static BiMap<String, Class<? extends Measurement>>
-            sMeasurementIdToClass;
+    private static Map<Class<? extends Measurement>, MeasurementFactory<?>>
+            sFactories;
 
     static {
-        sMeasurementIdToClass = HashBiMap.create();
+        sFactories = new ConcurrentHashMap<Class<? extends Measurement>,
+                MeasurementFactory<?>>();
+        BuiltInMeasurementFactories.registerAll(sFactories);
     }
 
     /**
@@ -49,12 +56,14 @@ public class BaseMeasurement<TheUnit extends Unit> implements Measurement {
      * @param value the TheUnit this measurement represents.
      */
     public BaseMeasurement(TheUnit value) {
-        mValue = new AgingData<TheUnit>(value);
+        mValue = value;
+        mBirthtime = System.currentTimeMillis();
+        mBirthNanos = System.nanoTime();
     }
 
     public BaseMeasurement(TheUnit value, Unit event) {
         this(value);
-        mEvent = new AgingData<Unit>(event);
+        mEvent = event;
     }
 
     /**
@@ -72,15 +81,25 @@ public class BaseMeasurement<TheUnit extends Unit> implements Measurement {
     }
 
     public void setTimestamp(double timestamp) {
-        mValue.setTimestamp(timestamp);
+        if(AgingData.isValidTimestamp(timestamp)) {
+            mBirthtime = AgingData.toMillis(timestamp);
+            mBirthNanos = AgingData.toNanoTime(mBirthtime);
+        }
     }
 
     public double getAge() {
-        return mValue.getAge();
+        return AgingData.ageOf(mBirthNanos);
     }
 
     public double getBirthtime() {
-        return mValue.getTimestamp();
+        return mBirthtime;
+    }
+
+    /**
+     * @return a new Date for the birth time of the measurement.
+     */
+    public Date getBirthdate() {
+        return new Date(mBirthtime);
     }
 
     public boolean hasRange() {
@@ -95,14 +114,11 @@ public class BaseMeasurement<TheUnit extends Unit> implements Measurement {
     }
 
     public TheUnit getValue() {
-        return mValue.getValue();
+        return mValue;
     }
 
     public Object getEvent() {
-        if(mEvent != null) {
-            return mEvent.getValue();
-        }
-        return null;
+        return mEvent;
     }
 
     public Object getSerializedValue() {
@@ -119,7 +135,7 @@ public class BaseMeasurement<TheUnit extends Unit> implements Measurement {
 
     public RawMeasurement toRaw() {
         return new RawMeasurement(getGenericName(), getSerializedValue(),
-                getSerializedEvent(), mValue.getTimestamp());
+                getSerializedEvent(), getBirthtime());
     }
 
     public static Measurement deserialize(String measurementString)
@@ -132,14 +148,13 @@ public class BaseMeasurement<TheUnit extends Unit> implements Measurement {
         return "base_measurement";
     }
 
-    private static void cacheMeasurementId(
+    private static MeasurementCatalog.Entry addToCatalog(
             Class<? extends Measurement> measurementType)
             throws UnrecognizedMeasurementTypeException {
         String measurementId;
         try {
             measurementId = (String) measurementType.getField("ID").get(
                     measurementType);
-            sMeasurementIdToClass.put(measurementId, measurementType);
         } catch(NoSuchFieldException e) {
             throw new UnrecognizedMeasurementTypeException(
                     measurementType + " doesn't have an ID field", e);
@@ -148,27 +163,37 @@ public class BaseMeasurement<TheUnit extends Unit> implements Measurement {
                     measurementType + " has an inaccessible " +
                     "ID field", e);
         }
+        return MeasurementCatalog.add(measurementId, measurementType);
     }
 
     public static String getIdForClass(
             Class<? extends Measurement> measurementType)
             throws UnrecognizedMeasurementTypeException {
-        if(!sMeasurementIdToClass.inverse().containsKey(measurementType)) {
-            cacheMeasurementId(measurementType);
+        MeasurementCatalog.Entry entry =
+                MeasurementCatalog.get(measurementType);
+        if(entry == null) {
+            entry = addToCatalog(measurementType);
         }
-        return sMeasurementIdToClass.inverse().get(measurementType);
+        return entry.getId();
     }
 
+    /**
+     * Find the class for a measurement ID.
+     *
+     * Built-in measurements are always known. Other types are only known once
+     * they have been passed to {@link #getIdForClass(Class)}. Use
+     * {@link MeasurementCatalog#get(String)} to check without an exception.
+     */
     public static Class<? extends Measurement>
             getClassForId(String measurementId)
             throws UnrecognizedMeasurementTypeException {
-        Class<? extends Measurement> result = sMeasurementIdToClass.get(measurementId);
-        if(result == null) {
+        MeasurementCatalog.Entry entry = MeasurementCatalog.get(measurementId);
+        if(entry == null) {
             throw new UnrecognizedMeasurementTypeException(
                     "Didn't have a measurement with ID " + measurementId +
                     " cached");
         }
-        return result;
+        return entry.getType();
     }
 
     public static Measurement getMeasurementFromRaw(
@@ -180,10 +205,50 @@ public class BaseMeasurement<TheUnit extends Unit> implements Measurement {
                 rawMeasurement);
     }
 
+    /**
+     * Register a factory to build measurements of the given type without
+     * reflection, replacing any existing factory for the type.
+     */
+    public static <T extends Measurement> void registerFactory(
+            Class<T> measurementType, MeasurementFactory<? extends T> factory) {
+        sFactories.put(measurementType, factory);
+    }
+
     public static Measurement getMeasurementFromRaw(
             Class<? extends Measurement> measurementType,
             RawMeasurement rawMeasurement)
             throws UnrecognizedMeasurementTypeException, NoValueException {
+        MeasurementFactory<?> factory = sFactories.get(measurementType);
+        if(factory == null) {
+            return buildReflectively(measurementType, rawMeasurement);
+        }
+
+        if(rawMeasurement == null || rawMeasurement.getValue() == null) {
+            throw new NoValueException();
+        }
+
+        Measurement measurement;
+        try {
+            measurement = factory.create(rawMeasurement);
+        } catch(ClassCastException e) {
+            throw new UnrecognizedMeasurementTypeException(measurementType +
+                    " can't be built from " + rawMeasurement, e);
+        } catch(IllegalArgumentException e) {
+            throw new UnrecognizedMeasurementTypeException(measurementType +
+                    " can't be built from " + rawMeasurement, e);
+        }
+        measurement.setTimestamp(rawMeasurement.getTimestamp());
+        return measurement;
+    }
+
+    /**
+     * Build a measurement by finding a constructor that matches the types of
+     * the raw value and event - only used for types without a factory.
+     */
+    private static Measurement buildReflectively(
+            Class<? extends Measurement> measurementType,
+            RawMeasurement rawMeasurement)
+            throws UnrecognizedMeasurementTypeException, NoValueException {
         Constructor<? extends Measurement> constructor = null;
         if(rawMeasurement != null && rawMeasurement.getValue() != null) {
             Class<?> valueClass = rawMeasurement.getValue().getClass();
@@ -288,6 +353,7 @@ public class BaseMeasurement<TheUnit extends Unit> implements Measurement {
     public String toString() {
         return Objects.toStringHelper(this)
             .add("value", mValue)
+            .add("birthtime", mBirthtime)
             .add("range", mRange)
             .toString();
     }
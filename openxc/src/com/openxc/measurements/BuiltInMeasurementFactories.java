@@ -0,0 +1,179 @@
+package com.openxc.measurements;
+
+import java.util.Map;
+
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * The factories for every measurement type built in to the library.
+ *
+ * Each factory calls the same constructor that reflection would pick for the
+ * types of value and event that arrive from the VehicleService.
+ *
+ * This is a separate class so that registering the factories doesn't
+ * initialize any of the measurement classes - they all extend BaseMeasurement,
+ * and initializing them from its static block could deadlock.
+ */
+final class BuiltInMeasurementFactories {
+    private BuiltInMeasurementFactories() { }
+
+    static void registerAll(Map<Class<? extends Measurement>,
+            MeasurementFactory<?>> factories) {
+        factories.put(AcceleratorPedalPosition.class,
+                new MeasurementFactory<AcceleratorPedalPosition>() {
+            public AcceleratorPedalPosition create(RawMeasurement raw) {
+                return new AcceleratorPedalPosition((Number) raw.getValue());
+            }
+        });
+
+        factories.put(BrakePedalStatus.class,
+                new MeasurementFactory<BrakePedalStatus>() {
+            public BrakePedalStatus create(RawMeasurement raw) {
+                return new BrakePedalStatus((java.lang.Boolean) raw.getValue());
+            }
+        });
+
+        factories.put(EngineSpeed.class,
+                new MeasurementFactory<EngineSpeed>() {
+            public EngineSpeed create(RawMeasurement raw) {
+                return new EngineSpeed((Number) raw.getValue());
+            }
+        });
+
+        factories.put(FuelConsumed.class,
+                new MeasurementFactory<FuelConsumed>() {
+            public FuelConsumed create(RawMeasurement raw) {
+                return new FuelConsumed((Number) raw.getValue());
+            }
+        });
+
+        factories.put(FuelLevel.class,
+                new MeasurementFactory<FuelLevel>() {
+            public FuelLevel create(RawMeasurement raw) {
+                return new FuelLevel((Number) raw.getValue());
+            }
+        });
+
+        factories.put(HeadlampStatus.class,
+                new MeasurementFactory<HeadlampStatus>() {
+            public HeadlampStatus create(RawMeasurement raw) {
+                return new HeadlampStatus((java.lang.Boolean) raw.getValue());
+            }
+        });
+
+        factories.put(HighBeamStatus.class,
+                new MeasurementFactory<HighBeamStatus>() {
+            public HighBeamStatus create(RawMeasurement raw) {
+                return new HighBeamStatus((java.lang.Boolean) raw.getValue());
+            }
+        });
+
+        factories.put(IgnitionStatus.class,
+                new MeasurementFactory<IgnitionStatus>() {
+            public IgnitionStatus create(RawMeasurement raw) {
+                return new IgnitionStatus((String) raw.getValue());
+            }
+        });
+
+        factories.put(Latitude.class,
+                new MeasurementFactory<Latitude>() {
+            public Latitude create(RawMeasurement raw) {
+                return new Latitude((Number) raw.getValue());
+            }
+        });
+
+        factories.put(Longitude.class,
+                new MeasurementFactory<Longitude>() {
+            public Longitude create(RawMeasurement raw) {
+                return new Longitude((Number) raw.getValue());
+            }
+        });
+
+        factories.put(Odometer.class,
+                new MeasurementFactory<Odometer>() {
+            public Odometer create(RawMeasurement raw) {
+                return new Odometer((Number) raw.getValue());
+            }
+        });
+
+        factories.put(ParkingBrakeStatus.class,
+                new MeasurementFactory<ParkingBrakeStatus>() {
+            public ParkingBrakeStatus create(RawMeasurement raw) {
+                return new ParkingBrakeStatus(
+                        (java.lang.Boolean) raw.getValue());
+            }
+        });
+
+        factories.put(SteeringWheelAngle.class,
+                new MeasurementFactory<SteeringWheelAngle>() {
+            public SteeringWheelAngle create(RawMeasurement raw) {
+                return new SteeringWheelAngle((Number) raw.getValue());
+            }
+        });
+
+        factories.put(TorqueAtTransmission.class,
+                new MeasurementFactory<TorqueAtTransmission>() {
+            public TorqueAtTransmission create(RawMeasurement raw) {
+                return new TorqueAtTransmission((Number) raw.getValue());
+            }
+        });
+
+        factories.put(TransmissionGearPosition.class,
+                new MeasurementFactory<TransmissionGearPosition>() {
+            public TransmissionGearPosition create(RawMeasurement raw) {
+                return new TransmissionGearPosition((String) raw.getValue());
+            }
+        });
+
+        factories.put(TurnSignalStatus.class,
+                new MeasurementFactory<TurnSignalStatus>() {
+            public TurnSignalStatus create(RawMeasurement raw) {
+                return new TurnSignalStatus((String) raw.getValue());
+            }
+        });
+
+        factories.put(VehicleButtonEvent.class,
+                new MeasurementFactory<VehicleButtonEvent>() {
+            public VehicleButtonEvent create(RawMeasurement raw) {
+                return new VehicleButtonEvent((String) raw.getValue(),
+                        (String) requireEvent(raw));
+            }
+        });
+
+        factories.put(VehicleDoorStatus.class,
+                new MeasurementFactory<VehicleDoorStatus>() {
+            public VehicleDoorStatus create(RawMeasurement raw) {
+                return new VehicleDoorStatus((String) raw.getValue(),
+                        (java.lang.Boolean) requireEvent(raw));
+            }
+        });
+
+        factories.put(VehicleSpeed.class,
+                new MeasurementFactory<VehicleSpeed>() {
+            public VehicleSpeed create(RawMeasurement raw) {
+                return new VehicleSpeed((Number) raw.getValue());
+            }
+        });
+
+        factories.put(WindshieldWiperStatus.class,
+                new MeasurementFactory<WindshieldWiperStatus>() {
+            public WindshieldWiperStatus create(RawMeasurement raw) {
+                return new WindshieldWiperStatus(
+                        (java.lang.Boolean) raw.getValue());
+            }
+        });
+    }
+
+    /**
+     * @throws IllegalArgumentException if the raw measurement has no event -
+     *      the same as reflection not finding a constructor for the value
+     *      alone.
+     */
+    private static Object requireEvent(RawMeasurement raw) {
+        if(!raw.hasEvent()) {
+            throw new IllegalArgumentException(raw.getName() +
+                    " requires an event");
+        }
+        return raw.getEvent();
+    }
+}
@@ -7,7 +7,7 @@ import com.openxc.util.Range;
  * The FuelConsumed is the fuel consumed since the vehicle was started.
  */
 public class FuelConsumed extends BaseMeasurement<Liter> {
-    private final static Range<Liter> RANGE =
+    final static Range<Liter> RANGE =
         new Range<Liter>(new Liter(0), new Liter(4294967295.0));
     public final static String ID = "fuel_consumed_since_restart";
 
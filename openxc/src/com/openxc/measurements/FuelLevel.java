@@ -7,7 +7,7 @@ import com.openxc.util.Range;
  * The FuelLevel is the current level of fuel in the gas tank.
  */
 public class FuelLevel extends BaseMeasurement<Percentage> {
-    private final static Range<Percentage> RANGE =
+    final static Range<Percentage> RANGE =
         new Range<Percentage>(new Percentage(0), new Percentage(100));
     public final static String ID = "fuel_level";
 
@@ -1,7 +1,5 @@
 package com.openxc.measurements;
 
-import java.util.Locale;
-
 import com.openxc.units.State;
 
 /**
@@ -23,11 +21,11 @@ public class IgnitionStatus
     }
 
     public IgnitionStatus(IgnitionPosition value) {
-        this(new State<IgnitionPosition>(value));
+        this(State.of(value));
     }
 
     public IgnitionStatus(String value) {
-        this(IgnitionPosition.valueOf(value.toUpperCase(Locale.US)));
+        this(State.fromSerializedValue(IgnitionPosition.class, value));
     }
 
     @Override
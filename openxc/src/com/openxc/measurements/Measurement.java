@@ -16,16 +16,35 @@ public interface Measurement {
         public void receive(Measurement measurement);
     }
 
+    /**
+     * A listener for numeric measurements that receives the raw value
+     * directly, without a Measurement object being built for each update.
+     *
+     * This is intended for high-frequency displays - the value is in the
+     * measurement's standard unit (e.g. kilometers per hour for
+     * VehicleSpeed).
+     */
+    public interface NumericListener {
+        /**
+         * @param value the new value of the measurement.
+         * @param timestampNanos the time the value was recorded, in
+         *      nanoseconds since the epoch.
+         */
+        public void receive(double value, long timestampNanos);
+    }
+
     /**
      * Retreive the age of this measurement.
      *
-     * @return the age of the data in seconds.
+     * @return the age of the data in milliseconds.
      */
     public double getAge();
 
     /**
      * Set the birth timestamp for this measurement.
      *
+     * @param timestamp the birth time in seconds since the epoch. Zero and NaN
+     *      are ignored.
      */
     public void setTimestamp(double timestamp);
 
@@ -55,6 +74,10 @@ public interface Measurement {
 
     public RawMeasurement toRaw();
 
+    /**
+     * @return the birth time of this measurement in milliseconds since the
+     *      epoch.
+     */
     public double getBirthtime();
 
     public String getGenericName();
@@ -0,0 +1,259 @@
+package com.openxc.measurements;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Objects;
+import com.openxc.units.Boolean;
+import com.openxc.units.Degree;
+import com.openxc.units.Kilometer;
+import com.openxc.units.KilometersPerHour;
+import com.openxc.units.Liter;
+import com.openxc.units.NewtonMeter;
+import com.openxc.units.Percentage;
+import com.openxc.units.Quantity;
+import com.openxc.units.RotationsPerMinute;
+import com.openxc.units.State;
+import com.openxc.units.Unit;
+import com.openxc.util.Range;
+
+/**
+ * The catalog of every known measurement type, with its ID, class, unit and
+ * valid range.
+ *
+ * The measurements built in to the library are added when this class is
+ * loaded, so they can be found by ID before anyone has asked for them by
+ * class. Each type has a small, dense index that can be used to look up
+ * per-type data in an array. Other measurement types are added the first time
+ * they are passed to {@link BaseMeasurement#getIdForClass(Class)}.
+ *
+ * None of the lookups throw - they return null for unknown types.
+ *
+ * Types are added rarely, and looked up for every measurement, so the catalog
+ * is copied when a type is added instead of being locked or shared with
+ * writers. A lookup reads one volatile reference to a map that never changes
+ * again.
+ */
+public final class MeasurementCatalog {
+    // Each of these is replaced, never modified, once it's published
+    private static volatile Entry[] sEntries = new Entry[0];
+    private static volatile Map<String, Entry> sEntriesById =
+            new HashMap<String, Entry>();
+    private static volatile Map<Class<? extends Measurement>, Entry>
+            sEntriesByType =
+            new HashMap<Class<? extends Measurement>, Entry>();
+    private static final int sBuiltInCount;
+
+    static {
+        add(AcceleratorPedalPosition.ID, AcceleratorPedalPosition.class,
+                Percentage.class, AcceleratorPedalPosition.RANGE);
+        add(BrakePedalStatus.ID, BrakePedalStatus.class, Boolean.class, null);
+        add(EngineSpeed.ID, EngineSpeed.class, RotationsPerMinute.class,
+                EngineSpeed.RANGE);
+        add(FuelConsumed.ID, FuelConsumed.class, Liter.class,
+                FuelConsumed.RANGE);
+        add(FuelLevel.ID, FuelLevel.class, Percentage.class, FuelLevel.RANGE);
+        add(HeadlampStatus.ID, HeadlampStatus.class, Boolean.class, null);
+        add(HighBeamStatus.ID, HighBeamStatus.class, Boolean.class, null);
+        add(IgnitionStatus.ID, IgnitionStatus.class, State.class, null);
+        add(Latitude.ID, Latitude.class, Degree.class, Latitude.RANGE);
+        add(Longitude.ID, Longitude.class, Degree.class, Longitude.RANGE);
+        add(Odometer.ID, Odometer.class, Kilometer.class, Odometer.RANGE);
+        add(ParkingBrakeStatus.ID, ParkingBrakeStatus.class, Boolean.class,
+                null);
+        add(SteeringWheelAngle.ID, SteeringWheelAngle.class, Degree.class,
+                SteeringWheelAngle.RANGE);
+        add(TorqueAtTransmission.ID, TorqueAtTransmission.class,
+                NewtonMeter.class, TorqueAtTransmission.RANGE);
+        add(TransmissionGearPosition.ID, TransmissionGearPosition.class,
+                State.class, null);
+        add(TurnSignalStatus.ID, TurnSignalStatus.class, State.class, null);
+        add(VehicleButtonEvent.ID, VehicleButtonEvent.class, State.class, null);
+        add(VehicleDoorStatus.ID, VehicleDoorStatus.class, State.class, null);
+        add(VehicleSpeed.ID, VehicleSpeed.class, KilometersPerHour.class,
+                VehicleSpeed.RANGE);
+        add(WindshieldWiperStatus.ID, WindshieldWiperStatus.class,
+                Boolean.class, null);
+        sBuiltInCount = sEntries.length;
+    }
+
+    private MeasurementCatalog() { }
+
+    /**
+     * The catalog's information about one measurement type.
+     */
+    public static final class Entry {
+        private final int mIndex;
+        private final String mId;
+        private final Class<? extends Measurement> mType;
+        private final Class<? extends Unit> mUnit;
+        private final Range<? extends Unit> mRange;
+
+        private Entry(int index, String id, Class<? extends Measurement> type,
+                Class<? extends Unit> unit, Range<? extends Unit> range) {
+            mIndex = index;
+            mId = id;
+            mType = type;
+            mUnit = unit;
+            mRange = range;
+        }
+
+        /**
+         * @return the type's position in the catalog, between 0 and
+         *      {@link MeasurementCatalog#size()}.
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        public Class<? extends Measurement> getType() {
+            return mType;
+        }
+
+        /**
+         * @return the type's unit, or null if it isn't known.
+         */
+        public Class<? extends Unit> getUnit() {
+            return mUnit;
+        }
+
+        /**
+         * @return true if the type reports discrete changes of state (e.g. a
+         *      button press or the ignition turning on) rather than a sampled
+         *      numeric value.
+         */
+        public boolean isDiscrete() {
+            return mUnit != null && !Quantity.class.isAssignableFrom(mUnit);
+        }
+
+        public boolean hasRange() {
+            return mRange != null;
+        }
+
+        /**
+         * @return the valid range of the type's values, or null if it
+         *      doesn't have one.
+         */
+        public Range<? extends Unit> getRange() {
+            return mRange;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                .add("index", mIndex)
+                .add("id", mId)
+                .add("unit", mUnit)
+                .add("discrete", isDiscrete())
+                .add("range", mRange)
+                .toString();
+        }
+    }
+
+    /**
+     * @return the entry for the measurement ID, or null if it isn't known.
+     */
+    public static Entry get(String id) {
+        if(id == null) {
+            return null;
+        }
+        return sEntriesById.get(id);
+    }
+
+    /**
+     * @return the entry for the measurement class, or null if it isn't known.
+     */
+    public static Entry get(Class<? extends Measurement> type) {
+        if(type == null) {
+            return null;
+        }
+        return sEntriesByType.get(type);
+    }
+
+    /**
+     * @return the entry at the index, or null if the index is out of range.
+     */
+    public static Entry get(int index) {
+        Entry[] entries = sEntries;
+        if(index < 0 || index >= entries.length) {
+            return null;
+        }
+        return entries[index];
+    }
+
+    /**
+     * @return the number of measurement types in the catalog. Indexes are
+     *      always less than this value, but it can grow as new types are
+     *      added.
+     */
+    public static int size() {
+        return sEntries.length;
+    }
+
+    /**
+     * @return the entries in index order.
+     */
+    public static List<Entry> getEntries() {
+        return Collections.unmodifiableList(Arrays.asList(sEntries));
+    }
+
+    /**
+     * @return the IDs of the measurements built in to the library, in index
+     *      order.
+     */
+    public static List<String> getBuiltInIds() {
+        List<String> ids = new ArrayList<String>(sBuiltInCount);
+        for(int i = 0; i < sBuiltInCount; i++) {
+            ids.add(sEntries[i].getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Add a measurement type that isn't built in to the library. Its unit and
+     * range aren't known.
+     *
+     * @return the new entry, or the existing one if the type or ID was already
+     *      in the catalog.
+     */
+    static Entry add(String id, Class<? extends Measurement> type) {
+        return add(id, type, null, null);
+    }
+
+    private static synchronized Entry add(String id,
+            Class<? extends Measurement> type, Class<? extends Unit> unit,
+            Range<? extends Unit> range) {
+        Entry existing = sEntriesByType.get(type);
+        if(existing == null) {
+            existing = sEntriesById.get(id);
+        }
+        if(existing != null) {
+            return existing;
+        }
+
+        Entry[] entries = new Entry[sEntries.length + 1];
+        System.arraycopy(sEntries, 0, entries, 0, sEntries.length);
+        Entry entry = new Entry(sEntries.length, id, type, unit, range);
+        entries[entry.getIndex()] = entry;
+
+        Map<String, Entry> byId = new HashMap<String, Entry>(sEntriesById);
+        byId.put(id, entry);
+        Map<Class<? extends Measurement>, Entry> byType =
+                new HashMap<Class<? extends Measurement>, Entry>(
+                        sEntriesByType);
+        byType.put(type, entry);
+
+        sEntriesById = byId;
+        sEntriesByType = byType;
+        sEntries = entries;
+        return entry;
+    }
+}
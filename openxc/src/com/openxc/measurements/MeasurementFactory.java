@@ -0,0 +1,22 @@
+package com.openxc.measurements;
+
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * Builds a specific type of {@link Measurement} from a {@link RawMeasurement}
+ * with plain constructor calls.
+ *
+ * A factory is registered for every measurement built in to the library.
+ * Applications with their own measurement types can register one with
+ * {@link BaseMeasurement#registerFactory(Class, MeasurementFactory)} -
+ * otherwise those types are built with reflection, which is much slower.
+ *
+ * The factory doesn't need to set the timestamp, and the raw measurement is
+ * guaranteed to have a value, but not an event. If the value or event is the
+ * wrong type or a required event is missing, throwing a ClassCastException or
+ * IllegalArgumentException is fine - the caller reports it as an
+ * {@link UnrecognizedMeasurementTypeException}.
+ */
+public interface MeasurementFactory<T extends Measurement> {
+    public T create(RawMeasurement rawMeasurement);
+}
@@ -10,7 +10,7 @@ import com.openxc.util.Range;
  * the left when the angle is negative, and to the right when it is positive.
  */
 public class SteeringWheelAngle extends BaseMeasurement<Degree> {
-    private final static Range<Degree> RANGE =
+    final static Range<Degree> RANGE =
         new Range<Degree>(new Degree(-600), new Degree(600));
     public final static String ID = "steering_wheel_angle";
 
@@ -1,7 +1,5 @@
 package com.openxc.measurements;
 
-import java.util.Locale;
-
 import com.openxc.units.State;
 
 /**
@@ -32,11 +30,11 @@ public class TransmissionGearPosition
     }
 
     public TransmissionGearPosition(GearPosition value) {
-        this(new State<GearPosition>(value));
+        this(State.of(value));
     }
 
     public TransmissionGearPosition(String value) {
-        this(GearPosition.valueOf(value.toUpperCase(Locale.US)));
+        this(State.fromSerializedValue(GearPosition.class, value));
     }
 
     @Override
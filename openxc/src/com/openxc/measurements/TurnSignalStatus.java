@@ -17,11 +17,11 @@ public class TurnSignalStatus extends
     }
 
     public TurnSignalStatus(TurnSignalPosition value) {
-        this(new State<TurnSignalPosition>(value));
+        this(State.of(value));
     }
 
     public TurnSignalStatus(String value) {
-        this(TurnSignalPosition.valueOf(value));
+        this(State.fromSerializedValue(TurnSignalPosition.class, value));
     }
 
     @Override
@@ -1,7 +1,5 @@
 package com.openxc.measurements;
 
-import java.util.Locale;
-
 import com.openxc.units.State;
 
 /**
@@ -54,12 +52,12 @@ public class VehicleButtonEvent
     }
 
     public VehicleButtonEvent(ButtonId value, ButtonAction event) {
-        this(new State<ButtonId>(value), new State<ButtonAction>(event));
+        this(State.of(value), State.of(event));
     }
 
     public VehicleButtonEvent(String value, String event) {
-        this(ButtonId.valueOf(value.toUpperCase(Locale.US)),
-                ButtonAction.valueOf(event.toUpperCase(Locale.US)));
+        this(State.fromSerializedValue(ButtonId.class, value),
+                State.fromSerializedValue(ButtonAction.class, event));
     }
 
     @SuppressWarnings("unchecked")
@@ -1,7 +1,5 @@
 package com.openxc.measurements;
 
-import java.util.Locale;
-
 import com.openxc.units.State;
 
 import com.openxc.units.Boolean;
@@ -37,11 +35,12 @@ public class VehicleDoorStatus
     }
 
     public VehicleDoorStatus(DoorId value, Boolean event) {
-        this(new State<DoorId>(value), event);
+        this(State.of(value), event);
     }
 
     public VehicleDoorStatus(String value, java.lang.Boolean event) {
-        this(DoorId.valueOf(value.toUpperCase(Locale.US)), new Boolean(event));
+        this(State.fromSerializedValue(DoorId.class, value),
+                new Boolean(event));
     }
 
     @Override
@@ -7,7 +7,7 @@ import com.openxc.util.Range;
  * The VehicleSpeed is the current forward speed of the vehicle.
  */
 public class VehicleSpeed extends BaseMeasurement<KilometersPerHour> {
-    private final static Range<KilometersPerHour> RANGE =
+    final static Range<KilometersPerHour> RANGE =
         new Range<KilometersPerHour>(new KilometersPerHour(0.0),
                 new KilometersPerHour(655.0));
     public final static String ID = "vehicle_speed";
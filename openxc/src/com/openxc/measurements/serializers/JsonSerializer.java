@@ -16,8 +16,15 @@ public class JsonSerializer implements MeasurementSerializer {
     public static final String VALUE_FIELD = "value";
     public static final String EVENT_FIELD = "event";
     public static final String TIMESTAMP_FIELD = "timestamp";
-    private static DecimalFormat sTimestampFormatter =
-            new DecimalFormat("##########.000000");
+    // DecimalFormat isn't thread safe, and measurements are serialized on
+    // several threads at once
+    private static ThreadLocal<DecimalFormat> sTimestampFormatter =
+            new ThreadLocal<DecimalFormat>() {
+        @Override
+        protected DecimalFormat initialValue() {
+            return new DecimalFormat("##########.000000");
+        }
+    };
 
     public static String serialize(String name, Object value, Object event,
             Double timestamp) {
@@ -39,7 +46,7 @@ public class JsonSerializer implements MeasurementSerializer {
 
             if(timestamp != null) {
                 gen.writeFieldName(TIMESTAMP_FIELD);
-                gen.writeRawValue(sTimestampFormatter.format(timestamp));
+                gen.writeRawValue(sTimestampFormatter.get().format(timestamp));
             }
 
             gen.writeEndObject();
@@ -0,0 +1,180 @@
+package com.openxc.remote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.google.common.base.Objects;
+import com.openxc.util.TaskRuntime;
+import com.openxc.util.TimerWheel;
+
+/**
+ * Collect measurements that an application wants to send to the
+ * {@link VehicleService} and deliver them in batches.
+ *
+ * A batch is sent with a single
+ * {@link VehicleServiceInterface#receiveBatch(List)} call when it reaches the
+ * maximum size, or when the oldest measurement in it has been waiting for the
+ * flush interval - whichever comes first. Measurements are always delivered in
+ * the order they were added. The flush deadline is kept on the shared
+ * {@link TaskRuntime} timer.
+ */
+public class MeasurementBatcher {
+    private final static String TAG = "MeasurementBatcher";
+    public final static int DEFAULT_FLUSH_INTERVAL_MS = 20;
+    public final static int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    private final VehicleServiceInterface mService;
+    private final SignalIdTable mSignalIds;
+    private final long mFlushIntervalNanos;
+    private final int mMaxBatchSize;
+    private final TimerWheel mTimer = TaskRuntime.getDefault().getTimer();
+
+    private final Lock mBufferLock = new ReentrantLock();
+    private List<RawMeasurement> mBuffer;
+    private TimerWheel.Timeout mFlushTimeout;
+    private boolean mRunning = true;
+
+    // Held while taking and sending a batch, so batches can't be reordered
+    // when the flush thread and a caller filling a batch race
+    private final Lock mSendLock = new ReentrantLock();
+    private long mBatchCount;
+    private long mMeasurementCount;
+
+    public MeasurementBatcher(VehicleServiceInterface service) {
+        this(service, SignalIdTable.DEFAULT);
+    }
+
+    public MeasurementBatcher(VehicleServiceInterface service,
+            SignalIdTable signalIds) {
+        this(service, signalIds, DEFAULT_FLUSH_INTERVAL_MS,
+                DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public MeasurementBatcher(VehicleServiceInterface service,
+            int flushIntervalMs, int maxBatchSize) {
+        this(service, SignalIdTable.DEFAULT, flushIntervalMs, maxBatchSize);
+    }
+
+    /**
+     * @param service the service to send batches to.
+     * @param signalIds the table published by the service, used to write the
+     *      batches.
+     * @param flushIntervalMs the longest a measurement may wait before it is
+     *      sent.
+     * @param maxBatchSize the number of measurements that triggers an
+     *      immediate send.
+     */
+    public MeasurementBatcher(VehicleServiceInterface service,
+            SignalIdTable signalIds, int flushIntervalMs, int maxBatchSize) {
+        mService = service;
+        mSignalIds = signalIds;
+        mFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        mMaxBatchSize = maxBatchSize;
+        mBuffer = new ArrayList<RawMeasurement>(mMaxBatchSize);
+    }
+
+    /**
+     * Queue a measurement to be sent to the service.
+     *
+     * If this fills the batch, or the measurement is a high priority signal
+     * (see {@link SignalPriorities}), the batch is sent from the calling
+     * thread.
+     */
+    public void add(RawMeasurement measurement) {
+        boolean full;
+        mBufferLock.lock();
+        try {
+            if(!mRunning) {
+                return;
+            }
+
+            if(mBuffer.isEmpty()) {
+                mFlushTimeout = mTimer.schedule(mFlushTask,
+                        mFlushIntervalNanos, TimeUnit.NANOSECONDS);
+            }
+            mBuffer.add(measurement);
+            // don't hold up discrete events waiting for a batch to fill
+            full = mBuffer.size() >= mMaxBatchSize ||
+                    SignalPriorities.isHighPriority(measurement.getName());
+        } finally {
+            mBufferLock.unlock();
+        }
+
+        if(full) {
+            flush();
+        }
+    }
+
+    /**
+     * Send any waiting measurements to the service immediately.
+     */
+    public void flush() {
+        mSendLock.lock();
+        try {
+            List<RawMeasurement> batch = takeBatch();
+            if(batch.isEmpty()) {
+                return;
+            }
+
+            SignalIdTable previous =
+                    RawMeasurement.useSignalIdTable(mSignalIds);
+            try {
+                mService.receiveBatch(batch);
+                mBatchCount++;
+                mMeasurementCount += batch.size();
+            } catch(RemoteException e) {
+                Log.d(TAG, "Unable to send batch to remote service", e);
+            } finally {
+                RawMeasurement.useSignalIdTable(previous);
+            }
+        } finally {
+            mSendLock.unlock();
+        }
+    }
+
+    /**
+     * Send any waiting measurements. Measurements added after this are
+     * dropped.
+     */
+    public void stop() {
+        mBufferLock.lock();
+        mRunning = false;
+        mBufferLock.unlock();
+        flush();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("batches", mBatchCount)
+            .add("measurements", mMeasurementCount)
+            .toString();
+    }
+
+    private List<RawMeasurement> takeBatch() {
+        mBufferLock.lock();
+        try {
+            List<RawMeasurement> batch = mBuffer;
+            if(!batch.isEmpty()) {
+                mBuffer = new ArrayList<RawMeasurement>(mMaxBatchSize);
+                mFlushTimeout.cancel();
+                mFlushTimeout = null;
+            }
+            return batch;
+        } finally {
+            mBufferLock.unlock();
+        }
+    }
+
+    private Runnable mFlushTask = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+}
@@ -2,6 +2,7 @@ package com.openxc.remote;
 
 import java.io.IOException;
 
+import android.os.BadParcelableException;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
@@ -35,11 +36,39 @@ import com.openxc.measurements.serializers.JsonSerializer;
 public class RawMeasurement implements Parcelable {
     private static final String TAG = "RawMeasurement";
 
+    // Each value and event in a Parcel is preceded by one of these tags, so
+    // the common types can be written as primitives instead of going through
+    // Parcel#writeValue.
+    private static final int TAG_NULL = 0;
+    private static final int TAG_DOUBLE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_FALSE = 3;
+    private static final int TAG_INTEGER = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_OTHER = 6;
+    private static final int TAG_LONG = 7;
+
+    private static final int TAG_BITS = 4;
+    private static final int TAG_MASK = (1 << TAG_BITS) - 1;
+    private static final int NAME_SHIFT = TAG_BITS * 2;
+
+    // The table each thread uses to write names - usually the one published
+    // by the process on the other end of the call being made
+    private static final ThreadLocal<SignalIdTable> sWriteTable =
+            new ThreadLocal<SignalIdTable>() {
+        @Override
+        protected SignalIdTable initialValue() {
+            return SignalIdTable.DEFAULT;
+        }
+    };
+
     private String mCachedSerialization;
     private double mTimestamp;
     private String mName;
     private Object mValue;
     private Object mEvent;
+    // Local to this process, so it's not written to a Parcel
+    private volatile long mArrivalNanos;
 
     public RawMeasurement(String name, Object value) {
         this();
@@ -65,18 +94,153 @@ public class RawMeasurement implements Parcelable {
         timestamp();
     }
 
+    /**
+     * Parse a serialized measurement, leaving it without a timestamp if it
+     * doesn't have one of its own instead of stamping it with the current
+     * time - e.g. for a line of a trace that's being converted rather than
+     * played.
+     */
+    public static RawMeasurement deserializeUntimestamped(String serialized)
+            throws UnrecognizedMeasurementTypeException {
+        RawMeasurement measurement = new RawMeasurement();
+        measurement.untimestamp();
+        deserialize(serialized, measurement);
+        return measurement;
+    }
+
+    /**
+     * Use a table to shorten the names of measurements the calling thread
+     * writes to a Parcel, until it's changed again.
+     *
+     * The process reading the Parcel must have the same table, so a client
+     * uses the table the VehicleService publishes with getSignalIds() around
+     * its calls to that service - see {@link SignalIdTable} for how tables are
+     * found when reading. Threads that don't set one use
+     * {@link SignalIdTable#DEFAULT}, the VehicleService's own table.
+     *
+     * @param table the table to use, or null for the default.
+     * @return the table the thread used before, so it can be restored.
+     */
+    public static SignalIdTable useSignalIdTable(SignalIdTable table) {
+        SignalIdTable previous = sWriteTable.get();
+        sWriteTable.set(table == null ? SignalIdTable.DEFAULT : table);
+        return previous;
+    }
+
+    /**
+     * Write the measurement to a Parcel.
+     *
+     * The first int packs the type tags of the value and event with the ID of
+     * the name from the thread's SignalIdTable (stored as ID + 1, with 0
+     * meaning the name follows as a string). An ID is followed by the table's
+     * fingerprint, so the reader can find the same table. Numbers and booleans
+     * are written as primitives, and anything else falls back to
+     * Parcel#writeValue.
+     */
     public void writeToParcel(Parcel out, int flags) {
-        out.writeString(getName());
+        SignalIdTable table = sWriteTable.get();
+        int nameId = table.getId(getName()) + 1;
+        int valueTag = tagFor(getValue());
+        int eventTag = tagFor(getEvent());
+        out.writeInt((nameId << NAME_SHIFT) | (eventTag << TAG_BITS)
+                | valueTag);
+        if(nameId == 0) {
+            out.writeString(getName());
+        } else {
+            out.writeLong(table.getFingerprint());
+        }
         out.writeDouble(getTimestamp());
-        out.writeValue(getValue());
-        out.writeValue(getEvent());
+        writeTagged(out, valueTag, getValue());
+        writeTagged(out, eventTag, getEvent());
     }
 
+    /**
+     * Read a measurement written by {@link #writeToParcel(Parcel, int)}.
+     *
+     * @throws BadParcelableException if the name was written as an ID from a
+     *      table this process doesn't have.
+     */
     public void readFromParcel(Parcel in) {
-        mName = in.readString();
+        int header = in.readInt();
+        int nameId = header >>> NAME_SHIFT;
+        if(nameId == 0) {
+            mName = in.readString();
+        } else {
+            long fingerprint = in.readLong();
+            SignalIdTable table = SignalIdTable.forFingerprint(fingerprint);
+            String name = table == null ? null : table.getName(nameId - 1);
+            if(name == null) {
+                throw new BadParcelableException("Signal ID " + (nameId - 1) +
+                        " isn't in a known table (fingerprint " +
+                        Long.toHexString(fingerprint) + ") - the table " +
+                        "from the other process must be created here first");
+            }
+            mName = name;
+        }
         mTimestamp = in.readDouble();
-        mValue = in.readValue(null);
-        mEvent = in.readValue(null);
+        mValue = readTagged(in, header & TAG_MASK);
+        mEvent = readTagged(in, (header >>> TAG_BITS) & TAG_MASK);
+    }
+
+    private static int tagFor(Object value) {
+        if(value == null) {
+            return TAG_NULL;
+        } else if(value instanceof Integer) {
+            return TAG_INTEGER;
+        } else if(value instanceof Long) {
+            return TAG_LONG;
+        } else if(value instanceof Double || value instanceof Float) {
+            return TAG_DOUBLE;
+        } else if(value instanceof Boolean) {
+            return ((Boolean) value).booleanValue() ? TAG_TRUE : TAG_FALSE;
+        } else if(value instanceof String) {
+            return TAG_STRING;
+        }
+        return TAG_OTHER;
+    }
+
+    private static void writeTagged(Parcel out, int tag, Object value) {
+        switch(tag) {
+        case TAG_DOUBLE:
+            out.writeDouble(((Number) value).doubleValue());
+            break;
+        case TAG_INTEGER:
+            out.writeInt((Integer) value);
+            break;
+        case TAG_LONG:
+            out.writeLong((Long) value);
+            break;
+        case TAG_STRING:
+            out.writeString((String) value);
+            break;
+        case TAG_OTHER:
+            out.writeValue(value);
+            break;
+        default:
+            // null and booleans are entirely described by the tag
+            break;
+        }
+    }
+
+    private static Object readTagged(Parcel in, int tag) {
+        switch(tag) {
+        case TAG_DOUBLE:
+            return in.readDouble();
+        case TAG_TRUE:
+            return Boolean.TRUE;
+        case TAG_FALSE:
+            return Boolean.FALSE;
+        case TAG_INTEGER:
+            return in.readInt();
+        case TAG_LONG:
+            return in.readLong();
+        case TAG_STRING:
+            return in.readString();
+        case TAG_OTHER:
+            return in.readValue(null);
+        default:
+            return null;
+        }
     }
 
     public static final Parcelable.Creator<RawMeasurement> CREATOR =
@@ -127,11 +291,10 @@ public class RawMeasurement implements Parcelable {
      * @return true if the measurement has a valid timestamp.
      */
     public boolean isTimestamped() {
-        return getTimestamp() != null && !Double.isNaN(getTimestamp())
-            && getTimestamp() != 0;
+        return !Double.isNaN(mTimestamp) && mTimestamp != 0;
     }
 
-    public Double getTimestamp() {
+    public double getTimestamp() {
         return mTimestamp;
     }
 
@@ -143,6 +306,36 @@ public class RawMeasurement implements Parcelable {
     	mTimestamp = Double.NaN;
     }
 
+    /**
+     * Replace the measurement's timestamp, e.g. to move a measurement played
+     * from a trace to the time it was played.
+     *
+     * @param timestamp seconds since the epoch.
+     */
+    public void setTimestamp(double timestamp) {
+        mTimestamp = timestamp;
+        mCachedSerialization = null;
+    }
+
+    /**
+     * Note the time the measurement arrived in this process, unless it was
+     * already noted - e.g. by the VehicleService's pipeline, for a measurement
+     * passed straight to a client in the same process.
+     */
+    public void markArrival() {
+        if(mArrivalNanos == 0) {
+            mArrivalNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} when the measurement arrived in
+     *      this process, or 0 if it hasn't been marked.
+     */
+    public long getArrivalNanos() {
+        return mArrivalNanos;
+    }
+
     public int describeContents() {
         return 0;
     }
@@ -21,10 +21,21 @@ import com.openxc.sources.SourceCallback;
 public class RemoteServiceVehicleInterface implements VehicleInterface {
     private final static String TAG = "RemoteServiceVehicleInterface";
     private VehicleServiceInterface mRemoteService;
+    private SignalIdTable mSignalIds;
 
     public RemoteServiceVehicleInterface(
             VehicleServiceInterface remoteService) {
+        this(remoteService, SignalIdTable.DEFAULT);
+    }
+
+    /**
+     * @param signalIds the table published by the service, used to write the
+     *      commands sent to it.
+     */
+    public RemoteServiceVehicleInterface(
+            VehicleServiceInterface remoteService, SignalIdTable signalIds) {
         mRemoteService = remoteService;
+        mSignalIds = signalIds;
     }
 
     public boolean receive(RawMeasurement command) {
@@ -33,12 +44,15 @@ public class RemoteServiceVehicleInterface implements VehicleInterface {
             return false;
         }
 
+        SignalIdTable previous = RawMeasurement.useSignalIdTable(mSignalIds);
         try {
             return mRemoteService.send(command);
         } catch(RemoteException e) {
             Log.w(TAG, "Unable to send command to remote vehicle service",
                     e);
             return false;
+        } finally {
+            RawMeasurement.useSignalIdTable(previous);
         }
     }
 
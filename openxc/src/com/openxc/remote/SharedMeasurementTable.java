@@ -0,0 +1,447 @@
+package com.openxc.remote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Objects;
+
+/**
+ * A table of the latest value of every measurement, stored in a memory-mapped
+ * file so it can be read by other processes without a Binder transaction.
+ *
+ * The table is a fixed-layout array of slots, one per measurement name. Slots
+ * are assigned to names in the order they are first seen and never move, so a
+ * reader only has to find a slot once. Each slot is protected by a sequence
+ * lock - the single writer bumps the slot's sequence to an odd number before
+ * changing it and back to an even number afterwards, and a reader retries if
+ * the sequence changed (or was odd) while it was copying the slot.
+ *
+ * Platform limitation: the sequence lock is not correct under the Java memory
+ * model. The JMM gives no ordering between plain accesses to a mapped buffer
+ * and an unrelated volatile field, says nothing about another process, and
+ * Java 6 has no fence or ordered-store API that applies to a buffer. The table
+ * relies instead on how Dalvik and ART compile volatiles: a volatile write is
+ * a full hardware barrier before the store and a volatile read a full barrier
+ * after the load (e.g. "dmb ish" on ARM, a locked instruction on x86). Those
+ * barriers order every memory access of the thread, including to the shared
+ * mapping, as seen from any core and so from any process, and the table
+ * issues them with storeFence() and loadFence() where a sequence lock needs
+ * them. Other runtimes are free to elide barriers for a field only one thread
+ * touches, so the VehicleService only publishes the table, and the
+ * VehicleManager only maps it, when {@link #isSupported()} - elsewhere they
+ * fall back to the AIDL interface. The class itself works anywhere, e.g. for
+ * tests on a JVM, but makes no promise about torn reads there.
+ *
+ * Readers find slots through an immutable map that is replaced, not changed,
+ * when new slots appear, so a read of a known name doesn't take any lock.
+ *
+ * Values must be a Number, Boolean or a short ASCII String to fit in a slot.
+ * Anything else is marked as unavailable and {@link #read(String)} returns
+ * null, so callers can fall back to asking the
+ * {@link com.openxc.remote.VehicleService} directly.
+ *
+ * This class doesn't depend on any Android APIs so it can be tested and
+ * benchmarked on a regular JVM.
+ */
+public class SharedMeasurementTable {
+    public final static int DEFAULT_CAPACITY = 256;
+
+    final static int MAGIC = 0x4f584331;
+    final static int VERSION = 1;
+    final static int HEADER_SIZE = 64;
+    final static int SLOT_SIZE = 128;
+    final static int MAX_NAME_LENGTH = 43;
+    final static int MAX_STRING_LENGTH = 32;
+
+    private final static int HEADER_MAGIC = 0;
+    private final static int HEADER_VERSION = 4;
+    private final static int HEADER_CAPACITY = 8;
+    private final static int HEADER_SLOT_SIZE = 12;
+    private final static int HEADER_SLOT_COUNT = 16;
+    private final static int HEADER_FLAGS = 20;
+
+    private final static int FLAG_OVERFLOWED = 1;
+
+    private final static int SLOT_SEQUENCE = 0;
+    private final static int SLOT_NAME_LENGTH = 4;
+    private final static int SLOT_NAME = 5;
+    private final static int SLOT_TIMESTAMP = 48;
+    private final static int SLOT_VALUE_TYPE = 56;
+    private final static int SLOT_VALUE_LENGTH = 57;
+    private final static int SLOT_EVENT_TYPE = 58;
+    private final static int SLOT_EVENT_LENGTH = 59;
+    private final static int SLOT_VALUE = 64;
+    private final static int SLOT_EVENT = 96;
+
+    private final static byte TYPE_NONE = 0;
+    private final static byte TYPE_NUMBER = 1;
+    private final static byte TYPE_BOOLEAN = 2;
+    private final static byte TYPE_STRING = 3;
+    private final static byte TYPE_UNAVAILABLE = 4;
+
+    private final static int MAX_READ_ATTEMPTS = 64;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    private final boolean mWritable;
+    // Slot indexes are cached on both sides - the writer owns the assignment
+    // and readers lazily discover new slots as they are published. The map is
+    // never changed once published, only replaced by a larger copy.
+    private volatile Map<String, Integer> mSlots = Collections.emptyMap();
+    private volatile int mKnownSlotCount;
+
+    // Only used for the barriers the runtime emits around volatile accesses -
+    // see the class documentation for why that's enough for the mapped buffer.
+    private volatile int mFence;
+
+    private SharedMeasurementTable(ByteBuffer buffer, int capacity,
+            boolean writable) {
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mWritable = writable;
+    }
+
+    /**
+     * @return true if the runtime orders accesses to the mapped table the way
+     *      the sequence lock needs - only Dalvik and ART, which both report
+     *      themselves as "Dalvik".
+     */
+    public static boolean isSupported() {
+        String vm = System.getProperty("java.vm.name");
+        return vm != null && vm.startsWith("Dalvik");
+    }
+
+    /**
+     * Create (or truncate) a table file and map it for writing.
+     *
+     * @param file the file to back the table.
+     * @param capacity the maximum number of distinct measurements to store.
+     * @throws IOException if the file can't be created or mapped.
+     */
+    public static SharedMeasurementTable create(File file, int capacity)
+            throws IOException {
+        int size = HEADER_SIZE + capacity * SLOT_SIZE;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        ByteBuffer buffer;
+        try {
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(size);
+            buffer = randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        SharedMeasurementTable table = new SharedMeasurementTable(buffer,
+                capacity, true);
+        buffer.putInt(HEADER_VERSION, VERSION);
+        buffer.putInt(HEADER_CAPACITY, capacity);
+        buffer.putInt(HEADER_SLOT_SIZE, SLOT_SIZE);
+        buffer.putInt(HEADER_SLOT_COUNT, 0);
+        buffer.putInt(HEADER_FLAGS, 0);
+        table.storeFence();
+        buffer.putInt(HEADER_MAGIC, MAGIC);
+        return table;
+    }
+
+    /**
+     * Map an existing table read-only, e.g. from a file descriptor received
+     * from the VehicleService.
+     *
+     * @param channel an open channel to the table file. The mapping stays valid
+     *      after the channel is closed.
+     * @throws IOException if the channel can't be mapped or doesn't contain a
+     *      compatible table.
+     */
+    public static SharedMeasurementTable open(FileChannel channel)
+            throws IOException {
+        long size = channel.size();
+        if(size < HEADER_SIZE) {
+            throw new IOException("Measurement table is too small: " + size);
+        }
+
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                size);
+        if(buffer.getInt(HEADER_MAGIC) != MAGIC
+                || buffer.getInt(HEADER_VERSION) != VERSION
+                || buffer.getInt(HEADER_SLOT_SIZE) != SLOT_SIZE) {
+            throw new IOException("Not a compatible measurement table");
+        }
+
+        int capacity = buffer.getInt(HEADER_CAPACITY);
+        if(HEADER_SIZE + (long) capacity * SLOT_SIZE > size) {
+            throw new IOException("Measurement table is truncated");
+        }
+        return new SharedMeasurementTable(buffer, capacity, false);
+    }
+
+    /**
+     * Store the measurement as the latest value for its name.
+     *
+     * Only one process may write to a table, but calls from multiple threads
+     * in that process are serialized.
+     *
+     * @return false if the table is full and the measurement has no slot.
+     */
+    public synchronized boolean write(RawMeasurement measurement) {
+        if(!mWritable) {
+            throw new IllegalStateException("Measurement table is read-only");
+        }
+
+        int slot = findOrAllocateSlot(measurement.getName());
+        if(slot == -1) {
+            return false;
+        }
+
+        int base = slotOffset(slot);
+        int sequence = mBuffer.getInt(base + SLOT_SEQUENCE);
+        mBuffer.putInt(base + SLOT_SEQUENCE, sequence + 1);
+        storeFence();
+
+        mBuffer.putDouble(base + SLOT_TIMESTAMP, measurement.getTimestamp());
+        writeField(base + SLOT_VALUE_TYPE, base + SLOT_VALUE_LENGTH,
+                base + SLOT_VALUE, measurement.getValue());
+        writeField(base + SLOT_EVENT_TYPE, base + SLOT_EVENT_LENGTH,
+                base + SLOT_EVENT, measurement.getEvent());
+
+        storeFence();
+        mBuffer.putInt(base + SLOT_SEQUENCE, sequence + 2);
+        return true;
+    }
+
+    /**
+     * Read a consistent copy of the latest value for a measurement.
+     *
+     * @return the latest measurement, or null if the name has no slot, the
+     *      value couldn't be stored in the table or a consistent copy couldn't
+     *      be made because the writer was too busy.
+     */
+    public RawMeasurement read(String name) {
+        int slot = findSlot(name);
+        if(slot == -1) {
+            return null;
+        }
+
+        int base = slotOffset(slot);
+        for(int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            int sequence = mBuffer.getInt(base + SLOT_SEQUENCE);
+            if((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            loadFence();
+
+            double timestamp = mBuffer.getDouble(base + SLOT_TIMESTAMP);
+            byte valueType = mBuffer.get(base + SLOT_VALUE_TYPE);
+            byte eventType = mBuffer.get(base + SLOT_EVENT_TYPE);
+            Object value = readField(valueType,
+                    mBuffer.get(base + SLOT_VALUE_LENGTH), base + SLOT_VALUE);
+            Object event = readField(eventType,
+                    mBuffer.get(base + SLOT_EVENT_LENGTH), base + SLOT_EVENT);
+
+            loadFence();
+            if(mBuffer.getInt(base + SLOT_SEQUENCE) != sequence) {
+                continue;
+            }
+
+            if(valueType == TYPE_NONE || valueType == TYPE_UNAVAILABLE
+                    || eventType == TYPE_UNAVAILABLE) {
+                return null;
+            }
+            return new RawMeasurement(name, value, event, timestamp);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the measurement has a slot in the table, even if its
+     *      current value couldn't be stored there.
+     */
+    public boolean contains(String name) {
+        return findSlot(name) != -1;
+    }
+
+    /**
+     * @return true if every measurement name written so far has a slot, i.e.
+     *      a name missing from the table has never been written.
+     */
+    public boolean isComplete() {
+        loadFence();
+        return (mBuffer.getInt(HEADER_FLAGS) & FLAG_OVERFLOWED) == 0;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the number of measurement names that have a slot.
+     */
+    public int size() {
+        return mBuffer.getInt(HEADER_SLOT_COUNT);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("capacity", getCapacity())
+            .add("size", size())
+            .add("writable", mWritable)
+            .toString();
+    }
+
+    private int findOrAllocateSlot(String name) {
+        Integer slot = mSlots.get(name);
+        if(slot != null) {
+            return slot;
+        }
+
+        int count = mBuffer.getInt(HEADER_SLOT_COUNT);
+        if(count >= mCapacity || !isStorableString(name, MAX_NAME_LENGTH)) {
+            mBuffer.putInt(HEADER_FLAGS,
+                    mBuffer.getInt(HEADER_FLAGS) | FLAG_OVERFLOWED);
+            return -1;
+        }
+
+        int base = slotOffset(count);
+        mBuffer.putInt(base + SLOT_SEQUENCE, 0);
+        mBuffer.put(base + SLOT_VALUE_TYPE, TYPE_NONE);
+        mBuffer.put(base + SLOT_NAME_LENGTH, (byte) name.length());
+        writeAscii(base + SLOT_NAME, name);
+        // The name must be visible before the slot is counted, otherwise a
+        // reader could scan a half-written name.
+        storeFence();
+        mBuffer.putInt(HEADER_SLOT_COUNT, count + 1);
+        Map<String, Integer> slots = new HashMap<String, Integer>(mSlots);
+        slots.put(name, count);
+        mSlots = slots;
+        return count;
+    }
+
+    private int findSlot(String name) {
+        Integer slot = mSlots.get(name);
+        if(slot != null) {
+            return slot;
+        }
+
+        if(!mWritable && Math.min(mBuffer.getInt(HEADER_SLOT_COUNT),
+                    mCapacity) > mKnownSlotCount) {
+            slot = discoverSlots().get(name);
+            if(slot != null) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add the slots published by the writer since the last call to the map.
+     *
+     * @return the new map.
+     */
+    private synchronized Map<String, Integer> discoverSlots() {
+        int count = Math.min(mBuffer.getInt(HEADER_SLOT_COUNT), mCapacity);
+        loadFence();
+        if(count <= mKnownSlotCount) {
+            return mSlots;
+        }
+
+        Map<String, Integer> slots = new HashMap<String, Integer>(mSlots);
+        for(int slot = mKnownSlotCount; slot < count; slot++) {
+            int base = slotOffset(slot);
+            slots.put(readAscii(base + SLOT_NAME,
+                    mBuffer.get(base + SLOT_NAME_LENGTH)), slot);
+        }
+        mSlots = slots;
+        mKnownSlotCount = count;
+        return slots;
+    }
+
+    private void writeField(int typeOffset, int lengthOffset, int offset,
+            Object field) {
+        if(field == null) {
+            mBuffer.put(typeOffset, TYPE_NONE);
+        } else if(field instanceof Number) {
+            mBuffer.put(typeOffset, TYPE_NUMBER);
+            mBuffer.putDouble(offset, ((Number) field).doubleValue());
+        } else if(field instanceof Boolean) {
+            mBuffer.put(typeOffset, TYPE_BOOLEAN);
+            mBuffer.put(offset, (byte) (((Boolean) field) ? 1 : 0));
+        } else if(field instanceof String
+                && isStorableString((String) field, MAX_STRING_LENGTH)) {
+            String string = (String) field;
+            mBuffer.put(typeOffset, TYPE_STRING);
+            mBuffer.put(lengthOffset, (byte) string.length());
+            writeAscii(offset, string);
+        } else {
+            mBuffer.put(typeOffset, TYPE_UNAVAILABLE);
+        }
+    }
+
+    private Object readField(byte type, byte length, int offset) {
+        switch(type) {
+        case TYPE_NUMBER:
+            return Double.valueOf(mBuffer.getDouble(offset));
+        case TYPE_BOOLEAN:
+            return Boolean.valueOf(mBuffer.get(offset) != 0);
+        case TYPE_STRING:
+            return readAscii(offset, Math.min(Math.max(length, 0),
+                        MAX_STRING_LENGTH));
+        default:
+            return null;
+        }
+    }
+
+    private void writeAscii(int offset, String string) {
+        for(int i = 0; i < string.length(); i++) {
+            mBuffer.put(offset + i, (byte) string.charAt(i));
+        }
+    }
+
+    private String readAscii(int offset, int length) {
+        char[] characters = new char[length];
+        for(int i = 0; i < length; i++) {
+            characters[i] = (char) mBuffer.get(offset + i);
+        }
+        return new String(characters);
+    }
+
+    private static boolean isStorableString(String string, int maxLength) {
+        if(string.length() > maxLength) {
+            return false;
+        }
+
+        for(int i = 0; i < string.length(); i++) {
+            if(string.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Keep the buffer writes before this from being reordered after the ones
+     * that follow it.
+     */
+    private void storeFence() {
+        mFence = 0;
+    }
+
+    /**
+     * Keep the buffer reads before this from being reordered after the ones
+     * that follow it.
+     */
+    private int loadFence() {
+        return mFence;
+    }
+}
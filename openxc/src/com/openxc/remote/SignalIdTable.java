@@ -0,0 +1,193 @@
+package com.openxc.remote;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Objects;
+import com.openxc.measurements.MeasurementCatalog;
+
+/**
+ * A numbered list of measurement names, used to send a small integer instead
+ * of the full name when a {@link RawMeasurement} is written to a Parcel.
+ *
+ * Both sides of an AIDL connection must know the table used to write a
+ * measurement. Each table has a 64-bit fingerprint of its names, which is
+ * sent with every ID, and the tables in use in a process can be found by
+ * their fingerprint with {@link #forFingerprint(long)}. Tables are only
+ * weakly referenced by that lookup, so one is forgotten once nothing else
+ * uses it. If two tables with different names ever have the same
+ * fingerprint, that fingerprint can't be trusted any more - looking it up
+ * returns null, so reading an ID written with it fails instead of decoding
+ * the wrong name. The {@link VehicleService}
+ * writes with its own table, {@link #DEFAULT}. Each
+ * {@link com.openxc.VehicleManager} creates a copy of the table of the service
+ * it connects to, so it can read what that service sends, and uses it for the
+ * measurements it sends back - see {@link RawMeasurement#useSignalIdTable}.
+ * Connections to services with different tables don't affect each other.
+ * Names that aren't in the table are still sent in full.
+ */
+public class SignalIdTable {
+    public final static int UNKNOWN_ID = -1;
+
+    private final static long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+
+    private final static ConcurrentMap<Long, WeakReference<SignalIdTable>>
+            sTables =
+            new ConcurrentHashMap<Long, WeakReference<SignalIdTable>>();
+    // Marks a fingerprint shared by tables with different names
+    private final static WeakReference<SignalIdTable> COLLISION =
+            new WeakReference<SignalIdTable>(null);
+
+    /**
+     * A table that contains no names - every name is sent in full.
+     */
+    public final static SignalIdTable EMPTY =
+            new SignalIdTable(new ArrayList<String>());
+
+    /**
+     * The table used by the VehicleService, with the ID of every measurement
+     * built in to the library.
+     */
+    public final static SignalIdTable DEFAULT = new SignalIdTable(
+            MeasurementCatalog.getBuiltInIds());
+
+    private final String[] mNames;
+    private final Map<String, Integer> mIds;
+    private final long mFingerprint;
+    // The table with the same names that was registered first, kept alive
+    // while this one is so the fingerprint can still be looked up
+    private SignalIdTable mRegistered;
+
+    public SignalIdTable(List<String> names) {
+        this(names, fingerprint(names));
+    }
+
+    /**
+     * Only for tests, to make tables whose fingerprints collide.
+     */
+    SignalIdTable(List<String> names, long fingerprint) {
+        mNames = names.toArray(new String[names.size()]);
+        mIds = new HashMap<String, Integer>(mNames.length * 2);
+        for(int i = 0; i < mNames.length; i++) {
+            mIds.put(mNames[i], i);
+        }
+        mFingerprint = fingerprint;
+        register(this);
+    }
+
+    /**
+     * @return a table with the fingerprint that's in use in this process, or
+     *      null if there isn't one or tables with different names share it.
+     */
+    public static SignalIdTable forFingerprint(long fingerprint) {
+        WeakReference<SignalIdTable> reference = sTables.get(fingerprint);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * @return a hash of the names in the table, in order - tables with the
+     *      same names have the same fingerprint.
+     */
+    public long getFingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * @return the ID of the name, or {@link #UNKNOWN_ID} if it isn't in the
+     *      table.
+     */
+    public int getId(String name) {
+        Integer id = mIds.get(name);
+        if(id == null) {
+            return UNKNOWN_ID;
+        }
+        return id;
+    }
+
+    /**
+     * @return the name for the ID, or null if it isn't in the table.
+     */
+    public String getName(int id) {
+        if(id < 0 || id >= mNames.length) {
+            return null;
+        }
+        return mNames[id];
+    }
+
+    /**
+     * @return the names in the table, in ID order - suitable for sending to
+     *      the other side of a connection.
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(Arrays.asList(mNames));
+    }
+
+    public int size() {
+        return mNames.length;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("size", size())
+            .add("fingerprint", Long.toHexString(mFingerprint))
+            .toString();
+    }
+
+    /**
+     * Make the table findable by its fingerprint, unless a table with the
+     * same names already is - then the table holds on to that one instead.
+     * Tables that have been collected are forgotten along the way.
+     */
+    private static synchronized void register(SignalIdTable table) {
+        Iterator<WeakReference<SignalIdTable>> references =
+                sTables.values().iterator();
+        while(references.hasNext()) {
+            WeakReference<SignalIdTable> reference = references.next();
+            if(reference != COLLISION && reference.get() == null) {
+                references.remove();
+            }
+        }
+
+        WeakReference<SignalIdTable> existing =
+                sTables.get(table.mFingerprint);
+        if(existing == COLLISION) {
+            return;
+        }
+
+        SignalIdTable registered = existing == null ? null : existing.get();
+        if(registered == null) {
+            sTables.put(table.mFingerprint,
+                    new WeakReference<SignalIdTable>(table));
+        } else if(Arrays.equals(registered.mNames, table.mNames)) {
+            table.mRegistered = registered;
+        } else {
+            sTables.put(table.mFingerprint, COLLISION);
+        }
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the names, in order.
+     */
+    private static long fingerprint(List<String> names) {
+        long hash = FNV_OFFSET_BASIS;
+        for(String name : names) {
+            for(int i = 0; i < name.length(); i++) {
+                hash = (hash ^ name.charAt(i)) * FNV_PRIME;
+            }
+            // a character that can't be in a name ends each one, so moving
+            // the boundary between names changes the hash
+            hash = (hash ^ 0xffff) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
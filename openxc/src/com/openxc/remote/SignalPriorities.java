@@ -0,0 +1,62 @@
+package com.openxc.remote;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.openxc.measurements.MeasurementCatalog;
+
+/**
+ * The priority of each signal, used by the queues between a data source and
+ * the application to let discrete events skip ahead of bulk telemetry.
+ *
+ * By default, measurements in the {@link MeasurementCatalog} that report
+ * discrete changes of state (e.g. button events, ignition and door status) are
+ * {@link Priority#HIGH} and everything else, including unknown signals, is
+ * {@link Priority#NORMAL}. The priority of any signal ID can be overridden
+ * with {@link #setPriority(String, Priority)}.
+ */
+public class SignalPriorities {
+    public enum Priority {
+        /**
+         * Serviced before any waiting normal priority measurements.
+         */
+        HIGH,
+        NORMAL
+    }
+
+    private static final Map<String, Priority> sOverrides =
+            new ConcurrentHashMap<String, Priority>();
+
+    private SignalPriorities() { }
+
+    public static Priority getPriority(String name) {
+        Priority priority = sOverrides.get(name);
+        if(priority != null) {
+            return priority;
+        }
+
+        MeasurementCatalog.Entry entry = MeasurementCatalog.get(name);
+        if(entry != null && entry.isDiscrete()) {
+            return Priority.HIGH;
+        }
+        return Priority.NORMAL;
+    }
+
+    public static boolean isHighPriority(String name) {
+        return getPriority(name) == Priority.HIGH;
+    }
+
+    /**
+     * Override the default priority of a signal.
+     */
+    public static void setPriority(String name, Priority priority) {
+        sOverrides.put(name, priority);
+    }
+
+    /**
+     * Return a signal to its default priority.
+     */
+    public static void clearPriority(String name) {
+        sOverrides.remove(name);
+    }
+}
@@ -1,21 +1,32 @@
 package com.openxc.remote;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import com.openxc.DataPipeline;
+import com.openxc.LoadShedder;
+import com.openxc.SourceFailover;
+import com.openxc.TimestampMerger;
 import com.openxc.interfaces.VehicleInterface;
 import com.openxc.interfaces.VehicleInterfaceException;
 import com.openxc.interfaces.VehicleInterfaceFactory;
 import com.openxc.interfaces.VehicleInterfaceManagerUtils;
 import com.openxc.interfaces.usb.UsbVehicleInterface;
 import com.openxc.sinks.RemoteCallbackSink;
+import com.openxc.sinks.SharedMeasurementTableSink;
 import com.openxc.sinks.VehicleDataSink;
 import com.openxc.sources.ApplicationSource;
 import com.openxc.sources.DataSourceException;
@@ -45,20 +56,38 @@ import com.openxc.sources.VehicleDataSource;
  * the pipeline is not modifiable by the application as there is no good way to
  * pass running sources through the AIDL interface. The same style is used here
  * for clarity and in order to share code.
+ *
+ * When the pipeline falls behind, the measurements sent to clients are shed
+ * (see {@link LoadShedder}): decimated, and then limited to the measurements
+ * the clients' listeners have subscribed to. Clients are never cut off
+ * completely, and the shared measurement table always gets every value.
  */
 public class VehicleService extends Service {
     private final static String TAG = "VehicleService";
+    private final static String MEASUREMENT_TABLE_FILENAME =
+            "measurements.table";
 
     private DataPipeline mPipeline = new DataPipeline();
+    private LoadShedder mLoadShedder = new LoadShedder(
+            LoadShedder.DEFAULT_DECIMATE_LAG_MS,
+            LoadShedder.DEFAULT_DROP_LAG_MS, Long.MAX_VALUE);
     private ApplicationSource mApplicationSource = new ApplicationSource();
     private CopyOnWriteArrayList<VehicleInterface> mInterfaces =
             new CopyOnWriteArrayList<VehicleInterface>();
+    private Map<String, String> mStandbyInterfaces =
+            new ConcurrentHashMap<String, String>();
+    // null unless an application has turned on timestamp merging
+    private volatile TimestampMerger.LatePolicy mMergeLatePolicy;
     private RemoteCallbackSink mNotifier = new RemoteCallbackSink();
+    private File mMeasurementTableFile;
+    private final VehicleServiceBinder mBinder = new VehicleServiceBinder();
 
     @Override
     public void onCreate() {
         super.onCreate();
         Log.i(TAG, "Service starting");
+        initializeMeasurementTable();
+        mPipeline.setLoadShedder(mLoadShedder);
     }
 
     /**
@@ -71,6 +100,9 @@ public class VehicleService extends Service {
     public void onDestroy() {
         Log.i(TAG, "Service being destroyed");
         mPipeline.stop();
+        if(mMeasurementTableFile != null) {
+            mMeasurementTableFile.delete();
+        }
     }
 
     /**
@@ -86,7 +118,31 @@ public class VehicleService extends Service {
     }
 
     private void initializeDefaultSinks(DataPipeline pipeline) {
-        pipeline.addSink(mNotifier);
+        pipeline.addSink(mNotifier, false);
+    }
+
+    /**
+     * Publish the latest value of every measurement to a memory-mapped file
+     * that clients can read without going through the AIDL interface.
+     *
+     * If the table can't be created, or the runtime can't share it safely,
+     * clients fall back to calling get().
+     */
+    private void initializeMeasurementTable() {
+        if(!SharedMeasurementTable.isSupported()) {
+            Log.i(TAG, "Not sharing the measurement table on this runtime");
+            return;
+        }
+        mMeasurementTableFile = new File(getCacheDir(),
+                MEASUREMENT_TABLE_FILENAME);
+        try {
+            mPipeline.addSink(new SharedMeasurementTableSink(
+                        SharedMeasurementTable.create(mMeasurementTableFile,
+                            SharedMeasurementTable.DEFAULT_CAPACITY)));
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to create shared measurement table", e);
+            mMeasurementTableFile = null;
+        }
     }
 
     private void initializeDefaultSources() {
@@ -97,60 +153,148 @@ public class VehicleService extends Service {
         }
     }
 
-    private final VehicleServiceInterface.Stub mBinder =
-        new VehicleServiceInterface.Stub() {
-            public RawMeasurement get(String measurementId) {
-                return mPipeline.get(measurementId);
+    /**
+     * The Binder returned to clients of this service.
+     *
+     * A client in the same process as the service receives this object
+     * directly from VehicleServiceInterface.Stub#asInterface, and can use
+     * {@link #addLocalSink(VehicleDataSink)} to receive measurements straight
+     * from the service's pipeline instead of registering a
+     * {@link VehicleServiceListener}. Remote clients can only use the AIDL
+     * interface.
+     */
+    public class VehicleServiceBinder extends VehicleServiceInterface.Stub {
+        public RawMeasurement get(String measurementId) {
+            return mPipeline.get(measurementId);
+        }
+
+        public ParcelFileDescriptor getMeasurementTable() {
+            if(mMeasurementTableFile == null) {
+                return null;
             }
 
-            public boolean send(RawMeasurement command) {
-                return VehicleInterfaceManagerUtils.send(mInterfaces, command);
+            try {
+                return ParcelFileDescriptor.open(mMeasurementTableFile,
+                        ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch(FileNotFoundException e) {
+                Log.w(TAG, "Unable to open shared measurement table", e);
+                return null;
             }
+        }
+
+        public List<String> getSignalIds() {
+            return SignalIdTable.DEFAULT.getNames();
+        }
 
-            public void receive(RawMeasurement measurement) {
+        public boolean send(RawMeasurement command) {
+            return VehicleInterfaceManagerUtils.send(mInterfaces, command);
+        }
+
+        public void receive(RawMeasurement measurement) {
+            mApplicationSource.handleMessage(measurement);
+        }
+
+        public void receiveBatch(List<RawMeasurement> measurements) {
+            for(RawMeasurement measurement : measurements) {
                 mApplicationSource.handleMessage(measurement);
             }
+        }
 
-            public void register(VehicleServiceListener listener) {
-                Log.i(TAG, "Adding listener " + listener);
-                mNotifier.register(listener);
-            }
+        public void register(VehicleServiceListener listener) {
+            Log.i(TAG, "Adding listener " + listener);
+            mNotifier.register(listener);
+        }
 
-            public void unregister(VehicleServiceListener listener) {
-                Log.i(TAG, "Removing listener " + listener);
-                mNotifier.unregister(listener);
-            }
+        public void unregister(VehicleServiceListener listener) {
+            Log.i(TAG, "Removing listener " + listener);
+            mNotifier.unregister(listener);
+        }
 
-            public int getMessageCount() {
-                return VehicleService.this.mPipeline.getMessageCount();
-            }
+        public void subscribe(String measurementId) {
+            mLoadShedder.subscribe(measurementId);
+        }
 
-            public void addVehicleInterface(String interfaceName,
-                    String resource) {
-                VehicleService.this.addVehicleInterface(
-                        interfaceName, resource);
-            }
+        public void unsubscribe(String measurementId) {
+            mLoadShedder.unsubscribe(measurementId);
+        }
 
-            public void removeVehicleInterface(String interfaceName) {
-                VehicleService.this.removeVehicleInterface(interfaceName);
-            }
+        public int getMessageCount() {
+            return VehicleService.this.mPipeline.getMessageCount();
+        }
 
-            public List<String> getSourceSummaries() {
-                ArrayList<String> sources = new ArrayList<String>();
-                for(VehicleDataSource source : mPipeline.getSources()) {
-                    sources.add(source.toString());
-                }
-                return sources;
+        public void addVehicleInterface(String interfaceName,
+                String resource) {
+            VehicleService.this.addVehicleInterface(
+                    interfaceName, resource);
+        }
+
+        public void removeVehicleInterface(String interfaceName) {
+            VehicleService.this.removeVehicleInterface(interfaceName);
+        }
+
+        public void setStandbyVehicleInterface(String interfaceName,
+                String primaryInterfaceName) {
+            VehicleService.this.setStandbyVehicleInterface(interfaceName,
+                    primaryInterfaceName);
+        }
+
+        public void setTimestampMerging(boolean enabled, boolean dropLate) {
+            VehicleService.this.setTimestampMerging(enabled, dropLate);
+        }
+
+        public List<String> getSourceSummaries() {
+            ArrayList<String> sources = new ArrayList<String>();
+            for(VehicleDataSource source : mPipeline.getSources()) {
+                sources.add(source.toString());
             }
+            return sources;
+        }
 
-            public List<String> getSinkSummaries() {
-                ArrayList<String> sinks = new ArrayList<String>();
-                for(VehicleDataSink sink : mPipeline.getSinks()) {
-                    sinks.add(sink.toString());
-                }
-                return sinks;
+        public List<String> getSinkSummaries() {
+            ArrayList<String> sinks = new ArrayList<String>();
+            for(VehicleDataSink sink : mPipeline.getSinks()) {
+                sinks.add(sink.toString());
+            }
+            sinks.add(mLoadShedder.toString());
+            TimestampMerger merger = mPipeline.getMerger();
+            if(merger != null) {
+                sinks.add(merger.toString());
             }
-    };
+            for(SourceFailover failover : mPipeline.getFailovers()) {
+                sinks.add(failover.toString());
+            }
+            return sinks;
+        }
+
+        /**
+         * Add a sink directly to the service's pipeline - only possible from
+         * the same process as the service.
+         *
+         * The sink is called on the thread of whichever source produced the
+         * measurement, so it must return quickly.
+         */
+        public void addLocalSink(VehicleDataSink sink) {
+            mPipeline.addSink(sink);
+        }
+
+        /**
+         * Add a sink directly to the service's pipeline.
+         *
+         * @param essential if false, the sink's measurements are shed while
+         *      the pipeline is behind.
+         */
+        public void addLocalSink(VehicleDataSink sink, boolean essential) {
+            mPipeline.addSink(sink, essential);
+        }
+
+        /**
+         * Remove a sink previously added with
+         * {@link #addLocalSink(VehicleDataSink)}.
+         */
+        public void removeLocalSink(VehicleDataSink sink) {
+            mPipeline.removeSink(sink);
+        }
+    }
 
     private void addVehicleInterface(
             Class<? extends VehicleInterface> interfaceType) {
@@ -174,6 +318,8 @@ public class VehicleService extends Service {
 
             mInterfaces.add(vehicleInterface);
             mPipeline.addSource(vehicleInterface);
+            updateReordering();
+            updateStandbyInterfaces();
         } else {
             try {
                 if(vehicleInterface.setResource(resource)) {
@@ -191,6 +337,36 @@ public class VehicleService extends Service {
         Log.i(TAG, "Added vehicle interface  " + vehicleInterface);
     }
 
+    /**
+     * Remember which interface is the standby for which, so the roles can be
+     * applied whenever both are running. Keyed by standby class name.
+     */
+    private void setStandbyVehicleInterface(String interfaceName,
+            String primaryInterfaceName) {
+        if(primaryInterfaceName == null) {
+            mStandbyInterfaces.remove(interfaceName);
+        } else {
+            mStandbyInterfaces.put(interfaceName, primaryInterfaceName);
+        }
+        updateStandbyInterfaces();
+    }
+
+    private void updateStandbyInterfaces() {
+        for(VehicleInterface vehicleInterface : mInterfaces) {
+            String primaryName = mStandbyInterfaces.get(
+                    vehicleInterface.getClass().getName());
+            VehicleInterface primary = primaryName == null ? null :
+                    findActiveVehicleInterface(primaryName);
+            if(primary != null) {
+                Log.i(TAG, "Using " + vehicleInterface +
+                        " as the standby for " + primary);
+                mPipeline.setStandbySource(vehicleInterface, primary);
+            } else {
+                mPipeline.clearStandbySource(vehicleInterface);
+            }
+        }
+    }
+
     private void addVehicleInterface(String interfaceName, String resource) {
         try {
             addVehicleInterface(
@@ -209,6 +385,44 @@ public class VehicleService extends Service {
             vehicleInterface.stop();
             mInterfaces.remove(vehicleInterface);
             mPipeline.removeSource(vehicleInterface);
+            mPipeline.clearStandbySource(vehicleInterface);
+            updateReordering();
+            updateStandbyInterfaces();
+        }
+    }
+
+    private void setTimestampMerging(boolean enabled,
+            boolean dropLate) {
+        if(enabled) {
+            mMergeLatePolicy = dropLate ? TimestampMerger.LatePolicy.DROP :
+                    TimestampMerger.LatePolicy.DELIVER;
+        } else {
+            mMergeLatePolicy = null;
+        }
+        updateReordering();
+    }
+
+    /**
+     * If an application turned it on, merge measurements into timestamp order
+     * while more than one vehicle interface is running - with one, they're
+     * already in order and merging would only add latency.
+     */
+    private void updateReordering() {
+        TimestampMerger.LatePolicy latePolicy = mMergeLatePolicy;
+        TimestampMerger merger = mPipeline.getMerger();
+        if(latePolicy != null && mInterfaces.size() > 1) {
+            if(merger == null || merger.getLatePolicy() != latePolicy) {
+                Log.i(TAG, "Merging measurements from " + mInterfaces.size() +
+                        " vehicle interfaces in timestamp order, late " +
+                        "measurements: " + latePolicy);
+                mPipeline.enableReordering(
+                        TimestampMerger.DEFAULT_MAX_DELAY_MS,
+                        TimeUnit.MILLISECONDS, latePolicy);
+            }
+        } else if(mPipeline.getMerger() != null) {
+            Log.i(TAG, "Stopped merging measurements, merger was " +
+                    mPipeline.getMerger());
+            mPipeline.disableReordering();
         }
     }
 
@@ -1,14 +1,23 @@
 package com.openxc.sinks;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import android.util.Log;
 
+import com.openxc.LoadShedder;
 import com.openxc.remote.RawMeasurement;
+import com.openxc.remote.SignalPriorities;
+import com.openxc.util.BoundedMpscQueue;
+import com.openxc.util.TaskRuntime;
 
 /**
  * Functionality to notify multiple clients asynchronously of new measurements.
@@ -19,81 +28,359 @@ import com.openxc.remote.RawMeasurement;
  * to add the actual logic for looping over the list of receivers and send them
  * new values.
  *
- * New measurments are queued up and propagated to receivers in a separate
- * thread, to avoid blocking the original sender of the data.
+ * New measurments are queued up and propagated to receivers by a task on the
+ * shared {@link TaskRuntime} listener executor, to avoid blocking the original
+ * sender of the data. How they are queued is set by the {@link DeliveryMode}.
+ *
+ * At most one notification task runs at a time, so measurements are propagated
+ * in order. The sender only submits a task when none is running - while one is
+ * busy draining, new measurements are just added to the queue. The listener
+ * executor has a fixed number of threads shared by every sink, so a task that
+ * is still busy after a time slice submits itself again behind the other
+ * sinks' tasks instead of keeping its thread.
+ *
+ * High priority signals (see {@link SignalPriorities}) have their own lane,
+ * which is checked before each normal priority measurement is propagated - a
+ * button press waits for at most one other measurement, not for the whole
+ * backlog. The lane holds a few hundred signals. When it's full, a
+ * {@link DeliveryMode#LOSSLESS} sink makes the sender wait like its normal
+ * queue does, and a {@link DeliveryMode#COALESCING} sink keeps only the latest
+ * value of each further signal until the lane has been emptied, so senders are
+ * never blocked.
+ *
+ * If the sink belongs to a pipeline with a {@link LoadShedder}, the lag of each
+ * measurement is reported to it as it's propagated, so a backlog here counts
+ * towards the pipeline's lag.
  */
 public abstract class AbstractQueuedCallbackSink extends BaseVehicleDataSink {
     private final static String TAG = "AbstractQueuedCallbackSink";
+    public final static int DEFAULT_QUEUE_CAPACITY = 1024;
+    public final static int DEFAULT_SPIN_COUNT = 0;
+    private final static int PRIORITY_QUEUE_CAPACITY = 256;
+    private final static int MAX_BATCH_SIZE = 64;
+    private final static long BACKPRESSURE_WAIT_NANOS =
+            TimeUnit.MICROSECONDS.toNanos(100);
+    private final static long TIME_SLICE_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(10);
 
-    private NotificationThread mNotificationThread = new NotificationThread();
-    private Lock mNotificationsLock = new ReentrantLock();
-    private Condition mNotificationReceived = mNotificationsLock.newCondition();
-    private ConcurrentHashMap<String, RawMeasurement> mNotifications =
-            new ConcurrentHashMap<String, RawMeasurement>(32);
+    /**
+     * How measurements waiting to be propagated are queued.
+     */
+    public enum DeliveryMode {
+        /**
+         * Only the latest value of each measurement is kept. If a new value
+         * arrives before the previous one was propagated, the previous one is
+         * dropped. This keeps listeners up to date with the least work. High
+         * priority signals like button presses are only coalesced if hundreds
+         * of them are waiting. Senders are never blocked.
+         */
+        COALESCING,
+
+        /**
+         * Every measurement is propagated in the order it was received. When
+         * the queue is full, the sender waits for room.
+         */
+        LOSSLESS
+    }
+
+    private final DeliveryMode mMode;
+    private final int mSpinCount;
+    private final Executor mExecutor;
+    private NotificationTask mNotificationTask = new NotificationTask();
+    // Set while a notification task is submitted or running
+    private AtomicBoolean mScheduled = new AtomicBoolean();
+    private AtomicLong mWakeupCount = new AtomicLong();
+    private ConcurrentHashMap<String, RawMeasurement> mNotifications;
+    private BoundedMpscQueue<RawMeasurement> mQueue;
+    private BoundedMpscQueue<RawMeasurement> mPriorityQueue =
+            new BoundedMpscQueue<RawMeasurement>(PRIORITY_QUEUE_CAPACITY);
+    // High priority signals that didn't fit in the lane, in COALESCING mode
+    private ConcurrentHashMap<String, RawMeasurement> mPriorityOverflow;
+    private AtomicLong mPriorityCount = new AtomicLong();
+    private AtomicLong mPriorityOverflowCount = new AtomicLong();
+    private volatile boolean mStopped;
+    private volatile LoadShedder mLoadShedder;
+    private AtomicLong mCoalescedCount = new AtomicLong();
+    private AtomicLong mBackpressureCount = new AtomicLong();
 
     public AbstractQueuedCallbackSink() {
-        mNotificationThread.start();
+        this(DeliveryMode.COALESCING);
+    }
+
+    public AbstractQueuedCallbackSink(DeliveryMode mode) {
+        this(mode, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param mode how to queue measurements waiting to be propagated.
+     * @param queueCapacity the number of measurements that can wait in
+     *      {@link DeliveryMode#LOSSLESS} mode before senders are blocked.
+     */
+    public AbstractQueuedCallbackSink(DeliveryMode mode, int queueCapacity) {
+        this(mode, queueCapacity, DEFAULT_SPIN_COUNT);
+    }
+
+    /**
+     * @param mode how to queue measurements waiting to be propagated.
+     * @param queueCapacity the number of measurements that can wait in
+     *      {@link DeliveryMode#LOSSLESS} mode before senders are blocked.
+     * @param spinCount the number of times the notification task checks for
+     *      new measurements, yielding in between, before it finishes. Spinning
+     *      lowers the latency of measurements that arrive just after the queue
+     *      is emptied at the cost of CPU time.
+     */
+    public AbstractQueuedCallbackSink(DeliveryMode mode, int queueCapacity,
+            int spinCount) {
+        mMode = mode;
+        mSpinCount = spinCount;
+        if(mMode == DeliveryMode.LOSSLESS) {
+            mQueue = new BoundedMpscQueue<RawMeasurement>(queueCapacity);
+        } else {
+            mNotifications = new ConcurrentHashMap<String, RawMeasurement>(32);
+            mPriorityOverflow =
+                    new ConcurrentHashMap<String, RawMeasurement>(8);
+        }
+        mExecutor = TaskRuntime.getDefault().getListenerExecutor();
     }
 
     public synchronized void stop() {
-        mNotificationThread.done();
+        Log.d(TAG, "Stopping measurement notifications");
+        mStopped = true;
     }
 
     public boolean receive(RawMeasurement rawMeasurement)
             throws DataSinkException {
         super.receive(rawMeasurement);
-        mNotificationsLock.lock();
-        mNotifications.put(rawMeasurement.getName(), rawMeasurement);
-        mNotificationReceived.signal();
-        mNotificationsLock.unlock();
+        if(SignalPriorities.isHighPriority(rawMeasurement.getName())) {
+            if(mMode == DeliveryMode.COALESCING) {
+                enqueuePriority(rawMeasurement);
+            } else if(!enqueue(mPriorityQueue, rawMeasurement)) {
+                return false;
+            }
+            mPriorityCount.incrementAndGet();
+        } else if(mMode == DeliveryMode.LOSSLESS) {
+            if(!enqueue(mQueue, rawMeasurement)) {
+                return false;
+            }
+        } else if(mNotifications.put(rawMeasurement.getName(),
+                    rawMeasurement) != null) {
+            mCoalescedCount.incrementAndGet();
+        }
+
+        scheduleNotification();
         return true;
     }
 
+    /**
+     * Report the lag of propagated measurements to this shedder.
+     *
+     * @param shedder if null, lag isn't reported.
+     */
+    public void setLoadShedder(LoadShedder shedder) {
+        mLoadShedder = shedder;
+    }
+
+    public DeliveryMode getDeliveryMode() {
+        return mMode;
+    }
+
+    /**
+     * @return the number of measurements dropped because a newer value of the
+     *      same measurement arrived before they were propagated. Always zero in
+     *      {@link DeliveryMode#LOSSLESS} mode.
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * @return the number of measurements sent through the high priority lane.
+     */
+    public long getPriorityCount() {
+        return mPriorityCount.get();
+    }
+
+    /**
+     * @return the number of high priority signals that didn't fit in their
+     *      lane and were queued to be coalesced instead. Always zero in
+     *      {@link DeliveryMode#LOSSLESS} mode.
+     */
+    public long getPriorityOverflowCount() {
+        return mPriorityOverflowCount.get();
+    }
+
+    /**
+     * @return the number of notification tasks submitted.
+     */
+    public long getWakeupCount() {
+        return mWakeupCount.get();
+    }
+
+    /**
+     * @return the number of times a sender had to wait for room in the queue.
+     *      Always zero in {@link DeliveryMode#COALESCING} mode.
+     */
+    public long getBackpressureCount() {
+        return mBackpressureCount.get();
+    }
+
     abstract protected void propagateMeasurement(String measurementId,
             RawMeasurement measurement);
 
-    private class NotificationThread extends Thread {
-        private boolean mRunning = true;
+    /**
+     * Add a measurement to a lossless queue, waiting for room if it's full.
+     *
+     * @return false if the sink was stopped before there was room.
+     */
+    private boolean enqueue(BoundedMpscQueue<RawMeasurement> queue,
+            RawMeasurement rawMeasurement) {
+        if(queue.offer(rawMeasurement)) {
+            return true;
+        }
 
-        private synchronized boolean isRunning() {
-            return mRunning;
+        mBackpressureCount.incrementAndGet();
+        while(!queue.offer(rawMeasurement)) {
+            if(mStopped) {
+                return false;
+            }
+            // make sure a notification task is draining
+            scheduleNotification();
+            LockSupport.parkNanos(BACKPRESSURE_WAIT_NANOS);
         }
+        return true;
+    }
+
+    /**
+     * Add a high priority signal to its lane without waiting. Once the lane is
+     * full, signals are coalesced until it has been drained, so an older
+     * value of a signal is never propagated after a newer one.
+     */
+    private void enqueuePriority(RawMeasurement rawMeasurement) {
+        if(mPriorityOverflow.isEmpty() &&
+                mPriorityQueue.offer(rawMeasurement)) {
+            return;
+        }
+
+        mPriorityOverflowCount.incrementAndGet();
+        if(mPriorityOverflow.put(rawMeasurement.getName(),
+                    rawMeasurement) != null) {
+            mCoalescedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Submit a notification task if none is running - only the first sender
+     * after the queue was emptied pays for it.
+     *
+     * The queue is written before mScheduled is read here, and the task clears
+     * mScheduled before checking the queue one last time, so a measurement
+     * can't be added unnoticed while it's finishing.
+     */
+    private void scheduleNotification() {
+        if(!mScheduled.get() && !mStopped &&
+                mScheduled.compareAndSet(false, true)) {
+            mWakeupCount.incrementAndGet();
+            mExecutor.execute(mNotificationTask);
+        }
+    }
+
+    private boolean isQueueEmpty() {
+        if(!mPriorityQueue.isEmpty()) {
+            return false;
+        } else if(mMode == DeliveryMode.LOSSLESS) {
+            return mQueue.isEmpty();
+        }
+        return mPriorityOverflow.isEmpty() && mNotifications.isEmpty();
+    }
 
-        public synchronized void done() {
-            Log.d(TAG, "Stopping notification thread");
-            mRunning = false;
-            // A context switch right can cause a race condition if we
-            // used take() instead of poll(): when mRunning is set to
-            // false and interrupt is called but we haven't called
-            // take() yet, so nobody is waiting. By using poll we can not be
-            // locked for more than 1s.
-            interrupt();
+    private void propagate(RawMeasurement measurement) {
+        LoadShedder shedder = mLoadShedder;
+        if(shedder != null) {
+            shedder.recordLag(measurement);
         }
+        propagateMeasurement(measurement.getName(), measurement);
+    }
+
+    private class NotificationTask implements Runnable {
+        private List<RawMeasurement> mBatch =
+                new ArrayList<RawMeasurement>(MAX_BATCH_SIZE);
 
         public void run() {
-            while(isRunning()) {
-                mNotificationsLock.lock();
-                try {
-                    if(mNotifications.isEmpty()) {
-                        mNotificationReceived.await();
+            long deadline = System.nanoTime() + TIME_SLICE_NANOS;
+            try {
+                while(!mStopped && !isQueueEmpty() &&
+                        System.nanoTime() - deadline < 0) {
+                    drainPriorityQueue();
+                    if(mMode == DeliveryMode.LOSSLESS) {
+                        drainQueue();
+                    } else {
+                        drainNotifications();
                     }
-                } catch(InterruptedException e) {
-                    Log.d(TAG, "Interrupted while waiting for a new " +
-                            "item for notification -- likely shutting down");
-                    return;
-                } finally {
-                    mNotificationsLock.unlock();
+                    spin();
                 }
+            } finally {
+                mScheduled.set(false);
+            }
 
-                // This iterator is weakly consistent, so we don't need the lock
-                Iterator<RawMeasurement> it = mNotifications.values().iterator();
-                while(it.hasNext()) {
-                    RawMeasurement measurement = it.next();
-                    propagateMeasurement(measurement.getName(), measurement);
-                    it.remove();
+            // if a measurement arrived after the last check, its sender may
+            // have seen mScheduled still set - and if the time slice ran out,
+            // this goes to the back of the listener executor's queue
+            if(!isQueueEmpty()) {
+                scheduleNotification();
+            }
+        }
+
+        private void spin() {
+            for(int i = 0; i < mSpinCount && isQueueEmpty(); i++) {
+                Thread.yield();
+            }
+        }
+
+        private void drainPriorityQueue() {
+            RawMeasurement measurement;
+            while((measurement = mPriorityQueue.poll()) != null) {
+                propagate(measurement);
+            }
+            if(mPriorityOverflow != null && !mPriorityOverflow.isEmpty()) {
+                drainMap(mPriorityOverflow, false);
+            }
+        }
+
+        /**
+         * Propagate one batch, so the time slice is checked in between.
+         */
+        private void drainQueue() {
+            mQueue.drainTo(mBatch, MAX_BATCH_SIZE);
+            for(int i = 0; i < mBatch.size(); i++) {
+                drainPriorityQueue();
+                RawMeasurement measurement = mBatch.get(i);
+                propagate(measurement);
+            }
+            mBatch.clear();
+        }
+
+        private void drainNotifications() {
+            drainMap(mNotifications, true);
+        }
+
+        private void drainMap(ConcurrentHashMap<String, RawMeasurement> map,
+                boolean checkPriority) {
+            // This iterator is weakly consistent, so senders can keep adding
+            // values while we drain
+            Iterator<Map.Entry<String, RawMeasurement>> it =
+                    map.entrySet().iterator();
+            while(it.hasNext()) {
+                Map.Entry<String, RawMeasurement> entry = it.next();
+                RawMeasurement measurement = entry.getValue();
+                // Only remove the value we're about to send - if a newer one
+                // was put since next(), it stays for the next pass
+                if(map.remove(entry.getKey(), measurement)) {
+                    if(checkPriority) {
+                        drainPriorityQueue();
+                    }
+                    propagate(measurement);
                 }
             }
-            Log.d(TAG, "Stopped measurement notifier");
         }
     }
 }
@@ -0,0 +1,409 @@
+package com.openxc.sinks;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+
+import com.google.common.base.Objects;
+import com.openxc.remote.RawMeasurement;
+import com.openxc.sources.trace.BinaryTraceWriter;
+import com.openxc.util.FileChannelOpener;
+import com.openxc.util.TaskRuntime;
+
+/**
+ * Record raw vehicle measurements to a binary trace file.
+ *
+ * Binary traces are much smaller than the JSON traces written by the
+ * {@link FileRecorderSink}, and can be played back from any point in time -
+ * see {@link BinaryTraceWriter} and
+ * {@link com.openxc.sources.trace.BinaryTraceReader}. Like the JSON recorder,
+ * a new file is started for each trip, and optionally when a file reaches a
+ * maximum size or duration (see {@link #setRotation(long, long, TimeUnit)}).
+ * Files are named for the time they were started, e.g.
+ * "2013-05-21-16-35-12.oxct".
+ *
+ * Measurements are collected into batches of a block, and full batches are
+ * encoded and written by a task on the {@link TaskRuntime} I/O executor, so
+ * receive() never waits for the disk unless all of the batches are waiting to
+ * be written. The index of a file is written when it's finished - until then,
+ * the file can still be read but has to be scanned to find the blocks.
+ */
+public class BinaryRecorderSink extends BaseVehicleDataSink {
+    private final static String TAG = "BinaryRecorderSink";
+    private final static int BATCH_COUNT = 4;
+    private final static long STOP_TIMEOUT_SECONDS = 5;
+
+    private final FileChannelOpener mFileOpener;
+    private final int mBlockSize;
+    private volatile long mMaxFileBytes;
+    private volatile long mMaxFileDurationNanos;
+
+    // Guards the pending batch and the trip state
+    private final ReentrantLock mLock = new ReentrantLock();
+    private List<RawMeasurement> mPending;
+    private long mLastMessageNanos;
+    private boolean mRecording;
+    private boolean mStopped;
+
+    private final BlockingQueue<List<RawMeasurement>> mFreeBatches =
+            new LinkedBlockingQueue<List<RawMeasurement>>();
+    private final BlockingQueue<Command> mCommands =
+            new LinkedBlockingQueue<Command>();
+    private volatile IOException mFailure;
+
+    private volatile String mFilename;
+    private volatile int mFilesOpened;
+    private volatile long mMeasurementsWritten;
+    private volatile long mBatchWaitCount;
+
+    public BinaryRecorderSink(FileChannelOpener fileOpener) {
+        this(fileOpener, BinaryTraceWriter.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize the number of measurements in each block of the file.
+     */
+    public BinaryRecorderSink(FileChannelOpener fileOpener, int blockSize) {
+        mFileOpener = fileOpener;
+        mBlockSize = blockSize;
+        for(int i = 0; i < BATCH_COUNT; i++) {
+            mFreeBatches.add(new ArrayList<RawMeasurement>(blockSize));
+        }
+        mPending = mFreeBatches.poll();
+        TaskRuntime.getDefault().getIoExecutor().execute(new WriterTask());
+    }
+
+    public boolean receive(RawMeasurement measurement)
+            throws DataSinkException {
+        mLock.lock();
+        try {
+            if(mStopped) {
+                throw new DataSinkException("Binary recorder is stopped");
+            }
+            checkFailure();
+
+            long now = System.nanoTime();
+            if(!mRecording || now - mLastMessageNanos >
+                    FileRecorderSink.INTER_TRIP_THRESHOLD_NANOS) {
+                Log.i(TAG, "Detected a new trip, starting a new binary trace");
+                commitPending();
+                mCommands.add(new Command(Command.Type.OPEN, null));
+                mRecording = true;
+            }
+            mLastMessageNanos = now;
+
+            mPending.add(measurement);
+            if(mPending.size() >= mBlockSize) {
+                commitPending();
+            }
+        } catch(InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for a batch", e);
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Write the measurements received so far to the file, ending the current
+     * block, and return once they've been written.
+     */
+    public void flush() throws DataSinkException {
+        CountDownLatch written = new CountDownLatch(1);
+        mLock.lock();
+        try {
+            if(mStopped) {
+                return;
+            }
+            commitPending();
+            mCommands.add(new Command(Command.Type.FLUSH, written));
+        } catch(InterruptedException e) {
+            return;
+        } finally {
+            mLock.unlock();
+        }
+        await(written);
+        checkFailure();
+    }
+
+    /**
+     * Stop recording, and return once everything received so far has been
+     * written and the file is finished.
+     */
+    public void stop() {
+        CountDownLatch written = new CountDownLatch(1);
+        mLock.lock();
+        try {
+            if(mStopped) {
+                return;
+            }
+            mStopped = true;
+            commitPending();
+            mCommands.add(new Command(Command.Type.STOP, written));
+        } catch(InterruptedException e) {
+            return;
+        } finally {
+            mLock.unlock();
+        }
+        await(written);
+    }
+
+    /**
+     * Start a new trace file when the current one reaches a maximum size or
+     * has been open for a maximum time, in addition to at the start of a trip.
+     * Files are only split between blocks, and never within the second they
+     * were started, since the new file would have the same name.
+     *
+     * @param maxFileBytes the size of a file that starts a new one, or 0 for
+     *      no limit.
+     * @param maxFileDuration how long a file is written to before a new one is
+     *      started, or 0 for no limit.
+     * @param unit the unit of maxFileDuration.
+     */
+    public void setRotation(long maxFileBytes, long maxFileDuration,
+            TimeUnit unit) {
+        mMaxFileBytes = maxFileBytes;
+        mMaxFileDurationNanos = unit.toNanos(maxFileDuration);
+    }
+
+    /**
+     * @return the number of times receive() had to wait for a batch because
+     *      the disk couldn't keep up.
+     */
+    public long getBatchWaitCount() {
+        return mBatchWaitCount;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("filename", mFilename)
+            .add("filesOpened", mFilesOpened)
+            .add("measurementsWritten", mMeasurementsWritten)
+            .add("batchWaits", mBatchWaitCount)
+            .add("failure", mFailure)
+            .toString();
+    }
+
+    private void checkFailure() throws DataSinkException {
+        IOException failure = mFailure;
+        if(failure != null) {
+            throw new DataSinkException("Unable to write binary trace",
+                    failure);
+        }
+    }
+
+    private void await(CountDownLatch latch) {
+        try {
+            if(!latch.await(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Timed out waiting for binary trace to be written");
+            }
+        } catch(InterruptedException e) {
+            Log.w(TAG, "Interrupted waiting for binary trace to be written", e);
+        }
+    }
+
+    /**
+     * Hand the pending batch to the writer and take a free one, waiting for
+     * one if they're all waiting to be written.
+     */
+    private void commitPending() throws InterruptedException {
+        if(mPending.isEmpty()) {
+            return;
+        }
+
+        List<RawMeasurement> next = mFreeBatches.poll();
+        if(next == null) {
+            mBatchWaitCount++;
+            next = mFreeBatches.take();
+        }
+        mCommands.add(new Command(mPending));
+        mPending = next;
+    }
+
+    private static class Command {
+        enum Type { OPEN, WRITE, FLUSH, STOP }
+
+        final Type mType;
+        List<RawMeasurement> mBatch;
+        CountDownLatch mDone;
+
+        public Command(List<RawMeasurement> batch) {
+            mType = Type.WRITE;
+            mBatch = batch;
+        }
+
+        public Command(Type type, CountDownLatch done) {
+            mType = type;
+            mDone = done;
+        }
+    }
+
+    /**
+     * Encodes and writes batches to the current file in the order they were
+     * committed.
+     */
+    private class WriterTask implements Runnable {
+        private final SimpleDateFormat mDateFormatter =
+                new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
+        private FileChannel mChannel;
+        private BinaryTraceWriter mWriter;
+        private long mOpenedNanos;
+
+        public void run() {
+            try {
+                while(true) {
+                    if(!handle(mCommands.take())) {
+                        return;
+                    }
+                }
+            } catch(InterruptedException e) {
+                Log.w(TAG, "Binary trace writer interrupted", e);
+                closeWriter();
+            }
+        }
+
+        /**
+         * @return false if the writer should stop.
+         */
+        private boolean handle(Command command) {
+            switch(command.mType) {
+            case OPEN:
+                openWriter(newFilename());
+                break;
+            case WRITE:
+                maybeRotate();
+                write(command.mBatch);
+                break;
+            case FLUSH:
+                flushWriter();
+                command.mDone.countDown();
+                break;
+            case STOP:
+                closeWriter();
+                command.mDone.countDown();
+                return false;
+            }
+            return true;
+        }
+
+        private String newFilename() {
+            return mDateFormatter.format(new Date()) +
+                    BinaryTraceWriter.EXTENSION;
+        }
+
+        private void openWriter(String filename) {
+            closeWriter();
+            try {
+                mChannel = mFileOpener.openChannelForWriting(filename);
+                mWriter = new BinaryTraceWriter(mChannel, mBlockSize);
+                mFilename = filename;
+                mOpenedNanos = System.nanoTime();
+                mFilesOpened++;
+                Log.i(TAG, "Opened binary trace file " + filename +
+                        " for writing");
+            } catch(IOException e) {
+                Log.w(TAG, "Unable to open binary trace " + filename, e);
+                mFailure = e;
+                closeWriter();
+            }
+        }
+
+        /**
+         * Start a new file if the current one is over the size or duration
+         * limit. Every batch starts a new block, so this is checked before
+         * each one.
+         */
+        private void maybeRotate() {
+            if(mWriter == null) {
+                return;
+            }
+
+            long size;
+            try {
+                size = mChannel.position();
+            } catch(IOException e) {
+                Log.w(TAG, "Unable to check size of binary trace", e);
+                return;
+            }
+
+            long maxBytes = mMaxFileBytes;
+            long maxDuration = mMaxFileDurationNanos;
+            boolean rotate = maxBytes > 0 && size >= maxBytes;
+            rotate |= maxDuration > 0 && mWriter.getBlockCount() > 0 &&
+                    System.nanoTime() - mOpenedNanos >= maxDuration;
+
+            if(rotate) {
+                String filename = newFilename();
+                if(!filename.equals(mFilename)) {
+                    Log.i(TAG, "Binary trace " + mFilename +
+                            " reached its limit, starting a new one");
+                    openWriter(filename);
+                }
+            }
+        }
+
+        private void write(List<RawMeasurement> batch) {
+            if(mWriter != null) {
+                try {
+                    for(RawMeasurement measurement : batch) {
+                        mWriter.write(measurement);
+                    }
+                    mMeasurementsWritten += batch.size();
+                } catch(IOException e) {
+                    Log.w(TAG, "Unable to write binary trace " + mFilename, e);
+                    mFailure = e;
+                    closeWriter();
+                }
+            }
+            batch.clear();
+            mFreeBatches.add(batch);
+        }
+
+        private void flushWriter() {
+            if(mWriter != null) {
+                try {
+                    mWriter.flush();
+                } catch(IOException e) {
+                    Log.w(TAG, "Unable to write binary trace " + mFilename, e);
+                    mFailure = e;
+                    closeWriter();
+                }
+            }
+        }
+
+        private void closeWriter() {
+            if(mWriter != null) {
+                try {
+                    mWriter.close();
+                    Log.i(TAG, "Closed binary trace " + mFilename + ": " +
+                            mWriter);
+                } catch(IOException e) {
+                    Log.w(TAG, "Unable to close binary trace " + mFilename,
+                            e);
+                }
+            } else if(mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch(IOException e) {
+                    Log.w(TAG, "Unable to close binary trace " + mFilename,
+                            e);
+                }
+            }
+            mWriter = null;
+            mChannel = null;
+        }
+    }
+}
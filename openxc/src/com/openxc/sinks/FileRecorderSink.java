@@ -2,15 +2,31 @@ package com.openxc.sinks;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
 
 import android.util.Log;
 
+import com.google.common.base.Objects;
+import com.google.common.io.CountingOutputStream;
 import com.openxc.remote.RawMeasurement;
+import com.openxc.util.FileChannelOpener;
 import com.openxc.util.FileOpener;
+import com.openxc.util.TaskRuntime;
 
 /**
  * Record raw vehicle measurements to a file as JSON.
@@ -23,87 +39,636 @@ import com.openxc.util.FileOpener;
  * The heuristic is very simple: if we haven't received any new data in a while,
  * consider the previous trip to have ended. When activity resumes, start a new
  * trip.
+ *
+ * Measurements are encoded into one of a few preallocated buffers, and full
+ * buffers are written by a task on the {@link TaskRuntime} I/O executor, so
+ * receive() never waits for the disk unless all of the buffers are waiting to
+ * be written. A partly full buffer is written after the flush interval, and
+ * the file is synced to the disk after the sync interval. If the
+ * {@link FileOpener} is also a {@link FileChannelOpener}, buffers are written
+ * straight to a FileChannel.
+ *
+ * Trace files can also be compressed with gzip (see
+ * {@link #setCompressed(boolean)}), and split when they reach a maximum size or
+ * duration (see {@link #setRotation(long, long, TimeUnit)}) so a long drive
+ * doesn't produce one huge file. Compression is done by the writer task, not
+ * on the pipeline thread. Files are named for the time they were started,
+ * e.g. "2013-05-21-16-35-12.json", with ".gz" added when they're compressed.
  */
 public class FileRecorderSink extends BaseVehicleDataSink {
     private final static String TAG = "FileRecorderSink";
     private final static int INTER_TRIP_THRESHOLD_MINUTES = 5;
-    private static SimpleDateFormat sDateFormatter =
-            new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
+    final static long INTER_TRIP_THRESHOLD_NANOS =
+            TimeUnit.MINUTES.toNanos(INTER_TRIP_THRESHOLD_MINUTES);
+    public final static long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    public final static long DEFAULT_SYNC_INTERVAL_MS = 10000;
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static int BUFFER_COUNT = 4;
+    private final static long STOP_TIMEOUT_SECONDS = 5;
+    private final static String EXTENSION = ".json";
+    private final static String COMPRESSED_EXTENSION = ".json.gz";
 
     private FileOpener mFileOpener;
-    private BufferedWriter mWriter;
-    private Calendar mLastMessageReceived;
+    private final long mFlushIntervalNanos;
+    private final long mSyncIntervalNanos;
+    private volatile boolean mCompressed;
+    private volatile long mMaxFileBytes;
+    private volatile long mMaxFileDurationNanos;
+
+    // Guards the fill buffer, the encoder and the trip state
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final CharsetEncoder mEncoder =
+            Charset.forName("UTF-8").newEncoder();
+    private ByteBuffer mFill;
+    private long mLastMessageNanos;
+    private boolean mRecording;
+    private boolean mStopped;
+
+    private final BlockingQueue<ByteBuffer> mFreeBuffers =
+            new LinkedBlockingQueue<ByteBuffer>();
+    private final BlockingQueue<Command> mCommands =
+            new LinkedBlockingQueue<Command>();
+    private volatile IOException mFailure;
+
+    private volatile long mBytesWritten;
+    private volatile int mFilesOpened;
+    private volatile long mBufferWaitCount;
 
     public FileRecorderSink(FileOpener fileOpener) throws DataSinkException {
+        this(fileOpener, DEFAULT_FLUSH_INTERVAL_MS, DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * @param fileOpener opens a new file for each trip.
+     * @param flushIntervalMs how long recorded measurements can wait in memory
+     *      before they're written to the file.
+     * @param syncIntervalMs how often the file is synced to the disk, or 0 to
+     *      leave it to the OS. Only used with a {@link FileChannelOpener}.
+     */
+    public FileRecorderSink(FileOpener fileOpener, long flushIntervalMs,
+            long syncIntervalMs) throws DataSinkException {
         mFileOpener = fileOpener;
+        mFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        mSyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMs);
+        for(int i = 0; i < BUFFER_COUNT; i++) {
+            mFreeBuffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        mFill = mFreeBuffers.poll();
+        TaskRuntime.getDefault().getIoExecutor().execute(new WriterTask());
     }
 
-    public synchronized boolean receive(RawMeasurement measurement)
+    public boolean receive(RawMeasurement measurement)
             throws DataSinkException {
-        if(mLastMessageReceived == null ||
-                    GregorianCalendar.getInstance().getTimeInMillis()
-                    - mLastMessageReceived.getTimeInMillis()
-                > INTER_TRIP_THRESHOLD_MINUTES * 60 * 1000) {
-            Log.i(TAG, "Detected a new trip, splitting recorded trace file");
-            try {
-                openTimestampedFile();
-            } catch(IOException e) {
+        String line = measurement.serialize();
+        mLock.lock();
+        try {
+            if(mStopped) {
                 throw new DataSinkException(
-                        "Unable to open file for recording", e);
+                        "Recorder is stopped - not recording trace line");
             }
-        }
 
-        if(mWriter == null) {
-            throw new DataSinkException(
-                    "No valid writer - not recording trace line");
-        }
+            IOException failure = mFailure;
+            if(failure != null) {
+                throw new DataSinkException(
+                        "Unable to write to trace file", failure);
+            }
 
-        mLastMessageReceived = GregorianCalendar.getInstance();
-        try {
-            mWriter.write(measurement.serialize());
-            mWriter.newLine();
-        } catch(IOException e) {
-            Log.w(TAG, "Unable to write measurement to file", e);
+            long now = System.nanoTime();
+            if(!mRecording ||
+                    now - mLastMessageNanos > INTER_TRIP_THRESHOLD_NANOS) {
+                Log.i(TAG, "Detected a new trip, splitting recorded trace file");
+                startTrip();
+            }
+            mLastMessageNanos = now;
+
+            append(line);
+        } catch(InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for a buffer", e);
             return false;
+        } finally {
+            mLock.unlock();
         }
         return true;
     }
 
-    public synchronized void stop() {
-        close();
+    /**
+     * Stop recording, and return once everything received so far has been
+     * written and the file is closed.
+     */
+    public void stop() {
+        CountDownLatch written = new CountDownLatch(1);
+        mLock.lock();
+        try {
+            if(mStopped) {
+                return;
+            }
+            mStopped = true;
+            commitFill(true);
+            mCommands.add(new Command(Command.Type.STOP, written));
+        } catch(InterruptedException e) {
+            return;
+        } finally {
+            mLock.unlock();
+        }
+
+        await(written);
         Log.i(TAG, "Shutting down");
     }
 
-    public synchronized void flush() {
-        if(mWriter != null) {
+    /**
+     * Write everything received so far to the file, and return once it has
+     * been written.
+     */
+    public void flush() {
+        CountDownLatch written = new CountDownLatch(1);
+        mLock.lock();
+        try {
+            if(mStopped) {
+                return;
+            }
+            commitFill(true);
+            mCommands.add(new Command(Command.Type.FLUSH, written));
+        } catch(InterruptedException e) {
+            return;
+        } finally {
+            mLock.unlock();
+        }
+        await(written);
+    }
+
+    /**
+     * Compress trace files with gzip. This only takes effect if the
+     * {@link FileOpener} is a {@link FileChannelOpener}, and for files opened
+     * after it's called - call it before the first measurement to compress
+     * them all.
+     *
+     * Before Android 4.4 (API 19) a gzip stream can't be flushed part way
+     * through, so flushing and syncing a compressed file only reaches the
+     * disk with what the compressor has already given up - the most recent
+     * measurements can still be in memory, and are lost if the app is killed
+     * before the file is closed. Leave traces uncompressed if they need to
+     * survive that.
+     */
+    public void setCompressed(boolean compressed) {
+        mCompressed = compressed && mFileOpener instanceof FileChannelOpener;
+        if(compressed && !mCompressed) {
+            Log.w(TAG, "Can't compress trace files written with " +
+                    mFileOpener + " - it doesn't open FileChannels");
+        }
+    }
+
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     * Start a new trace file when the current one reaches a maximum size or
+     * has been open for a maximum time, in addition to at the start of a trip.
+     *
+     * A file is never split within the second it was started, since the new
+     * file would have the same name.
+     *
+     * @param maxFileBytes the size of a file (compressed, if it is) that
+     *      starts a new one, or 0 for no limit.
+     * @param maxFileDuration how long a file is written to before a new one is
+     *      started, or 0 for no limit.
+     * @param unit the unit of maxFileDuration.
+     */
+    public void setRotation(long maxFileBytes, long maxFileDuration,
+            TimeUnit unit) {
+        mMaxFileBytes = maxFileBytes;
+        mMaxFileDurationNanos = unit.toNanos(maxFileDuration);
+    }
+
+    /**
+     * @return the number of times receive() had to wait for a buffer because
+     *      the disk couldn't keep up.
+     */
+    public long getBufferWaitCount() {
+        return mBufferWaitCount;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("filesOpened", mFilesOpened)
+            .add("bytesWritten", mBytesWritten)
+            .add("bufferWaits", mBufferWaitCount)
+            .add("failure", mFailure)
+            .toString();
+    }
+
+    private void await(CountDownLatch latch) {
+        try {
+            if(!latch.await(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Timed out waiting for trace file to be written");
+            }
+        } catch(InterruptedException e) {
+            Log.w(TAG, "Interrupted waiting for trace file to be written", e);
+        }
+    }
+
+    private void startTrip() throws InterruptedException {
+        commitFill(true);
+        mCommands.add(new Command(Command.Type.OPEN, null));
+        mRecording = true;
+    }
+
+    /**
+     * Encode a line and its newline into the fill buffer. If the line doesn't
+     * fit in what's left of the buffer, the buffer is handed over without it
+     * and the line starts a new one, so buffers end on a line boundary. Only a
+     * line longer than a whole buffer is split across buffers.
+     */
+    private void append(String line) throws InterruptedException {
+        CharBuffer chars = CharBuffer.wrap(line);
+        int lineStart = mFill.position();
+        mEncoder.reset();
+        while(mEncoder.encode(chars, mFill, true) == CoderResult.OVERFLOW ||
+                !mFill.hasRemaining()) {
+            if(lineStart > 0) {
+                mFill.position(lineStart);
+                commitFill(true);
+                chars.rewind();
+                mEncoder.reset();
+                lineStart = 0;
+            } else {
+                commitFill(true, false);
+            }
+        }
+        mFill.put((byte) '\n');
+    }
+
+    private void commitFill(boolean wait) throws InterruptedException {
+        commitFill(wait, true);
+    }
+
+    /**
+     * Hand the fill buffer to the writer and take a free one.
+     *
+     * @param wait if true, wait for a free buffer. Otherwise the fill buffer
+     *      is only handed over if a free one is available right away.
+     * @param endsLine false if the buffer ends part way through a line.
+     */
+    private void commitFill(boolean wait, boolean endsLine)
+            throws InterruptedException {
+        if(mFill.position() == 0) {
+            return;
+        }
+
+        ByteBuffer next = mFreeBuffers.poll();
+        if(next == null) {
+            if(!wait) {
+                return;
+            }
+            mBufferWaitCount++;
+            next = mFreeBuffers.take();
+        }
+        mCommands.add(new Command(mFill, endsLine));
+        mFill = next;
+    }
+
+    /**
+     * The destination for recorded bytes.
+     */
+    private interface TraceOutput {
+        void write(ByteBuffer buffer) throws IOException;
+        void flush() throws IOException;
+        void sync() throws IOException;
+        void close() throws IOException;
+
+        /**
+         * @return the number of bytes written to the file.
+         */
+        long size() throws IOException;
+    }
+
+    private static class ChannelOutput implements TraceOutput {
+        private final FileChannel mChannel;
+
+        public ChannelOutput(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        public void write(ByteBuffer buffer) throws IOException {
+            while(buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+
+        public void flush() { }
+
+        public void sync() throws IOException {
+            mChannel.force(false);
+        }
+
+        public void close() throws IOException {
+            mChannel.close();
+        }
+
+        public long size() throws IOException {
+            return mChannel.position();
+        }
+    }
+
+    /**
+     * Before API 19, GZIPOutputStream.flush() can't sync-flush the deflater,
+     * so flush() and sync() only write out what it has already compressed.
+     */
+    private static class GzipOutput implements TraceOutput {
+        private final FileChannel mChannel;
+        private final CountingOutputStream mCounter;
+        private final GZIPOutputStream mStream;
+        private byte[] mBytes = new byte[BUFFER_SIZE];
+
+        public GzipOutput(FileChannel channel) throws IOException {
+            mChannel = channel;
+            mCounter = new CountingOutputStream(
+                    Channels.newOutputStream(channel));
+            mStream = new GZIPOutputStream(mCounter, BUFFER_SIZE);
+        }
+
+        public void write(ByteBuffer buffer) throws IOException {
+            int length = buffer.remaining();
+            buffer.get(mBytes, 0, length);
+            mStream.write(mBytes, 0, length);
+        }
+
+        public void flush() throws IOException {
+            mStream.flush();
+        }
+
+        public void sync() throws IOException {
+            mStream.flush();
+            mChannel.force(false);
+        }
+
+        public void close() throws IOException {
+            mStream.close();
+        }
+
+        public long size() {
+            return mCounter.getCount();
+        }
+    }
+
+    private static class WriterOutput implements TraceOutput {
+        private final BufferedWriter mWriter;
+        private byte[] mBytes = new byte[BUFFER_SIZE];
+        private long mSize;
+
+        public WriterOutput(BufferedWriter writer) {
+            mWriter = writer;
+        }
+
+        public void write(ByteBuffer buffer) throws IOException {
+            int length = buffer.remaining();
+            buffer.get(mBytes, 0, length);
+            mWriter.write(new String(mBytes, 0, length, "UTF-8"));
+            mSize += length;
+        }
+
+        public void flush() throws IOException {
+            mWriter.flush();
+        }
+
+        public void sync() throws IOException {
+            mWriter.flush();
+        }
+
+        public void close() throws IOException {
+            mWriter.close();
+        }
+
+        public long size() {
+            return mSize;
+        }
+    }
+
+    private static class Command {
+        enum Type { OPEN, WRITE, FLUSH, STOP }
+
+        final Type mType;
+        ByteBuffer mBuffer;
+        boolean mEndsLine;
+        CountDownLatch mDone;
+
+        public Command(ByteBuffer buffer, boolean endsLine) {
+            mType = Type.WRITE;
+            mBuffer = buffer;
+            mEndsLine = endsLine;
+        }
+
+        public Command(Type type, CountDownLatch done) {
+            mType = type;
+            mDone = done;
+        }
+    }
+
+    /**
+     * Writes buffers to the current file in the order they were committed,
+     * and commits the fill buffer itself when it has been waiting for the
+     * flush interval - measurements recorded close together are written
+     * together.
+     */
+    private class WriterTask implements Runnable {
+        private final SimpleDateFormat mDateFormatter =
+                new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
+        private TraceOutput mOutput;
+        private String mFilename;
+        private long mOpenedNanos;
+        private boolean mDirty;
+        // false while the end of the last buffer written was part of a line
+        private boolean mAtLineStart = true;
+        private long mLastFlush = System.nanoTime();
+        private long mLastSync = mLastFlush;
+
+        public void run() {
+            try {
+                while(true) {
+                    Command command = mCommands.poll(mFlushIntervalNanos,
+                            TimeUnit.NANOSECONDS);
+                    if(command == null) {
+                        commitIdleFill();
+                    } else if(!handle(command)) {
+                        return;
+                    }
+                    maybeFlush();
+                }
+            } catch(InterruptedException e) {
+                Log.w(TAG, "Trace writer interrupted", e);
+                closeOutput();
+            }
+        }
+
+        /**
+         * @return false if the writer should stop.
+         */
+        private boolean handle(Command command) {
+            switch(command.mType) {
+            case OPEN:
+                openOutput(newFilename());
+                break;
+            case WRITE:
+                if(mAtLineStart) {
+                    maybeRotate();
+                }
+                write(command.mBuffer);
+                mAtLineStart = command.mEndsLine;
+                break;
+            case FLUSH:
+                flushOutput();
+                command.mDone.countDown();
+                break;
+            case STOP:
+                closeOutput();
+                command.mDone.countDown();
+                return false;
+            }
+            return true;
+        }
+
+        private String newFilename() {
+            return mDateFormatter.format(new Date()) +
+                    (mCompressed ? COMPRESSED_EXTENSION : EXTENSION);
+        }
+
+        private void openOutput(String filename) {
+            closeOutput();
             try {
-                mWriter.flush();
+                mOutput = open(filename);
+                mFilename = filename;
+                mOpenedNanos = System.nanoTime();
+                mFilesOpened++;
+                Log.i(TAG, "Opened trace file " + filename + " for writing");
             } catch(IOException e) {
-                Log.w(TAG, "Unable to flush writer", e);
+                Log.w(TAG, "Unable to open file for recording", e);
+                mFailure = e;
             }
         }
-    }
 
-    private synchronized void close() {
-        if(mWriter != null) {
+        private TraceOutput open(String filename) throws IOException {
+            if(mFileOpener instanceof FileChannelOpener) {
+                FileChannel channel = ((FileChannelOpener) mFileOpener)
+                        .openChannelForWriting(filename);
+                if(filename.endsWith(COMPRESSED_EXTENSION)) {
+                    return new GzipOutput(channel);
+                }
+                return new ChannelOutput(channel);
+            }
+            return new WriterOutput(mFileOpener.openForWriting(filename));
+        }
+
+        /**
+         * Start a new file if the current one is over the size or duration
+         * limit. This is checked before each write that starts on a new
+         * line, so a new file is only started once there's something to put
+         * in it and every line is whole in one file.
+         */
+        private void maybeRotate() {
+            if(mOutput == null) {
+                return;
+            }
+
+            long size;
             try {
-                mWriter.close();
+                size = mOutput.size();
             } catch(IOException e) {
-                Log.w(TAG, "Unable to close output file", e);
+                Log.w(TAG, "Unable to check size of trace file", e);
+                return;
+            }
+
+            long maxBytes = mMaxFileBytes;
+            long maxDuration = mMaxFileDurationNanos;
+            boolean rotate = maxBytes > 0 && size >= maxBytes;
+            rotate |= maxDuration > 0 && size > 0 &&
+                    System.nanoTime() - mOpenedNanos >= maxDuration;
+
+            if(rotate) {
+                String filename = newFilename();
+                if(!filename.equals(mFilename)) {
+                    Log.i(TAG, "Trace file " + mFilename +
+                            " reached its limit, starting a new one");
+                    openOutput(filename);
+                }
+            }
+        }
+
+        private void write(ByteBuffer buffer) {
+            buffer.flip();
+            if(mOutput != null) {
+                try {
+                    int length = buffer.remaining();
+                    mOutput.write(buffer);
+                    mBytesWritten += length;
+                    mDirty = true;
+                } catch(IOException e) {
+                    Log.w(TAG, "Unable to write measurements to file", e);
+                    mFailure = e;
+                    closeOutput();
+                }
+            }
+            buffer.clear();
+            mFreeBuffers.add(buffer);
+        }
+
+        /**
+         * Commit the fill buffer if nobody is adding to it right now - if
+         * they are, it will be committed when it's full or on the next idle
+         * poll.
+         */
+        private void commitIdleFill() throws InterruptedException {
+            if(mLock.tryLock()) {
+                try {
+                    commitFill(false);
+                } finally {
+                    mLock.unlock();
+                }
             }
-            mWriter = null;
         }
-    }
 
-    private synchronized Calendar openTimestampedFile() throws IOException {
-        Calendar calendar = GregorianCalendar.getInstance();
-        String filename = sDateFormatter.format(
-                calendar.getTime()) + ".json";
-        if(mWriter != null) {
-            close();
+        private void maybeFlush() {
+            long now = System.nanoTime();
+            if(mDirty && now - mLastFlush >= mFlushIntervalNanos) {
+                flushOutput();
+            }
+
+            if(mSyncIntervalNanos > 0 && mOutput != null &&
+                    now - mLastSync >= mSyncIntervalNanos) {
+                mLastSync = now;
+                try {
+                    mOutput.sync();
+                } catch(IOException e) {
+                    Log.w(TAG, "Unable to sync trace file", e);
+                }
+            }
+        }
+
+        private void flushOutput() {
+            mLastFlush = System.nanoTime();
+            mDirty = false;
+            if(mOutput != null) {
+                try {
+                    mOutput.flush();
+                } catch(IOException e) {
+                    Log.w(TAG, "Unable to flush writer", e);
+                }
+            }
+        }
+
+        private void closeOutput() {
+            if(mOutput != null) {
+                try {
+                    mOutput.close();
+                } catch(IOException e) {
+                    Log.w(TAG, "Unable to close output file", e);
+                }
+                mOutput = null;
+            }
         }
-        mWriter = mFileOpener.openForWriting(filename);
-        Log.i(TAG, "Opened trace file " + filename + " for writing");
-        return calendar;
     }
 }
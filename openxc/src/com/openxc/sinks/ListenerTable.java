@@ -0,0 +1,88 @@
+package com.openxc.sinks;
+
+/**
+ * A table of listeners indexed by a dense measurement index (see
+ * {@link com.openxc.measurements.MeasurementCatalog.Entry#getIndex()}).
+ *
+ * The table is copy-on-write: adding or removing a listener replaces the
+ * arrays under a lock, and {@link #get(int)} returns the current array for an
+ * index without locking or allocating. Callers must not modify the returned
+ * array.
+ */
+class ListenerTable {
+    private final static Object[] EMPTY = new Object[0];
+
+    private volatile Object[][] mListeners = new Object[0][];
+    private volatile int mCount;
+
+    /**
+     * @return the listeners registered at the index - never null.
+     */
+    public Object[] get(int index) {
+        Object[][] listeners = mListeners;
+        if(index < 0 || index >= listeners.length ||
+                listeners[index] == null) {
+            return EMPTY;
+        }
+        return listeners[index];
+    }
+
+    /**
+     * Add a listener at the index. A listener that is already registered at
+     * the index is ignored.
+     *
+     * @return true if the listener was added.
+     */
+    public synchronized boolean add(int index, Object listener) {
+        Object[] current = get(index);
+        for(int i = 0; i < current.length; i++) {
+            if(current[i].equals(listener)) {
+                return false;
+            }
+        }
+
+        Object[] updated = new Object[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        replace(index, updated);
+        mCount++;
+        return true;
+    }
+
+    /**
+     * @return true if the listener was registered at the index.
+     */
+    public synchronized boolean remove(int index, Object listener) {
+        Object[] current = get(index);
+        for(int i = 0; i < current.length; i++) {
+            if(current[i].equals(listener)) {
+                Object[] updated = EMPTY;
+                if(current.length > 1) {
+                    updated = new Object[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i,
+                            current.length - i - 1);
+                }
+                replace(index, updated);
+                mCount--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the total number of listeners in the table.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    private void replace(int index, Object[] listeners) {
+        Object[][] current = mListeners;
+        Object[][] updated = new Object[Math.max(current.length, index + 1)][];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[index] = listeners;
+        mListeners = updated;
+    }
+}
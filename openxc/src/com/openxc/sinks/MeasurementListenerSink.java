@@ -3,12 +3,10 @@ package com.openxc.sinks;
 import android.util.Log;
 
 import com.google.common.base.Objects;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
 import com.openxc.NoValueException;
 import com.openxc.measurements.BaseMeasurement;
 import com.openxc.measurements.Measurement;
+import com.openxc.measurements.MeasurementCatalog;
 import com.openxc.measurements.UnrecognizedMeasurementTypeException;
 import com.openxc.remote.RawMeasurement;
 
@@ -17,24 +15,38 @@ import com.openxc.remote.RawMeasurement;
  *
  * Applications requesting asynchronous updates for specific signals get their
  * values through this sink.
+ *
+ * Listeners are kept in copy-on-write tables indexed by the measurement's
+ * position in the {@link MeasurementCatalog}, so propagating a measurement
+ * never waits on an application registering or unregistering a listener.
  */
 public class MeasurementListenerSink extends AbstractQueuedCallbackSink {
     private final static String TAG = "MeasurementListenerSink";
 
-    private Multimap<Class<? extends Measurement>,
-            Measurement.Listener> mListeners = HashMultimap.create();
+    private ListenerTable mListeners = new ListenerTable();
+    private ListenerTable mNumericListeners = new ListenerTable();
 
     public MeasurementListenerSink() {
-        mListeners = HashMultimap.create();
-        mListeners = Multimaps.synchronizedMultimap(mListeners);
+        super();
+    }
+
+    public MeasurementListenerSink(DeliveryMode mode) {
+        super(mode);
     }
 
-    public void register(Class<? extends Measurement> measurementType,
+    /**
+     * @return true if the listener wasn't already registered for the
+     *      measurement type.
+     */
+    public boolean register(Class<? extends Measurement> measurementType,
             Measurement.Listener listener)
             throws UnrecognizedMeasurementTypeException {
-        mListeners.put(measurementType, listener);
-
+        // looking up the ID adds an application's own types to the catalog
         String measurementId = BaseMeasurement.getIdForClass(measurementType);
+        MeasurementCatalog.Entry entry =
+                MeasurementCatalog.get(measurementType);
+        boolean added = mListeners.add(entry.getIndex(), listener);
+
         if(containsMeasurement(measurementId)) {
             // send the last known value to the new listener
             try {
@@ -43,35 +55,105 @@ public class MeasurementListenerSink extends AbstractQueuedCallbackSink {
                 Log.w(TAG, "Sink could't receive measurement", e);
             }
         }
+        return added;
     }
 
-    public void unregister(Class<? extends Measurement> measurementType,
+    /**
+     * @return true if the listener was registered for the measurement type.
+     */
+    public boolean unregister(Class<? extends Measurement> measurementType,
             Measurement.Listener listener) {
-        mListeners.remove(measurementType, listener);
+        MeasurementCatalog.Entry entry =
+                MeasurementCatalog.get(measurementType);
+        return entry != null && mListeners.remove(entry.getIndex(), listener);
+    }
+
+    /**
+     * Register a listener to receive the numeric value of a measurement type
+     * without a Measurement being built for each update.
+     *
+     * @return true if the listener wasn't already registered for the
+     *      measurement type.
+     * @throws UnrecognizedMeasurementTypeException if the measurement type
+     *      doesn't have a numeric value.
+     */
+    public boolean register(Class<? extends Measurement> measurementType,
+            Measurement.NumericListener listener)
+            throws UnrecognizedMeasurementTypeException {
+        String measurementId = BaseMeasurement.getIdForClass(measurementType);
+        MeasurementCatalog.Entry entry =
+                MeasurementCatalog.get(measurementType);
+        if(entry.isDiscrete()) {
+            throw new UnrecognizedMeasurementTypeException(measurementType +
+                    " doesn't have a numeric value");
+        }
+
+        boolean added = mNumericListeners.add(entry.getIndex(), listener);
+        if(added && containsMeasurement(measurementId)) {
+            // send the last known value to the new listener
+            notifyNumericListener(listener, get(measurementId));
+        }
+        return added;
+    }
+
+    public boolean unregister(Class<? extends Measurement> measurementType,
+            Measurement.NumericListener listener) {
+        MeasurementCatalog.Entry entry =
+                MeasurementCatalog.get(measurementType);
+        return entry != null &&
+                mNumericListeners.remove(entry.getIndex(), listener);
     }
 
     @Override
     public String toString() {
         return Objects.toStringHelper(this)
             .add("numListeners", mListeners.size())
+            .add("numNumericListeners", mNumericListeners.size())
             .toString();
     }
 
     protected void propagateMeasurement(String measurementId,
             RawMeasurement rawMeasurement) {
+        // Most measurements have nobody listening for them, so check before
+        // building anything
+        MeasurementCatalog.Entry entry = MeasurementCatalog.get(measurementId);
+        if(entry == null) {
+            return;
+        }
+
+        Object[] numericListeners = mNumericListeners.get(entry.getIndex());
+        for(int i = 0; i < numericListeners.length; i++) {
+            notifyNumericListener(
+                    (Measurement.NumericListener) numericListeners[i],
+                    rawMeasurement);
+        }
+
+        Object[] listeners = mListeners.get(entry.getIndex());
+        if(listeners.length == 0) {
+            return;
+        }
+
         try {
             Measurement measurement = BaseMeasurement.getMeasurementFromRaw(
-                    rawMeasurement);
-            for(Measurement.Listener listener :
-                    mListeners.get(BaseMeasurement.getClassForId(measurementId))) {
-                listener.receive(measurement);
+                    entry.getType(), rawMeasurement);
+            for(int i = 0; i < listeners.length; i++) {
+                ((Measurement.Listener) listeners[i]).receive(measurement);
             }
         } catch(UnrecognizedMeasurementTypeException e) {
-            // This happens quite often if nobody has registered to receive
-            // updates for the specific signal. It can be an error, but if we
-            // log here it's really, really noisy.
+            Log.w(TAG, "Received a measurement with an unexpected value: " +
+                    rawMeasurement, e);
         } catch(NoValueException e) {
             Log.w(TAG, "Received notification for a blank measurement", e);
         }
     }
+
+    private static void notifyNumericListener(
+            Measurement.NumericListener listener,
+            RawMeasurement rawMeasurement) {
+        Object value = rawMeasurement.getValue();
+        if(value instanceof Number) {
+            listener.receive(((Number) value).doubleValue(),
+                    (long) (rawMeasurement.getTimestamp() * 1000000000L));
+        }
+    }
 }
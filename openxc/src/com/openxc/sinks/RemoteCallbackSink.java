@@ -25,6 +25,14 @@ public class RemoteCallbackSink extends AbstractQueuedCallbackSink {
     private RemoteCallbackList<VehicleServiceListener> mListeners =
             new RemoteCallbackList<VehicleServiceListener>();
 
+    public RemoteCallbackSink() {
+        super();
+    }
+
+    public RemoteCallbackSink(DeliveryMode mode) {
+        super(mode);
+    }
+
     public synchronized void register(VehicleServiceListener listener) {
         synchronized(mListeners) {
             if(mListeners.register(listener)) {
@@ -0,0 +1,43 @@
+package com.openxc.sinks;
+
+import com.google.common.base.Objects;
+import com.openxc.remote.RawMeasurement;
+import com.openxc.remote.SharedMeasurementTable;
+
+/**
+ * A data sink that publishes the latest value of every measurement to a
+ * {@link SharedMeasurementTable}.
+ *
+ * The {@link com.openxc.remote.VehicleService} uses this sink so that
+ * applications can read the current state of the vehicle from shared memory
+ * instead of making a Binder call for every
+ * {@link com.openxc.VehicleManager#get(Class)}.
+ */
+public class SharedMeasurementTableSink extends BaseVehicleDataSink {
+    private SharedMeasurementTable mTable;
+    private int mDroppedCount;
+
+    public SharedMeasurementTableSink(SharedMeasurementTable table) {
+        mTable = table;
+    }
+
+    public boolean receive(RawMeasurement measurement) {
+        if(!mTable.write(measurement)) {
+            ++mDroppedCount;
+            return false;
+        }
+        return true;
+    }
+
+    public SharedMeasurementTable getTable() {
+        return mTable;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("table", mTable)
+            .add("dropped", mDroppedCount)
+            .toString();
+    }
+}
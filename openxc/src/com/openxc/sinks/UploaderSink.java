@@ -8,9 +8,8 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -30,6 +29,7 @@ import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.base.Objects;
 import com.openxc.remote.RawMeasurement;
+import com.openxc.util.TaskRuntime;
 
 /**
  * Upload a stream of all incoming vehicle data to a remote HTTP server.
@@ -44,19 +44,28 @@ import com.openxc.remote.RawMeasurement;
  * outages, but do not expect it to be especially reliable. No guarantee is
  * provided about the preservation of records - to do that, a subclass would
  * need to write the data to a file when no network connection is available.
+ *
+ * Uploads run on the shared {@link TaskRuntime} I/O executor when a batch of
+ * records is ready, or when the oldest record has waited for the flush
+ * interval.
  */
 public class UploaderSink extends ContextualVehicleDataSink {
     private final static String TAG = "UploaderSink";
     private final static int UPLOAD_BATCH_SIZE = 25;
     private final static int MAXIMUM_QUEUED_RECORDS = 5000;
     private final static int HTTP_TIMEOUT = 5000;
+    private final static int UPLOAD_FLUSH_INTERVAL = 5000;
+    private final static int UPLOAD_RETRY_DELAY = 5000;
 
     private URI mUri;
     private BlockingQueue<String> mRecordQueue =
             new LinkedBlockingQueue<String>(MAXIMUM_QUEUED_RECORDS);
-    private Lock mQueueLock = new ReentrantLock();
-    private Condition mRecordsQueued = mQueueLock.newCondition();
-    private UploaderThread mUploader = new UploaderThread();
+    private TaskRuntime mRuntime = TaskRuntime.getDefault();
+    private UploadTask mUploadTask = new UploadTask();
+    // Set while an upload is submitted, running or waiting to retry
+    private AtomicBoolean mUploadScheduled = new AtomicBoolean();
+    private AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private volatile boolean mStopped;
 
     /**
      * Initialize and start a new UploaderSink immediately.
@@ -75,16 +84,17 @@ public class UploaderSink extends ContextualVehicleDataSink {
     @Override
     public void stop() {
         super.stop();
-        mUploader.done();
+        mStopped = true;
     }
 
     public boolean receive(RawMeasurement measurement) {
         String data = measurement.serialize(true);
         mRecordQueue.offer(data);
         if(mRecordQueue.size() >= UPLOAD_BATCH_SIZE) {
-            mQueueLock.lock();
-            mRecordsQueued.signal();
-            mQueueLock.unlock();
+            scheduleUpload();
+        } else if(mFlushScheduled.compareAndSet(false, true)) {
+            mRuntime.getTimer().schedule(mFlushTask, UPLOAD_FLUSH_INTERVAL,
+                    TimeUnit.MILLISECONDS);
         }
         return true;
     }
@@ -118,6 +128,26 @@ public class UploaderSink extends ContextualVehicleDataSink {
             .toString();
     }
 
+    private void scheduleUpload() {
+        if(!mUploadScheduled.get() && !mStopped &&
+                mUploadScheduled.compareAndSet(false, true)) {
+            mRuntime.getIoExecutor().execute(mUploadTask);
+        }
+    }
+
+    private Runnable mFlushTask = new Runnable() {
+        public void run() {
+            mFlushScheduled.set(false);
+            scheduleUpload();
+        }
+    };
+
+    private Runnable mRetryTask = new Runnable() {
+        public void run() {
+            mRuntime.getIoExecutor().execute(mUploadTask);
+        }
+    };
+
     private static URI uriFromString(String path) throws DataSinkException {
         try {
             return new URI(path);
@@ -137,31 +167,39 @@ public class UploaderSink extends ContextualVehicleDataSink {
         }
     }
 
-    private class UploaderThread extends Thread {
-        private boolean mRunning = true;
-
-        public UploaderThread() {
-            start();
-        }
-
+    private class UploadTask implements Runnable {
         public void run() {
-            while(mRunning) {
-                try {
-                    ArrayList<String> records = getRecords();
-                    String data = constructRequestData(records);
-                    HttpPost request = constructRequest(data);
-                    makeRequest(request);
-                } catch(UploaderException e) {
-                    Log.w(TAG, "Problem uploading the record", e);
-                } catch(InterruptedException e) {
-                    Log.w(TAG, "Uploader was interrupted", e);
-                    break;
+            boolean retrying = false;
+            try {
+                while(!mStopped && !mRecordQueue.isEmpty()) {
+                    ArrayList<String> records = new ArrayList<String>();
+                    mRecordQueue.drainTo(records, UPLOAD_BATCH_SIZE);
+                    try {
+                        String data = constructRequestData(records);
+                        HttpPost request = constructRequest(data);
+                        if(!makeRequest(request)) {
+                            // wait for the network to come back, keeping
+                            // the upload scheduled so nothing else starts
+                            retrying = true;
+                            mRuntime.getTimer().schedule(mRetryTask,
+                                    UPLOAD_RETRY_DELAY, TimeUnit.MILLISECONDS);
+                            return;
+                        }
+                    } catch(UploaderException e) {
+                        Log.w(TAG, "Problem uploading the record", e);
+                    }
+                }
+            } finally {
+                if(!retrying) {
+                    mUploadScheduled.set(false);
                 }
             }
-        }
 
-        public void done() {
-            mRunning = false;
+            // records queued after the last check may have seen the upload
+            // still scheduled
+            if(!retrying && mRecordQueue.size() >= UPLOAD_BATCH_SIZE) {
+                scheduleUpload();
+            }
         }
 
         private String constructRequestData(ArrayList<String> records)
@@ -208,7 +246,11 @@ public class UploaderSink extends ContextualVehicleDataSink {
             return request;
         }
 
-        private void makeRequest(HttpPost request) throws InterruptedException {
+        /**
+         * @return false if the request couldn't be sent and should be retried
+         *      later.
+         */
+        private boolean makeRequest(HttpPost request) {
             HttpParams parameters = new BasicHttpParams();
             HttpConnectionParams.setConnectionTimeout(parameters, HTTP_TIMEOUT);
             HttpConnectionParams.setSoTimeout(parameters, HTTP_TIMEOUT);
@@ -221,29 +263,9 @@ public class UploaderSink extends ContextualVehicleDataSink {
                 }
             } catch(IOException e) {
                 Log.w(TAG, "Problem uploading the record", e);
-                try {
-                    Thread.sleep(5000);
-                } catch(InterruptedException e2) {
-                    Log.w(TAG, "Uploader interrupted after an error", e2);
-                    throw e2;
-                }
+                return false;
             }
-        }
-
-        private ArrayList<String> getRecords() throws InterruptedException {
-            mQueueLock.lock();
-            if(mRecordQueue.isEmpty()) {
-                // the queue is already thread safe, but we use this lock to get
-                // a condition variable we can use to signal when a batch has
-                // been queued.
-                mRecordsQueued.await();
-            }
-
-            ArrayList<String> records = new ArrayList<String>();
-            mRecordQueue.drainTo(records, UPLOAD_BATCH_SIZE);
-
-            mQueueLock.unlock();
-            return records;
+            return true;
         }
     }
 
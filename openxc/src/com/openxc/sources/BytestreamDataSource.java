@@ -8,9 +8,13 @@ import java.util.concurrent.locks.ReentrantLock;
 import android.content.Context;
 import android.util.Log;
 
+import com.openxc.util.TaskRuntime;
+
 /**
  * Common functionality for data sources that read a stream of newline-separated
  * messages in a separate thread from the main activity.
+ *
+ * The read loop runs on the shared {@link TaskRuntime} I/O executor.
  */
 public abstract class BytestreamDataSource extends ContextualVehicleDataSource
         implements Runnable {
@@ -31,7 +35,7 @@ public abstract class BytestreamDataSource extends ContextualVehicleDataSource
     public synchronized void start() {
         if(!mRunning) {
             mRunning = true;
-            new Thread(this).start();
+            TaskRuntime.getDefault().getIoExecutor().execute(this);
         }
     }
 
@@ -5,13 +5,13 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
-import android.os.Looper;
 import android.util.Log;
 
 import com.google.common.base.Objects;
 import com.openxc.measurements.Latitude;
 import com.openxc.measurements.Longitude;
 import com.openxc.remote.RawMeasurement;
+import com.openxc.util.TaskRuntime;
 
 /**
  * Generate location measurements based on native GPS updates.
@@ -34,7 +34,7 @@ public class NativeLocationSource extends ContextualVehicleDataSource
         super(callback, context);
         mLocationManager = (LocationManager) getContext().getSystemService(
                     Context.LOCATION_SERVICE);
-        new Thread(this).start();
+        TaskRuntime.getDefault().getIoExecutor().execute(this);
     }
 
     public NativeLocationSource(Context context) {
@@ -42,8 +42,6 @@ public class NativeLocationSource extends ContextualVehicleDataSource
     }
 
     public void run() {
-        Looper.prepare();
-
         // try to grab a rough location from the network provider before
         // registering for GPS, which may take a while to initialize
         Location lastKnownLocation = mLocationManager
@@ -57,12 +55,11 @@ public class NativeLocationSource extends ContextualVehicleDataSource
             mLocationManager.requestLocationUpdates(
                     LocationManager.GPS_PROVIDER,
                     NATIVE_GPS_UPDATE_INTERVAL, 0,
-                    this);
+                    this, TaskRuntime.getDefault().getCallbackLooper());
             Log.d(TAG, "Requested GPS updates");
         } catch(IllegalArgumentException e) {
             Log.w(TAG, "GPS location provider is unavailable");
         }
-        Looper.loop();
     }
 
     public void stop() {
@@ -1,12 +1,20 @@
 package com.openxc.sources;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.os.RemoteException;
 import android.util.Log;
 
 import com.google.common.base.Objects;
 import com.openxc.remote.RawMeasurement;
+import com.openxc.remote.SignalPriorities;
+import com.openxc.remote.VehicleService;
 import com.openxc.remote.VehicleServiceInterface;
 import com.openxc.remote.VehicleServiceListener;
+import com.openxc.sinks.AbstractQueuedCallbackSink;
+import com.openxc.sinks.AbstractQueuedCallbackSink.DeliveryMode;
+import com.openxc.sinks.DataSinkException;
+import com.openxc.util.TaskRuntime;
 
 /**
  * Pass measurements from a VehicleService to an in-process callback.
@@ -18,16 +26,60 @@ import com.openxc.remote.VehicleServiceListener;
  * share code between remote and in-process data sources and sinks. This makes
  * adding new sources and sinks possible for end users, since the
  * VehicleService doesn't need to have every possible implementation.
+ *
+ * Measurements arrive on one of the application's Binder threads. They are
+ * queued in an {@link AbstractQueuedCallbackSink} and the Binder thread returns
+ * immediately - a task on the {@link TaskRuntime} listener executor drains the
+ * queue and runs the pipeline, so slow sinks or listeners in the application
+ * can't exhaust the Binder thread pool or the compute threads. High priority
+ * signals (see {@link SignalPriorities}) have their own lane that is checked
+ * before each normal priority measurement.
+ *
+ * By default the queue is {@link DeliveryMode#LOSSLESS}: every measurement
+ * reaches the application's sinks, e.g. a recorder or uploader added through
+ * the VehicleManager, and a Binder thread only waits if the bounded queue is
+ * full. A source that only feeds listeners of the latest values can use
+ * {@link DeliveryMode#COALESCING} instead, so that only the latest value of
+ * each measurement waits to be dispatched and Binder threads never wait.
+ *
+ * If the VehicleService is running in the same process, this source skips the
+ * listener interface and adds the same queue directly to the service's
+ * pipeline as a sink, so each measurement object is handed straight to it.
  */
 public class RemoteListenerSource extends BaseVehicleDataSource {
     private final static String TAG = "RemoteListenerSource";
     private VehicleServiceInterface mService;
+    private VehicleService.VehicleServiceBinder mLocalService;
+    private DispatchSink mDispatcher;
+    private AtomicLong mReceivedCount = new AtomicLong();
+    private AtomicLong mDispatchedCount = new AtomicLong();
+    private volatile int mMaxQueueDepth;
 
     /**
-     * Registers a measurement listener with the remote service.
+     * Registers a measurement listener with the remote service, and delivers
+     * every measurement it sends.
      */
     public RemoteListenerSource(VehicleServiceInterface service) {
+        this(service, DeliveryMode.LOSSLESS);
+    }
+
+    /**
+     * Registers a measurement listener with the remote service.
+     *
+     * @param mode how measurements wait to be dispatched to this source's
+     *      pipeline.
+     */
+    public RemoteListenerSource(VehicleServiceInterface service,
+            DeliveryMode mode) {
         mService = service;
+        mDispatcher = new DispatchSink(mode);
+
+        if(service instanceof VehicleService.VehicleServiceBinder) {
+            mLocalService = (VehicleService.VehicleServiceBinder) service;
+            // shed like the service's remote listeners are
+            mLocalService.addLocalSink(mDispatcher, false);
+            return;
+        }
 
         try {
             mService.register(mRemoteListener);
@@ -39,23 +91,114 @@ public class RemoteListenerSource extends BaseVehicleDataSource {
 
     public void stop() {
         super.stop();
-        try {
-            mService.unregister(mRemoteListener);
-        } catch(RemoteException e) {
-            Log.w(TAG, "Unable to register to receive " +
-                    "measurement callbacks", e);
+        if(isLocal()) {
+            mLocalService.removeLocalSink(mDispatcher);
+        } else {
+            try {
+                mService.unregister(mRemoteListener);
+            } catch(RemoteException e) {
+                Log.w(TAG, "Unable to unregister from " +
+                        "measurement callbacks", e);
+            }
         }
+        mDispatcher.stop();
+    }
+
+    /**
+     * @return true if measurements are received directly from a VehicleService
+     *      in this process, instead of through the AIDL listener interface.
+     */
+    public boolean isLocal() {
+        return mLocalService != null;
+    }
+
+    /**
+     * @return the number of measurements received from the remote service
+     *      that are waiting to be dispatched.
+     */
+    public int getQueueDepth() {
+        return (int) (mReceivedCount.get() - mDispatchedCount.get() -
+                mDispatcher.getCoalescedCount());
+    }
+
+    /**
+     * @return the largest number of measurements that have been waiting for
+     *      dispatch at once.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return the total number of measurements received from the remote
+     *      service.
+     */
+    public long getReceivedCount() {
+        return mReceivedCount.get();
+    }
+
+    public DeliveryMode getDeliveryMode() {
+        return mDispatcher.getDeliveryMode();
+    }
+
+    /**
+     * @return the number of measurements dropped because a newer value of the
+     *      same measurement arrived before they were dispatched. Always zero in
+     *      {@link DeliveryMode#LOSSLESS} mode.
+     */
+    public long getCoalescedCount() {
+        return mDispatcher.getCoalescedCount();
     }
 
     @Override
     public String toString() {
-        return Objects.toStringHelper(this).toString();
+        return Objects.toStringHelper(this)
+            .add("local", isLocal())
+            .add("mode", getDeliveryMode())
+            .add("received", getReceivedCount())
+            .add("queueDepth", getQueueDepth())
+            .add("maxQueueDepth", getMaxQueueDepth())
+            .add("coalesced", getCoalescedCount())
+            .toString();
     }
 
     private VehicleServiceListener mRemoteListener =
         new VehicleServiceListener.Stub() {
             public void receive(RawMeasurement rawMeasurement) {
-                handleMessage(rawMeasurement);
+                try {
+                    mDispatcher.receive(rawMeasurement);
+                } catch(DataSinkException e) {
+                    Log.w(TAG, "Unable to queue " + rawMeasurement, e);
+                }
             }
         };
+
+    /**
+     * Queues measurements from either the listener or the local service's
+     * pipeline, and runs this source's pipeline with them.
+     */
+    private class DispatchSink extends AbstractQueuedCallbackSink {
+        public DispatchSink(DeliveryMode mode) {
+            super(mode);
+        }
+
+        @Override
+        public boolean receive(RawMeasurement measurement)
+                throws DataSinkException {
+            int depth = (int) (mReceivedCount.incrementAndGet() -
+                    mDispatchedCount.get() - getCoalescedCount());
+            // Binder threads race on this update, so the maximum is
+            // approximate
+            if(depth > mMaxQueueDepth) {
+                mMaxQueueDepth = depth;
+            }
+            return super.receive(measurement);
+        }
+
+        protected void propagateMeasurement(String measurementId,
+                RawMeasurement measurement) {
+            mDispatchedCount.incrementAndGet();
+            handleMessage(measurement);
+        }
+    }
 }
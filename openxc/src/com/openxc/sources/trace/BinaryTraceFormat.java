@@ -0,0 +1,171 @@
+package com.openxc.sources.trace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Constants and encoding helpers shared by the {@link BinaryTraceWriter} and
+ * {@link BinaryTraceReader}.
+ *
+ * A binary trace starts with an 8 byte header (the magic number and the format
+ * version) followed by a series of blocks. Each block has a fixed header:
+ *
+ *      int payloadLength, int recordCount,
+ *      long firstTimestampMicros, long lastTimestampMicros
+ *
+ * and a payload with the strings added to the dictionary in this block
+ * (a varint count, then each string as a varint length and UTF-8 bytes),
+ * followed by the records. Every record is:
+ *
+ *      byte header - value tag in bits 0-2, event tag in bits 3-5, bit 6 set
+ *              if the record has a timestamp
+ *      varint name - dictionary ID
+ *      zigzag varint timestamp - microseconds since the previous record's
+ *              timestamp in the block, or since the block's first timestamp
+ *      value and event - as described by their tags
+ *
+ * Names and string values share one dictionary. IDs are assigned in the order
+ * strings are first seen, and never reset, so a block can refer to strings
+ * added by earlier blocks.
+ *
+ * After the last block is the index: an int of -1 where a block's
+ * payloadLength would be, the full dictionary, a varint block count and for
+ * each block its file offset, first and last timestamp and record count. The
+ * file ends with a 12 byte trailer - the offset of the index and a second
+ * magic number. A file without a trailer, e.g. one still being recorded, can
+ * still be read from the start.
+ */
+final class BinaryTraceFormat {
+    static final int MAGIC = 0x4f584354; // "OXCT"
+    static final int TRAILER_MAGIC = 0x4f584349; // "OXCI"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int BLOCK_HEADER_SIZE = 24;
+    static final int TRAILER_SIZE = 12;
+    static final int INDEX_MARKER = -1;
+    static final int INDEX_ENTRY_SIZE = 28;
+
+    static final int TAG_NULL = 0;
+    static final int TAG_FALSE = 1;
+    static final int TAG_TRUE = 2;
+    static final int TAG_DOUBLE = 3;
+    static final int TAG_INTEGER = 4;
+    static final int TAG_LONG = 5;
+    static final int TAG_STRING = 6;
+    // the number of tags that can be written to a file - other code that
+    // packs values the same way can use tags from here up for its own types
+    static final int TAG_COUNT = 7;
+
+    static final int TAG_BITS = 3;
+    static final int TAG_MASK = (1 << TAG_BITS) - 1;
+    static final int TIMESTAMP_FLAG = 1 << (TAG_BITS * 2);
+
+    private BinaryTraceFormat() { }
+
+    static long toMicros(double timestampSeconds) {
+        return Math.round(timestampSeconds * 1000000);
+    }
+
+    static double toSeconds(long timestampMicros) {
+        return timestampMicros / 1000000.0;
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static void writeZigZag(ByteArrayOutputStream out, long value) {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = encode(value);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static void writeInt(ByteArrayOutputStream out, int value) {
+        for(int shift = 24; shift >= 0; shift -= 8) {
+            out.write(value >>> shift);
+        }
+    }
+
+    static void writeLong(ByteArrayOutputStream out, long value) {
+        for(int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    static long readVarLong(ByteBuffer buffer) throws CorruptTraceException {
+        long value = 0;
+        try {
+            for(int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7f) << shift;
+                if((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        } catch(BufferUnderflowException e) {
+            throw new CorruptTraceException("Varint runs past the end", e);
+        }
+        throw new CorruptTraceException("Varint is longer than 64 bits");
+    }
+
+    static int readVarInt(ByteBuffer buffer) throws CorruptTraceException {
+        long value = readVarLong(buffer);
+        if(value < 0 || value > Integer.MAX_VALUE) {
+            throw new CorruptTraceException("Varint out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    static long readZigZag(ByteBuffer buffer) throws CorruptTraceException {
+        long value = readVarLong(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static String readString(ByteBuffer buffer) throws CorruptTraceException {
+        int length = readVarInt(buffer);
+        if(length > buffer.remaining()) {
+            throw new CorruptTraceException("String runs past the end");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 is always supported", e);
+        }
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 is always supported", e);
+        }
+    }
+
+    /**
+     * Thrown when a binary trace doesn't have the expected structure.
+     */
+    static class CorruptTraceException extends java.io.IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CorruptTraceException(String message) {
+            super(message);
+        }
+
+        public CorruptTraceException(String message, Throwable cause) {
+            super(message);
+            initCause(cause);
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package com.openxc.sources.trace;
+
+import static com.openxc.sources.trace.BinaryTraceFormat.*;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import com.google.common.base.Objects;
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * Read measurements from a binary trace written by a
+ * {@link BinaryTraceWriter}.
+ *
+ * The measurements can be read in order with {@link #next()}, starting from
+ * the beginning or from a point in time (see {@link #seek(double)}), or a whole
+ * block at a time with {@link #readBlock(int)}. Blocks are read with
+ * positional reads and only the sequential reading keeps any state, so
+ * readBlock can be called from several threads at once.
+ *
+ * If the file doesn't have an index, e.g. because it is still being recorded,
+ * the blocks are found by scanning the file when it's opened and reading stops
+ * at the last complete block.
+ */
+public class BinaryTraceReader implements TraceCursor {
+    private static final String TAG = "BinaryTraceReader";
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final List<String> mDictionary = new ArrayList<String>();
+    private long[] mOffsets;
+    private long[] mFirstMicros;
+    private long[] mLastMicros;
+    private int[] mCounts;
+    private int mBlockCount;
+    private boolean mIndexed;
+
+    private int mNextBlock;
+    private BlockDecoder mDecoder;
+    private RawMeasurement mPending;
+
+    public BinaryTraceReader(File file) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        mChannel = mRandomAccessFile.getChannel();
+        try {
+            ByteBuffer header = read(0, HEADER_SIZE);
+            if(header.getInt() != MAGIC) {
+                throw new CorruptTraceException(file + " isn't a binary trace");
+            }
+            short version = header.getShort();
+            if(version != VERSION) {
+                throw new CorruptTraceException("Binary trace version " +
+                        version + " isn't supported");
+            }
+
+            mIndexed = readIndex();
+            if(!mIndexed) {
+                Log.i(TAG, file + " has no index, scanning for blocks");
+                scanBlocks();
+            }
+        } catch(IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the file starts like a binary trace.
+     */
+    public static boolean isBinaryTrace(File file) {
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                return input.length() >= HEADER_SIZE &&
+                        input.readInt() == MAGIC;
+            } finally {
+                input.close();
+            }
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the index was read from the file, false if it was
+     *      found by scanning.
+     */
+    public boolean isIndexed() {
+        return mIndexed;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    public long getMeasurementCount() {
+        long count = 0;
+        for(int i = 0; i < mBlockCount; i++) {
+            count += mCounts[i];
+        }
+        return count;
+    }
+
+    /**
+     * @return the timestamp of the first measurement in seconds, or NaN if the
+     *      trace is empty.
+     */
+    public double getStartTimestamp() {
+        if(mBlockCount == 0) {
+            return Double.NaN;
+        }
+        return toSeconds(mFirstMicros[0]);
+    }
+
+    /**
+     * @return the timestamp of the last measurement in seconds, or NaN if the
+     *      trace is empty.
+     */
+    public double getEndTimestamp() {
+        if(mBlockCount == 0) {
+            return Double.NaN;
+        }
+        return toSeconds(mLastMicros[mBlockCount - 1]);
+    }
+
+    /**
+     * Decode all of the measurements in one block.
+     */
+    public List<RawMeasurement> readBlock(int block) throws IOException {
+        if(block < 0 || block >= mBlockCount) {
+            throw new IndexOutOfBoundsException("No block " + block + " in " +
+                    mFile);
+        }
+        BlockDecoder decoder = openBlock(block);
+        List<RawMeasurement> measurements = new ArrayList<RawMeasurement>(
+                mCounts[block]);
+        RawMeasurement measurement;
+        while((measurement = decoder.next()) != null) {
+            measurements.add(measurement);
+        }
+        return measurements;
+    }
+
+    public RawMeasurement next() throws IOException {
+        if(mPending != null) {
+            RawMeasurement pending = mPending;
+            mPending = null;
+            return pending;
+        }
+
+        while(true) {
+            if(mDecoder != null) {
+                RawMeasurement measurement = mDecoder.next();
+                if(measurement != null) {
+                    return measurement;
+                }
+                mDecoder = null;
+            }
+
+            if(mNextBlock >= mBlockCount) {
+                return null;
+            }
+            mDecoder = openBlock(mNextBlock++);
+        }
+    }
+
+    /**
+     * Move to the first measurement at or after a point in time, so that it's
+     * the next one returned by {@link #next()}.
+     *
+     * Blocks are found with a binary search of the index, so only one block is
+     * decoded. Measurements without a timestamp in that block before the
+     * target are skipped.
+     *
+     * @param timestampSeconds the time to seek to, in the same seconds as the
+     *      measurements' timestamps.
+     * @return true - binary traces can seek in either direction.
+     */
+    public boolean seek(double timestampSeconds) throws IOException {
+        long target = toMicros(timestampSeconds);
+        int low = 0;
+        int high = mBlockCount;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(mLastMicros[middle] < target) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        mNextBlock = low;
+        mDecoder = null;
+        mPending = null;
+        RawMeasurement measurement;
+        while((measurement = next()) != null) {
+            if(measurement.isTimestamped() &&
+                    toMicros(measurement.getTimestamp()) >= target) {
+                mPending = measurement;
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Go back to the start of the trace.
+     */
+    public void rewind() {
+        mNextBlock = 0;
+        mDecoder = null;
+        mPending = null;
+    }
+
+    public void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("file", mFile)
+            .add("blocks", mBlockCount)
+            .add("indexed", mIndexed)
+            .add("dictionary", mDictionary.size())
+            .toString();
+    }
+
+    private boolean readIndex() throws IOException {
+        long size = mChannel.size();
+        if(size < HEADER_SIZE + TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        if(trailer.getInt() != TRAILER_MAGIC || indexOffset < HEADER_SIZE ||
+                indexOffset > size - TRAILER_SIZE) {
+            return false;
+        }
+
+        ByteBuffer index = read(indexOffset,
+                (int) (size - TRAILER_SIZE - indexOffset));
+        if(index.getInt() != INDEX_MARKER) {
+            throw new CorruptTraceException("Index of " + mFile +
+                    " is missing its marker");
+        }
+        int dictionarySize = readVarInt(index);
+        for(int i = 0; i < dictionarySize; i++) {
+            mDictionary.add(readString(index));
+        }
+
+        int blockCount = readVarInt(index);
+        if(blockCount * (long) INDEX_ENTRY_SIZE > index.remaining()) {
+            throw new CorruptTraceException("Index of " + mFile +
+                    " is truncated");
+        }
+        allocateIndex(blockCount);
+        for(int i = 0; i < blockCount; i++) {
+            mOffsets[i] = index.getLong();
+            mFirstMicros[i] = index.getLong();
+            mLastMicros[i] = index.getLong();
+            mCounts[i] = index.getInt();
+        }
+        mBlockCount = blockCount;
+        return true;
+    }
+
+    private void scanBlocks() throws IOException {
+        allocateIndex(16);
+        long size = mChannel.size();
+        long offset = HEADER_SIZE;
+        while(offset + BLOCK_HEADER_SIZE <= size) {
+            ByteBuffer header = read(offset, BLOCK_HEADER_SIZE);
+            int payloadLength = header.getInt();
+            if(payloadLength == INDEX_MARKER || payloadLength < 0 ||
+                    offset + BLOCK_HEADER_SIZE + payloadLength > size) {
+                break;
+            }
+
+            if(mBlockCount == mOffsets.length) {
+                growIndex();
+            }
+            mOffsets[mBlockCount] = offset;
+            mCounts[mBlockCount] = header.getInt();
+            mFirstMicros[mBlockCount] = header.getLong();
+            mLastMicros[mBlockCount] = header.getLong();
+
+            ByteBuffer payload = read(offset + BLOCK_HEADER_SIZE,
+                    payloadLength);
+            int newStrings = readVarInt(payload);
+            for(int i = 0; i < newStrings; i++) {
+                mDictionary.add(readString(payload));
+            }
+
+            mBlockCount++;
+            offset += BLOCK_HEADER_SIZE + payloadLength;
+        }
+    }
+
+    private void allocateIndex(int capacity) {
+        mOffsets = new long[capacity];
+        mFirstMicros = new long[capacity];
+        mLastMicros = new long[capacity];
+        mCounts = new int[capacity];
+    }
+
+    private void growIndex() {
+        int capacity = mOffsets.length * 2;
+        long[] offsets = mOffsets;
+        long[] firstMicros = mFirstMicros;
+        long[] lastMicros = mLastMicros;
+        int[] counts = mCounts;
+        allocateIndex(capacity);
+        System.arraycopy(offsets, 0, mOffsets, 0, mBlockCount);
+        System.arraycopy(firstMicros, 0, mFirstMicros, 0, mBlockCount);
+        System.arraycopy(lastMicros, 0, mLastMicros, 0, mBlockCount);
+        System.arraycopy(counts, 0, mCounts, 0, mBlockCount);
+    }
+
+    private BlockDecoder openBlock(int block) throws IOException {
+        ByteBuffer header = read(mOffsets[block], BLOCK_HEADER_SIZE);
+        int payloadLength = header.getInt();
+        if(payloadLength < 0) {
+            throw new CorruptTraceException("Block " + block + " of " +
+                    mFile + " has a bad length");
+        }
+        ByteBuffer payload = read(mOffsets[block] + BLOCK_HEADER_SIZE,
+                payloadLength);
+        // the strings were added to the dictionary when the file was opened
+        int newStrings = readVarInt(payload);
+        for(int i = 0; i < newStrings; i++) {
+            int length = readVarInt(payload);
+            if(length > payload.remaining()) {
+                throw new CorruptTraceException("String runs past the end");
+            }
+            payload.position(payload.position() + length);
+        }
+        return new BlockDecoder(payload, mCounts[block], mFirstMicros[block]);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()) {
+            if(mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + mFile);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private String lookup(int id) throws CorruptTraceException {
+        if(id >= mDictionary.size()) {
+            throw new CorruptTraceException("Unknown dictionary ID " + id +
+                    " in " + mFile);
+        }
+        return mDictionary.get(id);
+    }
+
+    private class BlockDecoder {
+        private final ByteBuffer mPayload;
+        private int mRemaining;
+        private long mPreviousMicros;
+
+        public BlockDecoder(ByteBuffer payload, int count, long firstMicros) {
+            mPayload = payload;
+            mRemaining = count;
+            mPreviousMicros = firstMicros;
+        }
+
+        public RawMeasurement next() throws IOException {
+            if(mRemaining == 0) {
+                return null;
+            }
+            mRemaining--;
+
+            int header;
+            try {
+                header = mPayload.get() & 0xff;
+            } catch(BufferUnderflowException e) {
+                throw new CorruptTraceException("Block in " + mFile +
+                        " is shorter than its record count", e);
+            }
+            String name = lookup(readVarInt(mPayload));
+            boolean timestamped = (header & TIMESTAMP_FLAG) != 0;
+            if(timestamped) {
+                mPreviousMicros += readZigZag(mPayload);
+            }
+            Object value = readTagged(header & TAG_MASK);
+            Object event = readTagged((header >>> TAG_BITS) & TAG_MASK);
+
+            if(timestamped) {
+                return new RawMeasurement(name, value, event,
+                        toSeconds(mPreviousMicros));
+            }
+            RawMeasurement measurement = new RawMeasurement(name, value,
+                    event);
+            measurement.untimestamp();
+            return measurement;
+        }
+
+        private Object readTagged(int tag) throws IOException {
+            switch(tag) {
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_DOUBLE:
+                if(mPayload.remaining() < 8) {
+                    throw new CorruptTraceException("Value runs past the " +
+                            "end of a block in " + mFile);
+                }
+                return mPayload.getDouble();
+            case TAG_INTEGER:
+                return (int) readZigZag(mPayload);
+            case TAG_LONG:
+                return readZigZag(mPayload);
+            case TAG_STRING:
+                return lookup(readVarInt(mPayload));
+            default:
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.openxc.sources.trace;
+
+import static com.openxc.sources.trace.BinaryTraceFormat.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Objects;
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * Write measurements to a binary trace file.
+ *
+ * Compared to a JSON trace, names and string values are written once to a
+ * dictionary and referred to by number, timestamps are stored as the
+ * difference from the previous one and numbers and booleans are written as
+ * binary values, so a binary trace is usually less than a quarter of the size.
+ * Measurements are grouped into blocks, and an index of the blocks' time
+ * ranges is written when the writer is closed so a
+ * {@link BinaryTraceReader} can seek straight to a point in time.
+ *
+ * Measurements are encoded in memory and the file is only written to once per
+ * block. Timestamps are rounded to the microsecond. See
+ * {@link BinaryTraceFormat} for the layout of the file.
+ *
+ * This class is not thread safe.
+ */
+public class BinaryTraceWriter implements Closeable {
+    public final static String EXTENSION = ".oxct";
+    public final static int DEFAULT_BLOCK_SIZE = 4096;
+
+    private final FileChannel mChannel;
+    private final int mBlockSize;
+    private final Map<String, Integer> mDictionary =
+            new HashMap<String, Integer>();
+    private final List<String> mStrings = new ArrayList<String>();
+    private final List<long[]> mIndex = new ArrayList<long[]>();
+
+    private ByteArrayOutputStream mRecords = new ByteArrayOutputStream();
+    private ByteArrayOutputStream mNewStrings = new ByteArrayOutputStream();
+    private int mNewStringCount;
+    private int mBlockRecords;
+    private boolean mBlockTimestamped;
+    private long mFirstMicros;
+    private long mPreviousMicros;
+    private long mMeasurementCount;
+    private boolean mClosed;
+
+    public BinaryTraceWriter(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param channel the file to write to, positioned where the trace should
+     *      start - usually the start of an empty file.
+     * @param blockSize the number of measurements in each block. Smaller
+     *      blocks make seeking more precise, larger blocks make the file
+     *      smaller.
+     */
+    public BinaryTraceWriter(FileChannel channel, int blockSize)
+            throws IOException {
+        mChannel = channel;
+        mBlockSize = blockSize;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putShort((short) 0);
+        header.flip();
+        writeFully(header);
+    }
+
+    public void write(RawMeasurement measurement) throws IOException {
+        if(mClosed) {
+            throw new IOException("Binary trace writer is closed");
+        }
+
+        Object value = measurement.getValue();
+        Object event = measurement.getEvent();
+        int valueTag = tagFor(value);
+        int eventTag = tagFor(event);
+        int header = valueTag | (eventTag << TAG_BITS);
+        if(measurement.isTimestamped()) {
+            header |= TIMESTAMP_FLAG;
+        }
+
+        mRecords.write(header);
+        writeVarLong(mRecords, idFor(measurement.getName()));
+        if(measurement.isTimestamped()) {
+            long micros = toMicros(measurement.getTimestamp());
+            if(!mBlockTimestamped) {
+                mBlockTimestamped = true;
+                mFirstMicros = micros;
+                mPreviousMicros = micros;
+            }
+            writeZigZag(mRecords, micros - mPreviousMicros);
+            mPreviousMicros = micros;
+        }
+        writeTagged(valueTag, value);
+        writeTagged(eventTag, event);
+
+        mMeasurementCount++;
+        if(++mBlockRecords >= mBlockSize) {
+            flush();
+        }
+    }
+
+    /**
+     * End the current block and write it to the file.
+     *
+     * Blocks are written automatically when they're full. Calling this
+     * early makes sure everything written so far is in the file, at the cost
+     * of a smaller block.
+     */
+    public void flush() throws IOException {
+        if(mBlockRecords == 0) {
+            return;
+        }
+
+        if(!mBlockTimestamped) {
+            // a block without timestamps covers no time, at the end of the
+            // previous block
+            mFirstMicros = mPreviousMicros;
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(
+                mNewStrings.size() + mRecords.size() + 5);
+        writeVarLong(payload, mNewStringCount);
+        mNewStrings.writeTo(payload);
+        mRecords.writeTo(payload);
+
+        ByteBuffer block = ByteBuffer.allocate(
+                BLOCK_HEADER_SIZE + payload.size());
+        block.putInt(payload.size());
+        block.putInt(mBlockRecords);
+        block.putLong(mFirstMicros);
+        block.putLong(mPreviousMicros);
+        block.put(payload.toByteArray());
+        block.flip();
+
+        long offset = mChannel.position();
+        writeFully(block);
+        mIndex.add(new long[] {offset, mFirstMicros, mPreviousMicros,
+                mBlockRecords});
+
+        mRecords.reset();
+        mNewStrings.reset();
+        mNewStringCount = 0;
+        mBlockRecords = 0;
+        mBlockTimestamped = false;
+    }
+
+    /**
+     * Write the last block and the index, and close the file.
+     */
+    public void close() throws IOException {
+        if(mClosed) {
+            return;
+        }
+
+        try {
+            flush();
+            long indexOffset = mChannel.position();
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            writeInt(index, INDEX_MARKER);
+            writeVarLong(index, mStrings.size());
+            for(String string : mStrings) {
+                writeString(index, string);
+            }
+            writeVarLong(index, mIndex.size());
+            for(long[] entry : mIndex) {
+                writeLong(index, entry[0]);
+                writeLong(index, entry[1]);
+                writeLong(index, entry[2]);
+                writeInt(index, (int) entry[3]);
+            }
+            writeLong(index, indexOffset);
+            writeInt(index, TRAILER_MAGIC);
+            writeFully(ByteBuffer.wrap(index.toByteArray()));
+        } finally {
+            mClosed = true;
+            mChannel.close();
+        }
+    }
+
+    public long getMeasurementCount() {
+        return mMeasurementCount;
+    }
+
+    /**
+     * @return the number of blocks written to the file so far.
+     */
+    public int getBlockCount() {
+        return mIndex.size();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("measurements", mMeasurementCount)
+            .add("blocks", mIndex.size())
+            .add("dictionary", mStrings.size())
+            .toString();
+    }
+
+    private int idFor(String string) {
+        Integer id = mDictionary.get(string);
+        if(id == null) {
+            id = mStrings.size();
+            mDictionary.put(string, id);
+            mStrings.add(string);
+            writeString(mNewStrings, string);
+            mNewStringCount++;
+        }
+        return id;
+    }
+
+    private static int tagFor(Object value) {
+        if(value == null) {
+            return TAG_NULL;
+        } else if(value instanceof Boolean) {
+            return ((Boolean) value).booleanValue() ? TAG_TRUE : TAG_FALSE;
+        } else if(value instanceof Integer || value instanceof Short ||
+                value instanceof Byte) {
+            return TAG_INTEGER;
+        } else if(value instanceof Long) {
+            return TAG_LONG;
+        } else if(value instanceof Number) {
+            return TAG_DOUBLE;
+        }
+        // anything else is written as its string
+        return TAG_STRING;
+    }
+
+    private void writeTagged(int tag, Object value) {
+        switch(tag) {
+        case TAG_DOUBLE:
+            writeLong(mRecords, Double.doubleToLongBits(
+                        ((Number) value).doubleValue()));
+            break;
+        case TAG_INTEGER:
+        case TAG_LONG:
+            writeZigZag(mRecords, ((Number) value).longValue());
+            break;
+        case TAG_STRING:
+            writeVarLong(mRecords, idFor(value.toString()));
+            break;
+        default:
+            // null and booleans are entirely described by the tag
+            break;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.openxc.sources.trace;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+import android.util.Log;
+
+import com.openxc.measurements.UnrecognizedMeasurementTypeException;
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * The measurements in a JSON trace, one per line. Lines that aren't valid
+ * measurements are logged and skipped.
+ */
+class JsonTraceCursor implements TraceCursor {
+    private static final String TAG = "JsonTraceCursor";
+
+    private final BufferedReader mReader;
+    private double mLastTimestamp = Double.NEGATIVE_INFINITY;
+
+    public JsonTraceCursor(BufferedReader reader) {
+        mReader = reader;
+    }
+
+    public RawMeasurement next() throws IOException {
+        String line;
+        while((line = mReader.readLine()) != null) {
+            try {
+                RawMeasurement measurement = new RawMeasurement(line);
+                if(measurement.isTimestamped()) {
+                    mLastTimestamp = measurement.getTimestamp();
+                }
+                return measurement;
+            } catch(UnrecognizedMeasurementTypeException e) {
+                Log.w(TAG, "A trace line was not in the expected " +
+                        "format: " + line);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The stream can only be read forward, so this only succeeds if the
+     * timestamp is ahead of the last measurement read.
+     */
+    public boolean seek(double timestampSeconds) {
+        return timestampSeconds >= mLastTimestamp;
+    }
+
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    @Override
+    public String toString() {
+        return mReader.toString();
+    }
+}
@@ -0,0 +1,328 @@
+package com.openxc.sources.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+import com.google.common.base.Objects;
+import com.openxc.measurements.UnrecognizedMeasurementTypeException;
+import com.openxc.remote.RawMeasurement;
+import com.openxc.util.TaskRuntime;
+
+/**
+ * Read a JSON trace by memory mapping it and decoding chunks of it in
+ * parallel.
+ *
+ * The file is mapped a window at a time, so traces larger than the address
+ * space can be read. Each window is split into chunks that end on a newline,
+ * and the chunks are decoded on an Executor while the measurements from
+ * earlier chunks are read. Each chunk is copied out of the mapping on the
+ * reading thread, so page faults - which block on the disk - happen there
+ * and the decoding tasks only use the CPU. Chunks are returned in file order, so the
+ * measurements come out in the same order as from a BufferedReader. Only a few
+ * chunks per thread are decoded ahead, so memory use doesn't depend on the
+ * size of the trace.
+ *
+ * The file must be uncompressed JSON - see {@link TraceVehicleDataSource} for
+ * how gzip and binary traces are opened. Lines that aren't valid measurements
+ * are logged and skipped.
+ *
+ * Seeking uses a sparse {@link TraceIndex} of the file, which is loaded or
+ * built on the first seek unless one is passed in with
+ * {@link #setIndex(Future)}.
+ *
+ * Mapped windows are released by the garbage collector, not when the reader
+ * is closed.
+ */
+public class MappedTraceReader implements TraceCursor {
+    private static final String TAG = "MappedTraceReader";
+    public final static int DEFAULT_WINDOW_SIZE = 32 * 1024 * 1024;
+    public final static int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    private final static int CHUNKS_PER_THREAD = 2;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final long mSize;
+    private final Executor mExecutor;
+    private final int mParallelism;
+    private final int mWindowSize;
+    private final int mChunkSize;
+
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+    private long mNextChunk;
+    private final LinkedList<FutureTask<RawMeasurement[]>> mPending =
+            new LinkedList<FutureTask<RawMeasurement[]>>();
+    private RawMeasurement[] mCurrent;
+    private int mCurrentIndex;
+    private long mChunkCount;
+    private int mWindowCount;
+    private final AtomicLong mSkippedCount = new AtomicLong();
+    private Future<TraceIndex> mIndex;
+
+    /**
+     * Decode on the compute threads of the default {@link TaskRuntime}.
+     */
+    public MappedTraceReader(File file) throws IOException {
+        this(file, TaskRuntime.getDefault().getComputeExecutor(),
+                Runtime.getRuntime().availableProcessors(),
+                DEFAULT_WINDOW_SIZE, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param executor runs the decoding of chunks.
+     * @param parallelism the number of threads the executor can use.
+     * @param windowSize the number of bytes of the file mapped at once, which
+     *      is also the longest line that can be read.
+     * @param chunkSize the number of bytes decoded in one task, extended to
+     *      the end of the line.
+     */
+    public MappedTraceReader(File file, Executor executor, int parallelism,
+            int windowSize, int chunkSize) throws IOException {
+        if(chunkSize <= 0 || windowSize < chunkSize) {
+            throw new IllegalArgumentException("Window size " + windowSize +
+                    " must be at least the chunk size " + chunkSize);
+        }
+        mFile = file;
+        mExecutor = executor;
+        mParallelism = Math.max(1, parallelism);
+        mWindowSize = windowSize;
+        mChunkSize = chunkSize;
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        mChannel = mRandomAccessFile.getChannel();
+        mSize = mChannel.size();
+    }
+
+    public RawMeasurement next() throws IOException {
+        while(mCurrent == null || mCurrentIndex >= mCurrent.length) {
+            fillPipeline();
+            if(mPending.isEmpty()) {
+                mCurrent = null;
+                return null;
+            }
+            mCurrent = await(mPending.removeFirst());
+            mCurrentIndex = 0;
+        }
+
+        RawMeasurement measurement = mCurrent[mCurrentIndex];
+        mCurrent[mCurrentIndex++] = null;
+        return measurement;
+    }
+
+    /**
+     * Use an index that is already being loaded, e.g. from an earlier pass
+     * over the same file.
+     */
+    void setIndex(Future<TraceIndex> index) {
+        mIndex = index;
+    }
+
+    /**
+     * Jump to the indexed line before the timestamp - the chunks after it are
+     * decoded again from there.
+     *
+     * @return true - the file can be read from any indexed line.
+     */
+    public boolean seek(double timestampSeconds) throws IOException {
+        TraceIndex index;
+        if(mIndex == null) {
+            index = TraceIndex.load(mFile);
+        } else {
+            try {
+                index = mIndex.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Trace indexing interrupted");
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException("Unable to index trace", e);
+            }
+        }
+
+        cancelPending();
+        mNextChunk = index.getOffset(timestampSeconds);
+        return true;
+    }
+
+    public void close() throws IOException {
+        cancelPending();
+        mWindow = null;
+        mRandomAccessFile.close();
+    }
+
+    /**
+     * @return the number of chunks handed out for decoding so far.
+     */
+    public long getChunkCount() {
+        return mChunkCount;
+    }
+
+    /**
+     * @return the number of lines skipped because they weren't valid
+     *      measurements.
+     */
+    public long getSkippedCount() {
+        return mSkippedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("file", mFile)
+            .add("size", mSize)
+            .add("position", mNextChunk)
+            .add("windows", mWindowCount)
+            .add("chunks", mChunkCount)
+            .add("skipped", mSkippedCount.get())
+            .toString();
+    }
+
+    private void cancelPending() {
+        for(FutureTask<RawMeasurement[]> task : mPending) {
+            task.cancel(false);
+        }
+        mPending.clear();
+        mCurrent = null;
+    }
+
+    private void fillPipeline() throws IOException {
+        while(mNextChunk < mSize &&
+                mPending.size() < mParallelism * CHUNKS_PER_THREAD) {
+            ByteBuffer chunk = nextChunk();
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            FutureTask<RawMeasurement[]> task =
+                    new FutureTask<RawMeasurement[]>(new DecodeTask(bytes));
+            mPending.add(task);
+            mExecutor.execute(task);
+            mChunkCount++;
+        }
+    }
+
+    /**
+     * Find the next chunk of the file, ending just after a newline or at the
+     * end of the file, and move past it.
+     */
+    private ByteBuffer nextChunk() throws IOException {
+        while(true) {
+            long windowEnd = mWindow == null ? 0 :
+                    mWindowStart + mWindow.capacity();
+            if(mWindow == null || mNextChunk < mWindowStart ||
+                    mNextChunk + Math.min(mChunkSize, mSize - mNextChunk) >
+                        windowEnd) {
+                map(mNextChunk);
+                continue;
+            }
+
+            int start = (int) (mNextChunk - mWindowStart);
+            int capacity = mWindow.capacity();
+            int end = -1;
+            for(int i = Math.min(start + mChunkSize, capacity) - 1;
+                    i < capacity; i++) {
+                if(mWindow.get(i) == '\n') {
+                    end = i + 1;
+                    break;
+                }
+            }
+
+            if(end == -1) {
+                if(mWindowStart + capacity == mSize) {
+                    end = capacity;
+                } else if(start == 0) {
+                    throw new IOException("A line in " + mFile +
+                            " is longer than the " + mWindowSize +
+                            " byte window");
+                } else {
+                    // the line runs past this window - start the next one
+                    // here
+                    map(mNextChunk);
+                    continue;
+                }
+            }
+
+            ByteBuffer chunk = mWindow.duplicate();
+            chunk.limit(end);
+            chunk.position(start);
+            mNextChunk = mWindowStart + end;
+            return chunk.slice();
+        }
+    }
+
+    private void map(long position) throws IOException {
+        long length = Math.min(mWindowSize, mSize - position);
+        mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                length);
+        mWindowStart = position;
+        mWindowCount++;
+    }
+
+    private static RawMeasurement[] await(FutureTask<RawMeasurement[]> task)
+            throws IOException {
+        try {
+            return task.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Trace decoding interrupted");
+        } catch(ExecutionException e) {
+            throw new RuntimeException("Unable to decode trace chunk", e);
+        }
+    }
+
+    private class DecodeTask implements Callable<RawMeasurement[]> {
+        private final byte[] mBytes;
+
+        public DecodeTask(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        public RawMeasurement[] call() throws UnsupportedEncodingException {
+            byte[] bytes = mBytes;
+            List<RawMeasurement> measurements =
+                    new ArrayList<RawMeasurement>(bytes.length / 64);
+            int lineStart = 0;
+            for(int i = 0; i <= bytes.length; i++) {
+                if(i < bytes.length && bytes[i] != '\n') {
+                    continue;
+                }
+
+                int lineEnd = i;
+                if(lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                if(lineEnd > lineStart) {
+                    String line = new String(bytes, lineStart,
+                            lineEnd - lineStart, "UTF-8");
+                    try {
+                        measurements.add(new RawMeasurement(line));
+                    } catch(UnrecognizedMeasurementTypeException e) {
+                        mSkippedCount.incrementAndGet();
+                        Log.w(TAG, "A trace line was not in the expected " +
+                                "format: " + line);
+                    }
+                }
+                lineStart = i + 1;
+            }
+            return measurements.toArray(
+                    new RawMeasurement[measurements.size()]);
+        }
+    }
+}
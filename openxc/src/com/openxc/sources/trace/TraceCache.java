@@ -0,0 +1,294 @@
+package com.openxc.sources.trace;
+
+import static com.openxc.sources.trace.BinaryTraceFormat.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Objects;
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * A trace decoded once into memory, so it can be played over and over without
+ * reading or parsing the file again.
+ *
+ * Measurements are kept in parallel primitive arrays rather than as objects:
+ * a packed int with the ID of the name and the types of the value and event,
+ * the timestamp, and the value as a long - the bits of a double, an integer or
+ * the ID of a string. Names and string values are stored once each, and
+ * events, which most measurements don't have, only get an array if the trace
+ * has any. That's about 20 bytes a measurement, a fraction of the objects
+ * parsed from JSON.
+ *
+ * Loading stops and returns null as soon as the cache would need more memory
+ * than its budget. The RawMeasurements handed out by a cursor are new objects
+ * each time, so playback can change them.
+ */
+class TraceCache {
+    private static final int BYTES_PER_MEASUREMENT = 4 + 8 + 8;
+    private static final int EVENT_BYTES = 8;
+    // a rough size for a String and its entry in the dictionary
+    private static final int STRING_OVERHEAD = 64;
+    private static final int OBJECT_OVERHEAD = 32;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // The types of value are tagged as in a binary trace, plus one for
+    // values a binary trace would write as strings
+    private static final int TAG_OTHER = TAG_COUNT;
+    private static final int NAME_SHIFT = TAG_BITS * 2;
+
+    private final long mBudget;
+    private int[] mHeaders = new int[0];
+    private double[] mTimestamps = new double[0];
+    private long[] mValues = new long[0];
+    private long[] mEvents;
+    private int mCount;
+    private final List<String> mStrings = new ArrayList<String>();
+    private final Map<String, Integer> mStringIds =
+            new HashMap<String, Integer>();
+    // values that aren't numbers, booleans or strings
+    private final List<Object> mObjects = new ArrayList<Object>();
+    private long mDictionaryBytes;
+
+    private TraceCache(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Read the rest of the cursor into memory. The cursor is left open.
+     *
+     * @param budgetBytes the most memory the cache may use.
+     * @return the cache, or null if the trace doesn't fit in the budget.
+     */
+    static TraceCache load(TraceCursor cursor, long budgetBytes)
+            throws IOException {
+        TraceCache cache = new TraceCache(budgetBytes);
+        RawMeasurement measurement;
+        while((measurement = cursor.next()) != null) {
+            if(!cache.add(measurement)) {
+                return null;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return a new cursor at the start of the trace.
+     */
+    TraceCursor cursor() {
+        return new Cursor();
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the approximate number of bytes used by the cache.
+     */
+    long getMemoryUsage() {
+        return arrayBytes(mHeaders.length, mEvents != null) +
+                mDictionaryBytes;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("measurements", mCount)
+            .add("strings", mStrings.size())
+            .add("bytes", getMemoryUsage())
+            .toString();
+    }
+
+    private boolean add(RawMeasurement measurement) {
+        int nameId = stringId(measurement.getName());
+        int valueTag = tagFor(measurement.getValue());
+        int eventTag = tagFor(measurement.getEvent());
+        long value = encode(valueTag, measurement.getValue());
+        long event = encode(eventTag, measurement.getEvent());
+
+        if(eventTag != TAG_NULL && mEvents == null) {
+            if(arrayBytes(mHeaders.length, true) + mDictionaryBytes >
+                    mBudget) {
+                return false;
+            }
+            mEvents = new long[mHeaders.length];
+        }
+        if(mCount == mHeaders.length && !grow(mEvents != null)) {
+            return false;
+        }
+
+        mHeaders[mCount] = (nameId << NAME_SHIFT) | (eventTag << TAG_BITS) |
+                valueTag;
+        mTimestamps[mCount] = measurement.getTimestamp();
+        mValues[mCount] = value;
+        if(mEvents != null) {
+            mEvents[mCount] = event;
+        }
+        mCount++;
+        return getMemoryUsage() <= mBudget;
+    }
+
+    /**
+     * Double the capacity of the arrays, or use most of what's left of the
+     * budget if that's less - an eighth is left for strings that are still to
+     * come.
+     *
+     * @return false if there's no room for any more measurements.
+     */
+    private boolean grow(boolean events) {
+        int perMeasurement = BYTES_PER_MEASUREMENT +
+                (events ? EVENT_BYTES : 0);
+        long available = mBudget - mDictionaryBytes;
+        long affordable = (available - available / 8) / perMeasurement;
+        int capacity = (int) Math.min(Integer.MAX_VALUE, Math.min(affordable,
+                    Math.max(INITIAL_CAPACITY, mHeaders.length * 2L)));
+        if(capacity <= mHeaders.length) {
+            return false;
+        }
+
+        int[] headers = new int[capacity];
+        System.arraycopy(mHeaders, 0, headers, 0, mCount);
+        mHeaders = headers;
+        double[] timestamps = new double[capacity];
+        System.arraycopy(mTimestamps, 0, timestamps, 0, mCount);
+        mTimestamps = timestamps;
+        long[] values = new long[capacity];
+        System.arraycopy(mValues, 0, values, 0, mCount);
+        mValues = values;
+        if(events) {
+            long[] grown = new long[capacity];
+            System.arraycopy(mEvents, 0, grown, 0, mCount);
+            mEvents = grown;
+        }
+        return true;
+    }
+
+    private static long arrayBytes(int capacity, boolean events) {
+        return (long) capacity * (BYTES_PER_MEASUREMENT +
+                (events ? EVENT_BYTES : 0));
+    }
+
+    private int stringId(String value) {
+        Integer id = mStringIds.get(value);
+        if(id == null) {
+            id = mStrings.size();
+            mStrings.add(value);
+            mStringIds.put(value, id);
+            mDictionaryBytes += STRING_OVERHEAD + value.length() * 2;
+        }
+        return id;
+    }
+
+    private static int tagFor(Object value) {
+        if(value == null) {
+            return TAG_NULL;
+        } else if(value instanceof Integer) {
+            return TAG_INTEGER;
+        } else if(value instanceof Long) {
+            return TAG_LONG;
+        } else if(value instanceof Double) {
+            return TAG_DOUBLE;
+        } else if(value instanceof Boolean) {
+            return ((Boolean) value).booleanValue() ? TAG_TRUE : TAG_FALSE;
+        } else if(value instanceof String) {
+            return TAG_STRING;
+        }
+        return TAG_OTHER;
+    }
+
+    private long encode(int tag, Object value) {
+        switch(tag) {
+        case TAG_DOUBLE:
+            return Double.doubleToRawLongBits((Double) value);
+        case TAG_INTEGER:
+        case TAG_LONG:
+            return ((Number) value).longValue();
+        case TAG_STRING:
+            return stringId((String) value);
+        case TAG_OTHER:
+            mObjects.add(value);
+            mDictionaryBytes += OBJECT_OVERHEAD;
+            return mObjects.size() - 1;
+        default:
+            // null and booleans are entirely described by the tag
+            return 0;
+        }
+    }
+
+    private Object decode(int tag, long value) {
+        switch(tag) {
+        case TAG_FALSE:
+            return Boolean.FALSE;
+        case TAG_TRUE:
+            return Boolean.TRUE;
+        case TAG_DOUBLE:
+            return Double.longBitsToDouble(value);
+        case TAG_INTEGER:
+            return (int) value;
+        case TAG_LONG:
+            return value;
+        case TAG_STRING:
+            return mStrings.get((int) value);
+        case TAG_OTHER:
+            return mObjects.get((int) value);
+        default:
+            return null;
+        }
+    }
+
+    private class Cursor implements TraceCursor {
+        private int mPosition;
+
+        public RawMeasurement next() {
+            if(mPosition >= mCount) {
+                return null;
+            }
+
+            int i = mPosition++;
+            int header = mHeaders[i];
+            Object event = null;
+            if(mEvents != null) {
+                event = decode((header >>> TAG_BITS) & TAG_MASK, mEvents[i]);
+            }
+            return new RawMeasurement(mStrings.get(header >>> NAME_SHIFT),
+                    decode(header & TAG_MASK, mValues[i]), event,
+                    mTimestamps[i]);
+        }
+
+        /**
+         * Find the first measurement at or after the timestamp, assuming the
+         * trace is in timestamp order.
+         *
+         * @return true - a cached trace can be read from anywhere.
+         */
+        public boolean seek(double timestampSeconds) {
+            int low = 0;
+            int high = mCount;
+            while(low < high) {
+                int middle = (low + high) >>> 1;
+                if(mTimestamps[middle] < timestampSeconds) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            mPosition = low;
+            return true;
+        }
+
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                .add("position", mPosition)
+                .add("cache", TraceCache.this)
+                .toString();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.openxc.sources.trace;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import android.util.Log;
+
+import com.google.common.base.Objects;
+import com.openxc.measurements.UnrecognizedMeasurementTypeException;
+import com.openxc.remote.RawMeasurement;
+import com.openxc.util.TaskRuntime;
+
+/**
+ * Convert traces between the JSON and binary formats.
+ *
+ * The slow part of a conversion - parsing JSON when converting to binary, or
+ * decoding blocks and generating JSON when converting to JSON - is split into
+ * chunks that run in parallel on an Executor. The calling thread reads the
+ * input, hands out the chunks and writes the results in their original order,
+ * so the output is the same as a sequential conversion. Only a few chunks per
+ * thread are in flight at once, so memory use doesn't depend on the size of
+ * the trace.
+ *
+ * Conversions block until they're finished, so don't call them from the UI
+ * thread.
+ */
+public class TraceConverter {
+    private final static String TAG = "TraceConverter";
+    private final static int CHUNKS_PER_THREAD = 2;
+
+    private final Executor mExecutor;
+    private final int mParallelism;
+    private final int mChunkSize;
+
+    /**
+     * Convert on the compute threads of the default {@link TaskRuntime}.
+     */
+    public TraceConverter() {
+        this(TaskRuntime.getDefault().getComputeExecutor(),
+                Runtime.getRuntime().availableProcessors(),
+                BinaryTraceWriter.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param executor runs the parsing and decoding of chunks.
+     * @param parallelism the number of threads the executor can use.
+     * @param chunkSize the number of JSON lines parsed in one chunk, which is
+     *      also the block size of binary traces written.
+     */
+    public TraceConverter(Executor executor, int parallelism, int chunkSize) {
+        mExecutor = executor;
+        mParallelism = Math.max(1, parallelism);
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Convert a JSON trace, which may be compressed with gzip, to a binary
+     * trace. Lines that aren't valid measurements are skipped, and lines
+     * without a timestamp are written without one. If the conversion fails,
+     * the binary trace is deleted rather than left with only some of the
+     * measurements.
+     *
+     * @return the number of measurements written.
+     */
+    public long toBinary(File json, File binary) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                TraceVehicleDataSource.decompressIfNeeded(
+                    new FileInputStream(json)), "UTF-8"));
+        FileOutputStream output = null;
+        boolean converted = false;
+        try {
+            output = new FileOutputStream(binary);
+            BinaryTraceWriter writer = new BinaryTraceWriter(
+                    output.getChannel(), mChunkSize);
+            LinkedList<FutureTask<List<RawMeasurement>>> pending =
+                    new LinkedList<FutureTask<List<RawMeasurement>>>();
+            List<String> lines = new ArrayList<String>(mChunkSize);
+            String line;
+            while((line = reader.readLine()) != null) {
+                lines.add(line);
+                if(lines.size() == mChunkSize) {
+                    submit(pending, new ParseTask(lines));
+                    lines = new ArrayList<String>(mChunkSize);
+                    if(pending.size() >= mParallelism * CHUNKS_PER_THREAD) {
+                        writeAll(writer, await(pending.removeFirst()));
+                    }
+                }
+            }
+            if(!lines.isEmpty()) {
+                submit(pending, new ParseTask(lines));
+            }
+            while(!pending.isEmpty()) {
+                writeAll(writer, await(pending.removeFirst()));
+            }
+            writer.close();
+            converted = true;
+
+            Log.i(TAG, "Converted " + json + " to " + binary + ": " + writer);
+            return writer.getMeasurementCount();
+        } finally {
+            if(!converted) {
+                discard(output, binary);
+            }
+            reader.close();
+        }
+    }
+
+    /**
+     * Convert a binary trace to a JSON trace, one measurement per line.
+     *
+     * @return the number of measurements written.
+     */
+    public long toJson(File binary, File json) throws IOException {
+        BinaryTraceReader reader = new BinaryTraceReader(binary);
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(json), "UTF-8"));
+            LinkedList<FutureTask<String>> pending =
+                    new LinkedList<FutureTask<String>>();
+            for(int block = 0; block < reader.getBlockCount(); block++) {
+                submit(pending, new SerializeTask(reader, block));
+                if(pending.size() >= mParallelism * CHUNKS_PER_THREAD) {
+                    writer.write(await(pending.removeFirst()));
+                }
+            }
+            while(!pending.isEmpty()) {
+                writer.write(await(pending.removeFirst()));
+            }
+
+            long count = reader.getMeasurementCount();
+            Log.i(TAG, "Converted " + binary + " to " + json + ": " + count +
+                    " measurements");
+            return count;
+        } finally {
+            reader.close();
+            if(writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("parallelism", mParallelism)
+            .add("chunkSize", mChunkSize)
+            .toString();
+    }
+
+    /**
+     * Close and delete the output of a failed conversion, without writing
+     * the index that would make it look like a complete trace.
+     */
+    private static void discard(FileOutputStream output, File file) {
+        if(output != null) {
+            try {
+                output.close();
+            } catch(IOException e) {
+                Log.w(TAG, "Unable to close " + file, e);
+            }
+        }
+        if(file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete partly converted trace " + file);
+        }
+    }
+
+    private <T> void submit(List<FutureTask<T>> pending, Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        pending.add(future);
+        mExecutor.execute(future);
+    }
+
+    private static <T> T await(FutureTask<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Trace conversion interrupted");
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException("Unable to convert trace", e);
+        }
+    }
+
+    private static void writeAll(BinaryTraceWriter writer,
+            List<RawMeasurement> measurements) throws IOException {
+        for(RawMeasurement measurement : measurements) {
+            writer.write(measurement);
+        }
+    }
+
+    private static class ParseTask implements Callable<List<RawMeasurement>> {
+        private final List<String> mLines;
+
+        public ParseTask(List<String> lines) {
+            mLines = lines;
+        }
+
+        public List<RawMeasurement> call() {
+            List<RawMeasurement> measurements =
+                    new ArrayList<RawMeasurement>(mLines.size());
+            for(String line : mLines) {
+                try {
+                    measurements.add(
+                            RawMeasurement.deserializeUntimestamped(line));
+                } catch(UnrecognizedMeasurementTypeException e) {
+                    Log.w(TAG, "Skipping a trace line that was not in the " +
+                            "expected format: " + line);
+                }
+            }
+            return measurements;
+        }
+    }
+
+    private static class SerializeTask implements Callable<String> {
+        private final BinaryTraceReader mReader;
+        private final int mBlock;
+
+        public SerializeTask(BinaryTraceReader reader, int block) {
+            mReader = reader;
+            mBlock = block;
+        }
+
+        public String call() throws IOException {
+            StringBuilder builder = new StringBuilder();
+            for(RawMeasurement measurement : mReader.readBlock(mBlock)) {
+                builder.append(measurement.serialize()).append('\n');
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.openxc.sources.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * The measurements in a trace file, in the order they were recorded.
+ */
+interface TraceCursor extends Closeable {
+    /**
+     * @return the next measurement, or null at the end of the trace.
+     */
+    RawMeasurement next() throws IOException;
+
+    /**
+     * Move to a point at or before the first measurement with a timestamp at
+     * or after the given one. The caller skips any earlier measurements that
+     * are still returned.
+     *
+     * @return false if the cursor can't move there - it can only read
+     *      forward - and should be reopened and sought again.
+     */
+    boolean seek(double timestampSeconds) throws IOException;
+}
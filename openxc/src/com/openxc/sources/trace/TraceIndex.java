@@ -0,0 +1,278 @@
+package com.openxc.sources.trace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+import com.google.common.base.Objects;
+import com.openxc.measurements.UnrecognizedMeasurementTypeException;
+import com.openxc.remote.RawMeasurement;
+
+/**
+ * A sparse index of a JSON trace - the byte offset and timestamp of roughly
+ * one line in every interval of the file - used to seek without reading the
+ * trace from the start.
+ *
+ * Building the index reads the whole trace once, so it's saved to a file next
+ * to the trace (e.g. "trace.json.idx") and loaded from there the next time.
+ * The saved index is rebuilt if the trace's size or modification time has
+ * changed. If the index can't be saved, e.g. because the directory is read
+ * only, it's only kept in memory.
+ *
+ * Seeking assumes the trace is mostly in timestamp order.
+ */
+class TraceIndex {
+    private static final String TAG = "TraceIndex";
+    static final String EXTENSION = ".idx";
+    static final long DEFAULT_INTERVAL = 1024 * 1024;
+    private static final int MAGIC = 0x4f584358; // "OXCX"
+    private static final int VERSION = 1;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final long[] mOffsets;
+    private final double[] mTimestamps;
+    private final int mCount;
+
+    private TraceIndex(long[] offsets, double[] timestamps, int count) {
+        mOffsets = offsets;
+        mTimestamps = timestamps;
+        mCount = count;
+    }
+
+    /**
+     * Load the saved index of a trace, or build and save it if there isn't an
+     * up to date one.
+     */
+    static TraceIndex load(File trace) throws IOException {
+        File saved = new File(trace.getPath() + EXTENSION);
+        if(saved.exists()) {
+            try {
+                TraceIndex index = read(saved, trace);
+                if(index != null) {
+                    return index;
+                }
+            } catch(IOException e) {
+                Log.w(TAG, "Unable to read trace index " + saved, e);
+            }
+        }
+
+        long start = System.nanoTime();
+        TraceIndex index = build(trace, DEFAULT_INTERVAL);
+        Log.i(TAG, "Indexed " + trace + " in " +
+                (System.nanoTime() - start) / 1000000 + "ms: " + index);
+        try {
+            index.write(saved, trace);
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to save trace index " + saved +
+                    ", keeping it in memory", e);
+            saved.delete();
+        }
+        return index;
+    }
+
+    /**
+     * Read the trace and note the first timestamped line after every interval
+     * bytes.
+     */
+    static TraceIndex build(File trace, long interval) throws IOException {
+        long[] offsets = new long[16];
+        double[] timestamps = new double[16];
+        int count = 0;
+
+        InputStream input = new FileInputStream(trace);
+        try {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            LineCollector line = new LineCollector();
+            long position = 0;
+            long nextCheckpoint = 0;
+            long lineStart = 0;
+            boolean collecting = true;
+            int read;
+            while((read = input.read(buffer)) != -1) {
+                int segmentStart = 0;
+                for(int i = 0; i < read; i++) {
+                    if(buffer[i] != '\n') {
+                        continue;
+                    }
+                    if(collecting) {
+                        line.append(buffer, segmentStart, i - segmentStart);
+                        double timestamp = line.parseTimestamp();
+                        if(!Double.isNaN(timestamp)) {
+                            if(count == offsets.length) {
+                                offsets = grow(offsets);
+                                timestamps = grow(timestamps);
+                            }
+                            offsets[count] = lineStart;
+                            timestamps[count] = timestamp;
+                            count++;
+                            nextCheckpoint = lineStart + interval;
+                        }
+                        line.clear();
+                    }
+                    lineStart = position + i + 1;
+                    segmentStart = i + 1;
+                    collecting = lineStart >= nextCheckpoint;
+                }
+                if(collecting) {
+                    line.append(buffer, segmentStart, read - segmentStart);
+                }
+                position += read;
+            }
+        } finally {
+            input.close();
+        }
+        return new TraceIndex(offsets, timestamps, count);
+    }
+
+    /**
+     * @return the offset of a line at or before the first line with a
+     *      timestamp at or after the given one - 0 if it's before the
+     *      first indexed line.
+     */
+    long getOffset(double timestampSeconds) {
+        int low = 0;
+        int high = mCount;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(mTimestamps[middle] < timestampSeconds) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        // low is the first entry at or after the target - start from the one
+        // before, since lines between them may be at or after it too
+        if(low == 0) {
+            return 0;
+        }
+        return mOffsets[low - 1];
+    }
+
+    /**
+     * @return the timestamp of the first timestamped line, or NaN if there
+     *      isn't one.
+     */
+    double getStartTimestamp() {
+        return mCount > 0 ? mTimestamps[0] : Double.NaN;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("entries", mCount)
+            .add("start", getStartTimestamp())
+            .toString();
+    }
+
+    private void write(File saved, File trace) throws IOException {
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(saved)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(trace.length());
+            output.writeLong(trace.lastModified());
+            output.writeInt(mCount);
+            for(int i = 0; i < mCount; i++) {
+                output.writeLong(mOffsets[i]);
+                output.writeDouble(mTimestamps[i]);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return the saved index, or null if it doesn't match the trace.
+     */
+    private static TraceIndex read(File saved, File trace) throws IOException {
+        DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(saved)));
+        try {
+            if(input.readInt() != MAGIC || input.readInt() != VERSION ||
+                    input.readLong() != trace.length() ||
+                    input.readLong() != trace.lastModified()) {
+                Log.i(TAG, "Trace index " + saved + " is out of date");
+                return null;
+            }
+            int count = input.readInt();
+            long[] offsets = new long[count];
+            double[] timestamps = new double[count];
+            for(int i = 0; i < count; i++) {
+                offsets[i] = input.readLong();
+                timestamps[i] = input.readDouble();
+            }
+            return new TraceIndex(offsets, timestamps, count);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static long[] grow(long[] array) {
+        long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static double[] grow(double[] array) {
+        double[] grown = new double[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * The bytes of a line that may be split across reads.
+     */
+    private static class LineCollector {
+        private byte[] mBytes = new byte[256];
+        private int mLength;
+
+        void append(byte[] bytes, int offset, int length) {
+            if(mLength + length > mBytes.length) {
+                byte[] grown = new byte[Math.max(mBytes.length * 2,
+                            mLength + length)];
+                System.arraycopy(mBytes, 0, grown, 0, mLength);
+                mBytes = grown;
+            }
+            System.arraycopy(bytes, offset, mBytes, mLength, length);
+            mLength += length;
+        }
+
+        void clear() {
+            mLength = 0;
+        }
+
+        /**
+         * @return the timestamp of the line, or NaN if it isn't a timestamped
+         *      measurement.
+         */
+        double parseTimestamp() throws IOException {
+            String line = new String(mBytes, 0, mLength, "UTF-8").trim();
+            if(line.length() == 0) {
+                return Double.NaN;
+            }
+            try {
+                RawMeasurement measurement = new RawMeasurement(line);
+                // measurements without one are given the current time
+                if(line.indexOf("\"timestamp\"") == -1) {
+                    return Double.NaN;
+                }
+                return measurement.getTimestamp();
+            } catch(UnrecognizedMeasurementTypeException e) {
+                return Double.NaN;
+            }
+        }
+    }
+}
@@ -2,11 +2,19 @@ package com.openxc.sources.trace;
 
 import com.google.common.base.Objects;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
@@ -15,7 +23,7 @@ import java.io.IOException;
 
 import java.net.URI;
 
-import com.openxc.measurements.UnrecognizedMeasurementTypeException;
+import java.util.zip.GZIPInputStream;
 
 import com.openxc.sources.ContextualVehicleDataSource;
 import com.openxc.sources.SourceCallback;
@@ -23,6 +31,8 @@ import com.openxc.sources.DataSourceException;
 
 import com.openxc.remote.RawMeasurement;
 
+import com.openxc.util.TaskRuntime;
+
 import android.content.Context;
 import android.content.res.Resources;
 
@@ -44,6 +54,14 @@ import android.util.Log;
  * {"timestamp": 1351176963.438211, "name": "brake_pedal_status", "value": false}
  * {"timestamp": 1351176963.438318, "name": "transmission_gear_position", "value": "second"}
  *
+ * Binary traces written by a {@link BinaryTraceWriter} are also supported, as
+ * long as they are regular files. Uncompressed JSON files are read with a
+ * {@link MappedTraceReader}, so decoding doesn't hold up playback.
+ *
+ * Trace files compressed with gzip (e.g. "trace.json.gz", as written by the
+ * {@link com.openxc.sinks.FileRecorderSink} when compression is enabled) are
+ * decompressed transparently.
+ *
  * The trace file to use is specified via the constructor as an Android-style
  * resource URI, e.g. "resource://42", "file:///storage/traces/trace.json" or a
  * plain file path (e.g. "/sdcard/com.openxc/trace.json" ). When using
@@ -60,6 +78,32 @@ import android.util.Log;
  *
  * The trace file is played back in a continuous loop at roughly the same speed
  * as the original recording (at least according to the timestamps in the file).
+ * The speed can be changed at any time with {@link #setPlaybackRate(double)},
+ * e.g. to play a trace 10 times faster, or as fast as it can be read for load
+ * testing.
+ *
+ * Each measurement is passed on with its trace timestamp shifted to the wall
+ * clock time it was scheduled to play at, so its age is how long ago it was
+ * played, and a {@link com.openxc.TimestampMerger} orders it against live data
+ * by when it was played. The gaps between timestamps are the trace's, divided
+ * by the playback rate, even if playback falls behind. Unpaced measurements
+ * are stamped with the time they're played.
+ *
+ * Playback can be moved to any point in the trace with
+ * {@link #seek(long, TimeUnit)}, limited to part of the trace with
+ * {@link #setPlaybackWindow(long, long, TimeUnit)} and paused with
+ * {@link #pause()}. Positions are measured from the first timestamp in the
+ * trace. Seeking in an uncompressed JSON file uses a {@link TraceIndex}, which
+ * is built in the background the first time the file is opened and saved next
+ * to it, so it doesn't have to read the trace up to that point. Binary traces
+ * have their own index, and other traces are read forward from the start (or
+ * from the current position) to get there.
+ *
+ * When the same trace is looped many times, e.g. for soak tests, it can be
+ * decoded once into memory with {@link #setCacheBudget(long)}. Later loops then
+ * play from the {@link TraceCache} without reading or parsing the file, and
+ * start again straight away instead of pausing between loops. Changes to the
+ * file aren't seen while it's cached.
  *
  * Playback will not begin until a callback is set, either via a constructor or
  * the
@@ -70,8 +114,39 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
             implements Runnable {
     private static final String TAG = "TraceVehicleDataSource";
 
-    private Long mFirstTimestamp;
-    private boolean mRunning = true;
+    /**
+     * Pass to {@link #setPlaybackRate(double)} to play the trace as fast as it
+     * can be read, ignoring the timestamps.
+     */
+    public static final double UNPACED = Double.POSITIVE_INFINITY;
+    private static final long NO_SEEK = -1;
+
+    private volatile boolean mRunning = true;
+    private volatile double mPlaybackRate = 1.0;
+    private volatile Thread mPlaybackThread;
+    private volatile boolean mPaused;
+    private final AtomicLong mSeekNanos = new AtomicLong(NO_SEEK);
+    private volatile long mWindowStartNanos = 0;
+    private volatile long mWindowEndNanos = Long.MAX_VALUE;
+    private volatile long mCacheBudget = 0;
+    // the cache, and the budget it was last loaded with, so a trace that
+    // doesn't fit isn't loaded again on every loop
+    private TraceCache mCache;
+    private long mCacheLoadedBudget = 0;
+    // the playback thread's position - the trace is reopened if it can't seek
+    // backwards, and measurements before mSkipUntil are dropped after a seek
+    private TraceCursor mCursor;
+    private Future<TraceIndex> mIndex;
+    private double mTraceStart;
+    private double mSkipUntil;
+    // the playback thread's pacing - the wall clock time a trace timestamp
+    // was played at, and the rate since then
+    private boolean mAnchored;
+    private long mAnchorNanos;
+    private long mAnchorWallMillis;
+    private double mAnchorTimestamp;
+    private double mAnchorRate;
+    private double mLastTimestamp;
     private boolean mLoop = true;
     private URI mFilename;
 
@@ -105,7 +180,7 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
         mLoop = loop;
         Log.d(TAG, "Starting new trace data source with trace file " +
                 mFilename);
-        new Thread(this).start();
+        TaskRuntime.getDefault().getIoExecutor().execute(this);
     }
 
     public TraceVehicleDataSource(Context context, URI filename)
@@ -130,6 +205,124 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
         super.stop();
         Log.d(TAG, "Stopping trace playback");
         mRunning = false;
+        wakePlaybackThread();
+    }
+
+    /**
+     * Change the speed of playback, relative to the original recording. This
+     * takes effect immediately, even if playback is waiting for the next
+     * measurement.
+     *
+     * @param rate e.g. 1.0 for real time, 0.5 for half speed or 10 for 10
+     *      times faster, or {@link #UNPACED} to play back as fast as possible.
+     * @throws IllegalArgumentException if the rate isn't positive.
+     */
+    public void setPlaybackRate(double rate) {
+        if(!(rate > 0)) {
+            throw new IllegalArgumentException(
+                    "Playback rate must be positive, not " + rate);
+        }
+        Log.d(TAG, "Changing playback rate of " + mFilename + " to " + rate);
+        mPlaybackRate = rate;
+        wakePlaybackThread();
+    }
+
+    public double getPlaybackRate() {
+        return mPlaybackRate;
+    }
+
+    /**
+     * Move playback to a position in the trace, measured from its first
+     * timestamp. Playback continues from there at the current rate (or stays
+     * paused).
+     *
+     * @throws IllegalArgumentException if the position is negative.
+     */
+    public void seek(long position, TimeUnit unit) {
+        long nanos = unit.toNanos(position);
+        if(nanos < 0) {
+            throw new IllegalArgumentException(
+                    "Can't seek to a negative position " + position);
+        }
+        Log.d(TAG, "Seeking " + mFilename + " to " + nanos + "ns");
+        mSeekNanos.set(nanos);
+        wakePlaybackThread();
+    }
+
+    /**
+     * Only play the part of the trace between two positions, measured from
+     * its first timestamp. Playback moves to the start of the window now, and
+     * each loop through the trace starts there and ends at the end of the
+     * window.
+     *
+     * @throws IllegalArgumentException if the window is empty or starts
+     *      before the trace.
+     */
+    public void setPlaybackWindow(long start, long end, TimeUnit unit) {
+        long startNanos = unit.toNanos(start);
+        long endNanos = unit.toNanos(end);
+        if(startNanos < 0 || endNanos <= startNanos) {
+            throw new IllegalArgumentException("Playback window from " +
+                    start + " to " + end + " is not valid");
+        }
+        mWindowStartNanos = startNanos;
+        mWindowEndNanos = endNanos;
+        seek(start, unit);
+    }
+
+    /**
+     * Play the whole trace again, from the current position.
+     */
+    public void clearPlaybackWindow() {
+        mWindowStartNanos = 0;
+        mWindowEndNanos = Long.MAX_VALUE;
+    }
+
+    /**
+     * Hold playback at the current measurement until {@link #resume()} is
+     * called. Seeking while paused moves the position without playing
+     * anything.
+     */
+    public void pause() {
+        Log.d(TAG, "Pausing playback of " + mFilename);
+        mPaused = true;
+    }
+
+    /**
+     * Continue playback from where it was paused, keeping the original time
+     * between measurements.
+     */
+    public void resume() {
+        Log.d(TAG, "Resuming playback of " + mFilename);
+        mPaused = false;
+        wakePlaybackThread();
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Decode the trace into memory the next time playback starts from the
+     * beginning, and play from there instead of the file.
+     *
+     * If the decoded trace would need more memory than the budget, or the
+     * trace isn't looped, it's played from the file as usual.
+     *
+     * @param bytes the most memory the decoded trace may use, or 0 to always
+     *      play from the file (the default).
+     * @throws IllegalArgumentException if the budget is negative.
+     */
+    public void setCacheBudget(long bytes) {
+        if(bytes < 0) {
+            throw new IllegalArgumentException(
+                    "Cache budget can't be negative, not " + bytes);
+        }
+        mCacheBudget = bytes;
+    }
+
+    public long getCacheBudget() {
+        return mCacheBudget;
     }
 
     /**
@@ -140,53 +333,32 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
      * thread will die a quick death.
      */
     public void run() {
+        mPlaybackThread = Thread.currentThread();
         while(mRunning) {
             Log.d(TAG, "Starting trace playback from beginning of " + mFilename);
-            BufferedReader reader;
             try {
-                reader = openFile(mFilename);
+                mCursor = openTrace();
             } catch(DataSourceException e) {
                 Log.w(TAG, "Couldn't open the trace file " + mFilename, e);
                 break;
             }
 
-            String line = null;
-            long startingTime = System.nanoTime();
             try {
-                while(mRunning && (line = reader.readLine()) != null) {
-                    RawMeasurement measurement;
-                    try {
-                        measurement = new RawMeasurement(line);
-                    } catch(UnrecognizedMeasurementTypeException e) {
-                        Log.w(TAG, "A trace line was not in the expected " +
-                                "format: " + line);
-                        continue;
-                    }
-
-                    if(measurement != null && !measurement.isTimestamped()) {
-                        Log.w(TAG, "A trace line was missing a timestamp: " +
-                                line);
-                        continue;
-                    }
-
-                    try {
-                        waitForNextRecord(startingTime,
-                                measurement.getTimestamp());
-                    } catch(NumberFormatException e) {
-                        Log.w(TAG, "A trace line was not in the expected " +
-                                "format: " + line);
-                        continue;
-                    }
-                    measurement.untimestamp();
-                    handleMessage(measurement);
-                }
+                playPass();
+            } catch(DataSourceException e) {
+                Log.w(TAG, "Couldn't reopen the trace file " + mFilename, e);
+                break;
+            } catch(EOFException e) {
+                // a compressed trace that is still being recorded ends
+                // without a gzip trailer - play what's there
+                Log.d(TAG, "Trace file " + mFilename + " ended early", e);
             } catch(IOException e) {
                 Log.w(TAG, "An exception occured when reading the trace " +
-                        reader, e);
+                        mCursor, e);
                 break;
             } finally {
                 try {
-                    reader.close();
+                    mCursor.close();
                 } catch(IOException e) {
                     Log.w(TAG, "Couldn't even close the trace file", e);
                 }
@@ -197,13 +369,111 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
                 break;
             }
             Log.d(TAG, "Restarting playback of trace " + mFilename);
-            try {
-                Thread.sleep(1000);
-            } catch(InterruptedException e) {}
+            if(mCache == null) {
+                try {
+                    Thread.sleep(1000);
+                } catch(InterruptedException e) {}
+            }
         }
+        mPlaybackThread = null;
         Log.d(TAG, "Playback of trace " + mFilename + " is finished");
     }
 
+    /**
+     * Play the measurements from the open cursor until the end of the trace
+     * or the playback window.
+     */
+    private void playPass() throws IOException, DataSourceException {
+        mTraceStart = Double.NaN;
+        mSkipUntil = Double.NEGATIVE_INFINITY;
+        mAnchored = false;
+        if(mWindowStartNanos > 0) {
+            mSeekNanos.compareAndSet(NO_SEEK, mWindowStartNanos);
+        }
+
+        // kept until it's played, in case a seek or pause interrupts the wait
+        RawMeasurement measurement = null;
+        while(mRunning) {
+            if(measurement == null) {
+                measurement = mCursor.next();
+                if(measurement == null) {
+                    break;
+                }
+                if(!measurement.isTimestamped()) {
+                    Log.w(TAG, "A trace record was missing a " +
+                            "timestamp: " + measurement);
+                    measurement = null;
+                    continue;
+                }
+            }
+
+            double timestamp = measurement.getTimestamp();
+            if(Double.isNaN(mTraceStart)) {
+                mTraceStart = timestamp;
+            }
+
+            long seekNanos = mSeekNanos.getAndSet(NO_SEEK);
+            if(seekNanos != NO_SEEK) {
+                seekTo(mTraceStart + toSeconds(seekNanos));
+                measurement = null;
+                continue;
+            }
+
+            if(mPaused) {
+                waitWhilePaused();
+                continue;
+            }
+
+            if(timestamp < mSkipUntil) {
+                measurement = null;
+                continue;
+            }
+
+            if(timestamp > mTraceStart + toSeconds(mWindowEndNanos)) {
+                Log.d(TAG, "Reached the end of the playback window");
+                break;
+            }
+
+            if(waitForNextRecord(timestamp)) {
+                measurement.setTimestamp(toPlaybackTime(timestamp));
+                handleMessage(measurement);
+                measurement = null;
+            }
+        }
+    }
+
+    /**
+     * Move the cursor to a trace timestamp, reopening the trace if the cursor
+     * can't go back to it.
+     */
+    private void seekTo(double timestampSeconds)
+            throws IOException, DataSourceException {
+        if(!mCursor.seek(timestampSeconds)) {
+            mCursor.close();
+            mCursor = openFile(mFilename);
+            mCursor.seek(timestampSeconds);
+        }
+        mSkipUntil = timestampSeconds;
+        // don't wait for the time between the old and new positions
+        mAnchored = false;
+    }
+
+    private void waitWhilePaused() {
+        while(mRunning && mPaused && mSeekNanos.get() == NO_SEEK) {
+            LockSupport.park();
+        }
+        if(mAnchored) {
+            // the time spent paused doesn't count
+            mAnchorNanos = System.nanoTime();
+            mAnchorWallMillis = System.currentTimeMillis();
+            mAnchorTimestamp = mLastTimestamp;
+        }
+    }
+
+    private static double toSeconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
     private static URI uriFromString(String path) throws DataSourceException {
         try {
             return new URI(path);
@@ -230,6 +500,9 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
     public String toString() {
         return Objects.toStringHelper(this)
             .add("filename", mFilename)
+            .add("playbackRate", mPlaybackRate)
+            .add("paused", mPaused)
+            .add("cacheBudget", mCacheBudget)
             .toString();
     }
 
@@ -246,24 +519,72 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
         return TAG;
     }
 
-    private void waitForNextRecord(long startingTime, double timestampSeconds) {
-        long timestamp = TimeUnit.NANOSECONDS.convert(
-                (long)(timestampSeconds * 1000), TimeUnit.MILLISECONDS);
-        if(mFirstTimestamp == null) {
-            mFirstTimestamp = Long.valueOf(timestamp);
-            Log.d(TAG, "Storing " + mFirstTimestamp + " as the first " +
-                    "timestamp of the trace file");
+    /**
+     * Wait until it's time to play a measurement with the given timestamp.
+     *
+     * The time is measured from an anchor - the first measurement of the
+     * pass, or the measurement before the rate last changed - so changing the
+     * rate doesn't make playback jump ahead or stall. If playback falls
+     * behind it doesn't wait at all until it has caught up.
+     *
+     * @return false if playback was stopped, paused or sought while waiting,
+     *      and the measurement shouldn't be played yet.
+     */
+    private boolean waitForNextRecord(double timestampSeconds) {
+        while(true) {
+            if(!mRunning || mPaused || mSeekNanos.get() != NO_SEEK) {
+                return false;
+            }
+
+            double rate = mPlaybackRate;
+            if(!mAnchored || rate != mAnchorRate) {
+                mAnchorNanos = System.nanoTime();
+                mAnchorWallMillis = System.currentTimeMillis();
+                mAnchorTimestamp = mAnchored ? mLastTimestamp :
+                        timestampSeconds;
+                mAnchorRate = rate;
+                mAnchored = true;
+            }
+
+            if(rate == UNPACED) {
+                break;
+            }
+
+            long targetNanos = mAnchorNanos + (long) ((timestampSeconds -
+                        mAnchorTimestamp) * TimeUnit.SECONDS.toNanos(1) /
+                    rate);
+            long remaining = targetNanos - System.nanoTime();
+            if(remaining <= 0) {
+                break;
+            }
+            // returns early if the rate changes or playback stops
+            LockSupport.parkNanos(remaining);
         }
-        long targetTime = startingTime + (timestamp - mFirstTimestamp);
-        long sleepDuration = TimeUnit.MILLISECONDS.convert(
-                targetTime - System.nanoTime(), TimeUnit.NANOSECONDS);
-        sleepDuration = Math.max(sleepDuration, 0);
-        try {
-            Thread.sleep(sleepDuration);
-        } catch(InterruptedException e) {}
+        mLastTimestamp = timestampSeconds;
+        return true;
     }
 
-    private BufferedReader openResourceFile(URI filename) {
+    /**
+     * @return the wall clock time, in seconds, that a trace timestamp was
+     *      scheduled to play at by the last call to waitForNextRecord().
+     */
+    private double toPlaybackTime(double timestampSeconds) {
+        if(mAnchorRate == UNPACED) {
+            return System.currentTimeMillis() / 1000.0;
+        }
+        return mAnchorWallMillis / 1000.0 +
+                (timestampSeconds - mAnchorTimestamp) / mAnchorRate;
+    }
+
+    private void wakePlaybackThread() {
+        Thread thread = mPlaybackThread;
+        if(thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private TraceCursor openResourceFile(URI filename)
+            throws DataSourceException {
         InputStream stream;
         try {
             stream = getContext().getResources().openRawResource(
@@ -276,8 +597,22 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
         return readerForStream(stream);
     }
 
-    private BufferedReader openRegularFile(URI filename)
+    private TraceCursor openRegularFile(URI filename)
             throws DataSourceException {
+        File file = new File(filename.getPath());
+        try {
+            if(BinaryTraceReader.isBinaryTrace(file)) {
+                return new BinaryTraceReader(file);
+            } else if(file.isFile() && !isCompressed(file)) {
+                MappedTraceReader reader = new MappedTraceReader(file);
+                reader.setIndex(indexInBackground(file));
+                return reader;
+            }
+        } catch(IOException e) {
+            throw new DataSourceException(
+                "Couldn't open the trace file " + filename, e);
+        }
+
         FileInputStream stream;
         try {
             stream = new FileInputStream(filename.getPath());
@@ -289,12 +624,121 @@ public class TraceVehicleDataSource extends ContextualVehicleDataSource
         return readerForStream(stream);
     }
 
-    private BufferedReader readerForStream(InputStream stream) {
+    /**
+     * Start loading the file's index the first time it's opened, so it's
+     * ready by the time playback seeks.
+     */
+    private Future<TraceIndex> indexInBackground(final File file) {
+        if(mIndex == null) {
+            FutureTask<TraceIndex> task = new FutureTask<TraceIndex>(
+                    new Callable<TraceIndex>() {
+                        public TraceIndex call() throws IOException {
+                            return TraceIndex.load(file);
+                        }
+                    });
+            TaskRuntime.getDefault().getIoExecutor().execute(task);
+            mIndex = task;
+        }
+        return mIndex;
+    }
+
+    private TraceCursor readerForStream(InputStream stream)
+            throws DataSourceException {
+        try {
+            stream = decompressIfNeeded(stream);
+        } catch(IOException e) {
+            throw new DataSourceException(
+                "Couldn't read the compressed trace file " + mFilename, e);
+        }
         DataInputStream dataStream = new DataInputStream(stream);
-        return new BufferedReader(new InputStreamReader(dataStream));
+        return new JsonTraceCursor(new BufferedReader(
+                    new InputStreamReader(dataStream)));
+    }
+
+    /**
+     * Wrap the stream in a GZIPInputStream if it starts with the gzip magic
+     * number, regardless of the filename.
+     */
+    static InputStream decompressIfNeeded(InputStream stream)
+            throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(stream);
+        buffered.mark(2);
+        boolean compressed = startsWithGzipMagic(buffered);
+        buffered.reset();
+        if(compressed) {
+            return new GZIPInputStream(buffered);
+        }
+        return buffered;
+    }
+
+    private static boolean isCompressed(File file) throws IOException {
+        InputStream stream = new FileInputStream(file);
+        try {
+            return startsWithGzipMagic(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static boolean startsWithGzipMagic(InputStream stream)
+            throws IOException {
+        int first = stream.read();
+        int second = stream.read();
+        return first == (GZIPInputStream.GZIP_MAGIC & 0xff) &&
+                second == (GZIPInputStream.GZIP_MAGIC >> 8);
+    }
+
+    /**
+     * Open the trace at the start for a pass of playback - from memory if
+     * it's cached, loading it into the cache first if needed. A trace that
+     * isn't looped is only played once, so it's never cached.
+     */
+    private TraceCursor openTrace() throws DataSourceException {
+        long budget = mLoop ? mCacheBudget : 0;
+        if(budget == 0) {
+            mCache = null;
+        } else if(budget != mCacheLoadedBudget) {
+            if(mCache == null || mCache.getMemoryUsage() > budget) {
+                mCache = loadCache(budget);
+            }
+        }
+        mCacheLoadedBudget = budget;
+
+        if(mCache != null) {
+            return mCache.cursor();
+        }
+        return openFile(mFilename);
+    }
+
+    private TraceCache loadCache(long budget) throws DataSourceException {
+        mCache = null;
+        long start = System.nanoTime();
+        TraceCursor cursor = openFile(mFilename);
+        try {
+            TraceCache cache = TraceCache.load(cursor, budget);
+            if(cache == null) {
+                Log.i(TAG, "Trace " + mFilename + " doesn't fit in the " +
+                        budget + " byte cache, playing it from the file");
+            } else {
+                Log.i(TAG, "Cached " + mFilename + " in " +
+                        (System.nanoTime() - start) / 1000000 + "ms: " +
+                        cache);
+            }
+            return cache;
+        } catch(IOException e) {
+            Log.w(TAG, "Couldn't cache the trace " + mFilename +
+                    ", playing it from the file", e);
+            return null;
+        } finally {
+            try {
+                cursor.close();
+            } catch(IOException e) {
+                Log.w(TAG, "Couldn't even close the trace file", e);
+            }
+        }
     }
 
-    private BufferedReader openFile(URI filename)
+    private TraceCursor openFile(URI filename)
             throws DataSourceException {
         String scheme = filename.getScheme();
         if(scheme != null && scheme.equals("resource")) {
@@ -1,5 +1,10 @@
 /**
  * Contains a vehicle data source implementation that reads from OpenXC trace
  * files. This source is most often used for bench testing.
+ *
+ * Traces are either newline-separated JSON or an indexed binary format - see
+ * {@link com.openxc.sources.trace.BinaryTraceWriter},
+ * {@link com.openxc.sources.trace.BinaryTraceReader} and
+ * {@link com.openxc.sources.trace.TraceConverter} to convert between them.
  */
 package com.openxc.sources.trace;
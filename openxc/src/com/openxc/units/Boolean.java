@@ -33,7 +33,7 @@ public class Boolean extends Unit {
     }
 
     public java.lang.Boolean getSerializedValue() {
-        return new java.lang.Boolean(booleanValue());
+        return java.lang.Boolean.valueOf(booleanValue());
     }
 
     @Override
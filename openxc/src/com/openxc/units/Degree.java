@@ -10,4 +10,8 @@ public class Degree extends Quantity<Number> {
     public Degree(Number value) {
         super(value);
     }
+
+    public Degree(double value) {
+        super(value);
+    }
 }
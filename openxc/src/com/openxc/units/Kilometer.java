@@ -8,4 +8,8 @@ public class Kilometer extends Quantity<Number> {
     public Kilometer(Number value) {
         super(value);
     }
+
+    public Kilometer(double value) {
+        super(value);
+    }
 }
@@ -8,4 +8,8 @@ public class KilometersPerHour extends Quantity<Number> {
     public KilometersPerHour(Number value) {
         super(value);
     }
+
+    public KilometersPerHour(double value) {
+        super(value);
+    }
 }
@@ -10,4 +10,8 @@ public class Level extends Quantity<Number> {
     public Level(Number value) {
         super(value);
     }
+
+    public Level(double value) {
+        super(value);
+    }
 }
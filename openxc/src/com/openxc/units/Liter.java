@@ -8,4 +8,8 @@ public class Liter extends Quantity<Number> {
     public Liter(Number value) {
         super(value);
     }
+
+    public Liter(double value) {
+        super(value);
+    }
 }
@@ -8,4 +8,8 @@ public class Meter extends Quantity<Number> {
     public Meter(Number value) {
         super(value);
     }
+
+    public Meter(double value) {
+        super(value);
+    }
 }
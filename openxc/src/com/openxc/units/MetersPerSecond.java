@@ -8,4 +8,8 @@ public class MetersPerSecond extends Quantity<Number> {
     public MetersPerSecond(Number value) {
         super(value);
     }
+
+    public MetersPerSecond(double value) {
+        super(value);
+    }
 }
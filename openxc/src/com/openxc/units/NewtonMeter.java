@@ -8,4 +8,8 @@ public class NewtonMeter extends Quantity<Number> {
     public NewtonMeter(Number value) {
         super(value);
     }
+
+    public NewtonMeter(double value) {
+        super(value);
+    }
 }
@@ -8,4 +8,8 @@ public class Percentage extends Quantity<Number> {
     public Percentage(Number value) {
         super(value);
     }
+
+    public Percentage(double value) {
+        super(value);
+    }
 }
@@ -8,9 +8,12 @@ import com.google.common.base.Objects;
  * All quantitative children of {@link Unit} extend from this abstract class,
  * which encapsulates common logic for converting among different numerical
  * values.
+ *
+ * The value is always stored as a primitive double, whatever type of Number it
+ * was constructed from.
  */
 public abstract class Quantity<T extends Number> extends Unit {
-    private T mValue;
+    private final double mValue;
 
     /**
      * Construct an instance of Quantity with the value.
@@ -18,6 +21,15 @@ public abstract class Quantity<T extends Number> extends Unit {
      * @param value a quantitative Unit value.
      */
     public Quantity(T value) {
+        this(value.doubleValue());
+    }
+
+    /**
+     * Construct an instance of Quantity without boxing the value.
+     *
+     * @param value a quantitative Unit value.
+     */
+    public Quantity(double value) {
         mValue = value;
     }
 
@@ -29,11 +41,13 @@ public abstract class Quantity<T extends Number> extends Unit {
 
         @SuppressWarnings("unchecked")
 		final Quantity<T> other = (Quantity<T>) obj;
-        return mValue.equals(other.mValue);
+        // the same comparison as Double#equals, without boxing
+        return Double.doubleToLongBits(mValue) ==
+                Double.doubleToLongBits(other.mValue);
     }
 
     public double doubleValue() {
-        return mValue.doubleValue();
+        return mValue;
     }
 
     public Object getSerializedValue() {
@@ -41,7 +55,7 @@ public abstract class Quantity<T extends Number> extends Unit {
     }
 
     public int intValue() {
-        return mValue.intValue();
+        return (int) mValue;
     }
 
     @Override
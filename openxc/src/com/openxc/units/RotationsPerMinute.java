@@ -10,4 +10,8 @@ public class RotationsPerMinute extends Quantity<Number> {
     public RotationsPerMinute(Number value) {
         super(value);
     }
+
+    public RotationsPerMinute(double value) {
+        super(value);
+    }
 }
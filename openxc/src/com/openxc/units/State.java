@@ -1,14 +1,29 @@
 package com.openxc.units;
 
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.base.Objects;
 
 /**
  * A State is a type of Unit with a limited number of acceptable values.
+ *
+ * There only needs to be one State for each Enum constant - use
+ * {@link #of(Enum)} or {@link #fromSerializedValue(Class, String)} to get the
+ * shared instance instead of constructing a new one. The serialized value is
+ * computed once, when the State is created.
  */
 public class State<T extends Enum<?>> extends Unit {
+    private static final Map<Enum<?>, State<?>> sStates =
+            new ConcurrentHashMap<Enum<?>, State<?>>();
+    private static final Map<Class<?>, Map<String, Enum<?>>>
+            sSerializedValues =
+            new ConcurrentHashMap<Class<?>, Map<String, Enum<?>>>();
+
     private T mValue;
+    private String mSerializedValue;
 
     /**
      * Construct an instance of State from the Enum T value.
@@ -17,10 +32,55 @@ public class State<T extends Enum<?>> extends Unit {
      */
     public State(T value) {
         mValue = value;
+        mSerializedValue = serialize(value);
+    }
+
+    /**
+     * Return the shared State for the Enum value.
+     *
+     * @param value an instance of the Enum T.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Enum<?>> State<T> of(T value) {
+        State<T> state = (State<T>) sStates.get(value);
+        if(state == null) {
+            state = new State<T>(value);
+            sStates.put(value, state);
+        }
+        return state;
+    }
+
+    /**
+     * Return the shared State for a serialized value, as returned by
+     * {@link #getSerializedValue()}. The match is case-insensitive.
+     *
+     * @throws IllegalArgumentException if the Enum has no matching constant.
+     */
+    public static <T extends Enum<T>> State<T> fromSerializedValue(
+            Class<T> enumType, String serializedValue) {
+        Map<String, Enum<?>> values = sSerializedValues.get(enumType);
+        if(values == null) {
+            values = new HashMap<String, Enum<?>>();
+            for(T constant : enumType.getEnumConstants()) {
+                values.put(serialize(constant), constant);
+            }
+            sSerializedValues.put(enumType, values);
+        }
+
+        T value = enumType.cast(values.get(serializedValue));
+        if(value == null) {
+            value = Enum.valueOf(enumType,
+                    serializedValue.toUpperCase(Locale.US));
+        }
+        return of(value);
     }
 
     @Override
     public boolean equals(Object obj) {
+        if(this == obj) {
+            return true;
+        }
+
         if(!super.equals(obj)) {
             return false;
         }
@@ -42,7 +102,7 @@ public class State<T extends Enum<?>> extends Unit {
     }
 
     public String getSerializedValue() {
-        return mValue.toString().toLowerCase(Locale.US);
+        return mSerializedValue;
     }
 
     @Override
@@ -51,4 +111,8 @@ public class State<T extends Enum<?>> extends Unit {
             .add("value", mValue)
             .toString();
     }
+
+    private static String serialize(Enum<?> value) {
+        return value.toString().toLowerCase(Locale.US);
+    }
 }
@@ -1,6 +1,5 @@
 package com.openxc.util;
 
-import java.util.Calendar;
 import java.util.Date;
 
 import com.google.common.base.Objects;
@@ -11,10 +10,15 @@ import com.openxc.units.Unit;
  *
  * This class keeps track of the birth time of a bit of data, i.e. time time
  * the AgingData object is instantiated.
+ *
+ * The birth time is kept as a primitive wall-clock time in milliseconds, and
+ * the age is measured with the monotonic System.nanoTime() clock so it isn't
+ * affected by changes to the system time.
  */
 public class AgingData<TheUnit extends Unit> {
     TheUnit mValue;
-    private Date mBirthdate;
+    private long mBirthtime;
+    private long mBirthNanos;
 
     /**
      * Construct an instance of AgingData with the value of unit.
@@ -22,12 +26,22 @@ public class AgingData<TheUnit extends Unit> {
      * @param value The data value for this bit of AgingData.
      */
     public AgingData(TheUnit value) {
-        this(new Date(), value);
+        mValue = value;
+        mBirthtime = System.currentTimeMillis();
+        mBirthNanos = System.nanoTime();
     }
 
     public AgingData(Date birthdate, TheUnit value) {
+        this(birthdate.getTime(), value);
+    }
+
+    /**
+     * @param birthtime the wall-clock birth time of the data in milliseconds
+     *      since the epoch.
+     */
+    public AgingData(long birthtime, TheUnit value) {
         mValue = value;
-        mBirthdate = birthdate;
+        setBirthtime(birthtime);
     }
 
     /**
@@ -42,29 +56,80 @@ public class AgingData<TheUnit extends Unit> {
     /**
      * Retrieve the age of this piece of data.
      *
-     * @return the age of the data in seconds.
+     * @return the age of the data in milliseconds.
      */
     public double getAge() {
-        return (new Date()).getTime() - mBirthdate.getTime();
+        return ageOf(mBirthNanos);
     }
 
+    /**
+     * @return the birth time of the data in milliseconds since the epoch.
+     */
     public double getTimestamp() {
-        return mBirthdate.getTime();
+        return mBirthtime;
     }
 
+    /**
+     * @return a new Date for the birth time of the data.
+     */
+    public Date getBirthdate() {
+        return new Date(mBirthtime);
+    }
+
+    /**
+     * Override the birth time of the data.
+     *
+     * @param timestamp the new birth time in seconds since the epoch. A zero
+     *      or NaN timestamp is ignored.
+     */
     public void setTimestamp(double timestamp) {
-        if(timestamp != 0) {
-            Calendar otherTime = Calendar.getInstance();
-            otherTime.setTimeInMillis(Double.valueOf(timestamp * 1000).longValue());
-            mBirthdate = otherTime.getTime();
+        if(isValidTimestamp(timestamp)) {
+            setBirthtime(toMillis(timestamp));
         }
     }
 
+    /**
+     * @return true if the timestamp in seconds can be used as a birth time.
+     */
+    public static boolean isValidTimestamp(double timestamp) {
+        return timestamp != 0 && !Double.isNaN(timestamp);
+    }
+
+    /**
+     * Convert a timestamp in seconds to milliseconds.
+     */
+    public static long toMillis(double timestamp) {
+        return (long) (timestamp * 1000);
+    }
+
+    /**
+     * Convert a wall-clock time to the System.nanoTime() time base, so the
+     * age can be measured with the monotonic clock.
+     *
+     * @param birthtime milliseconds since the epoch.
+     */
+    public static long toNanoTime(long birthtime) {
+        return System.nanoTime() -
+            (System.currentTimeMillis() - birthtime) * 1000000L;
+    }
+
+    /**
+     * @return the number of milliseconds since the System.nanoTime() value.
+     */
+    public static double ageOf(long birthNanos) {
+        return (System.nanoTime() - birthNanos) / 1000000.0;
+    }
+
     @Override
     public String toString() {
         return Objects.toStringHelper(this)
             .add("value", mValue)
-            .add("birthdate", mBirthdate)
+            .add("birthtime", mBirthtime)
             .toString();
     }
+
+    private void setBirthtime(long birthtime) {
+        mBirthtime = birthtime;
+        mBirthNanos = toNanoTime(birthtime);
+    }
 }
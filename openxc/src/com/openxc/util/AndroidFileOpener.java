@@ -6,6 +6,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
 
 import android.os.Environment;
 import android.util.Log;
@@ -15,7 +16,7 @@ import android.util.Log;
  *
  * This file opener will only work on an Android device.
  */
-public class AndroidFileOpener implements FileOpener {
+public class AndroidFileOpener implements FileChannelOpener {
     private static final String TAG = "AndroidFileOpener";
     private static final String DEFAULT_DIRECTORY = "openxc/traces";
 
@@ -26,6 +27,16 @@ public class AndroidFileOpener implements FileOpener {
     }
 
     public BufferedWriter openForWriting(String filename) throws IOException {
+        OutputStream outputStream = openStream(filename);
+        return new BufferedWriter(new OutputStreamWriter(outputStream));
+    }
+
+    public FileChannel openChannelForWriting(String filename)
+            throws IOException {
+        return openStream(filename).getChannel();
+    }
+
+    private FileOutputStream openStream(String filename) throws IOException {
         Log.i(TAG, "Opening " + getDirectory() + "/" + filename
                 + " for writing on external storage");
 
@@ -35,8 +46,7 @@ public class AndroidFileOpener implements FileOpener {
         File file = new File(directory, filename);
         try {
             directory.mkdirs();
-            OutputStream outputStream = new FileOutputStream(file);
-            return new BufferedWriter(new OutputStreamWriter(outputStream));
+            return new FileOutputStream(file);
         } catch(IOException e) {
             Log.w(TAG, "Unable to open " + file + " for writing", e);
             throw e;
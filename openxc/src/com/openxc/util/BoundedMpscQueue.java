@@ -0,0 +1,131 @@
+package com.openxc.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size, lock-free queue for many producer threads and a single
+ * consumer thread.
+ *
+ * Each slot in the ring carries a sequence number that tells producers when it
+ * is free and the consumer when it has been filled, so neither side ever
+ * blocks the other and no objects are allocated per element. Only one thread
+ * may call {@link #poll()} or {@link #drainTo(Collection, int)}.
+ */
+public class BoundedMpscQueue<E> {
+    private final int mMask;
+    private final AtomicReferenceArray<E> mElements;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    private volatile long mHead;
+
+    /**
+     * @param capacity the maximum number of elements in the queue - rounded up
+     *      to a power of two.
+     */
+    public BoundedMpscQueue(int capacity) {
+        if(capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException(
+                    "Capacity must be between 1 and 2^30: " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mElements = new AtomicReferenceArray<E>(size);
+        mSequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Add an element to the tail of the queue, if there is room.
+     *
+     * @return false if the queue is full.
+     */
+    public boolean offer(E element) {
+        if(element == null) {
+            throw new NullPointerException();
+        }
+
+        while(true) {
+            long position = mTail.get();
+            int index = (int) position & mMask;
+            long available = mSequences.get(index) - position;
+            if(available == 0) {
+                if(mTail.compareAndSet(position, position + 1)) {
+                    mElements.set(index, element);
+                    // publish the element to the consumer
+                    mSequences.set(index, position + 1);
+                    return true;
+                }
+            } else if(available < 0) {
+                return false;
+            }
+            // another producer claimed the slot first - try the next one
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue. Must only be called from
+     * the consumer thread.
+     *
+     * @return the element, or null if the queue is empty.
+     */
+    public E poll() {
+        long position = mHead;
+        int index = (int) position & mMask;
+        if(mSequences.get(index) != position + 1) {
+            // empty, or a producer has claimed the slot but not filled it yet
+            return null;
+        }
+
+        E element = mElements.get(index);
+        mElements.set(index, null);
+        // free the slot for the producer that wraps around to it
+        mSequences.set(index, position + capacity());
+        mHead = position + 1;
+        return element;
+    }
+
+    /**
+     * Move up to maxElements from the queue to the collection. Must only be
+     * called from the consumer thread.
+     *
+     * @return the number of elements moved.
+     */
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        int count = 0;
+        E element;
+        while(count < maxElements && (element = poll()) != null) {
+            collection.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of elements in the queue, including any that
+     *      producers are in the middle of adding.
+     */
+    public int size() {
+        long size = mTail.get() - mHead;
+        if(size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity());
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+}
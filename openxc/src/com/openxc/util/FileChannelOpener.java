@@ -0,0 +1,18 @@
+package com.openxc.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link FileOpener} that can also open a file as a FileChannel, so large
+ * chunks of bytes can be written without going through a Writer.
+ */
+public interface FileChannelOpener extends FileOpener {
+    /**
+     * Open the file at the given path for writing.
+     *
+     * @return a FileChannel positioned at the end of the requested file.
+     * @throws IOException if there are issues opening the file
+     */
+    public FileChannel openChannelForWriting(String path) throws IOException;
+}
@@ -1,22 +1,44 @@
 package com.openxc.util;
 
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 /**
  * A file opener that uses the standard Java IO API.
  *
  * This file opener will work in a regular JVM, so it is good for test cases.
  */
-public class JavaFileOpener implements FileOpener {
+public class JavaFileOpener implements FileChannelOpener {
     private final boolean APPEND = true;
 
+    private File mDirectory;
+
+    public JavaFileOpener() { }
+
+    /**
+     * @param directory relative paths are opened in this directory.
+     */
+    public JavaFileOpener(File directory) {
+        mDirectory = directory;
+    }
+
     public BufferedWriter openForWriting(String path) throws IOException {
         try {
-            return new BufferedWriter(new FileWriter(path, APPEND));
+            return new BufferedWriter(new FileWriter(getFile(path), APPEND));
         } catch(IOException e) {
             throw e;
         }
     }
+
+    public FileChannel openChannelForWriting(String path) throws IOException {
+        return new FileOutputStream(getFile(path), APPEND).getChannel();
+    }
+
+    private File getFile(String path) {
+        return new File(mDirectory, path);
+    }
 }
@@ -0,0 +1,173 @@
+package com.openxc.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import com.google.common.base.Objects;
+
+/**
+ * Threads shared by all of the data sources and sinks in a process.
+ *
+ * Instead of each component starting its own thread, they submit work here:
+ *
+ * - the I/O executor is for tasks that block, e.g. reading from a USB device
+ *      or a trace file, or uploading data. It grows as needed and idle threads
+ *      exit after a minute.
+ * - the compute executor is only for CPU work that doesn't block or call code
+ *      outside of the library, like decoding a trace that is already in
+ *      memory. It has one thread per processor (at least two), so splitting
+ *      work into more tasks doesn't add threads or context switches.
+ * - the listener executor runs the application's callbacks, e.g. the
+ *      measurement listeners and the pipeline of a RemoteListenerSource.
+ *      Each sink runs at most one task on it at a time, so its callbacks are
+ *      serial, and a busy sink gives up its thread after a time slice - the
+ *      number of threads doesn't grow with the number of sinks, and a slow
+ *      callback never holds up the compute threads. It has two threads per
+ *      compute thread, so a few callbacks that block don't stop the others,
+ *      but a callback that never returns keeps its thread for good.
+ * - the timer runs delayed tasks on the I/O executor, since they may make
+ *      Binder calls or run a pipeline.
+ * - the callback Looper receives callbacks from Android system services, e.g.
+ *      location updates.
+ *
+ * All threads are daemon threads with an "openxc-" prefix.
+ */
+public class TaskRuntime {
+    private final static int TIMER_TICK_MS = 10;
+    private final static int TIMER_TICKS_PER_WHEEL = 512;
+    private final static int IO_KEEP_ALIVE_SECONDS = 60;
+    private final static int LISTENER_THREADS_PER_COMPUTE_THREAD = 2;
+
+    private static TaskRuntime sDefault;
+
+    private final ThreadPoolExecutor mIoExecutor;
+    private final ThreadPoolExecutor mComputeExecutor;
+    private final ThreadPoolExecutor mListenerExecutor;
+    private final int mListenerThreads;
+    private final TimerWheel mTimer;
+    private HandlerThread mCallbackThread;
+
+    /**
+     * @return the runtime shared by everything in this process.
+     */
+    public static synchronized TaskRuntime getDefault() {
+        if(sDefault == null) {
+            sDefault = new TaskRuntime(Math.max(2,
+                        Runtime.getRuntime().availableProcessors()));
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param computeThreads the number of threads in the compute executor.
+     */
+    public TaskRuntime(int computeThreads) {
+        this(computeThreads,
+                computeThreads * LISTENER_THREADS_PER_COMPUTE_THREAD);
+    }
+
+    /**
+     * @param computeThreads the number of threads in the compute executor.
+     * @param listenerThreads the number of threads in the listener executor.
+     */
+    public TaskRuntime(int computeThreads, int listenerThreads) {
+        mListenerThreads = listenerThreads;
+        mIoExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                IO_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new NamedThreadFactory("openxc-io-"));
+        mComputeExecutor = new ThreadPoolExecutor(computeThreads,
+                computeThreads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("openxc-compute-"));
+        mListenerExecutor = new ThreadPoolExecutor(listenerThreads,
+                listenerThreads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("openxc-listener-"));
+        mTimer = new TimerWheel("openxc-timer", TIMER_TICK_MS,
+                TimeUnit.MILLISECONDS, TIMER_TICKS_PER_WHEEL,
+                mIoExecutor);
+    }
+
+    /**
+     * @return the executor for tasks that block.
+     */
+    public Executor getIoExecutor() {
+        return mIoExecutor;
+    }
+
+    /**
+     * @return the executor for CPU work that doesn't block.
+     */
+    public Executor getComputeExecutor() {
+        return mComputeExecutor;
+    }
+
+    /**
+     * @return the executor for delivering measurements to the application.
+     */
+    public Executor getListenerExecutor() {
+        return mListenerExecutor;
+    }
+
+    /**
+     * @return the most threads the listener executor will use.
+     */
+    public int getListenerThreadCount() {
+        return mListenerThreads;
+    }
+
+    public TimerWheel getTimer() {
+        return mTimer;
+    }
+
+    /**
+     * @return a Looper running on a shared thread, for callbacks from system
+     *      services. Callbacks must return quickly.
+     */
+    public synchronized Looper getCallbackLooper() {
+        if(mCallbackThread == null) {
+            mCallbackThread = new HandlerThread("openxc-callbacks");
+            mCallbackThread.setDaemon(true);
+            mCallbackThread.start();
+        }
+        return mCallbackThread.getLooper();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("ioThreads", mIoExecutor.getPoolSize())
+            .add("ioActive", mIoExecutor.getActiveCount())
+            .add("computeThreads", mComputeExecutor.getPoolSize())
+            .add("computeQueued", mComputeExecutor.getQueue().size())
+            .add("listenerThreads", mListenerExecutor.getPoolSize())
+            .add("listenerQueued", mListenerExecutor.getQueue().size())
+            .add("timer", mTimer)
+            .toString();
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        public NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                    mPrefix + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.openxc.util;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Objects;
+
+/**
+ * Run tasks after a delay, with one thread for any number of pending tasks.
+ *
+ * Tasks are kept in a ring of buckets, one per tick - scheduling and
+ * cancelling are O(1), and a tick only looks at the tasks in one bucket. The
+ * cost is precision: a task runs up to one tick after its deadline. Expired
+ * tasks are handed to an Executor, so a slow task doesn't delay the others.
+ *
+ * When no tasks are pending, the timer thread parks until the next one is
+ * scheduled instead of ticking.
+ */
+public class TimerWheel {
+    private final long mTickNanos;
+    private final int mMask;
+    private final LinkedList<Timeout>[] mBuckets;
+    private final Executor mExecutor;
+    private final Queue<Timeout> mNewTimeouts =
+            new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+    private final TickThread mTickThread;
+    private long mTick;
+
+    /**
+     * A handle to a scheduled task.
+     */
+    public static class Timeout {
+        private final Runnable mTask;
+        private final long mDeadline;
+        private long mRemainingRounds;
+        private volatile boolean mCancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        /**
+         * Stop the task from running, if it hasn't already been started.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    /**
+     * @param name the name of the timer thread.
+     * @param tickDuration the precision of the timer.
+     * @param unit the unit of tickDuration.
+     * @param ticksPerWheel the number of buckets - rounded up to a power of
+     *      two. Delays longer than one turn of the wheel take several turns.
+     * @param executor where tasks are run when they expire.
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(String name, long tickDuration, TimeUnit unit,
+            int ticksPerWheel, Executor executor) {
+        mTickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if(size < ticksPerWheel) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mBuckets = new LinkedList[size];
+        for(int i = 0; i < size; i++) {
+            mBuckets[i] = new LinkedList<Timeout>();
+        }
+        mExecutor = executor;
+        mTickThread = new TickThread(name);
+        mTickThread.start();
+    }
+
+    /**
+     * Run a task after a delay.
+     *
+     * @return a handle that can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task,
+                System.nanoTime() + unit.toNanos(Math.max(delay, 0)));
+        mNewTimeouts.offer(timeout);
+        if(mPendingCount.getAndIncrement() == 0) {
+            // the timer thread may be parked with nothing to do
+            LockSupport.unpark(mTickThread);
+        }
+        return timeout;
+    }
+
+    /**
+     * @return the number of tasks that haven't run yet, including cancelled
+     *      tasks that haven't been cleaned up.
+     */
+    public int getPendingCount() {
+        return mPendingCount.get();
+    }
+
+    /**
+     * Stop the timer thread. Pending tasks are never run.
+     */
+    public void stop() {
+        mTickThread.done();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("tickMs", TimeUnit.NANOSECONDS.toMillis(mTickNanos))
+            .add("pending", getPendingCount())
+            .toString();
+    }
+
+    private void addNewTimeouts(long tickStart) {
+        Timeout timeout;
+        while((timeout = mNewTimeouts.poll()) != null) {
+            // round up, so the task's bucket comes up at or after its
+            // deadline
+            long ticks = Math.max((timeout.mDeadline - tickStart +
+                        mTickNanos - 1) / mTickNanos, 0);
+            timeout.mRemainingRounds = ticks / mBuckets.length;
+            mBuckets[(int) ((mTick + ticks) & mMask)].add(timeout);
+        }
+    }
+
+    private void expireTimeouts(long now) {
+        ListIterator<Timeout> it = mBuckets[(int) (mTick & mMask)]
+                .listIterator();
+        while(it.hasNext()) {
+            Timeout timeout = it.next();
+            if(timeout.mCancelled) {
+                it.remove();
+                mPendingCount.decrementAndGet();
+            } else if(timeout.mRemainingRounds <= 0 &&
+                    timeout.mDeadline <= now) {
+                it.remove();
+                mPendingCount.decrementAndGet();
+                mExecutor.execute(timeout.mTask);
+            } else if(timeout.mRemainingRounds > 0) {
+                timeout.mRemainingRounds--;
+            }
+            // a timeout that isn't quite due yet stays for the next turn
+        }
+    }
+
+    private class TickThread extends Thread {
+        private volatile boolean mRunning = true;
+
+        public TickThread(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        public void done() {
+            mRunning = false;
+            LockSupport.unpark(this);
+        }
+
+        public void run() {
+            long nextTick = System.nanoTime();
+            while(mRunning) {
+                if(mPendingCount.get() == 0) {
+                    LockSupport.park();
+                    // start counting ticks again from when we woke up
+                    nextTick = System.nanoTime();
+                    continue;
+                }
+
+                long now = System.nanoTime();
+                if(now < nextTick) {
+                    LockSupport.parkNanos(nextTick - now);
+                    continue;
+                }
+
+                addNewTimeouts(nextTick);
+                expireTimeouts(now);
+                mTick++;
+                nextTick += mTickNanos;
+            }
+        }
+    }
+}